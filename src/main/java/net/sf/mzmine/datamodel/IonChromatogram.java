@@ -0,0 +1,58 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.datamodel;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.collect.Range;
+
+/**
+ * Ion chromatogram of an m/z range, as extracted by
+ * RawDataFile.getIonChromatograms(). It has one data point for each scan
+ * within its retention time range, which is the most intense data point of the
+ * scan within the m/z range.
+ */
+public interface IonChromatogram {
+
+    @Nonnull
+    public Range<Double> getMZRange();
+
+    @Nonnull
+    public Range<Double> getRTRange();
+
+    public int getNumberOfDataPoints();
+
+    public int getScanNumber(int index);
+
+    public double getRetentionTime(int index);
+
+    /**
+     * @return m/z of the data point, or the center of the m/z range if the
+     *         scan has no data point within it
+     */
+    public double getMZ(int index);
+
+    /**
+     * @return Intensity of the data point, or 0 if the scan has no data point
+     *         within the m/z range
+     */
+    public double getIntensity(int index);
+
+}
@@ -36,4 +36,19 @@ public interface MassList {
     @Nonnull
     public DataPoint[] getDataPoints();
 
+    /**
+     * @return Number of m/z and intensity data points
+     */
+    public int getNumberOfDataPoints();
+
+    /**
+     * Copies the m/z and intensity values of all data points of this mass
+     * list into the given arrays, without creating DataPoint instances. Both
+     * arrays must have at least getNumberOfDataPoints() elements.
+     * 
+     * @return Number of data points copied into the arrays
+     */
+    public int getDataPoints(@Nonnull double mzValues[],
+	    @Nonnull double intensityValues[]);
+
 }
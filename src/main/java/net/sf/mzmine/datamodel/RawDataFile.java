@@ -19,6 +19,8 @@
 
 package net.sf.mzmine.datamodel;
 
+import java.util.List;
+
 import javax.annotation.Nonnull;
 
 import com.google.common.collect.Range;
@@ -107,6 +109,24 @@ public interface RawDataFile {
 
     public double getDataMaxTotalIonCurrent(int msLevel);
 
+    /**
+     * Extracts the ion chromatograms of many targets at once. Each scan of
+     * given MS level is read at most once for all targets, and only if it is
+     * within the retention time range of any target.
+     * 
+     * @param msLevel
+     *            MS level
+     * @param mzRanges
+     *            m/z range of each target
+     * @param rtRanges
+     *            Retention time range of each target
+     * @return Ion chromatogram of each target, in the same order
+     */
+    @Nonnull
+    public IonChromatogram[] getIonChromatograms(int msLevel,
+            @Nonnull List<Range<Double>> mzRanges,
+            @Nonnull List<Range<Double>> rtRanges);
+
     /**
      * Close the file in case it is removed from the project
      */
@@ -87,6 +87,22 @@ public interface Scan extends MassSpectrum {
      */
     public int[] getFragmentScanNumbers();
 
+    /**
+     * Copies the m/z and intensity values of all data points of this scan,
+     * sorted in m/z order, into the given arrays. Both arrays must have at
+     * least getNumberOfDataPoints() elements. Unlike getDataPoints(), this
+     * method does not create any DataPoint instances, so the same arrays can
+     * be reused for many scans without allocation.
+     * 
+     * @param mzValues
+     *            Array to fill with m/z values
+     * @param intensityValues
+     *            Array to fill with intensity values
+     * @return Number of data points copied into the arrays
+     */
+    public int getDataPoints(@Nonnull double mzValues[],
+	    @Nonnull double intensityValues[]);
+
     @Nonnull
     public MassList[] getMassLists();
 
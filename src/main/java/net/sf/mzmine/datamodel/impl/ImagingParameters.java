@@ -54,6 +54,13 @@ public class ImagingParameters {
 	private ScanDirection scanDirection;
 	
 	
+	/**
+	 * Parameters to be filled by the setters, e.g. by a reader which does not
+	 * build the ImzML object model
+	 */
+	public ImagingParameters() {
+	}
+
 	public ImagingParameters(ImzML imz) {
 		width = imz.getWidth();
 		height = imz.getHeight();
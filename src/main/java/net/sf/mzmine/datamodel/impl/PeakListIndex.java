@@ -0,0 +1,357 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.datamodel.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+
+import com.google.common.collect.Range;
+
+/**
+ * m/z and RT index of the rows of a SimplePeakList, used for the
+ * getRowsInside...() and getPeaksInside...() queries.
+ *
+ * The rows are kept in a tree sorted by their average m/z, so the rows inside
+ * an m/z window are found in logarithmic time, and then filtered by RT. The
+ * rows notify the index when their average m/z or RT changes (see
+ * SimplePeakListRow), and the peak list notifies it when rows are added or
+ * removed, so the tree is updated incrementally and never rebuilt. Each row
+ * gets a sequence number in the order it was added to the peak list, so the
+ * query results keep the order of the rows in the peak list.
+ *
+ * The peaks of each raw data file are indexed by their own m/z in sorted
+ * arrays. These are built on the first query for the file and dropped when
+ * any row changes.
+ *
+ * The index becomes stale when values change without a notification: the m/z
+ * or RT of a peak changed in place is only seen after
+ * SimplePeakListRow.update() is called on its row, and rows which are not
+ * SimplePeakListRow instances are kept at the average m/z and RT they had when
+ * they were added to the peak list.
+ *
+ * Queries take a shared read lock, so they can run in parallel on the same
+ * peak list. Changes of the rows take the write lock of this index only, so
+ * tasks working on different peak lists never wait for each other.
+ */
+class PeakListIndex {
+
+    private static class RowEntry {
+        final PeakListRow row;
+        final long sequence;
+        double mz, rt;
+
+        RowEntry(PeakListRow row, long sequence) {
+            this.row = row;
+            this.sequence = sequence;
+            this.mz = row.getAverageMZ();
+            this.rt = row.getAverageRT();
+        }
+
+        // Search key
+        RowEntry(double mz, long sequence) {
+            this.row = null;
+            this.sequence = sequence;
+            this.mz = mz;
+        }
+    }
+
+    /**
+     * Peaks of one raw data file, sorted by m/z
+     */
+    private static class PeakIndex {
+        Feature peaks[];
+        double mzValues[], rtValues[];
+        // Position of the row of each peak in the peak list
+        int rowPositions[];
+    }
+
+    private static final Comparator<RowEntry> mzComparator = new Comparator<RowEntry>() {
+        @Override
+        public int compare(RowEntry e1, RowEntry e2) {
+            int result = Double.compare(e1.mz, e2.mz);
+            if (result != 0)
+                return result;
+            return Long.compare(e1.sequence, e2.sequence);
+        }
+    };
+
+    private static final Comparator<RowEntry> sequenceComparator = new Comparator<RowEntry>() {
+        @Override
+        public int compare(RowEntry e1, RowEntry e2) {
+            return Long.compare(e1.sequence, e2.sequence);
+        }
+    };
+
+    private final TreeSet<RowEntry> rowsByMz = new TreeSet<RowEntry>(
+            mzComparator);
+    private final Map<PeakListRow, RowEntry> entries = new IdentityHashMap<PeakListRow, RowEntry>();
+    // Filled lazily by the queries, which only hold the read lock
+    private final Map<RawDataFile, PeakIndex> peakIndexes = new ConcurrentHashMap<RawDataFile, PeakIndex>();
+    private final List<PeakListRow> peakListRows;
+    private long nextSequence = 0;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Lock readLock = lock.readLock(), writeLock = lock.writeLock();
+
+    /**
+     * @param peakListRows
+     *            Rows of the peak list. The list is only read when the peaks
+     *            of a raw data file are indexed.
+     */
+    PeakListIndex(@Nonnull List<PeakListRow> peakListRows) {
+        this.peakListRows = peakListRows;
+        for (PeakListRow row : peakListRows)
+            rowAdded(row);
+    }
+
+    void rowAdded(PeakListRow row) {
+        writeLock.lock();
+        try {
+            // The same row can be added only once
+            if (entries.containsKey(row))
+                return;
+            RowEntry entry = new RowEntry(row, nextSequence++);
+            entries.put(row, entry);
+            rowsByMz.add(entry);
+            if (row instanceof SimplePeakListRow)
+                ((SimplePeakListRow) row).addIndex(this);
+            peakIndexes.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void rowRemoved(PeakListRow row) {
+        writeLock.lock();
+        try {
+            RowEntry entry = entries.remove(row);
+            if (entry == null)
+                return;
+            rowsByMz.remove(entry);
+            if (row instanceof SimplePeakListRow)
+                ((SimplePeakListRow) row).removeIndex(this);
+            peakIndexes.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Called by the row when its peaks or average values change
+     */
+    void rowChanged(PeakListRow row) {
+        writeLock.lock();
+        try {
+            RowEntry entry = entries.get(row);
+            if (entry == null)
+                return;
+            rowsByMz.remove(entry);
+            entry.mz = row.getAverageMZ();
+            entry.rt = row.getAverageRT();
+            rowsByMz.add(entry);
+            peakIndexes.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return Rows with average m/z and RT inside given ranges, in the order
+     *         of the peak list
+     */
+    PeakListRow[] getRows(@Nonnull Range<Double> rtRange,
+            @Nonnull Range<Double> mzRange) {
+
+        List<RowEntry> inside = new ArrayList<RowEntry>();
+        readLock.lock();
+        try {
+            for (RowEntry entry : getCandidates(mzRange)) {
+                if (rtRange.contains(entry.rt) && mzRange.contains(entry.mz))
+                    inside.add(entry);
+            }
+        } finally {
+            readLock.unlock();
+        }
+
+        RowEntry sorted[] = inside.toArray(new RowEntry[0]);
+        Arrays.sort(sorted, sequenceComparator);
+        PeakListRow rows[] = new PeakListRow[sorted.length];
+        for (int i = 0; i < sorted.length; i++)
+            rows[i] = sorted[i].row;
+        return rows;
+    }
+
+    /**
+     * @return Entries with m/z in the span of the given range, may contain
+     *         entries on open bounds
+     */
+    private Collection<RowEntry> getCandidates(Range<Double> mzRange) {
+        NavigableSet<RowEntry> candidates = rowsByMz;
+        if (mzRange.hasLowerBound()) {
+            RowEntry from = new RowEntry(mzRange.lowerEndpoint(),
+                    Long.MIN_VALUE);
+            candidates = candidates.tailSet(from, true);
+        }
+        if (mzRange.hasUpperBound()) {
+            RowEntry to = new RowEntry(mzRange.upperEndpoint(),
+                    Long.MAX_VALUE);
+            candidates = candidates.headSet(to, true);
+        }
+        return candidates;
+    }
+
+    /**
+     * @return Peaks of given raw data file with m/z and RT inside given
+     *         ranges, in the order of rows in the peak list
+     */
+    Feature[] getPeaks(@Nonnull RawDataFile file,
+            @Nonnull Range<Double> rtRange, @Nonnull Range<Double> mzRange) {
+
+        // The peak index is immutable once built, so it can be searched
+        // after the lock is released
+        PeakIndex peakIndex;
+        readLock.lock();
+        try {
+            peakIndex = peakIndexes.get(file);
+            if (peakIndex == null) {
+                // Concurrent queries may build the same index, the first one
+                // is kept
+                PeakIndex newIndex = buildPeakIndex(file);
+                peakIndex = peakIndexes.putIfAbsent(file, newIndex);
+                if (peakIndex == null)
+                    peakIndex = newIndex;
+            }
+        } finally {
+            readLock.unlock();
+        }
+
+        final double mzValues[] = peakIndex.mzValues;
+        int from = 0, to = mzValues.length;
+        if (mzRange.hasLowerBound())
+            from = firstIndexNotBelow(mzValues, mzRange.lowerEndpoint());
+        if (mzRange.hasUpperBound())
+            to = firstIndexAbove(mzValues, mzRange.upperEndpoint());
+
+        // Row position in the upper and peak index in the lower 32 bits, so
+        // sorting restores the order of the peak list
+        long keys[] = new long[Math.max(0, to - from)];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (rtRange.contains(peakIndex.rtValues[i])
+                    && mzRange.contains(mzValues[i]))
+                keys[count++] = ((long) peakIndex.rowPositions[i] << 32) | i;
+        }
+        Arrays.sort(keys, 0, count);
+
+        Feature peaks[] = new Feature[count];
+        for (int i = 0; i < count; i++)
+            peaks[i] = peakIndex.peaks[(int) keys[i]];
+        return peaks;
+    }
+
+    private PeakIndex buildPeakIndex(RawDataFile file) {
+
+        List<Feature> filePeaks = new ArrayList<Feature>();
+        List<Integer> positions = new ArrayList<Integer>();
+        for (int i = 0; i < peakListRows.size(); i++) {
+            Feature peak = peakListRows.get(i).getPeak(file);
+            if (peak != null) {
+                filePeaks.add(peak);
+                positions.add(i);
+            }
+        }
+
+        final int numOfPeaks = filePeaks.size();
+        final double mzValues[] = new double[numOfPeaks];
+        Integer order[] = new Integer[numOfPeaks];
+        for (int i = 0; i < numOfPeaks; i++) {
+            mzValues[i] = filePeaks.get(i).getMZ();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(mzValues[i1], mzValues[i2]);
+            }
+        });
+
+        PeakIndex peakIndex = new PeakIndex();
+        peakIndex.peaks = new Feature[numOfPeaks];
+        peakIndex.mzValues = new double[numOfPeaks];
+        peakIndex.rtValues = new double[numOfPeaks];
+        peakIndex.rowPositions = new int[numOfPeaks];
+        for (int i = 0; i < numOfPeaks; i++) {
+            Feature peak = filePeaks.get(order[i]);
+            peakIndex.peaks[i] = peak;
+            peakIndex.mzValues[i] = mzValues[order[i]];
+            peakIndex.rtValues[i] = peak.getRT();
+            peakIndex.rowPositions[i] = positions.get(order[i]);
+        }
+        return peakIndex;
+    }
+
+    /**
+     * @return Index of the first value which is not below the given value
+     */
+    private static int firstIndexNotBelow(double values[], double value) {
+        int low = 0, high = values.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (Double.compare(values[mid], value) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * @return Index of the first value which is above the given value
+     */
+    private static int firstIndexAbove(double values[], double value) {
+        int low = 0, high = values.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (Double.compare(values[mid], value) <= 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+}
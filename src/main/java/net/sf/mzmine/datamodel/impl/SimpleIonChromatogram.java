@@ -0,0 +1,109 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.datamodel.impl;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.IonChromatogram;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.util.XICExtractor;
+
+import com.google.common.collect.Range;
+
+/**
+ * Ion chromatogram which is filled by XICExtractor with the scans within its
+ * retention time range
+ */
+public class SimpleIonChromatogram implements IonChromatogram,
+	XICExtractor.Target {
+
+    private final Range<Double> mzRange, rtRange;
+
+    private int scanNumbers[] = new int[16];
+    private double retentionTimes[] = new double[16];
+    private double mzValues[] = new double[16];
+    private double intensityValues[] = new double[16];
+    private int numOfDataPoints = 0;
+
+    public SimpleIonChromatogram(@Nonnull Range<Double> mzRange,
+	    @Nonnull Range<Double> rtRange) {
+	this.mzRange = mzRange;
+	this.rtRange = rtRange;
+    }
+
+    @Override
+    public @Nonnull Range<Double> getMZRange() {
+	return mzRange;
+    }
+
+    @Override
+    public @Nonnull Range<Double> getRTRange() {
+	return rtRange;
+    }
+
+    @Override
+    public boolean isFinished(double scanRT) {
+	return scanRT > rtRange.upperEndpoint();
+    }
+
+    @Override
+    public void addDataPoint(@Nonnull Scan scan, double mz, double intensity) {
+	if (numOfDataPoints == scanNumbers.length) {
+	    final int capacity = 2 * numOfDataPoints;
+	    scanNumbers = Arrays.copyOf(scanNumbers, capacity);
+	    retentionTimes = Arrays.copyOf(retentionTimes, capacity);
+	    mzValues = Arrays.copyOf(mzValues, capacity);
+	    intensityValues = Arrays.copyOf(intensityValues, capacity);
+	}
+	scanNumbers[numOfDataPoints] = scan.getScanNumber();
+	retentionTimes[numOfDataPoints] = scan.getRetentionTime();
+	mzValues[numOfDataPoints] = mz;
+	intensityValues[numOfDataPoints] = intensity;
+	numOfDataPoints++;
+    }
+
+    @Override
+    public int getNumberOfDataPoints() {
+	return numOfDataPoints;
+    }
+
+    @Override
+    public int getScanNumber(int index) {
+	return scanNumbers[index];
+    }
+
+    @Override
+    public double getRetentionTime(int index) {
+	return retentionTimes[index];
+    }
+
+    @Override
+    public double getMZ(int index) {
+	return mzValues[index];
+    }
+
+    @Override
+    public double getIntensity(int index) {
+	return intensityValues[index];
+    }
+
+}
@@ -50,6 +50,11 @@ public class SimplePeakList implements PeakList {
     private String dateCreated;
     private Range<Double> mzRange, rtRange;
 
+    // m/z and RT index of the rows, built on the first query. Peaks changed
+    // in place are only seen after SimplePeakListRow.update() (see
+    // PeakListIndex).
+    private PeakListIndex index;
+
     public static DateFormat dateFormat = new SimpleDateFormat(
 	    "yyyy/MM/dd HH:mm:ss");
 
@@ -161,15 +166,13 @@ public class SimplePeakList implements PeakList {
 
     public PeakListRow[] getRowsInsideScanAndMZRange(Range<Double> rtRange,
 	    Range<Double> mzRange) {
-	Vector<PeakListRow> rowsInside = new Vector<PeakListRow>();
-
-	for (PeakListRow row : peakListRows) {
-	    if (rtRange.contains(row.getAverageRT())
-		    && mzRange.contains(row.getAverageMZ()))
-		rowsInside.add(row);
-	}
+	return getIndex().getRows(rtRange, mzRange);
+    }
 
-	return rowsInside.toArray(new PeakListRow[0]);
+    private synchronized PeakListIndex getIndex() {
+	if (index == null)
+	    index = new PeakListIndex(peakListRows);
+	return index;
     }
 
     public void addRow(PeakListRow row) {
@@ -181,6 +184,10 @@ public class SimplePeakList implements PeakList {
 	}
 
 	peakListRows.add(row);
+	synchronized (this) {
+	    if (index != null)
+		index.rowAdded(row);
+	}
 	if (row.getDataPointMaxIntensity() > maxDataPointIntensity) {
 	    maxDataPointIntensity = row.getDataPointMaxIntensity();
 	}
@@ -225,15 +232,7 @@ public class SimplePeakList implements PeakList {
      */
     public Feature[] getPeaksInsideScanAndMZRange(RawDataFile file,
 	    Range<Double> rtRange, Range<Double> mzRange) {
-	Vector<Feature> peaksInside = new Vector<Feature>();
-
-	Feature[] peaks = getPeaks(file);
-	for (Feature p : peaks) {
-	    if (rtRange.contains(p.getRT()) && mzRange.contains(p.getMZ()))
-		peaksInside.add(p);
-	}
-
-	return peaksInside.toArray(new Feature[0]);
+	return getIndex().getPeaks(file, rtRange, mzRange);
     }
 
     /**
@@ -241,6 +240,10 @@ public class SimplePeakList implements PeakList {
      */
     public void removeRow(PeakListRow row) {
 	peakListRows.remove(row);
+	synchronized (this) {
+	    if (index != null)
+		index.rowRemoved(row);
+	}
 
 	// We have to update the project tree model
 	MZmineProjectImpl project = (MZmineProjectImpl) MZmineCore
@@ -19,12 +19,14 @@
 
 package net.sf.mzmine.datamodel.impl;
 
+import java.lang.ref.WeakReference;
 import java.text.Format;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Vector;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.IsotopePattern;
@@ -59,6 +61,19 @@ public class SimplePeakListRow implements PeakListRow {
     private double averageRT, averageMZ, averageHeight, averageArea;
     private int rowCharge;
 
+    /**
+     * Indexes of the peak lists containing this row, which are notified when
+     * the average values change. Created on demand, most rows are never
+     * indexed. The peak lists are only weakly referenced, so a row does not
+     * keep discarded peak lists in memory.
+     *
+     * The list is guarded by its own lock of this row, not by the row itself:
+     * calculateAverageValues() notifies the indexes while holding the row,
+     * and the indexes register themselves while holding their write lock.
+     */
+    private volatile CopyOnWriteArrayList<WeakReference<PeakListIndex>> indexes;
+    private final Object indexesLock = new Object();
+
     public SimplePeakListRow(int myID) {
 	this.myID = myID;
 	peaks = new Hashtable<RawDataFile, Feature>();
@@ -156,6 +171,45 @@ public class SimplePeakListRow implements PeakListRow {
 	averageHeight = heightSum / peaks.size();
 	averageArea = areaSum / peaks.size();
 	if (chargeArr.size() < 2) { rowCharge = charge; } else { rowCharge = 0; }
+	notifyIndexes();
+    }
+
+    void addIndex(PeakListIndex index) {
+	synchronized (indexesLock) {
+	    removeIndex(null);
+	    if (indexes == null)
+		indexes = new CopyOnWriteArrayList<WeakReference<PeakListIndex>>();
+	    indexes.add(new WeakReference<PeakListIndex>(index));
+	}
+    }
+
+    /**
+     * Removes given index, and the references to indexes which were already
+     * garbage collected
+     */
+    void removeIndex(PeakListIndex index) {
+	synchronized (indexesLock) {
+	    if (indexes == null)
+		return;
+	    for (WeakReference<PeakListIndex> ref : indexes) {
+		PeakListIndex referencedIndex = ref.get();
+		if ((referencedIndex == null) || (referencedIndex == index))
+		    indexes.remove(ref);
+	    }
+	    if (indexes.isEmpty())
+		indexes = null;
+	}
+    }
+
+    private void notifyIndexes() {
+	CopyOnWriteArrayList<WeakReference<PeakListIndex>> currentIndexes = indexes;
+	if (currentIndexes == null)
+	    return;
+	for (WeakReference<PeakListIndex> ref : currentIndexes) {
+	    PeakListIndex index = ref.get();
+	    if (index != null)
+		index.rowChanged(this);
+	}
     }
 
     /**
@@ -199,6 +253,7 @@ public class SimplePeakListRow implements PeakListRow {
      */
     public void setAverageMZ(double mz) {
 	this.averageMZ = mz;
+	notifyIndexes();
     }
 
     /**
@@ -206,6 +261,7 @@ public class SimplePeakListRow implements PeakListRow {
      */
     public void setAverageRT(double rt) {
 	this.averageRT = rt;
+	notifyIndexes();
     }
 
     /**
@@ -365,7 +421,9 @@ public class SimplePeakListRow implements PeakListRow {
     
     // Gauthier edit
     /**
-     * Update average values
+     * Update average values. Must also be called after the m/z or RT of a peak
+     * of this row was changed in place, so the indexes of the peak lists
+     * containing this row are updated.
      */
     public void update() {
         this.calculateAverageValues();
@@ -27,6 +27,7 @@ import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
 import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
+import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
 import net.sf.mzmine.parameters.parametertypes.OptionalModuleParameter;
 import net.sf.mzmine.parameters.parametertypes.WindowSettingsParameter;
 import net.sf.mzmine.parameters.parametertypes.filenames.FileNameParameter;
@@ -50,6 +51,16 @@ public class MZminePreferences extends SimpleParameterSet {
 
     public static final NumOfThreadsParameter numOfThreads = new NumOfThreadsParameter();
 
+    public static final IntegerParameter spectraCacheSize = new IntegerParameter(
+            "Spectra cache size (MB)",
+            "Memory used to keep decoded scans and mass lists of all raw data files, so they do not have to be read from disk repeatedly. Set to 0 to disable the cache.",
+            256, 0, null);
+
+    public static final BooleanParameter compressTemporaryFiles = new BooleanParameter(
+            "Compress temporary scan data",
+            "If checked, scans and mass lists are stored in the temporary files in a compressed format. This saves disk space and I/O, but takes some processing time.",
+            false);
+
     public static final OptionalModuleParameter proxySettings = new OptionalModuleParameter(
             "Use proxy", "Use proxy for internet connection?",
             new ProxySettings());
@@ -67,7 +78,8 @@ public class MZminePreferences extends SimpleParameterSet {
 
     public MZminePreferences() {
         super(new Parameter[] { mzFormat, rtFormat, intensityFormat,
-                numOfThreads, proxySettings, rExecPath, sendStatistics,
+                numOfThreads, spectraCacheSize, compressTemporaryFiles,
+                proxySettings, rExecPath, sendStatistics,
                 windowSetttings });
     }
 
@@ -21,13 +21,25 @@ package net.sf.mzmine.modules.batchmode;
 
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
 
 public class BatchModeParameters extends SimpleParameterSet {
 
     public static final BatchQueueParameter batchQueue = new BatchQueueParameter();
 
+    public static final BooleanParameter pipelineSamples = new BooleanParameter(
+	    "Process samples in pipelines",
+	    "If checked, consecutive steps which process each sample on its own (e.g. import, mass detection, chromatogram builder, deconvolution, deisotoping) are run for each sample independently, without waiting for the other samples",
+	    false);
+
+    public static final BooleanParameter releaseIntermediates = new BooleanParameter(
+	    "Release intermediate results",
+	    "If checked, raw data files and peak lists created by the batch are removed from the project, and their temporary files deleted, as soon as no later step of the batch can use them. Only the results of the last step and the raw data files they refer to are kept.",
+	    false);
+
     public BatchModeParameters() {
-	super(new Parameter[] { batchQueue });
+	super(new Parameter[] { batchQueue, pipelineSamples,
+		releaseIntermediates });
     }
 
 }
@@ -0,0 +1,618 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.batchmode;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.modules.MZmineModule;
+import net.sf.mzmine.modules.MZmineProcessingModule;
+import net.sf.mzmine.modules.MZmineProcessingStep;
+import net.sf.mzmine.modules.masslistmethods.ADAPchromatogrambuilder.ADAPChromatogramBuilderModule;
+import net.sf.mzmine.modules.masslistmethods.chromatogrambuilder.ChromatogramBuilderModule;
+import net.sf.mzmine.modules.masslistmethods.shoulderpeaksfilter.ShoulderPeaksFilterModule;
+import net.sf.mzmine.modules.peaklistmethods.filtering.duplicatefilter.DuplicateFilterModule;
+import net.sf.mzmine.modules.peaklistmethods.filtering.peakfilter.PeakFilterModule;
+import net.sf.mzmine.modules.peaklistmethods.filtering.rowsfilter.RowsFilterModule;
+import net.sf.mzmine.modules.peaklistmethods.isotopes.deisotoper.IsotopeGrouperModule;
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.DeconvolutionModule;
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.peakextender.PeakExtenderModule;
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.shapemodeler.ShapeModelerModule;
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.smoothing.SmoothingModule;
+import net.sf.mzmine.modules.rawdatamethods.filtering.baselinecorrection.BaselineCorrectionModule;
+import net.sf.mzmine.modules.rawdatamethods.filtering.cropper.CropFilterModule;
+import net.sf.mzmine.modules.rawdatamethods.filtering.scanfilters.ScanFiltersModule;
+import net.sf.mzmine.modules.rawdatamethods.filtering.scansmoothing.ScanSmoothingModule;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetectionModule;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.RawDataImportModule;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.RawDataImportParameters;
+import net.sf.mzmine.parameters.Parameter;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsParameter;
+import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsSelectionType;
+import net.sf.mzmine.parameters.parametertypes.selectors.RawDataFilesParameter;
+import net.sf.mzmine.parameters.parametertypes.selectors.RawDataFilesSelectionType;
+import net.sf.mzmine.taskcontrol.Task;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExitCode;
+
+/**
+ * Runs a segment of consecutive per-sample batch steps as a pipeline. Each
+ * sample (one imported file, raw data file or peak list) goes through all
+ * steps of the segment on its own: as soon as the tasks of one step of a
+ * sample are finished, the next step is started for that sample, without
+ * waiting for the other samples. There is a barrier only at the end of the
+ * segment, before a step which needs all samples, such as alignment or gap
+ * filling.
+ *
+ * A step can be pipelined if its module processes each raw data file or peak
+ * list independently (see perSampleModules) and its inputs are those created
+ * by the previous batch step. Each sample runs the step with its own copy of
+ * the parameters, restricted to the data files and peak lists of that sample.
+ * The items added to the project by the tasks of a sample are assigned to that
+ * sample, the same way BatchTask collects them for a whole step.
+ */
+class BatchPipeline {
+
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
+    /**
+     * Modules whose tasks process each raw data file or peak list on its own
+     */
+    private static final Set<Class<? extends MZmineModule>> perSampleModules = new HashSet<>(
+            Arrays.<Class<? extends MZmineModule>> asList(
+                    RawDataImportModule.class, CropFilterModule.class,
+                    ScanFiltersModule.class, ScanSmoothingModule.class,
+                    BaselineCorrectionModule.class, MassDetectionModule.class,
+                    ShoulderPeaksFilterModule.class,
+                    ChromatogramBuilderModule.class,
+                    ADAPChromatogramBuilderModule.class,
+                    DeconvolutionModule.class, SmoothingModule.class,
+                    PeakExtenderModule.class, ShapeModelerModule.class,
+                    IsotopeGrouperModule.class, DuplicateFilterModule.class,
+                    RowsFilterModule.class, PeakFilterModule.class));
+
+    /**
+     * State of one sample in the pipeline. The created and previous lists
+     * follow the same rules as in BatchTask.
+     */
+    private class Sample {
+
+        final String name;
+
+        // File to import, if the segment starts with raw data import
+        final File importFile;
+
+        final List<RawDataFile> createdDataFiles = new ArrayList<>();
+        final List<RawDataFile> previousCreatedDataFiles = new ArrayList<>();
+        final List<PeakList> createdPeakLists = new ArrayList<>();
+        final List<PeakList> previousCreatedPeakLists = new ArrayList<>();
+
+        // Index of the current step in the segment
+        int step = 0;
+
+        final List<Task> runningTasks = new ArrayList<>();
+
+        Sample(String name, File importFile) {
+            this.name = name;
+            this.importFile = importFile;
+        }
+
+    }
+
+    /**
+     * Runs a task of a sample, so the items added to the project are
+     * assigned to the sample, and advances the sample when all its tasks are
+     * done
+     */
+    private class SampleTask implements Task {
+
+        private final Sample sample;
+        private final Task task;
+
+        SampleTask(Sample sample, Task task) {
+            this.sample = sample;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            // A worker waiting for sub-work may run other tasks meanwhile,
+            // so the previous sample must be restored
+            final Sample previousSample = currentSample.get();
+            currentSample.set(sample);
+            boolean completed = false;
+            try {
+                task.run();
+                completed = true;
+            } finally {
+                currentSample.set(previousSample);
+                taskFinished(sample, task, completed);
+            }
+        }
+
+        @Override
+        public String getTaskDescription() {
+            return task.getTaskDescription();
+        }
+
+        @Override
+        public double getFinishedPercentage() {
+            return task.getFinishedPercentage();
+        }
+
+        @Override
+        public TaskStatus getStatus() {
+            return task.getStatus();
+        }
+
+        @Override
+        public String getErrorMessage() {
+            return task.getErrorMessage();
+        }
+
+        @Override
+        public void cancel() {
+            task.cancel();
+        }
+
+    }
+
+    private final MZmineProject project;
+    private final List<MZmineProcessingStep<?>> steps;
+    private final int firstStep;
+    private final IntermediateResults intermediateResults;
+    private final List<Sample> samples = new ArrayList<>();
+    private final ThreadLocal<Sample> currentSample = new ThreadLocal<>();
+
+    private int finishedSamples = 0, finishedSampleSteps = 0;
+    private boolean canceled = false;
+    private String errorMessage;
+
+    /**
+     * Creates the samples of a pipeline. If the first step imports raw data,
+     * there is one sample per imported file. Otherwise there is one sample per
+     * raw data file or, if the first step processes peak lists, per peak list.
+     *
+     * @param firstStep
+     *            Index of the first step of the segment in the batch queue
+     * @param dataFiles
+     *            Data files created by the previous batch step
+     * @param peakLists
+     *            Peak lists created by the previous batch step
+     * @param intermediateResults
+     *            Releases the results of each sample which are not needed any
+     *            more, or null
+     */
+    BatchPipeline(@Nonnull MZmineProject project,
+            @Nonnull List<MZmineProcessingStep<?>> steps, int firstStep,
+            @Nonnull List<RawDataFile> dataFiles,
+            @Nonnull List<PeakList> peakLists,
+            @Nullable IntermediateResults intermediateResults) {
+
+        this.project = project;
+        this.steps = steps;
+        this.firstStep = firstStep;
+        this.intermediateResults = intermediateResults;
+
+        ParameterSet firstParameters = steps.get(0).getParameterSet();
+
+        if (steps.get(0).getModule() instanceof RawDataImportModule) {
+            File fileNames[] = firstParameters
+                    .getParameter(RawDataImportParameters.fileNames)
+                    .getValue();
+            if (fileNames != null) {
+                for (File fileName : fileNames)
+                    samples.add(new Sample(fileName.getName(), fileName));
+            }
+            return;
+        }
+
+        if (hasParameter(firstParameters, RawDataFilesParameter.class)) {
+            for (RawDataFile dataFile : dataFiles) {
+                Sample sample = new Sample(dataFile.getName(), null);
+                sample.createdDataFiles.add(dataFile);
+                // Peak lists of this data file only
+                for (PeakList peakList : peakLists) {
+                    if (Arrays.equals(peakList.getRawDataFiles(),
+                            new RawDataFile[] { dataFile }))
+                        sample.createdPeakLists.add(peakList);
+                }
+                samples.add(sample);
+            }
+            return;
+        }
+
+        for (PeakList peakList : peakLists) {
+            Sample sample = new Sample(peakList.getName(), null);
+            sample.createdPeakLists.add(peakList);
+            for (RawDataFile dataFile : peakList.getRawDataFiles()) {
+                if (dataFiles.contains(dataFile))
+                    sample.createdDataFiles.add(dataFile);
+            }
+            samples.add(sample);
+        }
+
+    }
+
+    /**
+     * @return True if the step can be part of a pipeline
+     */
+    static boolean isPerSampleStep(@Nonnull MZmineProcessingStep<?> step) {
+
+        if (!perSampleModules.contains(step.getModule().getClass()))
+            return false;
+
+        // All inputs must be those created by the previous step
+        for (Parameter<?> p : step.getParameterSet().getParameters()) {
+            if ((p instanceof RawDataFilesParameter)
+                    && (((RawDataFilesParameter) p).getValue()
+                            .getSelectionType() != RawDataFilesSelectionType.BATCH_LAST_FILES))
+                return false;
+            if ((p instanceof PeakListsParameter)
+                    && (((PeakListsParameter) p).getValue()
+                            .getSelectionType() != PeakListsSelectionType.BATCH_LAST_PEAKLISTS))
+                return false;
+        }
+        return true;
+
+    }
+
+    private static boolean hasParameter(ParameterSet parameters,
+            Class<?> parameterClass) {
+        for (Parameter<?> p : parameters.getParameters()) {
+            if (parameterClass.isInstance(p))
+                return true;
+        }
+        return false;
+    }
+
+    int getNumberOfSamples() {
+        return samples.size();
+    }
+
+    /**
+     * Starts the first step of all samples
+     */
+    void start() {
+        logger.info("Starting a pipeline of " + steps.size() + " steps for "
+                + samples.size() + " samples");
+        for (Sample sample : samples)
+            startStep(sample);
+    }
+
+    /**
+     * Starts the current step of the sample. Steps which do not produce any
+     * tasks are skipped. The modules are called without holding the lock of
+     * the pipeline. Only one thread at a time changes the state of a sample,
+     * because the sample has no running tasks here.
+     */
+    private void startStep(Sample sample) {
+
+        while (true) {
+
+            MZmineProcessingStep<?> currentStep;
+            ParameterSet stepParameters;
+            synchronized (this) {
+                if (canceled || (errorMessage != null))
+                    return;
+                if (sample.step == steps.size()) {
+                    logger.finest("Sample " + sample.name
+                            + " finished the pipeline");
+                    finishedSamples++;
+                    notifyAll();
+                    return;
+                }
+                currentStep = steps.get(sample.step);
+                stepParameters = createSampleParameters(sample, currentStep);
+            }
+
+            MZmineProcessingModule method = (MZmineProcessingModule) currentStep
+                    .getModule();
+
+            // Check if the parameter settings are valid
+            ArrayList<String> messages = new ArrayList<String>();
+            if (!stepParameters.checkParameterValues(messages)) {
+                setErrorMessage("Invalid parameter settings for module "
+                        + method.getName() + ": "
+                        + Arrays.toString(messages.toArray()));
+                return;
+            }
+
+            List<Task> stepTasks = new ArrayList<Task>();
+            ExitCode exitCode = method.runModule(project, stepParameters,
+                    stepTasks);
+            if (exitCode != ExitCode.OK) {
+                setErrorMessage("Could not start batch step "
+                        + method.getName() + " for " + sample.name);
+                return;
+            }
+
+            synchronized (this) {
+                // If current step didn't produce any tasks, continue with
+                // next step
+                if (stepTasks.isEmpty()) {
+                    sample.step++;
+                    finishedSampleSteps++;
+                    continue;
+                }
+                // Register the tasks before any of them can finish
+                sample.runningTasks.addAll(stepTasks);
+            }
+
+            Task sampleTasks[] = new Task[stepTasks.size()];
+            for (int i = 0; i < sampleTasks.length; i++)
+                sampleTasks[i] = new SampleTask(sample, stepTasks.get(i));
+            MZmineCore.getTaskController().addTasks(sampleTasks);
+            return;
+
+        }
+
+    }
+
+    private synchronized void setErrorMessage(String message) {
+        if (errorMessage == null)
+            errorMessage = message;
+        notifyAll();
+    }
+
+    /**
+     * Copies the step parameters and restricts them to the items of the
+     * sample, the same way as BatchTask.processQueueStep() does for all items
+     */
+    private ParameterSet createSampleParameters(Sample sample,
+            MZmineProcessingStep<?> step) {
+
+        // If the last step did not produce any data files or peak lists, use
+        // the ones from the previous step
+        if (sample.createdDataFiles.isEmpty())
+            sample.createdDataFiles.addAll(sample.previousCreatedDataFiles);
+        if (sample.createdPeakLists.isEmpty())
+            sample.createdPeakLists.addAll(sample.previousCreatedPeakLists);
+
+        ParameterSet sampleParameters = step.getParameterSet()
+                .cloneParameterSet();
+        for (Parameter<?> p : sampleParameters.getParameters()) {
+            if (p instanceof RawDataFilesParameter) {
+                ((RawDataFilesParameter) p).getValue().setBatchLastFiles(
+                        sample.createdDataFiles.toArray(new RawDataFile[0]));
+            }
+            if (p instanceof PeakListsParameter) {
+                ((PeakListsParameter) p).getValue().setBatchLastPeakLists(
+                        sample.createdPeakLists.toArray(new PeakList[0]));
+            }
+        }
+        if ((sample.importFile != null)
+                && (step.getModule() instanceof RawDataImportModule)) {
+            sampleParameters.getParameter(RawDataImportParameters.fileNames)
+                    .setValue(new File[] { sample.importFile });
+        }
+
+        sample.previousCreatedDataFiles.clear();
+        sample.previousCreatedDataFiles.addAll(sample.createdDataFiles);
+        sample.previousCreatedPeakLists.clear();
+        sample.previousCreatedPeakLists.addAll(sample.createdPeakLists);
+        sample.createdDataFiles.clear();
+        sample.createdPeakLists.clear();
+
+        return sampleParameters;
+
+    }
+
+    /**
+     * @param completed
+     *            False if the task threw an exception
+     */
+    private void taskFinished(Sample sample, Task task, boolean completed) {
+
+        final int finishedStep;
+        final List<RawDataFile> usedDataFiles;
+        final List<PeakList> usedPeakLists;
+
+        synchronized (this) {
+
+            sample.runningTasks.remove(task);
+
+            if (!completed) {
+                setErrorMessage(
+                        task.getTaskDescription() + ": unexpected error");
+                return;
+            }
+
+            TaskStatus status = task.getStatus();
+            if (status == TaskStatus.ERROR) {
+                setErrorMessage(task.getTaskDescription() + ": "
+                        + task.getErrorMessage());
+                return;
+            }
+            if (status == TaskStatus.CANCELED) {
+                canceled = true;
+                notifyAll();
+                return;
+            }
+
+            if (!sample.runningTasks.isEmpty())
+                return;
+
+            // All tasks of this step are done, continue with the next one
+            finishedStep = firstStep + sample.step;
+            sample.step++;
+            finishedSampleSteps++;
+            notifyAll();
+
+            // Inputs of the next step of this sample
+            usedDataFiles = new ArrayList<>(
+                    sample.createdDataFiles.isEmpty()
+                            ? sample.previousCreatedDataFiles
+                            : sample.createdDataFiles);
+            usedPeakLists = new ArrayList<>(
+                    sample.createdPeakLists.isEmpty()
+                            ? sample.previousCreatedPeakLists
+                            : sample.createdPeakLists);
+        }
+
+        // Release the results of this sample which no later step reads
+        if (intermediateResults != null) {
+            intermediateResults.release(project, finishedStep, sample,
+                    usedDataFiles, usedPeakLists);
+        }
+
+        startStep(sample);
+
+    }
+
+    /**
+     * Assigns a data file added to the project to the sample whose task added
+     * it
+     *
+     * @return False if the data file was not added by a task of this pipeline
+     */
+    synchronized boolean dataFileAdded(RawDataFile dataFile) {
+        Sample sample = currentSample.get();
+        if (sample == null)
+            return false;
+        sample.createdDataFiles.add(dataFile);
+        if (intermediateResults != null)
+            intermediateResults.dataFileCreated(dataFile, sample);
+        return true;
+    }
+
+    /**
+     * Assigns a peak list added to the project to the sample whose task added
+     * it
+     *
+     * @return False if the peak list was not added by a task of this pipeline
+     */
+    synchronized boolean peakListAdded(PeakList peakList) {
+        Sample sample = currentSample.get();
+        if (sample == null)
+            return false;
+        sample.createdPeakLists.add(peakList);
+        if (intermediateResults != null)
+            intermediateResults.peakListCreated(peakList, sample);
+        return true;
+    }
+
+    /**
+     * Waits until all samples have finished, or until the timeout elapses
+     */
+    synchronized void waitFor(long timeout) {
+        if (isFinished() || canceled || (errorMessage != null))
+            return;
+        try {
+            wait(timeout);
+        } catch (InterruptedException e) {
+            // ignore
+        }
+    }
+
+    synchronized boolean isFinished() {
+        return finishedSamples == samples.size();
+    }
+
+    synchronized boolean isCanceled() {
+        return canceled;
+    }
+
+    synchronized String getErrorMessage() {
+        return errorMessage;
+    }
+
+    /**
+     * Cancels the running tasks of all samples
+     */
+    void cancel() {
+        List<Task> tasks = new ArrayList<Task>();
+        synchronized (this) {
+            canceled = true;
+            for (Sample sample : samples)
+                tasks.addAll(sample.runningTasks);
+            notifyAll();
+        }
+        for (Task task : tasks)
+            task.cancel();
+    }
+
+    /**
+     * @return Number of finished steps, averaged over all samples
+     */
+    synchronized double getProcessedSteps() {
+        if (samples.isEmpty())
+            return 0;
+        return (double) finishedSampleSteps / samples.size();
+    }
+
+    /**
+     * @return Data files created by the last step of all samples, in the
+     *         order of samples
+     */
+    synchronized List<RawDataFile> getCreatedDataFiles() {
+        List<RawDataFile> dataFiles = new ArrayList<>();
+        for (Sample sample : samples)
+            dataFiles.addAll(sample.createdDataFiles);
+        return dataFiles;
+    }
+
+    /**
+     * @return Data files used by the last step of all samples, in the order
+     *         of samples
+     */
+    synchronized List<RawDataFile> getPreviousCreatedDataFiles() {
+        List<RawDataFile> dataFiles = new ArrayList<>();
+        for (Sample sample : samples)
+            dataFiles.addAll(sample.previousCreatedDataFiles);
+        return dataFiles;
+    }
+
+    /**
+     * @return Peak lists created by the last step of all samples, in the
+     *         order of samples
+     */
+    synchronized List<PeakList> getCreatedPeakLists() {
+        List<PeakList> peakLists = new ArrayList<>();
+        for (Sample sample : samples)
+            peakLists.addAll(sample.createdPeakLists);
+        return peakLists;
+    }
+
+    /**
+     * @return Peak lists used by the last step of all samples, in the order
+     *         of samples
+     */
+    synchronized List<PeakList> getPreviousCreatedPeakLists() {
+        List<PeakList> peakLists = new ArrayList<>();
+        for (Sample sample : samples)
+            peakLists.addAll(sample.previousCreatedPeakLists);
+        return peakLists;
+    }
+
+}
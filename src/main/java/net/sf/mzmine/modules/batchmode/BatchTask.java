@@ -51,6 +51,16 @@ public class BatchTask extends AbstractTask {
 
     private MZmineProject project;
     private final BatchQueue queue;
+    private final boolean pipelineSamples;
+
+    // Tracks the created items to release them, null if disabled
+    private final IntermediateResults intermediateResults;
+
+    // Highest heap usage during the current step, in bytes
+    private long peakUsedMemory;
+
+    // Pipeline of the per-sample steps which are currently processed
+    private volatile BatchPipeline pipeline;
 
     private final List<RawDataFile> createdDataFiles, previousCreatedDataFiles;
     private final List<PeakList> createdPeakLists, previousCreatedPeakLists;
@@ -59,6 +69,17 @@ public class BatchTask extends AbstractTask {
         this.project = project;
         this.queue = parameters.getParameter(BatchModeParameters.batchQueue)
                 .getValue();
+        Boolean pipelineSamplesValue = parameters
+                .getParameter(BatchModeParameters.pipelineSamples).getValue();
+        pipelineSamples = (pipelineSamplesValue != null)
+                && pipelineSamplesValue;
+        Boolean releaseValue = parameters
+                .getParameter(BatchModeParameters.releaseIntermediates)
+                .getValue();
+        if ((releaseValue != null) && releaseValue)
+            intermediateResults = new IntermediateResults(queue);
+        else
+            intermediateResults = null;
         totalSteps = queue.size();
         createdDataFiles = new ArrayList<>();
         createdPeakLists = new ArrayList<>();
@@ -75,12 +96,25 @@ public class BatchTask extends AbstractTask {
         MZmineProjectListener listener = new MZmineProjectListener() {
             @Override
             public void peakListAdded(PeakList newPeakList) {
+                // Peak lists of a pipelined sample belong to that sample
+                BatchPipeline currentPipeline = pipeline;
+                if ((currentPipeline != null)
+                        && currentPipeline.peakListAdded(newPeakList))
+                    return;
                 createdPeakLists.add(newPeakList);
+                if (intermediateResults != null)
+                    intermediateResults.peakListCreated(newPeakList, null);
             }
 
             @Override
             public void dataFileAdded(RawDataFile newFile) {
+                BatchPipeline currentPipeline = pipeline;
+                if ((currentPipeline != null)
+                        && currentPipeline.dataFileAdded(newFile))
+                    return;
                 createdDataFiles.add(newFile);
+                if (intermediateResults != null)
+                    intermediateResults.dataFileCreated(newFile, null);
             }
 
 			@Override
@@ -96,8 +130,26 @@ public class BatchTask extends AbstractTask {
         // Process individual batch steps
         for (int i = 0; i < totalSteps; i++) {
 
-            processQueueStep(i);
-            processedSteps++;
+            final int firstStep = i;
+            peakUsedMemory = 0;
+            updatePeakMemory();
+
+            // Find the following steps which can be pipelined
+            int pipelineEnd = i;
+            if (pipelineSamples) {
+                while ((pipelineEnd < totalSteps) && BatchPipeline
+                        .isPerSampleStep(queue.get(pipelineEnd)))
+                    pipelineEnd++;
+            }
+
+            if (pipelineEnd - i >= 2) {
+                processPipeline(i, pipelineEnd);
+                processedSteps += pipelineEnd - i;
+                i = pipelineEnd - 1;
+            } else {
+                processQueueStep(i);
+                processedSteps++;
+            }
             
             // Update the project reference in case new project was loaded
             if (project != MZmineCore.getProjectManager().getCurrentProject()) {
@@ -111,6 +163,19 @@ public class BatchTask extends AbstractTask {
                 return;
             }
 
+            // Release the results which no later step reads, i.e. all but
+            // the inputs of the next step and the data files they refer to
+            updatePeakMemory();
+            int released = 0;
+            if (intermediateResults != null) {
+                released = intermediateResults.release(project, i, null,
+                        createdDataFiles.isEmpty() ? previousCreatedDataFiles
+                                : createdDataFiles,
+                        createdPeakLists.isEmpty() ? previousCreatedPeakLists
+                                : createdPeakLists);
+            }
+            reportResourceUsage(firstStep, i, released);
+
         }
 
         project.removeProjectListener(listener);
@@ -240,6 +305,7 @@ public class BatchTask extends AbstractTask {
 
             // Wait 1s before checking the tasks again
             if (!allTasksFinished) {
+                updatePeakMemory();
                 synchronized (this) {
                     try {
                         this.wait(1000);
@@ -253,10 +319,116 @@ public class BatchTask extends AbstractTask {
 
     }
 
+    /**
+     * Processes the steps from firstStep to endStep (exclusive) as a pipeline,
+     * each sample independently, see BatchPipeline
+     */
+    private void processPipeline(int firstStep, int endStep) {
+
+        logger.info("Starting steps # " + (firstStep + 1) + " - " + endStep
+                + " as a pipeline of samples");
+
+        // If the last step did not produce any data files or peak lists, use
+        // the ones from the previous step
+        if (createdDataFiles.isEmpty())
+            createdDataFiles.addAll(previousCreatedDataFiles);
+        if (createdPeakLists.isEmpty())
+            createdPeakLists.addAll(previousCreatedPeakLists);
+
+        List<MZmineProcessingStep<?>> steps = new ArrayList<>(
+                queue.subList(firstStep, endStep));
+        BatchPipeline newPipeline = new BatchPipeline(project, steps,
+                firstStep, createdDataFiles, createdPeakLists,
+                intermediateResults);
+
+        // Nothing to pipeline, e.g. if the files are selected by the steps
+        // themselves
+        if (newPipeline.getNumberOfSamples() == 0) {
+            for (int i = firstStep; i < endStep; i++) {
+                processQueueStep(i);
+                if (isCanceled() || (getStatus() == TaskStatus.ERROR))
+                    return;
+            }
+            return;
+        }
+
+        pipeline = newPipeline;
+        newPipeline.start();
+
+        while (!newPipeline.isFinished()) {
+
+            // If we canceled the batch, cancel all running tasks
+            if (isCanceled()) {
+                newPipeline.cancel();
+                return;
+            }
+
+            // If there was an error, we have to stop the whole batch
+            if (newPipeline.getErrorMessage() != null) {
+                newPipeline.cancel();
+                setStatus(TaskStatus.ERROR);
+                setErrorMessage(newPipeline.getErrorMessage());
+                return;
+            }
+
+            // If user canceled any of the tasks, we have to cancel the whole
+            // batch
+            if (newPipeline.isCanceled()) {
+                newPipeline.cancel();
+                setStatus(TaskStatus.CANCELED);
+                return;
+            }
+
+            updatePeakMemory();
+            newPipeline.waitFor(1000);
+
+        }
+
+        // Continue with the results of the last step of all samples
+        previousCreatedDataFiles.clear();
+        previousCreatedDataFiles
+                .addAll(newPipeline.getPreviousCreatedDataFiles());
+        previousCreatedPeakLists.clear();
+        previousCreatedPeakLists
+                .addAll(newPipeline.getPreviousCreatedPeakLists());
+        createdDataFiles.clear();
+        createdDataFiles.addAll(newPipeline.getCreatedDataFiles());
+        createdPeakLists.clear();
+        createdPeakLists.addAll(newPipeline.getCreatedPeakLists());
+
+        pipeline = null;
+
+    }
+
+    private void updatePeakMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        peakUsedMemory = Math.max(peakUsedMemory,
+                runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    /**
+     * Logs the peak heap usage during the given steps and the size of the
+     * temporary scan files after them
+     */
+    private void reportResourceUsage(int firstStep, int lastStep,
+            int released) {
+        String steps = (firstStep == lastStep) ? "Step # " + (firstStep + 1)
+                : "Steps # " + (firstStep + 1) + " - " + (lastStep + 1);
+        logger.info(steps + " finished: peak memory use "
+                + (peakUsedMemory >> 20) + " MB, temporary files "
+                + (IntermediateResults.getTemporaryFilesSize(project) >> 20)
+                + " MB, released " + released
+                + " data files and peak lists");
+    }
+
     public double getFinishedPercentage() {
         if (totalSteps == 0)
             return 0;
-        return (double) processedSteps / totalSteps;
+        BatchPipeline currentPipeline = pipeline;
+        double steps = processedSteps;
+        if (currentPipeline != null)
+            steps += currentPipeline.getProcessedSteps();
+        return steps / totalSteps;
     }
 
     public String getTaskDescription() {
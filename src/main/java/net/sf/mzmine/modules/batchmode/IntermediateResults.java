@@ -0,0 +1,214 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.batchmode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.modules.MZmineProcessingStep;
+import net.sf.mzmine.parameters.Parameter;
+import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsParameter;
+import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsSelectionType;
+import net.sf.mzmine.parameters.parametertypes.selectors.RawDataFilesParameter;
+import net.sf.mzmine.parameters.parametertypes.selectors.RawDataFilesSelectionType;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+
+/**
+ * Keeps track of the raw data files and peak lists created by a batch, and
+ * releases those which no later step of the batch can read. Released items are
+ * removed from the project, which also closes the data files and deletes their
+ * temporary scan files.
+ *
+ * After each step, an item is referenced by the next step if it is one of its
+ * "batch last" inputs, and a data file is also referenced by each peak list in
+ * the project which contains it. Items without any reference can never be
+ * selected again, because the "batch last" inputs of each step are taken only
+ * from the results or inputs of the step before. If any later step selects its
+ * data files or peak lists in another way (e.g. by name), items of that kind
+ * are kept until the end of the batch.
+ */
+class IntermediateResults {
+
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
+    private final BatchQueue queue;
+
+    // Items created by the batch which were not released yet, with the
+    // pipeline sample which created them, or null
+    private final Map<RawDataFile, Object> dataFiles = new LinkedHashMap<>();
+    private final Map<PeakList, Object> peakLists = new LinkedHashMap<>();
+
+    IntermediateResults(@Nonnull BatchQueue queue) {
+        this.queue = queue;
+    }
+
+    synchronized void dataFileCreated(@Nonnull RawDataFile dataFile,
+            @Nullable Object owner) {
+        dataFiles.put(dataFile, owner);
+    }
+
+    synchronized void peakListCreated(@Nonnull PeakList peakList,
+            @Nullable Object owner) {
+        peakLists.put(peakList, owner);
+    }
+
+    /**
+     * Releases the items which are not referenced after given step
+     *
+     * @param stepNumber
+     *            Index of the last finished step in the batch queue
+     * @param owner
+     *            Only items created by this pipeline sample are released, or
+     *            all items if null
+     * @param usedDataFiles
+     *            Data files which the next step will get as its batch last
+     *            files
+     * @param usedPeakLists
+     *            Peak lists which the next step will get as its batch last
+     *            peak lists
+     * @return Number of released items
+     */
+    int release(@Nonnull MZmineProject project, int stepNumber,
+            @Nullable Object owner,
+            @Nonnull Collection<RawDataFile> usedDataFiles,
+            @Nonnull Collection<PeakList> usedPeakLists) {
+
+        final boolean releaseDataFiles = laterStepsSelectOnlyBatchLast(
+                stepNumber, RawDataFilesParameter.class);
+        final boolean releasePeakLists = laterStepsSelectOnlyBatchLast(
+                stepNumber, PeakListsParameter.class);
+        if (!releaseDataFiles && !releasePeakLists)
+            return 0;
+
+        int released = 0;
+
+        if (releasePeakLists) {
+            Set<PeakList> projectPeakLists = new HashSet<>(
+                    Arrays.asList(project.getPeakLists()));
+            for (PeakList peakList : getUnused(peakLists, owner,
+                    projectPeakLists, usedPeakLists)) {
+                logger.finest("Releasing peak list " + peakList);
+                project.removePeakList(peakList);
+                released++;
+            }
+        }
+
+        if (releaseDataFiles) {
+            // Data files of the remaining peak lists are still referenced
+            Set<RawDataFile> referencedDataFiles = new HashSet<>(
+                    usedDataFiles);
+            for (PeakList peakList : project.getPeakLists())
+                referencedDataFiles
+                        .addAll(Arrays.asList(peakList.getRawDataFiles()));
+            Set<RawDataFile> projectDataFiles = new HashSet<>(
+                    Arrays.asList(project.getDataFiles()));
+            for (RawDataFile dataFile : getUnused(dataFiles, owner,
+                    projectDataFiles, referencedDataFiles)) {
+                logger.finest("Releasing data file " + dataFile);
+                project.removeFile(dataFile);
+                released++;
+            }
+        }
+
+        return released;
+
+    }
+
+    /**
+     * Removes the unreferenced items of given owner from the tracked items.
+     * Items which are not in the project any more (e.g. removed by the
+     * "remove original" option of a module) are forgotten.
+     *
+     * @return Items to release
+     */
+    private synchronized <T> List<T> getUnused(Map<T, Object> items,
+            Object owner, Set<T> projectItems, Collection<T> referencedItems) {
+        Set<T> referenced = new HashSet<>(referencedItems);
+        List<T> unused = new ArrayList<>();
+        Iterator<Map.Entry<T, Object>> iterator = items.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<T, Object> entry = iterator.next();
+            T item = entry.getKey();
+            if (!projectItems.contains(item)) {
+                iterator.remove();
+                continue;
+            }
+            if ((owner != null) && (entry.getValue() != owner))
+                continue;
+            if (referenced.contains(item))
+                continue;
+            iterator.remove();
+            unused.add(item);
+        }
+        return unused;
+    }
+
+    /**
+     * @return True if all steps after given step select their data files (or
+     *         peak lists) only from the results of the previous step
+     */
+    private boolean laterStepsSelectOnlyBatchLast(int stepNumber,
+            Class<?> parameterClass) {
+        for (int i = stepNumber + 1; i < queue.size(); i++) {
+            MZmineProcessingStep<?> step = queue.get(i);
+            for (Parameter<?> p : step.getParameterSet().getParameters()) {
+                if (!parameterClass.isInstance(p))
+                    continue;
+                if ((p instanceof RawDataFilesParameter)
+                        && (((RawDataFilesParameter) p).getValue()
+                                .getSelectionType() != RawDataFilesSelectionType.BATCH_LAST_FILES))
+                    return false;
+                if ((p instanceof PeakListsParameter)
+                        && (((PeakListsParameter) p).getValue()
+                                .getSelectionType() != PeakListsSelectionType.BATCH_LAST_PEAKLISTS))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Total size of the temporary scan files of all data files in the
+     *         project, in bytes
+     */
+    static long getTemporaryFilesSize(@Nonnull MZmineProject project) {
+        long size = 0;
+        for (RawDataFile dataFile : project.getDataFiles()) {
+            if (dataFile instanceof RawDataFileImpl)
+                size += ((RawDataFileImpl) dataFile).getDataPointsFileSize();
+        }
+        return size;
+    }
+
+}
@@ -23,24 +23,21 @@
 package net.sf.mzmine.modules.masslistmethods.ADAPchromatogrambuilder;
 
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map.Entry;
-import java.util.Vector;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Collections;
 
 import javax.annotation.Nonnull;
 
 import com.google.common.collect.Range;
-import com.google.common.primitives.Ints;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.IsotopePattern;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.util.DataPointsByScan;
 import net.sf.mzmine.util.ScanUtils;
 
 import java.io.PrintWriter;
@@ -59,9 +56,9 @@ public class ADAPChromatogram implements Feature {
     // Data file of this chromatogram
     private RawDataFile dataFile;
 
-    // Data points of the chromatogram (map of scan number -> m/z peak)
-    //private Hashtable<Integer, DataPoint> dataPointsMap;
-    private HashMap<Integer, DataPoint> dataPointsMap;
+    // Data points of the chromatogram (map of scan number -> m/z peak), kept
+    // in primitive arrays sorted by scan number
+    private DataPointsByScan dataPoints;
 
     // Chromatogram m/z, RT, height, area. The mz value will be the highest points mz value
     private double mz, rt, height, area, weightedMz;
@@ -74,13 +71,14 @@ public class ADAPChromatogram implements Feature {
     private Range<Double> rawDataPointsIntensityRange, rawDataPointsMZRange,
             rawDataPointsRTRange;
 
-    // A set of scan numbers of a segment which is currently being connected
-    private Vector<Integer> buildingSegment;
-    // A full list of all the scan numbers as points get added
-    private List<Integer> chromScanList;
+    // Scan numbers of a segment which is currently being connected, in the
+    // order they were added
+    private int buildingSegment[];
+    private int buildingSegmentSize = 0;
 
     // Keep track of last added data point
-    private DataPoint lastMzPeak;
+    private boolean hasLastMzPeak = false;
+    private double lastMz, lastIntensity;
 
     // Number of connected segments, which have been committed by
     // commitBuildingSegment()
@@ -113,9 +111,8 @@ public class ADAPChromatogram implements Feature {
 
         rawDataPointsRTRange = dataFile.getDataRTRange(1);
 
-        dataPointsMap = new HashMap<Integer, DataPoint>();
-        buildingSegment = new Vector<Integer>();
-        chromScanList = new ArrayList<Integer>();
+        dataPoints = new DataPointsByScan();
+        buildingSegment = new int[16];
     }
     public double getHighPointMZ(){
         return highPointMZ;
@@ -129,11 +126,12 @@ public class ADAPChromatogram implements Feature {
         List intensityList = new ArrayList();
 
         for (int curScanNum=0; curScanNum<scanNumbers.length; curScanNum++){
-            if (dataPointsMap.get(curScanNum) == null){
+            int index = dataPoints.indexOf(curScanNum);
+            if (index < 0){
                 intensityList.add(0.0);
             }
             else{
-                intensityList.add(dataPointsMap.get(curScanNum).getIntensity());
+                intensityList.add(dataPoints.getIntensity(index));
             }
         }
 
@@ -149,28 +147,22 @@ public class ADAPChromatogram implements Feature {
         // if the next scan contains a point higher than the noise update the count
         // otherwise start it oer when you hit a sufficiently high point.
         // keep track of the largest count which will be returned.
-        Collections.sort(chromScanList);
-
+        // The data points are already sorted by scan number.
 
         int bestCount = 0;
         int curCount = 0;
         int lastScanNum = 0;
-        int scanListLength = chromScanList.size();
+        int scanListLength = dataPoints.size();
 
         int curScanNum;
-        DataPoint curDataPoint;
 
         for (int i=1; i < scanListLength; i ++ ){
-            
-
-
 
-            curScanNum = chromScanList.get(i);
-            curDataPoint = dataPointsMap.get(curScanNum);
+            curScanNum = dataPoints.getScanNumber(i);
 
-            if (curDataPoint.getIntensity()>noise){
+            if (dataPoints.getIntensity(i)>noise){
 
-                lastScanNum = chromScanList.get(i-1);
+                lastScanNum = dataPoints.getScanNumber(i-1);
                 int lastScanNumsActIndex = Arrays.binarySearch(scanNumbers,lastScanNum );
                 int seqNextScanShouldBe = scanNumbers[lastScanNumsActIndex+1];
 
@@ -210,7 +202,14 @@ public class ADAPChromatogram implements Feature {
      * @param mzValue
      */
     public void addMzPeak(int scanNumber, DataPoint mzValue) {
-        double curIntensity;
+        addMzPeak(scanNumber, mzValue.getMZ(), mzValue.getIntensity());
+    }
+
+    /**
+     * Same as addMzPeak(int, DataPoint), without the need for a DataPoint
+     * instance
+     */
+    public void addMzPeak(int scanNumber, double mzValue, double curIntensity) {
         //System.out.println("---------------- Adding MZ value to Chromatogram ----------------");
 
         // If we already have a mzvalue for the scan number then we need to add the intensities
@@ -219,26 +218,25 @@ public class ADAPChromatogram implements Feature {
         //
         // For now just don't add the point if we have it already. The highest point will be the
         // first one added
-        if (dataPointsMap.containsKey(scanNumber)){
+        if (!dataPoints.putIfAbsent(scanNumber, mzValue, curIntensity)){
             tmp_see_same_scan_count += 1;
             return;
 
         }
 
-   
-
-        dataPointsMap.put(scanNumber, mzValue);
-        lastMzPeak = mzValue;
-        mzSum += mzValue.getMZ();
+        hasLastMzPeak = true;
+        lastMz = mzValue;
+        lastIntensity = curIntensity;
+        mzSum += mzValue;
         mzN++;
         mz = mzSum / mzN;
-        buildingSegment.add(scanNumber);
-        chromScanList.add(scanNumber);
-
-        curIntensity = mzValue.getIntensity();
+        if (buildingSegmentSize == buildingSegment.length)
+            buildingSegment = Arrays.copyOf(buildingSegment,
+                    buildingSegmentSize * 2);
+        buildingSegment[buildingSegmentSize++] = scanNumber;
 
         weightedMzN++;
-        weightedMzSum += curIntensity * mzValue.getMZ();
+        weightedMzSum += curIntensity * mzValue;
         sumOfWeights += curIntensity;
 
         weightedMz = weightedMzSum/sumOfWeights;
@@ -246,14 +244,32 @@ public class ADAPChromatogram implements Feature {
     }
 
     public DataPoint getDataPoint(int scanNumber) {
-        return dataPointsMap.get(scanNumber);
+        return dataPoints.get(scanNumber);
     }
 
     /**
      * Returns m/z value of last added data point
      */
     public DataPoint getLastMzPeak() {
-        return lastMzPeak;
+        if (!hasLastMzPeak)
+            return null;
+        return new SimpleDataPoint(lastMz, lastIntensity);
+    }
+
+    /**
+     * Returns m/z of last added data point, does not create a DataPoint
+     * instance
+     */
+    public double getLastMz() {
+        return lastMz;
+    }
+
+    /**
+     * Returns intensity of last added data point, does not create a DataPoint
+     * instance
+     */
+    public double getLastIntensity() {
+        return lastIntensity;
     }
 
     /**
@@ -394,53 +410,56 @@ public class ADAPChromatogram implements Feature {
 
     public void finishChromatogram() {
 
-        int allScanNumbers[] = Ints.toArray(dataPointsMap.keySet());
-        Arrays.sort(allScanNumbers);
+        final int numOfDataPoints = dataPoints.size();
+        dataPoints.trimToSize();
 
         mz = highPointMZ;
 
         // Update raw data point ranges, height, rt and representative scan
         height = Double.MIN_VALUE;
-        for (int i = 0; i < allScanNumbers.length; i++) {
+        double minIntensity = 0, maxIntensity = 0, minMz = 0, maxMz = 0;
+        for (int i = 0; i < numOfDataPoints; i++) {
 
-            DataPoint mzPeak = dataPointsMap.get(allScanNumbers[i]);
-
-            // Replace the MzPeak instance with an instance of SimpleDataPoint,
-            // to reduce the memory usage. After we finish this Chromatogram, we
-            // don't need the additional data provided by the MzPeak
-
-            dataPointsMap.put(allScanNumbers[i], mzPeak);
+            final double mzValue = dataPoints.getMZ(i);
+            final double intensity = dataPoints.getIntensity(i);
 
             if (i == 0) {
-                rawDataPointsIntensityRange = Range
-                        .singleton(mzPeak.getIntensity());
-                rawDataPointsMZRange = Range.singleton(mzPeak.getMZ());
+                minIntensity = maxIntensity = intensity;
+                minMz = maxMz = mzValue;
             } else {
-                rawDataPointsIntensityRange = rawDataPointsIntensityRange
-                        .span(Range.singleton(mzPeak.getIntensity()));
-                rawDataPointsMZRange = rawDataPointsMZRange
-                        .span(Range.singleton(mzPeak.getMZ()));
+                minIntensity = Math.min(minIntensity, intensity);
+                maxIntensity = Math.max(maxIntensity, intensity);
+                minMz = Math.min(minMz, mzValue);
+                maxMz = Math.max(maxMz, mzValue);
             }
 
-            if (height < mzPeak.getIntensity()) {
-                height = mzPeak.getIntensity();
-                rt = dataFile.getScan(allScanNumbers[i]).getRetentionTime();
-                representativeScan = allScanNumbers[i];
+            if (height < intensity) {
+                height = intensity;
+                representativeScan = dataPoints.getScanNumber(i);
+                rt = dataFile.getScan(representativeScan).getRetentionTime();
             }
         }
+        if (numOfDataPoints > 0) {
+            rawDataPointsIntensityRange = Range.closed(minIntensity,
+                    maxIntensity);
+            rawDataPointsMZRange = Range.closed(minMz, maxMz);
+        }
+
+        // Retention times of all data points
+        double retentionTimes[] = new double[numOfDataPoints];
+        for (int i = 0; i < numOfDataPoints; i++) {
+            retentionTimes[i] = dataFile.getScan(dataPoints.getScanNumber(i))
+                    .getRetentionTime();
+        }
 
         // Update area
         area = 0;
-        for (int i = 1; i < allScanNumbers.length; i++) {
+        for (int i = 1; i < numOfDataPoints; i++) {
             // For area calculation, we use retention time in seconds
-            double previousRT = dataFile.getScan(allScanNumbers[i - 1])
-                    .getRetentionTime() * 60d;
-            double currentRT = dataFile.getScan(allScanNumbers[i])
-                    .getRetentionTime() * 60d;
-            double previousHeight = dataPointsMap.get(allScanNumbers[i - 1])
-                    .getIntensity();
-            double currentHeight = dataPointsMap.get(allScanNumbers[i])
-                    .getIntensity();
+            double previousRT = retentionTimes[i - 1] * 60d;
+            double currentRT = retentionTimes[i] * 60d;
+            double previousHeight = dataPoints.getIntensity(i - 1);
+            double currentHeight = dataPoints.getIntensity(i);
             area += (currentRT - previousRT) * (currentHeight + previousHeight)
                     / 2;
         }
@@ -458,13 +477,11 @@ public class ADAPChromatogram implements Feature {
 
         rawDataPointsRTRange = null;
 
-        for (int scanNum : allScanNumbers) {
-            double scanRt = dataFile.getScan(scanNum).getRetentionTime();
-            DataPoint dp = getDataPoint(scanNum);
-
-            if ((dp == null) || (dp.getIntensity() == 0.0))
+        for (int i = 0; i < numOfDataPoints; i++) {
+            if (dataPoints.getIntensity(i) == 0.0)
                 continue;
 
+            double scanRt = retentionTimes[i];
             if (rawDataPointsRTRange == null)
                 rawDataPointsRTRange = Range.singleton(scanRt);
             else
@@ -474,15 +491,15 @@ public class ADAPChromatogram implements Feature {
 
         // Discard the fields we don't need anymore
         buildingSegment = null;
-        lastMzPeak = null;
+        hasLastMzPeak = false;
 
     }
 
     public double getBuildingSegmentLength() {
-        if (buildingSegment.size() < 2)
+        if (buildingSegmentSize < 2)
             return 0;
-        int firstScan = buildingSegment.firstElement();
-        int lastScan = buildingSegment.lastElement();
+        int firstScan = buildingSegment[0];
+        int lastScan = buildingSegment[buildingSegmentSize - 1];
         double firstRT = dataFile.getScan(firstScan).getRetentionTime();
         double lastRT = dataFile.getScan(lastScan).getRetentionTime();
         return (lastRT - firstRT);
@@ -493,19 +510,22 @@ public class ADAPChromatogram implements Feature {
     }
 
     public void removeBuildingSegment() {
-        for (int scanNumber : buildingSegment)
-            dataPointsMap.remove(scanNumber);
-        buildingSegment.clear();
+        // Remove from the end, so segments added in scan order do not shift
+        // the remaining data points
+        for (int i = buildingSegmentSize - 1; i >= 0; i--)
+            dataPoints.remove(buildingSegment[i]);
+        buildingSegmentSize = 0;
     }
 
     public void commitBuildingSegment() {
-        buildingSegment.clear();
+        buildingSegmentSize = 0;
         numOfCommittedSegments++;
     }
 
     public void addDataPointsFromChromatogram(ADAPChromatogram ch) {
-        for (Entry<Integer, DataPoint> dp : ch.dataPointsMap.entrySet()) {
-            addMzPeak(dp.getKey(), dp.getValue());
+        for (int i = 0; i < ch.dataPoints.size(); i++) {
+            addMzPeak(ch.dataPoints.getScanNumber(i), ch.dataPoints.getMZ(i),
+                    ch.dataPoints.getIntensity(i));
         }
     }
 
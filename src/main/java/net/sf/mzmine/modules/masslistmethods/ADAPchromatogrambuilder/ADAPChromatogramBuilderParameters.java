@@ -25,6 +25,7 @@ import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.dialogs.ParameterSetupDialog;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
 import net.sf.mzmine.parameters.parametertypes.DoubleParameter;
 import net.sf.mzmine.parameters.parametertypes.MassListParameter;
 import net.sf.mzmine.parameters.parametertypes.StringParameter;
@@ -74,9 +75,16 @@ public class ADAPChromatogramBuilderParameters extends SimpleParameterSet {
             MZmineCore.getConfiguration().getIntensityFormat());
     // End Owen Edit
 
+    public static final BooleanParameter parallelMzStripes = new BooleanParameter(
+            "Split m/z range for parallel processing",
+            "If checked, the m/z range of each file is split into stripes at m/z gaps wider than twice the m/z tolerance,\n"
+                    + "and the stripes are processed on multiple threads. The resulting chromatograms are the same.",
+            false);
+
     public ADAPChromatogramBuilderParameters() {
         super(new Parameter[] { dataFiles, scanSelection, massList,
-                minimumScanSpan,IntensityThresh2, startIntensity, mzTolerance, suffix });
+                minimumScanSpan,IntensityThresh2, startIntensity, mzTolerance, suffix,
+                parallelMzStripes });
     }
 
     public ExitCode showSetupDialog(Window parent, boolean valueCheckRequired) {
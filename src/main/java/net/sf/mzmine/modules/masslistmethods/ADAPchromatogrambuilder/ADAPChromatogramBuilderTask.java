@@ -25,6 +25,10 @@ import com.google.common.collect.RangeSet;
 
 
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
@@ -35,6 +39,7 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.peaklistmethods.qualityparameters.QualityParameters;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelection;
@@ -46,6 +51,7 @@ import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
 
 import net.sf.mzmine.util.DataPointSorter;
+import net.sf.mzmine.util.MZStripes;
 import com.google.common.collect.Range;
 import java.util.List;
 import java.util.ArrayList;
@@ -57,18 +63,14 @@ import java.lang.*;
 
 public class ADAPChromatogramBuilderTask extends AbstractTask {
 
-    RangeSet<Double> rangeSet = TreeRangeSet.create();
-    // After each range is created it does not change so we can map the ranges (which will be uniqe)
-    // to the chromatograms
-    HashMap<Range,ADAPChromatogram> rangeToChromMap = new HashMap<Range,ADAPChromatogram>();
-
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
     private MZmineProject project;
     private RawDataFile dataFile;
 
     // scan counter
-    private int processedPoints = 0, totalPoints;
+    private final AtomicInteger processedPoints = new AtomicInteger();
+    private int totalPoints;
     private ScanSelection scanSelection;
     private int newPeakID = 1;
     private Scan[] scans;
@@ -81,6 +83,7 @@ public class ADAPChromatogramBuilderTask extends AbstractTask {
     // Owen added User parameers;
     private double IntensityThresh2;
     private double minIntensityForStartChrom;
+    private boolean parallelMzStripes;
 
     private SimplePeakList newPeakList;
 
@@ -124,6 +127,11 @@ public class ADAPChromatogramBuilderTask extends AbstractTask {
                 .getParameter(ADAPChromatogramBuilderParameters.startIntensity)
                 .getValue();
 
+        Boolean stripes = parameters
+                .getParameter(ADAPChromatogramBuilderParameters.parallelMzStripes)
+                .getValue();
+        this.parallelMzStripes = (stripes != null) && stripes;
+
 
     }
 
@@ -141,7 +149,7 @@ public class ADAPChromatogramBuilderTask extends AbstractTask {
         if (totalPoints == 0)
             return 0;
         else
-            return (double) processedPoints/ totalPoints;
+            return (double) processedPoints.get()/ totalPoints;
     }
 
     public RawDataFile getDataFile() {
@@ -256,15 +264,69 @@ public class ADAPChromatogramBuilderTask extends AbstractTask {
         //Stopwatch stopwatch3 = Stopwatch.createUnstarted(); 
 
 
-        processedPoints = 0;
+        processedPoints.set(0);
         totalPoints = simpleAllMzVals.length;
 
-        for (ExpandedDataPoint mzPeak : simpleAllMzVals){
+        List<ADAPChromatogram> buildingChromatograms;
+        if (parallelMzStripes)
+            buildingChromatograms = buildChromatogramsInStripes(simpleAllMzVals, allScanNumbers);
+        else
+            buildingChromatograms = buildChromatograms(simpleAllMzVals, allScanNumbers);
+
+        // Canceled
+        if (buildingChromatograms == null)
+            return;
+
+        ADAPChromatogram[] chromatograms = buildingChromatograms.toArray(new ADAPChromatogram[0]);
+       
+
+        // Sort the final chromatograms by m/z
+        Arrays.sort(chromatograms,
+                new PeakSorter(SortingProperty.MZ, SortingDirection.Ascending));
+
+
+        // Add the chromatograms to the new peak list
+        for (Feature finishedPeak : chromatograms) {
+            SimplePeakListRow newRow = new SimplePeakListRow(newPeakID);
+            newPeakID++;
+            newRow.addPeak(dataFile, finishedPeak);
+            newPeakList.addRow(newRow);
+
+//            finishedPeak.outputChromToFile();
+        }
+
+        // Add new peaklist to the project
+        project.addPeakList(newPeakList);
+
+        // Add quality parameters to peaks
+        QualityParameters.calculateQualityParameters(newPeakList);
+
+        setStatus(TaskStatus.FINISHED);
+
+        logger.info("Finished chromatogram builder on " + dataFile);
+    }
+
+
+    /**
+     * Builds the chromatograms from the data points, which must be sorted by
+     * descending intensity
+     *
+     * @return Finished chromatograms in the order of m/z, or null if the task
+     *         was canceled
+     */
+    private List<ADAPChromatogram> buildChromatograms(ExpandedDataPoint dataPoints[], int allScanNumbers[]) {
+
+        RangeSet<Double> rangeSet = TreeRangeSet.create();
+        // After each range is created it does not change so we can map the ranges (which will be uniqe)
+        // to the chromatograms
+        HashMap<Range,ADAPChromatogram> rangeToChromMap = new HashMap<Range,ADAPChromatogram>();
 
-            processedPoints++;
+        for (ExpandedDataPoint mzPeak : dataPoints){
+
+            processedPoints.incrementAndGet();
 
             if (isCanceled()){
-                return;}
+                return null;}
 
             if (mzPeak==null){
                 //System.out.println("null Peak");
@@ -360,7 +422,7 @@ public class ADAPChromatogramBuilderTask extends AbstractTask {
 
         while (RangeIterator.hasNext()) {
             if (isCanceled()){
-                return;}
+                return null;}
 
             Range<Double> curRangeKey = RangeIterator.next();
 
@@ -381,33 +443,80 @@ public class ADAPChromatogramBuilderTask extends AbstractTask {
 
         }
 
-        ADAPChromatogram[] chromatograms = buildingChromatograms.toArray(new ADAPChromatogram[0]);
-       
-
-        // Sort the final chromatograms by m/z
-        Arrays.sort(chromatograms,
-                new PeakSorter(SortingProperty.MZ, SortingDirection.Ascending));
+        return buildingChromatograms;
+    }
 
+    /**
+     * Splits the m/z range into stripes separated by gaps wider than twice the
+     * m/z tolerance (see MZStripes) and builds the chromatograms of the stripes
+     * in parallel, in the pool of the task controller. The ranges of the
+     * chromatograms never reach across such a gap, so the result is the same
+     * as from buildChromatograms() on all data points.
+     *
+     * @return Finished chromatograms in the order of m/z, or null if the task
+     *         was canceled
+     */
+    private List<ADAPChromatogram> buildChromatogramsInStripes(ExpandedDataPoint dataPoints[], final int allScanNumbers[]) {
 
-        // Add the chromatograms to the new peak list
-        for (Feature finishedPeak : chromatograms) {
-            SimplePeakListRow newRow = new SimplePeakListRow(newPeakID);
-            newPeakID++;
-            newRow.addPeak(dataFile, finishedPeak);
-            newPeakList.addRow(newRow);
+        final ForkJoinPool pool = MZmineCore.getTaskController().getForkJoinPool();
+        if ((dataPoints.length == 0) || (pool.getParallelism() < 2))
+            return buildChromatograms(dataPoints, allScanNumbers);
 
-//            finishedPeak.outputChromToFile();
+        double minMz = Double.POSITIVE_INFINITY, maxMz = Double.NEGATIVE_INFINITY;
+        for (ExpandedDataPoint dataPoint : dataPoints) {
+            minMz = Math.min(minMz, dataPoint.getMZ());
+            maxMz = Math.max(maxMz, dataPoint.getMZ());
+        }
+        if (!(minMz <= maxMz))
+            return buildChromatograms(dataPoints, allScanNumbers);
+
+        MZStripes mzStripes = new MZStripes(Range.closed(minMz, maxMz), mzTolerance);
+        for (ExpandedDataPoint dataPoint : dataPoints)
+            mzStripes.addDataPoint(dataPoint.getMZ());
+        double boundaries[] = mzStripes.getBoundaries(pool.getParallelism());
+        if (boundaries.length == 0) {
+            logger.info("No m/z gaps to split " + dataFile
+                    + ", building chromatograms on a single thread");
+            return buildChromatograms(dataPoints, allScanNumbers);
+        }
+        final int numOfStripes = boundaries.length + 1;
+        logger.info("Building chromatograms of " + dataFile + " in "
+                + numOfStripes + " m/z stripes");
+
+        // Split the data points, keeping the order by intensity in each stripe
+        int stripeOfPoint[] = new int[dataPoints.length];
+        int stripeSizes[] = new int[numOfStripes];
+        for (int i = 0; i < dataPoints.length; i++) {
+            stripeOfPoint[i] = MZStripes.getStripe(boundaries, dataPoints[i].getMZ());
+            stripeSizes[stripeOfPoint[i]]++;
+        }
+        ExpandedDataPoint stripePoints[][] = new ExpandedDataPoint[numOfStripes][];
+        for (int stripe = 0; stripe < numOfStripes; stripe++)
+            stripePoints[stripe] = new ExpandedDataPoint[stripeSizes[stripe]];
+        int filled[] = new int[numOfStripes];
+        for (int i = 0; i < dataPoints.length; i++) {
+            final int stripe = stripeOfPoint[i];
+            stripePoints[stripe][filled[stripe]++] = dataPoints[i];
         }
 
-        // Add new peaklist to the project
-        project.addPeakList(newPeakList);
-
-        // Add quality parameters to peaks
-        QualityParameters.calculateQualityParameters(newPeakList);
-
-        setStatus(TaskStatus.FINISHED);
+        List<ForkJoinTask<List<ADAPChromatogram>>> stripeTasks = new ArrayList<ForkJoinTask<List<ADAPChromatogram>>>();
+        for (final ExpandedDataPoint points[] : stripePoints) {
+            stripeTasks.add(pool.submit(new Callable<List<ADAPChromatogram>>() {
+                public List<ADAPChromatogram> call() {
+                    return buildChromatograms(points, allScanNumbers);
+                }
+            }));
+        }
 
-        logger.info("Finished chromatogram builder on " + dataFile);
+        // Chromatograms of all stripes, in the order of stripes
+        List<ADAPChromatogram> chromatograms = new ArrayList<ADAPChromatogram>();
+        for (ForkJoinTask<List<ADAPChromatogram>> stripeTask : stripeTasks) {
+            List<ADAPChromatogram> stripeChromatograms = stripeTask.join();
+            if (stripeChromatograms == null)
+                return null;
+            chromatograms.addAll(stripeChromatograms);
+        }
+        return chromatograms;
     }
 
 }
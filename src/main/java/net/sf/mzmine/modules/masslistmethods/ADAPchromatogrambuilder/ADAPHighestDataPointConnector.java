@@ -79,13 +79,12 @@ public class ADAPHighestDataPointConnector {
 
             for (ADAPChromatogram testChrom : buildingChromatograms) {
 
-                DataPoint lastMzPeak = testChrom.getLastMzPeak();
                 Range<Double> toleranceRange = mzTolerance
-                        .getToleranceRange(lastMzPeak.getMZ());
+                        .getToleranceRange(testChrom.getLastMz());
                 if (toleranceRange.contains(mzPeak.getMZ())) {
-                    if ((bestChromatogram == null) || (testChrom.getLastMzPeak()
-                            .getIntensity() > bestChromatogram.getLastMzPeak()
-                                    .getIntensity())) {
+                    if ((bestChromatogram == null) || (testChrom
+                            .getLastIntensity() > bestChromatogram
+                                    .getLastIntensity())) {
                         bestChromatogram = testChrom;
                     }
                 }
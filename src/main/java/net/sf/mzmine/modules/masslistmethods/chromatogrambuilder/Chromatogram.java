@@ -20,22 +20,20 @@
 package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
 
 import java.util.Arrays;
-import java.util.Hashtable;
-import java.util.Map.Entry;
-import java.util.Vector;
 
 import javax.annotation.Nonnull;
 
 import com.google.common.collect.Range;
-import com.google.common.primitives.Ints;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.IsotopePattern;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimplePeakInformation;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.util.DataPointsByScan;
 import net.sf.mzmine.util.MathUtils;
 import net.sf.mzmine.util.ScanUtils;
 
@@ -49,8 +47,9 @@ public class Chromatogram implements Feature {
     // Data file of this chromatogram
     private RawDataFile dataFile;
 
-    // Data points of the chromatogram (map of scan number -> m/z peak)
-    private Hashtable<Integer, DataPoint> dataPointsMap;
+    // Data points of the chromatogram (map of scan number -> m/z peak), kept
+    // in primitive arrays sorted by scan number
+    private DataPointsByScan dataPoints;
 
     // Chromatogram m/z, RT, height, area
     private double mz, rt, height, area;
@@ -63,11 +62,14 @@ public class Chromatogram implements Feature {
     private Range<Double> rawDataPointsIntensityRange, rawDataPointsMZRange,
             rawDataPointsRTRange;
 
-    // A set of scan numbers of a segment which is currently being connected
-    private Vector<Integer> buildingSegment;
+    // Scan numbers of a segment which is currently being connected, in the
+    // order they were added
+    private int buildingSegment[];
+    private int buildingSegmentSize = 0;
 
     // Keep track of last added data point
-    private DataPoint lastMzPeak;
+    private boolean hasLastMzPeak = false;
+    private double lastMz, lastIntensity;
 
     // Number of connected segments, which have been committed by
     // commitBuildingSegment()
@@ -97,8 +99,8 @@ public class Chromatogram implements Feature {
 
         rawDataPointsRTRange = dataFile.getDataRTRange(1);
 
-        dataPointsMap = new Hashtable<Integer, DataPoint>();
-        buildingSegment = new Vector<Integer>(128);
+        dataPoints = new DataPointsByScan();
+        buildingSegment = new int[128];
     }
 
     /**
@@ -108,24 +110,55 @@ public class Chromatogram implements Feature {
      * @param mzValue
      */
     public void addMzPeak(int scanNumber, DataPoint mzValue) {
-        dataPointsMap.put(scanNumber, mzValue);
-        lastMzPeak = mzValue;
-        mzSum += mzValue.getMZ();
+        addMzPeak(scanNumber, mzValue.getMZ(), mzValue.getIntensity());
+    }
+
+    /**
+     * Same as addMzPeak(int, DataPoint), without the need for a DataPoint
+     * instance
+     */
+    public void addMzPeak(int scanNumber, double mzValue, double intensity) {
+        dataPoints.put(scanNumber, mzValue, intensity);
+        hasLastMzPeak = true;
+        lastMz = mzValue;
+        lastIntensity = intensity;
+        mzSum += mzValue;
         mzN++;
         mz = mzSum / mzN;
-        buildingSegment.add(scanNumber);
+        if (buildingSegmentSize == buildingSegment.length)
+            buildingSegment = Arrays.copyOf(buildingSegment,
+                    buildingSegmentSize * 2);
+        buildingSegment[buildingSegmentSize++] = scanNumber;
 
     }
 
     public DataPoint getDataPoint(int scanNumber) {
-        return dataPointsMap.get(scanNumber);
+        return dataPoints.get(scanNumber);
     }
 
     /**
      * Returns m/z value of last added data point
      */
     public DataPoint getLastMzPeak() {
-        return lastMzPeak;
+        if (!hasLastMzPeak)
+            return null;
+        return new SimpleDataPoint(lastMz, lastIntensity);
+    }
+
+    /**
+     * Returns m/z of last added data point, does not create a DataPoint
+     * instance
+     */
+    public double getLastMz() {
+        return lastMz;
+    }
+
+    /**
+     * Returns intensity of last added data point, does not create a DataPoint
+     * instance
+     */
+    public double getLastIntensity() {
+        return lastIntensity;
     }
 
     /**
@@ -201,58 +234,61 @@ public class Chromatogram implements Feature {
 
     public void finishChromatogram() {
 
-        int allScanNumbers[] = Ints.toArray(dataPointsMap.keySet());
-        Arrays.sort(allScanNumbers);
+        final int numOfDataPoints = dataPoints.size();
+        dataPoints.trimToSize();
 
         // Calculate median m/z
-        double allMzValues[] = new double[allScanNumbers.length];
-        for (int i = 0; i < allScanNumbers.length; i++) {
-            allMzValues[i] = dataPointsMap.get(allScanNumbers[i]).getMZ();
+        double allMzValues[] = new double[numOfDataPoints];
+        for (int i = 0; i < numOfDataPoints; i++) {
+            allMzValues[i] = dataPoints.getMZ(i);
         }
         mz = MathUtils.calcQuantile(allMzValues, 0.5f);
 
         // Update raw data point ranges, height, rt and representative scan
         height = Double.MIN_VALUE;
-        for (int i = 0; i < allScanNumbers.length; i++) {
-
-            DataPoint mzPeak = dataPointsMap.get(allScanNumbers[i]);
-
-            // Replace the MzPeak instance with an instance of SimpleDataPoint,
-            // to reduce the memory usage. After we finish this Chromatogram, we
-            // don't need the additional data provided by the MzPeak
+        double minIntensity = 0, maxIntensity = 0, minMz = 0, maxMz = 0;
+        for (int i = 0; i < numOfDataPoints; i++) {
 
-            dataPointsMap.put(allScanNumbers[i], mzPeak);
+            final double mzValue = dataPoints.getMZ(i);
+            final double intensity = dataPoints.getIntensity(i);
 
             if (i == 0) {
-                rawDataPointsIntensityRange = Range
-                        .singleton(mzPeak.getIntensity());
-                rawDataPointsMZRange = Range.singleton(mzPeak.getMZ());
+                minIntensity = maxIntensity = intensity;
+                minMz = maxMz = mzValue;
             } else {
-                rawDataPointsIntensityRange = rawDataPointsIntensityRange
-                        .span(Range.singleton(mzPeak.getIntensity()));
-                rawDataPointsMZRange = rawDataPointsMZRange
-                        .span(Range.singleton(mzPeak.getMZ()));
+                minIntensity = Math.min(minIntensity, intensity);
+                maxIntensity = Math.max(maxIntensity, intensity);
+                minMz = Math.min(minMz, mzValue);
+                maxMz = Math.max(maxMz, mzValue);
             }
 
-            if (height < mzPeak.getIntensity()) {
-                height = mzPeak.getIntensity();
-                rt = dataFile.getScan(allScanNumbers[i]).getRetentionTime();
-                representativeScan = allScanNumbers[i];
+            if (height < intensity) {
+                height = intensity;
+                representativeScan = dataPoints.getScanNumber(i);
+                rt = dataFile.getScan(representativeScan).getRetentionTime();
             }
         }
+        if (numOfDataPoints > 0) {
+            rawDataPointsIntensityRange = Range.closed(minIntensity,
+                    maxIntensity);
+            rawDataPointsMZRange = Range.closed(minMz, maxMz);
+        }
+
+        // Retention times of all data points, in seconds
+        double retentionTimes[] = new double[numOfDataPoints];
+        for (int i = 0; i < numOfDataPoints; i++) {
+            retentionTimes[i] = dataFile.getScan(dataPoints.getScanNumber(i))
+                    .getRetentionTime();
+        }
 
         // Update area
         area = 0;
-        for (int i = 1; i < allScanNumbers.length; i++) {
+        for (int i = 1; i < numOfDataPoints; i++) {
             // For area calculation, we use retention time in seconds
-            double previousRT = dataFile.getScan(allScanNumbers[i - 1])
-                    .getRetentionTime() * 60d;
-            double currentRT = dataFile.getScan(allScanNumbers[i])
-                    .getRetentionTime() * 60d;
-            double previousHeight = dataPointsMap.get(allScanNumbers[i - 1])
-                    .getIntensity();
-            double currentHeight = dataPointsMap.get(allScanNumbers[i])
-                    .getIntensity();
+            double previousRT = retentionTimes[i - 1] * 60d;
+            double currentRT = retentionTimes[i] * 60d;
+            double previousHeight = dataPoints.getIntensity(i - 1);
+            double currentHeight = dataPoints.getIntensity(i);
             area += (currentRT - previousRT) * (currentHeight + previousHeight)
                     / 2;
         }
@@ -270,13 +306,11 @@ public class Chromatogram implements Feature {
 
         rawDataPointsRTRange = null;
 
-        for (int scanNum : allScanNumbers) {
-            double scanRt = dataFile.getScan(scanNum).getRetentionTime();
-            DataPoint dp = getDataPoint(scanNum);
-
-            if ((dp == null) || (dp.getIntensity() == 0.0))
+        for (int i = 0; i < numOfDataPoints; i++) {
+            if (dataPoints.getIntensity(i) == 0.0)
                 continue;
 
+            double scanRt = retentionTimes[i];
             if (rawDataPointsRTRange == null)
                 rawDataPointsRTRange = Range.singleton(scanRt);
             else
@@ -286,15 +320,15 @@ public class Chromatogram implements Feature {
 
         // Discard the fields we don't need anymore
         buildingSegment = null;
-        lastMzPeak = null;
+        hasLastMzPeak = false;
 
     }
 
     public double getBuildingSegmentLength() {
-        if (buildingSegment.size() < 2)
+        if (buildingSegmentSize < 2)
             return 0;
-        int firstScan = buildingSegment.firstElement();
-        int lastScan = buildingSegment.lastElement();
+        int firstScan = buildingSegment[0];
+        int lastScan = buildingSegment[buildingSegmentSize - 1];
         double firstRT = dataFile.getScan(firstScan).getRetentionTime();
         double lastRT = dataFile.getScan(lastScan).getRetentionTime();
         return (lastRT - firstRT);
@@ -305,19 +339,22 @@ public class Chromatogram implements Feature {
     }
 
     public void removeBuildingSegment() {
-        for (int scanNumber : buildingSegment)
-            dataPointsMap.remove(scanNumber);
-        buildingSegment.clear();
+        // Remove from the end, so segments added in scan order do not shift
+        // the remaining data points
+        for (int i = buildingSegmentSize - 1; i >= 0; i--)
+            dataPoints.remove(buildingSegment[i]);
+        buildingSegmentSize = 0;
     }
 
     public void commitBuildingSegment() {
-        buildingSegment.clear();
+        buildingSegmentSize = 0;
         numOfCommittedSegments++;
     }
 
     public void addDataPointsFromChromatogram(Chromatogram ch) {
-        for (Entry<Integer, DataPoint> dp : ch.dataPointsMap.entrySet()) {
-            addMzPeak(dp.getKey(), dp.getValue());
+        for (int i = 0; i < ch.dataPoints.size(); i++) {
+            addMzPeak(ch.dataPoints.getScanNumber(i), ch.dataPoints.getMZ(i),
+                    ch.dataPoints.getIntensity(i));
         }
     }
 
@@ -22,6 +22,7 @@ package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
 import net.sf.mzmine.parameters.parametertypes.DoubleParameter;
 import net.sf.mzmine.parameters.parametertypes.MassListParameter;
 import net.sf.mzmine.parameters.parametertypes.StringParameter;
@@ -56,9 +57,16 @@ public class ChromatogramBuilderParameters extends SimpleParameterSet {
     public static final StringParameter suffix = new StringParameter("Suffix",
             "This string is added to filename as suffix", "chromatograms");
 
+    public static final BooleanParameter parallelMzStripes = new BooleanParameter(
+            "Split m/z range for parallel processing",
+            "If checked, the m/z range of each file is split into stripes at m/z gaps wider than twice the m/z tolerance,\n"
+                    + "and the stripes are connected on multiple threads. The resulting chromatograms are the same.",
+            false);
+
     public ChromatogramBuilderParameters() {
         super(new Parameter[] { dataFiles, scanSelection, massList,
-                minimumTimeSpan, minimumHeight, mzTolerance, suffix });
+                minimumTimeSpan, minimumHeight, mzTolerance, suffix,
+                parallelMzStripes });
     }
 
 }
@@ -19,10 +19,13 @@
 
 package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.logging.Logger;
 
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.MassList;
@@ -30,18 +33,27 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.peaklistmethods.qualityparameters.QualityParameters;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelection;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.DataPointsBuffer;
+import net.sf.mzmine.util.MZStripes;
 import net.sf.mzmine.util.PeakSorter;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
 
+import com.google.common.collect.Range;
+
 public class ChromatogramBuilderTask extends AbstractTask {
 
+    // Number of scans read at once when the m/z stripes are connected in
+    // parallel
+    private static final int STRIPE_BLOCK_SIZE = 64;
+
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
     private MZmineProject project;
@@ -57,6 +69,7 @@ public class ChromatogramBuilderTask extends AbstractTask {
     private String suffix, massListName;
     private MZTolerance mzTolerance;
     private double minimumTimeSpan, minimumHeight;
+    private boolean parallelMzStripes;
 
     private SimplePeakList newPeakList;
 
@@ -89,6 +102,11 @@ public class ChromatogramBuilderTask extends AbstractTask {
         this.suffix = parameters
                 .getParameter(ChromatogramBuilderParameters.suffix).getValue();
 
+        Boolean stripes = parameters
+                .getParameter(ChromatogramBuilderParameters.parallelMzStripes)
+                .getValue();
+        this.parallelMzStripes = (stripes != null) && stripes;
+
     }
 
     /**
@@ -145,38 +163,14 @@ public class ChromatogramBuilderTask extends AbstractTask {
         newPeakList = new SimplePeakList(dataFile + " " + suffix, dataFile);
 
         Chromatogram[] chromatograms;
-        HighestDataPointConnector massConnector = new HighestDataPointConnector(
-                dataFile, allScanNumbers, minimumTimeSpan, minimumHeight,
-                mzTolerance);
-
-        for (Scan scan : scans) {
-
-            if (isCanceled())
-                return;
-
-            MassList massList = scan.getMassList(massListName);
-            if (massList == null) {
-                setStatus(TaskStatus.ERROR);
-                setErrorMessage("Scan " + dataFile + " #" + scan.getScanNumber()
-                        + " does not have a mass list " + massListName);
-                return;
-            }
-
-            DataPoint mzValues[] = massList.getDataPoints();
-
-            if (mzValues == null) {
-                setStatus(TaskStatus.ERROR);
-                setErrorMessage("Mass list " + massListName
-                        + " does not contain m/z values for scan #"
-                        + scan.getScanNumber() + " of file " + dataFile);
-                return;
-            }
-
-            massConnector.addScan(scan.getScanNumber(), mzValues);
-            processedScans++;
-        }
+        if (parallelMzStripes)
+            chromatograms = buildChromatogramsInStripes(allScanNumbers);
+        else
+            chromatograms = buildChromatograms(allScanNumbers);
 
-        chromatograms = massConnector.finishChromatograms();
+        // Canceled or error
+        if (chromatograms == null)
+            return;
 
         // Sort the final chromatograms by m/z
         Arrays.sort(chromatograms,
@@ -202,4 +196,208 @@ public class ChromatogramBuilderTask extends AbstractTask {
 
     }
 
+    /**
+     * Connects all scans on the current thread
+     * 
+     * @return Finished chromatograms, or null if the task was canceled or
+     *         failed
+     */
+    private Chromatogram[] buildChromatograms(int allScanNumbers[]) {
+
+        HighestDataPointConnector massConnector = new HighestDataPointConnector(
+                dataFile, allScanNumbers, minimumTimeSpan, minimumHeight,
+                mzTolerance);
+
+        // Buffer for the mass list data, reused for all scans
+        DataPointsBuffer buffer = new DataPointsBuffer();
+
+        for (Scan scan : scans) {
+
+            if (isCanceled())
+                return null;
+
+            MassList massList = getMassList(scan);
+            if (massList == null)
+                return null;
+
+            final int numOfDataPoints = buffer.readMassList(massList);
+            massConnector.addScan(scan.getScanNumber(), buffer.getMzValues(),
+                    buffer.getIntensityValues(), numOfDataPoints);
+            processedScans++;
+        }
+
+        return massConnector.finishChromatograms();
+
+    }
+
+    /**
+     * Splits the m/z range into stripes separated by gaps wider than twice the
+     * m/z tolerance (see MZStripes) and connects the stripes in parallel, in
+     * the pool of the task controller. No data point can be connected across
+     * such a gap, so the result is the same as from buildChromatograms().
+     * 
+     * @return Finished chromatograms, or null if the task was canceled or
+     *         failed
+     */
+    private Chromatogram[] buildChromatogramsInStripes(int allScanNumbers[]) {
+
+        final ForkJoinPool pool = MZmineCore.getTaskController()
+                .getForkJoinPool();
+        Range<Double> mzRange = dataFile.getDataMZRange();
+        if ((mzRange == null) || (pool.getParallelism() < 2))
+            return buildChromatograms(allScanNumbers);
+
+        // The mass lists are read twice, once to find the gaps and once to
+        // connect them
+        totalScans = 2 * scans.length;
+
+        // First pass, find the m/z gaps
+        MZStripes mzStripes = new MZStripes(mzRange, mzTolerance);
+        DataPointsBuffer buffer = new DataPointsBuffer();
+        for (Scan scan : scans) {
+
+            if (isCanceled())
+                return null;
+
+            MassList massList = getMassList(scan);
+            if (massList == null)
+                return null;
+
+            final int numOfDataPoints = buffer.readMassList(massList);
+            mzStripes.addDataPoints(buffer.getMzValues(), numOfDataPoints);
+            processedScans++;
+        }
+
+        final double boundaries[] = mzStripes
+                .getBoundaries(pool.getParallelism());
+        if (boundaries.length == 0) {
+            logger.info("No m/z gaps to split " + dataFile
+                    + ", building chromatograms on a single thread");
+            return buildChromatograms(allScanNumbers);
+        }
+
+        final MzStripe stripes[] = new MzStripe[boundaries.length + 1];
+        for (int i = 0; i < stripes.length; i++) {
+            double lowerBound = (i == 0) ? Double.NEGATIVE_INFINITY
+                    : boundaries[i - 1];
+            double upperBound = (i == boundaries.length)
+                    ? Double.POSITIVE_INFINITY : boundaries[i];
+            stripes[i] = new MzStripe(lowerBound, upperBound,
+                    new HighestDataPointConnector(dataFile, allScanNumbers,
+                            minimumTimeSpan, minimumHeight, mzTolerance));
+        }
+        logger.info("Building chromatograms of " + dataFile + " in "
+                + stripes.length + " m/z stripes");
+
+        // Second pass, read a block of scans and connect all stripes of the
+        // block in parallel
+        final DataPointsBuffer blockBuffers[] = new DataPointsBuffer[STRIPE_BLOCK_SIZE];
+        for (int i = 0; i < STRIPE_BLOCK_SIZE; i++)
+            blockBuffers[i] = new DataPointsBuffer();
+        final int blockScanNumbers[] = new int[STRIPE_BLOCK_SIZE];
+
+        List<ForkJoinTask<?>> stripeTasks = new ArrayList<ForkJoinTask<?>>();
+        for (int first = 0; first < scans.length; first += STRIPE_BLOCK_SIZE) {
+
+            if (isCanceled())
+                return null;
+
+            final int blockSize = Math.min(STRIPE_BLOCK_SIZE,
+                    scans.length - first);
+            for (int i = 0; i < blockSize; i++) {
+                Scan scan = scans[first + i];
+                MassList massList = getMassList(scan);
+                if (massList == null)
+                    return null;
+                blockBuffers[i].readMassList(massList);
+                blockScanNumbers[i] = scan.getScanNumber();
+            }
+
+            stripeTasks.clear();
+            for (final MzStripe stripe : stripes) {
+                stripeTasks.add(pool.submit(new Runnable() {
+                    public void run() {
+                        stripe.addScans(blockScanNumbers, blockBuffers,
+                                blockSize);
+                    }
+                }));
+            }
+            for (ForkJoinTask<?> stripeTask : stripeTasks)
+                stripeTask.join();
+
+            processedScans += blockSize;
+        }
+
+        // Chromatograms of all stripes, in the order of stripes
+        List<Chromatogram> chromatograms = new ArrayList<Chromatogram>();
+        for (MzStripe stripe : stripes)
+            chromatograms.addAll(
+                    Arrays.asList(stripe.connector.finishChromatograms()));
+        return chromatograms.toArray(new Chromatogram[0]);
+
+    }
+
+    /**
+     * @return Mass list of the scan, or null if it does not exist. In that
+     *         case, the task is set to error state.
+     */
+    private MassList getMassList(Scan scan) {
+        MassList massList = scan.getMassList(massListName);
+        if (massList == null) {
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage("Scan " + dataFile + " #" + scan.getScanNumber()
+                    + " does not have a mass list " + massListName);
+        }
+        return massList;
+    }
+
+    /**
+     * Connector of the data points with lowerBound <= m/z < upperBound
+     */
+    static class MzStripe {
+
+        private final double lowerBound, upperBound;
+        final HighestDataPointConnector connector;
+
+        // Data points of the stripe in the current scan
+        private double mzValues[] = new double[0],
+                intensityValues[] = new double[0];
+
+        MzStripe(double lowerBound, double upperBound,
+                HighestDataPointConnector connector) {
+            this.lowerBound = lowerBound;
+            this.upperBound = upperBound;
+            this.connector = connector;
+        }
+
+        void addScans(int scanNumbers[], DataPointsBuffer buffers[],
+                int numOfScans) {
+            for (int i = 0; i < numOfScans; i++) {
+                final int size = buffers[i].getSize();
+                final double scanMzValues[] = buffers[i].getMzValues();
+                final double scanIntensityValues[] = buffers[i]
+                        .getIntensityValues();
+                if (mzValues.length < size) {
+                    mzValues = new double[size];
+                    intensityValues = new double[size];
+                }
+
+                // Keep the order of the data points, so the ties are
+                // resolved the same way as when connecting all of them
+                int numOfDataPoints = 0;
+                for (int j = 0; j < size; j++) {
+                    final double mz = scanMzValues[j];
+                    if ((mz >= lowerBound) && (mz < upperBound)) {
+                        mzValues[numOfDataPoints] = mz;
+                        intensityValues[numOfDataPoints] = scanIntensityValues[j];
+                        numOfDataPoints++;
+                    }
+                }
+                connector.addScan(scanNumbers[i], mzValues, intensityValues,
+                        numOfDataPoints);
+            }
+        }
+
+    }
+
 }
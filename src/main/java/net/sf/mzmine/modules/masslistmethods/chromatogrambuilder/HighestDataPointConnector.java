@@ -19,20 +19,26 @@
 
 package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
 
-import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
-import java.util.Set;
+import java.util.ArrayList;
 
-import com.google.common.collect.Range;
-
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
-import net.sf.mzmine.util.DataPointSorter;
-import net.sf.mzmine.util.SortingDirection;
-import net.sf.mzmine.util.SortingProperty;
+import net.sf.mzmine.util.ArrayUtils;
 
+/**
+ * Connects the m/z peaks of consecutive scans to chromatograms. Each m/z peak
+ * (from the most intense) is connected to the chromatogram with the most
+ * intense last data point within m/z tolerance.
+ * 
+ * To avoid comparing each m/z peak with all building chromatograms, the
+ * building chromatograms are sorted by the m/z of their last data point at the
+ * beginning of each scan, and only the chromatograms inside the tolerance
+ * window are tested. Chromatograms connected during the scan change their last
+ * m/z, but at most by the m/z tolerance, so the window is widened by the
+ * largest change seen so far in the scan. Ties are resolved in the order of
+ * the building chromatograms, so the results are identical to testing all
+ * chromatograms in that order.
+ */
 public class HighestDataPointConnector {
 
     private final MZTolerance mzTolerance;
@@ -40,8 +46,21 @@ public class HighestDataPointConnector {
     private final RawDataFile dataFile;
     private final int allScanNumbers[];
 
-    // Mapping of last data point m/z --> chromatogram
-    private Set<Chromatogram> buildingChromatograms;
+    // Chromatograms which are currently being built. The order is kept
+    // reproducible, otherwise the resulting peak list row IDs would have
+    // different order every time the method is invoked.
+    private ArrayList<Chromatogram> buildingChromatograms;
+
+    // Buffers for sorting the m/z peaks of each scan, reused to avoid
+    // allocation
+    private int order[] = new int[0], sortBuffer[] = new int[0];
+
+    // m/z index of the building chromatograms, indexed by their position in
+    // buildingChromatograms (rank). The arrays are reused for all scans.
+    private int mzOrder[] = new int[0], mzSortBuffer[] = new int[0];
+    private double startMz[] = new double[0];
+    private double lastMz[] = new double[0], lastIntensity[] = new double[0];
+    private boolean connected[] = new boolean[0];
 
     public HighestDataPointConnector(RawDataFile dataFile, int allScanNumbers[],
             double minimumTimeSpan, double minimumHeight,
@@ -53,75 +72,80 @@ public class HighestDataPointConnector {
         this.dataFile = dataFile;
         this.allScanNumbers = allScanNumbers;
 
-        // We use LinkedHashSet to maintain a reproducible ordering. If we use
-        // plain HashSet, the resulting peak list row IDs will have different
-        // order every time the method is invoked.
-        buildingChromatograms = new LinkedHashSet<Chromatogram>();
+        buildingChromatograms = new ArrayList<Chromatogram>();
 
     }
 
-    public void addScan(int scanNumber, DataPoint mzValues[]) {
+    public void addScan(int scanNumber, double mzValues[],
+            double intensityValues[], int numOfDataPoints) {
 
         // Sort m/z peaks by descending intensity
-        Arrays.sort(mzValues, new DataPointSorter(SortingProperty.Intensity,
-                SortingDirection.Descending));
+        if (order.length < numOfDataPoints) {
+            order = new int[numOfDataPoints];
+            sortBuffer = new int[numOfDataPoints];
+        }
+        for (int i = 0; i < numOfDataPoints; i++)
+            order[i] = i;
+        ArrayUtils.sortIndicesDescending(order, sortBuffer, numOfDataPoints,
+                intensityValues, mzValues);
 
-        // Set of already connected chromatograms in each iteration
-        Set<Chromatogram> connectedChromatograms = new LinkedHashSet<Chromatogram>();
+        final int numOfChromatograms = buildingChromatograms.size();
+        buildIndex();
 
-        // TODO: these two nested cycles should be optimized for speed
-        for (DataPoint mzPeak : mzValues) {
+        // Largest change of the last m/z of any chromatogram in this scan
+        double maxShift = 0;
 
-            // Search for best chromatogram, which has highest last data point
-            Chromatogram bestChromatogram = null;
-
-            for (Chromatogram testChrom : buildingChromatograms) {
-
-                DataPoint lastMzPeak = testChrom.getLastMzPeak();
-                Range<Double> toleranceRange = mzTolerance
-                        .getToleranceRange(lastMzPeak.getMZ());
-                if (toleranceRange.contains(mzPeak.getMZ())) {
-                    if ((bestChromatogram == null) || (testChrom.getLastMzPeak()
-                            .getIntensity() > bestChromatogram.getLastMzPeak()
-                                    .getIntensity())) {
-                        bestChromatogram = testChrom;
-                    }
-                }
+        // Chromatograms connected in this scan, in the order of connection
+        ArrayList<Chromatogram> connectedChromatograms = new ArrayList<Chromatogram>();
 
-            }
+        for (int n = 0; n < numOfDataPoints; n++) {
+
+            final int index = order[n];
+            final double mz = mzValues[index];
+
+            // Search for best chromatogram, which has highest last data point
+            final int best = findBestChromatogram(mz, maxShift);
 
             // If we found best chromatogram, check if it is already connected.
             // In such case, we may discard this mass and continue. If we
             // haven't found a chromatogram, we may create a new one.
-            if (bestChromatogram != null) {
-                if (connectedChromatograms.contains(bestChromatogram)) {
+            Chromatogram bestChromatogram;
+            if (best >= 0) {
+                if (connected[best]) {
                     continue;
                 }
+                bestChromatogram = buildingChromatograms.get(best);
+                connected[best] = true;
+                lastMz[best] = mz;
+                lastIntensity[best] = intensityValues[index];
+                maxShift = Math.max(maxShift, Math.abs(mz - startMz[best]));
             } else {
                 bestChromatogram = new Chromatogram(dataFile, allScanNumbers);
             }
 
             // Add this mzPeak to the chromatogram
-            bestChromatogram.addMzPeak(scanNumber, mzPeak);
+            bestChromatogram.addMzPeak(scanNumber, mz, intensityValues[index]);
 
-            // Move the chromatogram to the set of connected chromatograms
+            // Move the chromatogram to the list of connected chromatograms
             connectedChromatograms.add(bestChromatogram);
 
         }
 
         // Process those chromatograms which were not connected to any m/z peak
-        for (Chromatogram testChrom : buildingChromatograms) {
+        for (int rank = 0; rank < numOfChromatograms; rank++) {
 
             // Skip those which were connected
-            if (connectedChromatograms.contains(testChrom)) {
+            if (connected[rank]) {
                 continue;
             }
 
+            Chromatogram testChrom = buildingChromatograms.get(rank);
+
             // Check if we just finished a long-enough segment
             if (testChrom.getBuildingSegmentLength() >= minimumTimeSpan) {
                 testChrom.commitBuildingSegment();
 
-                // Move the chromatogram to the set of connected chromatograms
+                // Move the chromatogram to the list of connected chromatograms
                 connectedChromatograms.add(testChrom);
                 continue;
             }
@@ -130,7 +154,7 @@ public class HighestDataPointConnector {
             if (testChrom.getNumberOfCommittedSegments() > 0) {
                 testChrom.removeBuildingSegment();
 
-                // Move the chromatogram to the set of connected chromatograms
+                // Move the chromatogram to the list of connected chromatograms
                 connectedChromatograms.add(testChrom);
                 continue;
             }
@@ -143,22 +167,115 @@ public class HighestDataPointConnector {
 
     }
 
+    /**
+     * Sorts the building chromatograms by the m/z of their last data point
+     */
+    private void buildIndex() {
+
+        final int numOfChromatograms = buildingChromatograms.size();
+
+        if (startMz.length < numOfChromatograms) {
+            final int capacity = Math.max(numOfChromatograms,
+                    startMz.length * 2);
+            mzOrder = new int[capacity];
+            mzSortBuffer = new int[capacity];
+            startMz = new double[capacity];
+            lastMz = new double[capacity];
+            lastIntensity = new double[capacity];
+            connected = new boolean[capacity];
+        }
+
+        for (int rank = 0; rank < numOfChromatograms; rank++) {
+            mzOrder[rank] = rank;
+            final Chromatogram chromatogram = buildingChromatograms.get(rank);
+            startMz[rank] = chromatogram.getLastMz();
+            lastMz[rank] = startMz[rank];
+            lastIntensity[rank] = chromatogram.getLastIntensity();
+            connected[rank] = false;
+        }
+
+        // Sort by descending m/z and reverse to get ascending order
+        ArrayUtils.sortIndicesDescending(mzOrder, mzSortBuffer,
+                numOfChromatograms, startMz, startMz);
+        for (int i = 0, j = numOfChromatograms - 1; i < j; i++, j--) {
+            final int tmp = mzOrder[i];
+            mzOrder[i] = mzOrder[j];
+            mzOrder[j] = tmp;
+        }
+
+    }
+
+    /**
+     * Finds the chromatogram whose last data point is within m/z tolerance of
+     * the given m/z and has the highest intensity. Among chromatograms with
+     * equal intensity, the first one in buildingChromatograms is taken.
+     * 
+     * @return Rank of the best chromatogram, or -1 if there is none
+     */
+    private int findBestChromatogram(double mz, double maxShift) {
+
+        final int numOfChromatograms = buildingChromatograms.size();
+
+        // Bounds of the m/z values x, which can satisfy
+        // x - tolerance(x) <= mz <= x + tolerance(x), with a small margin for
+        // rounding errors
+        final double absTolerance = mzTolerance.getMzTolerance();
+        final double relTolerance = mzTolerance.getPpmTolerance() / 1000000.0;
+        double lowerBound = Math.min(mz - absTolerance,
+                mz / (1 + relTolerance));
+        double upperBound = (relTolerance < 1)
+                ? Math.max(mz + absTolerance, mz / (1 - relTolerance))
+                : Double.POSITIVE_INFINITY;
+        final double margin = 1e-9 * Math.abs(mz) + maxShift;
+        lowerBound -= margin;
+        upperBound += margin;
+
+        // Binary search for the first chromatogram inside the window
+        int low = 0, high = numOfChromatograms;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (startMz[mzOrder[mid]] < lowerBound)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        int best = -1;
+        for (int i = low; i < numOfChromatograms; i++) {
+            final int rank = mzOrder[i];
+            if (startMz[rank] > upperBound)
+                break;
+
+            // Same test as mzTolerance.getToleranceRange(x).contains(mz)
+            final double x = lastMz[rank];
+            final double tolerance = mzTolerance.getMzToleranceForMass(x);
+            if ((Double.compare(x - tolerance, mz) > 0)
+                    || (Double.compare(mz, x + tolerance) > 0))
+                continue;
+
+            if ((best < 0) || (lastIntensity[rank] > lastIntensity[best])
+                    || ((lastIntensity[rank] == lastIntensity[best])
+                            && (rank < best)))
+                best = rank;
+        }
+
+        return best;
+
+    }
+
     public Chromatogram[] finishChromatograms() {
 
-        // Iterate through current chromatograms and remove those which do not
+        // Iterate through current chromatograms and skip those which do not
         // contain any committed segment nor long-enough building segment
+        ArrayList<Chromatogram> finishedChromatograms = new ArrayList<Chromatogram>();
 
-        Iterator<Chromatogram> chromIterator = buildingChromatograms.iterator();
-        while (chromIterator.hasNext()) {
-
-            Chromatogram chromatogram = chromIterator.next();
+        for (Chromatogram chromatogram : buildingChromatograms) {
 
             if (chromatogram.getBuildingSegmentLength() >= minimumTimeSpan) {
                 chromatogram.commitBuildingSegment();
                 chromatogram.finishChromatogram();
             } else {
                 if (chromatogram.getNumberOfCommittedSegments() == 0) {
-                    chromIterator.remove();
                     continue;
                 } else {
                     chromatogram.removeBuildingSegment();
@@ -166,14 +283,16 @@ public class HighestDataPointConnector {
                 }
             }
 
-            // Remove chromatograms smaller then minimum height
+            // Skip chromatograms smaller then minimum height
             if (chromatogram.getHeight() < minimumHeight)
-                chromIterator.remove();
+                continue;
+
+            finishedChromatograms.add(chromatogram);
 
         }
 
         // All remaining chromatograms are good, so we can return them
-        Chromatogram[] chromatograms = buildingChromatograms
+        Chromatogram[] chromatograms = finishedChromatograms
                 .toArray(new Chromatogram[0]);
         return chromatograms;
     }
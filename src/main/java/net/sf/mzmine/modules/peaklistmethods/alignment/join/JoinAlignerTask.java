@@ -19,10 +19,19 @@
 
 package net.sf.mzmine.modules.peaklistmethods.alignment.join;
 
-import java.util.Hashtable;
-import java.util.Iterator;
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.IsotopePattern;
@@ -33,6 +42,7 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.peaklistmethods.isotopes.isotopepatternscore.IsotopePatternScoreCalculator;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
@@ -48,11 +58,15 @@ class JoinAlignerTask extends AbstractTask {
 
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
+    // Number of rows scored by one parallel work unit
+    private static final int SCORING_BLOCK_SIZE = 256;
+
     private final MZmineProject project;
     private PeakList peakLists[], alignedPeakList;
 
     // Processed rows counter
-    private int processedRows, totalRows;
+    private final AtomicInteger processedRows = new AtomicInteger();
+    private int totalRows;
 
     private String peakListName;
     private MZTolerance mzTolerance;
@@ -111,7 +125,7 @@ class JoinAlignerTask extends AbstractTask {
     public double getFinishedPercentage() {
         if (totalRows == 0)
             return 0f;
-        return (double) processedRows / (double) totalRows;
+        return (double) processedRows.get() / (double) totalRows;
     }
 
     /**
@@ -159,88 +173,38 @@ class JoinAlignerTask extends AbstractTask {
         // Iterate source peak lists
         for (PeakList peakList : peakLists) {
 
-            // Create a sorted set of scores matching
-            TreeSet<RowVsRowScore> scoreSet = new TreeSet<RowVsRowScore>();
-
             PeakListRow allRows[] = peakList.getRows();
 
-            // Calculate scores for all possible alignments of this row
-            for (PeakListRow row : allRows) {
-
-                if (isCanceled())
-                    return;
-
-                // Calculate limits for a row with which the row can be aligned
-                Range<Double> mzRange = mzTolerance.getToleranceRange(row
-                        .getAverageMZ());
-                Range<Double> rtRange = rtTolerance.getToleranceRange(row
-                        .getAverageRT());
-
-                // Get all rows of the aligned peaklist within parameter limits
-                PeakListRow candidateRows[] = alignedPeakList
-                        .getRowsInsideScanAndMZRange(rtRange, mzRange);
-
-                // Calculate scores and store them
-                for (PeakListRow candidate : candidateRows) {
-
-                    if (sameChargeRequired) {
-                        if (!PeakUtils.compareChargeState(row, candidate))
-                            continue;
-                    }
-
-                    if (sameIDRequired) {
-                        if (!PeakUtils.compareIdentities(row, candidate))
-                            continue;
-                    }
-
-                    if (compareIsotopePattern) {
-                        IsotopePattern ip1 = row.getBestIsotopePattern();
-                        IsotopePattern ip2 = candidate.getBestIsotopePattern();
-
-                        if ((ip1 != null) && (ip2 != null)) {
-                            ParameterSet isotopeParams = parameters
-                                    .getParameter(
-                                            JoinAlignerParameters.compareIsotopePattern)
-                                    .getEmbeddedParameters();
-
-                            if (!IsotopePatternScoreCalculator.checkMatch(ip1,
-                                    ip2, isotopeParams)) {
-                                continue;
-                            }
-                        }
-                    }
-
-                    RowVsRowScore score = new RowVsRowScore(row, candidate,
-                            RangeUtils.rangeLength(mzRange) / 2.0, mzWeight,
-                            RangeUtils.rangeLength(rtRange) / 2.0, rtWeight);
-
-                    scoreSet.add(score);
+            // Calculate scores for all possible alignments of all rows
+            RowVsRowScore scores[] = calculateScores(allRows);
+            if (scores == null)
+                return;
 
-                }
+            // Sort the scores by descending order. The scores are reversed
+            // first and the sort is stable, so equal scores are taken in the
+            // reverse order of calculation, which is deterministic.
+            Collections.reverse(Arrays.asList(scores));
+            Arrays.sort(scores);
 
-                processedRows++;
-
-            }
-
-            // Create a table of mappings for best scores
-            Hashtable<PeakListRow, PeakListRow> alignmentMapping = new Hashtable<PeakListRow, PeakListRow>();
+            // Create a table of mappings for best scores, and a set of aligned
+            // rows which are already filled
+            Map<PeakListRow, PeakListRow> alignmentMapping = new HashMap<PeakListRow, PeakListRow>();
+            Set<PeakListRow> filledRows = new HashSet<PeakListRow>();
 
             // Iterate scores by descending order
-            Iterator<RowVsRowScore> scoreIterator = scoreSet.iterator();
-            while (scoreIterator.hasNext()) {
-
-                RowVsRowScore score = scoreIterator.next();
+            for (RowVsRowScore score : scores) {
 
                 // Check if the row is already mapped
                 if (alignmentMapping.containsKey(score.getPeakListRow()))
                     continue;
 
                 // Check if the aligned row is already filled
-                if (alignmentMapping.containsValue(score.getAlignedRow()))
+                if (filledRows.contains(score.getAlignedRow()))
                     continue;
 
                 alignmentMapping.put(score.getPeakListRow(),
                         score.getAlignedRow());
+                filledRows.add(score.getAlignedRow());
 
             }
 
@@ -265,7 +229,7 @@ class JoinAlignerTask extends AbstractTask {
                 // aligned row
                 PeakUtils.copyPeakListRowProperties(row, targetRow);
 
-                processedRows++;
+                processedRows.incrementAndGet();
 
             }
 
@@ -284,4 +248,103 @@ class JoinAlignerTask extends AbstractTask {
 
     }
 
+    /**
+     * Calculates the scores of all possible alignments of given rows to the
+     * rows of the aligned peak list. The rows are scored in blocks in
+     * parallel, the aligned peak list is not modified meanwhile.
+     *
+     * @return Scores in the order of rows and their candidates, or null if
+     *         the task was canceled
+     */
+    private RowVsRowScore[] calculateScores(final PeakListRow allRows[]) {
+
+        final ForkJoinPool pool = MZmineCore.getTaskController()
+                .getForkJoinPool();
+
+        List<ForkJoinTask<List<RowVsRowScore>>> blockTasks = new ArrayList<ForkJoinTask<List<RowVsRowScore>>>();
+        for (int first = 0; first < allRows.length; first += SCORING_BLOCK_SIZE) {
+            final int from = first;
+            final int to = Math.min(first + SCORING_BLOCK_SIZE, allRows.length);
+            blockTasks.add(pool.submit(new Callable<List<RowVsRowScore>>() {
+                public List<RowVsRowScore> call() {
+                    List<RowVsRowScore> blockScores = new ArrayList<RowVsRowScore>();
+                    for (int i = from; i < to; i++) {
+                        if (isCanceled())
+                            break;
+                        calculateScores(allRows[i], blockScores);
+                        processedRows.incrementAndGet();
+                    }
+                    return blockScores;
+                }
+            }));
+        }
+
+        // Join the blocks in their order, so the result does not depend on
+        // the order in which the blocks were finished
+        List<RowVsRowScore> scores = new ArrayList<RowVsRowScore>();
+        for (ForkJoinTask<List<RowVsRowScore>> blockTask : blockTasks)
+            scores.addAll(blockTask.join());
+
+        if (isCanceled())
+            return null;
+
+        return scores.toArray(new RowVsRowScore[0]);
+
+    }
+
+    /**
+     * Calculates the scores of all possible alignments of given row and adds
+     * them to the scores list
+     */
+    private void calculateScores(PeakListRow row, List<RowVsRowScore> scores) {
+
+        // Calculate limits for a row with which the row can be aligned
+        Range<Double> mzRange = mzTolerance.getToleranceRange(row
+                .getAverageMZ());
+        Range<Double> rtRange = rtTolerance.getToleranceRange(row
+                .getAverageRT());
+
+        // Get all rows of the aligned peaklist within parameter limits
+        PeakListRow candidateRows[] = alignedPeakList
+                .getRowsInsideScanAndMZRange(rtRange, mzRange);
+
+        // Calculate scores and store them
+        for (PeakListRow candidate : candidateRows) {
+
+            if (sameChargeRequired) {
+                if (!PeakUtils.compareChargeState(row, candidate))
+                    continue;
+            }
+
+            if (sameIDRequired) {
+                if (!PeakUtils.compareIdentities(row, candidate))
+                    continue;
+            }
+
+            if (compareIsotopePattern) {
+                IsotopePattern ip1 = row.getBestIsotopePattern();
+                IsotopePattern ip2 = candidate.getBestIsotopePattern();
+
+                if ((ip1 != null) && (ip2 != null)) {
+                    ParameterSet isotopeParams = parameters.getParameter(
+                            JoinAlignerParameters.compareIsotopePattern)
+                            .getEmbeddedParameters();
+
+                    if (!IsotopePatternScoreCalculator.checkMatch(ip1, ip2,
+                            isotopeParams)) {
+                        continue;
+                    }
+                }
+            }
+
+            RowVsRowScore score = new RowVsRowScore(row, candidate,
+                    RangeUtils.rangeLength(mzRange) / 2.0, mzWeight,
+                    RangeUtils.rangeLength(rtRange) / 2.0, rtWeight);
+
+            scores.add(score);
+
+        }
+
+    }
+
 }
@@ -74,12 +74,9 @@ class RowVsRowScore implements Comparable<RowVsRowScore> {
      */
     public int compareTo(RowVsRowScore object) {
 
-	// We must never return 0, because the TreeSet in JoinAlignerTask would
-	// treat such elements as equal
-	if (score < object.getScore())
-	    return 1;
-	else
-	    return -1;
+	// Descending order of scores. Equal scores compare as 0, so the scores
+	// can be sorted by a stable sort in JoinAlignerTask.
+	return Double.compare(object.getScore(), score);
 
     }
 
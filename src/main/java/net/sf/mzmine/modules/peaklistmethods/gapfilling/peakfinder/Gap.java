@@ -23,12 +23,14 @@ import java.util.Vector;
 import java.util.concurrent.locks.Lock;
 import com.google.common.collect.Range;
 import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.Feature.FeatureStatus;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleFeature;
+import net.sf.mzmine.util.DataPointsBuffer;
 import net.sf.mzmine.util.RangeUtils;
 import net.sf.mzmine.util.ScanUtils;
 
@@ -63,25 +65,68 @@ public class Gap {
 
   }
 
-  public void offerNextScan(Scan scan) {
-
-    double scanRT = scan.getRetentionTime();
+  /**
+   * Returns true if offerNextScan() would process a scan with given retention time. This allows to
+   * skip reading the scan data if no gap needs it.
+   */
+  public boolean isScanNeeded(double scanRT) {
 
     // If not yet inside the RT range
     if (scanRT < rtRange.lowerEndpoint())
-      return;
+      return false;
 
     // If we have passed the RT range and finished processing last peak
     if ((scanRT > rtRange.upperEndpoint()) && (currentPeakDataPoints == null))
+      return false;
+
+    return true;
+  }
+
+  /**
+   * Returns true if this gap will not process any more scans, provided the scans are offered in the
+   * order of retention time.
+   */
+  boolean isFinished(double scanRT) {
+    return (scanRT > rtRange.upperEndpoint()) && (currentPeakDataPoints == null);
+  }
+
+  Range<Double> getMzRange() {
+    return mzRange;
+  }
+
+  Range<Double> getRtRange() {
+    return rtRange;
+  }
+
+  /**
+   * Offers the next scan to this gap. The scan data points are passed in a primitive buffer, so
+   * they can be read only once and shared by all gaps of the same raw data file.
+   */
+  public void offerNextScan(Scan scan, DataPointsBuffer scanData) {
+    offerNextScan(scan, scanData, scanData.findFirstIndex(mzRange.lowerEndpoint()));
+  }
+
+  /**
+   * Offers the next scan to this gap, see offerNextScan(Scan, DataPointsBuffer)
+   * 
+   * @param firstIndex Index of the first data point of the scan with m/z greater or equal to the
+   *        lower end of the m/z range of this gap
+   */
+  void offerNextScan(Scan scan, DataPointsBuffer scanData, int firstIndex) {
+
+    double scanRT = scan.getRetentionTime();
+
+    if (!isScanNeeded(scanRT))
       return;
 
     // Find top m/z peak in our range
-    DataPoint basePeak = ScanUtils.findBasePeak(scan, mzRange);
+    final int basePeakIndex = scanData.findBasePeakIndex(firstIndex, mzRange.upperEndpoint());
 
     GapDataPoint currentDataPoint;
-    if (basePeak != null) {
-      currentDataPoint =
-          new GapDataPoint(scan.getScanNumber(), basePeak.getMZ(), scanRT, basePeak.getIntensity());
+    if (basePeakIndex >= 0) {
+      currentDataPoint = new GapDataPoint(scan.getScanNumber(),
+          scanData.getMzValues()[basePeakIndex], scanRT,
+          scanData.getIntensityValues()[basePeakIndex]);
     } else {
       currentDataPoint =
           new GapDataPoint(scan.getScanNumber(), RangeUtils.rangeCenter(mzRange), scanRT, 0);
@@ -123,6 +168,33 @@ public class Gap {
    */
   public void noMoreOffers(Lock lock) {
 
+    Feature newPeak = finish();
+    if (newPeak == null)
+      return;
+
+    // Fill the gap
+    if (lock == null) {
+      // single thread
+      peakListRow.addPeak(rawDataFile, newPeak);
+    } else {
+      // multi thread
+      lock.lock();
+      try {
+        peakListRow.addPeak(rawDataFile, newPeak);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+  }
+
+  /**
+   * Finalizes the gap without adding the peak to the peak list row, so the caller can add it later
+   * 
+   * @return The peak which fills the gap, or null if no peak was found
+   */
+  public Feature finish() {
+
     // Check peak that was last constructed
     if (currentPeakDataPoints != null) {
       checkCurrentPeak();
@@ -192,21 +264,11 @@ public class Gap {
           finalDataPoint, FeatureStatus.ESTIMATED, representativeScan, fragmentScan, finalRTRange,
           finalMZRange, finalIntensityRange);
 
-      // Fill the gap
-      if (lock == null) {
-        // single thread
-        peakListRow.addPeak(rawDataFile, newPeak);
-      } else {
-        // multi thread
-        lock.lock();
-        try {
-          peakListRow.addPeak(rawDataFile, newPeak);
-        } finally {
-          lock.unlock();
-        }
-      }
+      return newPeak;
     }
 
+    return null;
+
   }
 
   /**
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.gapfilling.peakfinder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import javax.annotation.Nonnull;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.util.DataPointsBuffer;
+
+/**
+ * Offers the scans of one raw data file to all gaps of that file in a single sweep over retention
+ * time. The gaps are sorted by the start of their RT range, and only the gaps whose RT range was
+ * reached and which have not finished yet are active. The active gaps are kept sorted by the lower
+ * end of their m/z range, so the first data point of each gap is found by one pass of binary
+ * searches over the sorted scan data, each starting where the previous one ended.
+ * 
+ * The scans must be passed to isScanNeeded() in the order of retention time, and each needed scan
+ * must then be passed to offerNextScan(). Instances are not thread-safe.
+ */
+public class GapSweep {
+
+  private static final Comparator<Gap> rtComparator = new Comparator<Gap>() {
+    @Override
+    public int compare(Gap g1, Gap g2) {
+      return Double.compare(g1.getRtRange().lowerEndpoint(), g2.getRtRange().lowerEndpoint());
+    }
+  };
+
+  private final List<Gap> gaps;
+
+  // Gaps sorted by the start of RT range, and index of the next gap to activate
+  private final Gap gapsByRT[];
+  private int nextGap = 0;
+
+  // Active gaps sorted by the lower end of m/z range
+  private final List<Gap> activeGaps = new ArrayList<Gap>();
+
+  public GapSweep(@Nonnull List<Gap> gaps) {
+    this.gaps = gaps;
+    gapsByRT = gaps.toArray(new Gap[0]);
+    Arrays.sort(gapsByRT, rtComparator);
+  }
+
+  /**
+   * Activates the gaps whose RT range starts at given retention time and drops the finished ones.
+   * Returns true if any gap needs the scan with given retention time, otherwise the scan data do
+   * not have to be read at all.
+   */
+  public boolean isScanNeeded(double scanRT) {
+
+    while ((nextGap < gapsByRT.length)
+        && (gapsByRT[nextGap].getRtRange().lowerEndpoint() <= scanRT)) {
+      activate(gapsByRT[nextGap]);
+      nextGap++;
+    }
+
+    int kept = 0;
+    for (int i = 0; i < activeGaps.size(); i++) {
+      Gap gap = activeGaps.get(i);
+      if (!gap.isFinished(scanRT))
+        activeGaps.set(kept++, gap);
+    }
+    activeGaps.subList(kept, activeGaps.size()).clear();
+
+    return !activeGaps.isEmpty();
+  }
+
+  private void activate(Gap gap) {
+    // Insert after all active gaps with the same or lower m/z
+    final double mz = gap.getMzRange().lowerEndpoint();
+    int low = 0, high = activeGaps.size();
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (activeGaps.get(mid).getMzRange().lowerEndpoint() <= mz)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    activeGaps.add(low, gap);
+  }
+
+  /**
+   * Returns true if all gaps have finished, so no more scans have to be offered
+   */
+  public boolean isFinished() {
+    return (nextGap == gapsByRT.length) && activeGaps.isEmpty();
+  }
+
+  /**
+   * Offers the scan to all active gaps
+   * 
+   * @param scanData Data points of the scan
+   */
+  public void offerNextScan(Scan scan, DataPointsBuffer scanData) {
+    int firstIndex = 0;
+    for (Gap gap : activeGaps) {
+      firstIndex = scanData.findFirstIndex(firstIndex, gap.getMzRange().lowerEndpoint());
+      gap.offerNextScan(scan, scanData, firstIndex);
+    }
+  }
+
+  /**
+   * Finalizes all gaps, see Gap.noMoreOffers(Lock)
+   */
+  public void noMoreOffers(Lock lock) {
+    for (Gap gap : gaps)
+      gap.noMoreOffers(lock);
+  }
+
+}
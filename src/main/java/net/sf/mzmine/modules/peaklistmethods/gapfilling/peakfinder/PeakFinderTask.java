@@ -37,6 +37,7 @@ import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.DataPointsBuffer;
 
 class PeakFinderTask extends AbstractTask {
 
@@ -150,9 +151,15 @@ class PeakFinderTask extends AbstractTask {
           continue;
         }
 
+        // Buffer for the scan data, reused for all scans
+        DataPointsBuffer scanData = new DataPointsBuffer();
+
         // Get all scans of this data file
         int scanNumbers[] = dataFile.getScanNumbers(1);
 
+        // Offer the scans to the gaps in a single sweep over RT
+        GapSweep sweep = new GapSweep(gaps);
+
         // Process each scan
         for (int scanNumber : scanNumbers) {
 
@@ -164,18 +171,17 @@ class PeakFinderTask extends AbstractTask {
           // Get the scan
           Scan scan = dataFile.getScan(scanNumber);
 
-          // Feed this scan to all gaps
-          for (Gap gap : gaps) {
-            gap.offerNextScan(scan);
+          // Feed this scan to the gaps in its RT range, reading the scan data only once
+          if (sweep.isScanNeeded(scan.getRetentionTime())) {
+            scanData.readScan(scan);
+            sweep.offerNextScan(scan, scanData);
           }
 
           processedScans++;
         }
 
         // Finalize gaps
-        for (Gap gap : gaps) {
-          gap.noMoreOffers();
-        }
+        sweep.noMoreOffers(null);
 
       }
     }
@@ -284,9 +290,15 @@ class PeakFinderTask extends AbstractTask {
           continue;
         }
 
+        // Buffer for the scan data, reused for all scans
+        DataPointsBuffer scanData = new DataPointsBuffer();
+
         // Get all scans of this data file
         int scanNumbers[] = datafile1.getScanNumbers(1);
 
+        // Offer the scans to the gaps in a single sweep over RT
+        GapSweep sweep = new GapSweep(gaps);
+
         // Process each scan
         for (int scanNumber : scanNumbers) {
 
@@ -298,17 +310,16 @@ class PeakFinderTask extends AbstractTask {
           // Get the scan
           Scan scan = datafile1.getScan(scanNumber);
 
-          // Feed this scan to all gaps
-          for (Gap gap : gaps) {
-            gap.offerNextScan(scan);
+          // Feed this scan to the gaps in its RT range, reading the scan data only once
+          if (sweep.isScanNeeded(scan.getRetentionTime())) {
+            scanData.readScan(scan);
+            sweep.offerNextScan(scan, scanData);
           }
           processedScans++;
         }
 
         // Finalize gaps
-        for (Gap gap : gaps) {
-          gap.noMoreOffers();
-        }
+        sweep.noMoreOffers(null);
       }
     }
   }
@@ -18,17 +18,21 @@
 
 package net.sf.mzmine.modules.peaklistmethods.gapfilling.peakfinder.multithreaded;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakIdentity;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
-import net.sf.mzmine.desktop.preferences.MZminePreferences;
-import net.sf.mzmine.desktop.preferences.NumOfThreadsParameter;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
@@ -38,7 +42,16 @@ import net.sf.mzmine.taskcontrol.TaskStatusListener;
 
 /**
  * The main task creates sub tasks to perform the PeakFinder algorithm on multiple threads. Each sub
- * task performs gap filling on a number of RawDataFiles.
+ * task performs gap filling of one RawDataFile in one block of rows. The rows are sorted by RT
+ * before they are split into blocks, so each sub task only reads the scans of a narrow RT window.
+ * There are several sub tasks per thread, so the work stealing of the pool keeps all threads busy
+ * even if there are fewer files than threads or the files differ in size. The sub tasks are forked
+ * into the pool of the task controller and the main task waits until all of them are done, so the
+ * main task finishes together with the gap filling (e.g. before the next batch step starts).
+ * 
+ * The sub tasks store their peaks in a slot per row. The peaks are added to the rows of the
+ * processed peak list afterwards, again in parallel by blocks of rows, without any lock because
+ * each row belongs to a single block.
  * 
  * @author Robin Schmid (robinschmid@wwu.de)
  *
@@ -47,6 +60,13 @@ class MultiThreadPeakFinderMainTask extends AbstractTask {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
+  // Number of sub tasks per thread. More sub tasks balance better, but the scans at the RT borders
+  // of the blocks are read more than once.
+  private static final int SUB_TASKS_PER_THREAD = 4;
+
+  // Minimum number of rows in a block, unless the peak list has fewer rows
+  private static final int MIN_ROWS_PER_BLOCK = 100;
+
   private final MZmineProject project;
   private ParameterSet parameters;
   private PeakList peakList, processedPeakList;
@@ -55,7 +75,7 @@ class MultiThreadPeakFinderMainTask extends AbstractTask {
 
   private double progress = 0;
 
-  private boolean useLock;
+  private MultiThreadPeakFinderTask[] subTasks;
 
   public MultiThreadPeakFinderMainTask(MZmineProject project, PeakList peakList,
       ParameterSet parameters) {
@@ -64,7 +84,6 @@ class MultiThreadPeakFinderMainTask extends AbstractTask {
     this.parameters = parameters;
 
     suffix = parameters.getParameter(MultiThreadPeakFinderParameters.suffix).getValue();
-    useLock = parameters.getParameter(MultiThreadPeakFinderParameters.useLock).getValue();
     removeOriginal = parameters.getParameter(MultiThreadPeakFinderParameters.autoRemove).getValue();
   }
 
@@ -72,26 +91,23 @@ class MultiThreadPeakFinderMainTask extends AbstractTask {
     setStatus(TaskStatus.PROCESSING);
     logger.info("Running multithreaded gap filler on " + peakList);
 
-    // create lock to synchronize addPeak to processedPeakList in sub tasks
-    Lock lock = useLock ? new ReentrantLock() : null;
-
     // Create new results peak list
     processedPeakList = createResultsPeakList();
-    progress = 0.5;
+    progress = 0.1;
+
+    ForkJoinPool pool = MZmineCore.getTaskController().getForkJoinPool();
 
-    // split raw data files into groups for each thread (task)
-    // Obtain the settings of max concurrent threads
-    // as this task uses one thread
-    int maxRunningThreads = getMaxThreads();
-    // raw files
-    int raw = peakList.getNumberOfRawDataFiles();
+    // split the rows into blocks, one sub task per block and raw data file
+    final int blocks[][] = createRowBlocks(pool.getParallelism());
+    final int numOfFiles = peakList.getNumberOfRawDataFiles();
 
     // create consumer of resultpeaklist
     SubTaskFinishListener listener =
-        new SubTaskFinishListener(project, parameters, peakList, removeOriginal, maxRunningThreads);
+        new SubTaskFinishListener(project, parameters, peakList, removeOriginal);
 
-    // Submit the tasks to the task controller for processing
-    Task[] tasks = createSubTasks(lock, raw, maxRunningThreads, listener);
+    // Create the sub tasks
+    final MultiThreadPeakFinderTask[] tasks = createSubTasks(blocks);
+    subTasks = tasks;
 
     // listener for status change: Cancel / error
     TaskStatusListener list = new TaskStatusListener() {
@@ -102,9 +118,8 @@ class MultiThreadPeakFinderMainTask extends AbstractTask {
           synchronized (this) {
             // remove listener
             // cancel all
-            for (Task t : tasks) {
-              if (t instanceof AbstractTask)
-                ((AbstractTask) t).removeTaskStatusListener(this);
+            for (MultiThreadPeakFinderTask t : tasks) {
+              t.removeTaskStatusListener(this);
               t.cancel();
             }
           }
@@ -113,20 +128,101 @@ class MultiThreadPeakFinderMainTask extends AbstractTask {
     };
 
     // add listener to all sub tasks
+    for (MultiThreadPeakFinderTask t : tasks)
+      t.addTaskStatusListener(list);
+
+    // start: fork the sub tasks into the pool of the task controller, idle workers will steal them
+    List<ForkJoinTask<?>> forkedTasks = new ArrayList<>();
     for (Task t : tasks)
-      if (t instanceof AbstractTask)
-        ((AbstractTask) t).addTaskStatusListener(list);
+      forkedTasks.add(pool.submit(t));
+    logger.info("All " + tasks.length + " sub tasks (" + blocks.length + " blocks of rows x "
+        + numOfFiles + " raw files) started for multithreaded gap-filling on " + peakList);
+
+    // wait for all sub tasks
+    if (!joinAll(forkedTasks, tasks))
+      return;
+
+    if (isCanceled())
+      return;
+
+    // report errors of sub tasks
+    for (Task t : tasks) {
+      if (t.getStatus() == TaskStatus.ERROR) {
+        setErrorMessage(t.getErrorMessage());
+        setStatus(TaskStatus.ERROR);
+        return;
+      }
+      if (t.getStatus() == TaskStatus.CANCELED) {
+        setStatus(TaskStatus.CANCELED);
+        return;
+      }
+    }
 
-    // start
-    MZmineCore.getTaskController().addTasks(tasks);
+    // add the peaks of all sub tasks to the rows, block by block in parallel
+    forkedTasks.clear();
+    for (int b = 0; b < blocks.length; b++) {
+      final int block = b;
+      forkedTasks.add(pool.submit(new Runnable() {
+        public void run() {
+          for (int f = 0; f < numOfFiles; f++)
+            addPeaks(tasks[block * numOfFiles + f]);
+        }
+      }));
+    }
+    if (!joinAll(forkedTasks, tasks))
+      return;
 
     // listener will take care of adding the final list
+    listener.accept(processedPeakList);
+
     progress = 1;
     // end
-    logger.info("All sub tasks started for multithreaded gap-filling on " + peakList);
     setStatus(TaskStatus.FINISHED);
   }
 
+  /**
+   * Waits for the forked tasks. If any of them throws an exception, the sub tasks are canceled and
+   * this task reports the error.
+   * 
+   * @return False if a forked task failed
+   */
+  private boolean joinAll(List<ForkJoinTask<?>> forkedTasks, Task[] tasks) {
+    try {
+      for (ForkJoinTask<?> forkedTask : forkedTasks)
+        forkedTask.join();
+      return true;
+    } catch (RuntimeException e) {
+      logger.log(Level.SEVERE, "Error in multithreaded gap-filling of " + peakList, e);
+      for (Task t : tasks)
+        t.cancel();
+      setErrorMessage(e.toString());
+      setStatus(TaskStatus.ERROR);
+      return false;
+    }
+  }
+
+  /**
+   * Adds the peaks of a finished sub task to the rows of the processed peak list
+   */
+  private void addPeaks(MultiThreadPeakFinderTask task) {
+    int rows[] = task.getRows();
+    Feature peaks[] = task.getPeaks();
+    for (int i = 0; i < rows.length; i++) {
+      if (peaks[i] != null)
+        processedPeakList.getRow(rows[i]).addPeak(task.getDataFile(), peaks[i]);
+    }
+  }
+
+  @Override
+  public void cancel() {
+    super.cancel();
+    Task[] tasks = subTasks;
+    if (tasks != null) {
+      for (Task t : tasks)
+        t.cancel();
+    }
+  }
+
   private PeakList createResultsPeakList() {
     SimplePeakList processedPeakList =
         new SimplePeakList(peakList + " " + suffix, peakList.getRawDataFiles());
@@ -147,58 +243,73 @@ class MultiThreadPeakFinderMainTask extends AbstractTask {
     return processedPeakList;
   }
 
-  private int getMaxThreads() {
-    int maxRunningThreads = 1;
-    NumOfThreadsParameter parameter =
-        MZmineCore.getConfiguration().getPreferences().getParameter(MZminePreferences.numOfThreads);
-    if (parameter.isAutomatic() || (parameter.getValue() == null))
-      maxRunningThreads = Runtime.getRuntime().availableProcessors();
-    else
-      maxRunningThreads = parameter.getValue();
-
-    // raw files
-    int raw = peakList.getNumberOfRawDataFiles();
-    // raw files<?
-    if (raw < maxRunningThreads)
-      maxRunningThreads = raw;
-    return maxRunningThreads;
-  }
-
   /**
-   * Distributes the RawDataFiles on different tasks
+   * Splits the rows of the peak list, sorted by average RT, into blocks of consecutive rows
    * 
-   * @param lock
-   * @param raw
-   * @param maxRunningThreads
-   * @param listener
-   * @return
+   * @param threads Number of threads of the pool
+   * @return Row indexes of each block
    */
-  private Task[] createSubTasks(Lock lock, int raw, int maxRunningThreads,
-      SubTaskFinishListener listener) {
-    int numPerTask = raw / maxRunningThreads;
-    int rest = raw % maxRunningThreads;
-    Task[] tasks = new Task[maxRunningThreads];
-    for (int i = 0; i < maxRunningThreads; i++) {
-      int start = numPerTask * i;
-      int endexcl = numPerTask * (i + 1);
-      // add one from the rest
-      if (rest > 0) {
-        start += Math.min(i, rest);
-        endexcl += Math.min(i + 1, rest);
+  private int[][] createRowBlocks(int threads) {
+    final int numOfRows = peakList.getNumberOfRows();
+    final int numOfFiles = Math.max(1, peakList.getNumberOfRawDataFiles());
+
+    // at least SUB_TASKS_PER_THREAD sub tasks per thread, if the blocks do not get too small
+    int numOfBlocks = (SUB_TASKS_PER_THREAD * threads + numOfFiles - 1) / numOfFiles;
+    numOfBlocks = Math.min(numOfBlocks, numOfRows / MIN_ROWS_PER_BLOCK);
+    numOfBlocks = Math.max(1, numOfBlocks);
+
+    final PeakListRow rows[] = peakList.getRows();
+    Integer order[] = new Integer[numOfRows];
+    for (int i = 0; i < numOfRows; i++)
+      order[i] = i;
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer i1, Integer i2) {
+        return Double.compare(rows[i1].getAverageRT(), rows[i2].getAverageRT());
       }
+    });
 
-      if (i == maxRunningThreads - 1)
-        endexcl = raw;
+    int blocks[][] = new int[numOfBlocks][];
+    for (int b = 0; b < numOfBlocks; b++) {
+      int start = (int) ((long) numOfRows * b / numOfBlocks);
+      int endexcl = (int) ((long) numOfRows * (b + 1) / numOfBlocks);
+      blocks[b] = new int[endexcl - start];
+      for (int i = start; i < endexcl; i++)
+        blocks[b][i - start] = order[i];
+    }
+    return blocks;
+  }
 
-      // create task
-      tasks[i] = new MultiThreadPeakFinderTask(project, peakList, processedPeakList, parameters,
-          start, endexcl, lock, listener, i);
+  /**
+   * Creates one sub task for each block of rows and each RawDataFile, the sub task of block b and
+   * file f has index b * (number of files) + f
+   */
+  private MultiThreadPeakFinderTask[] createSubTasks(int blocks[][]) {
+    int numOfFiles = peakList.getNumberOfRawDataFiles();
+    MultiThreadPeakFinderTask[] tasks = new MultiThreadPeakFinderTask[blocks.length * numOfFiles];
+    for (int b = 0; b < blocks.length; b++) {
+      for (int f = 0; f < numOfFiles; f++) {
+        int i = b * numOfFiles + f;
+        tasks[i] = new MultiThreadPeakFinderTask(peakList, processedPeakList, parameters,
+            peakList.getRawDataFile(f), blocks[b], i);
+      }
     }
     return tasks;
   }
 
   public double getFinishedPercentage() {
-    return progress;
+    MultiThreadPeakFinderTask[] tasks = subTasks;
+    if ((tasks == null) || (progress == 1))
+      return progress;
+    // scans processed by all sub tasks
+    long processed = 0, total = 0;
+    for (MultiThreadPeakFinderTask t : tasks) {
+      processed += t.getProcessedScans();
+      total += t.getTotalScans();
+    }
+    if (total == 0)
+      return progress;
+    return 0.1 + 0.85 * processed / total;
 
   }
 
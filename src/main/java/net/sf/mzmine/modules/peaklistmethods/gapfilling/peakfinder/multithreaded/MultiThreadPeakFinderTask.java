@@ -20,155 +20,176 @@ package net.sf.mzmine.modules.peaklistmethods.gapfilling.peakfinder.multithreade
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.locks.Lock;
 import java.util.logging.Logger;
 import com.google.common.collect.Range;
 import net.sf.mzmine.datamodel.Feature;
-import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.modules.peaklistmethods.gapfilling.peakfinder.Gap;
+import net.sf.mzmine.modules.peaklistmethods.gapfilling.peakfinder.GapSweep;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.DataPointsBuffer;
 
+/**
+ * One unit of work of the multithreaded gap filling: the gaps of one raw data file in one block of
+ * rows. The peaks are not added to the rows of the processed peak list, but stored in a slot per
+ * row (see getPeaks()), so the units do not need any lock. The main task adds them to the rows
+ * after all units have finished.
+ */
 class MultiThreadPeakFinderTask extends AbstractTask {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
   private PeakList peakList, processedPeakList;
+  private RawDataFile dataFile;
   private double intTolerance;
   private MZTolerance mzTolerance;
   private RTTolerance rtTolerance;
-  private int processedScans, totalScans;
-
-  // start and end (exclusive) for raw data file processing
-  private int start;
-  private int endexcl;
+  private volatile int processedScans;
+  private final int totalScans;
 
-  private Lock lock;
+  // indexes of the rows of this block in the peak list
+  private final int rows[];
 
-  // takes care of adding the final result
-  private SubTaskFinishListener listener;
+  // resulting peak of each row of this block (detected or filled), null if none
+  private final Feature peaks[];
 
   private int taskIndex;
 
-  MultiThreadPeakFinderTask(MZmineProject project, PeakList peakList, PeakList processedPeakList,
-      ParameterSet parameters, int start, int endexcl, Lock lock, SubTaskFinishListener listener,
-      int taskIndex) {
+  MultiThreadPeakFinderTask(PeakList peakList, PeakList processedPeakList, ParameterSet parameters,
+      RawDataFile dataFile, int rows[], int taskIndex) {
 
-    // central lock that blocks only when peaks are added to the processedPeakList
-    this.lock = lock;
-    this.listener = listener;
     this.taskIndex = taskIndex;
 
     this.peakList = peakList;
     this.processedPeakList = processedPeakList;
+    this.dataFile = dataFile;
+    this.rows = rows;
+    this.peaks = new Feature[rows.length];
 
     intTolerance = parameters.getParameter(MultiThreadPeakFinderParameters.intTolerance).getValue();
     mzTolerance = parameters.getParameter(MultiThreadPeakFinderParameters.MZTolerance).getValue();
     rtTolerance = parameters.getParameter(MultiThreadPeakFinderParameters.RTTolerance).getValue();
 
-    this.start = start;
-    this.endexcl = endexcl;
+    totalScans = dataFile.getNumOfScans(1);
   }
 
   public void run() {
 
     setStatus(TaskStatus.PROCESSING);
-    logger.info("Running multithreaded gap filler " + taskIndex + " on raw files " + (start + 1)
-        + "-" + endexcl + " of pkl:" + peakList);
-
-    // Calculate total number of scans in all files
-    for (int i = start; i < endexcl; i++) {
-      RawDataFile dataFile = peakList.getRawDataFile(i);
-      totalScans += dataFile.getNumOfScans(1);
-    }
+    logger.finest("Running multithreaded gap filler " + taskIndex + " on " + dataFile + ", "
+        + rows.length + " rows of pkl:" + peakList);
 
-    // Process all raw data files
-    for (int i = start; i < endexcl; i++) {
-      RawDataFile dataFile = peakList.getRawDataFile(i);
+    List<Gap> gaps = new ArrayList<Gap>();
+    List<Integer> gapPositions = new ArrayList<Integer>();
 
-      // Canceled?
-      if (isCanceled()) {
-        return;
-      }
+    // Fill each row of this block, create new empty gaps if necessary
+    for (int i = 0; i < rows.length; i++) {
+      PeakListRow sourceRow = peakList.getRow(rows[i]);
+      PeakListRow newRow = processedPeakList.getRow(rows[i]);
 
-      List<Gap> gaps = new ArrayList<Gap>();
+      Feature sourcePeak = sourceRow.getPeak(dataFile);
 
-      // Fill each row of this raw data file column, create new empty
-      // gaps
-      // if necessary
-      for (int row = 0; row < peakList.getNumberOfRows(); row++) {
-        PeakListRow sourceRow = peakList.getRow(row);
-        PeakListRow newRow = processedPeakList.getRow(row);
+      if (sourcePeak == null) {
 
-        Feature sourcePeak = sourceRow.getPeak(dataFile);
+        // Create a new gap
 
-        if (sourcePeak == null) {
+        Range<Double> mzRange = mzTolerance.getToleranceRange(sourceRow.getAverageMZ());
+        Range<Double> rtRange = rtTolerance.getToleranceRange(sourceRow.getAverageRT());
 
-          // Create a new gap
+        Gap newGap = new Gap(newRow, dataFile, mzRange, rtRange, intTolerance);
 
-          Range<Double> mzRange = mzTolerance.getToleranceRange(sourceRow.getAverageMZ());
-          Range<Double> rtRange = rtTolerance.getToleranceRange(sourceRow.getAverageRT());
-
-          Gap newGap = new Gap(newRow, dataFile, mzRange, rtRange, intTolerance);
-
-          gaps.add(newGap);
-
-        } else {
-          newRow.addPeak(dataFile, sourcePeak);
-        }
+        gaps.add(newGap);
+        gapPositions.add(i);
 
+      } else {
+        peaks[i] = sourcePeak;
       }
 
-      // Stop processing this file if there are no gaps
-      if (gaps.isEmpty()) {
-        processedScans += dataFile.getNumOfScans();
-        continue;
-      }
+    }
 
-      // Get all scans of this data file
-      int scanNumbers[] = dataFile.getScanNumbers(1);
+    // Stop processing this block if there are no gaps
+    if (gaps.isEmpty()) {
+      processedScans = totalScans;
+      setStatus(TaskStatus.FINISHED);
+      return;
+    }
 
-      // Process each scan
-      for (int scanNumber : scanNumbers) {
+    // Buffer for the scan data, reused for all scans
+    DataPointsBuffer scanData = new DataPointsBuffer();
 
-        // Canceled?
-        if (isCanceled()) {
-          return;
-        }
+    // Get all scans of this data file
+    int scanNumbers[] = dataFile.getScanNumbers(1);
 
-        // Get the scan
-        Scan scan = dataFile.getScan(scanNumber);
+    // Offer the scans to the gaps in a single sweep over RT. The rows of a block have similar RT,
+    // so only the scans of their RT window are read.
+    GapSweep sweep = new GapSweep(gaps);
 
-        // Feed this scan to all gaps
-        for (Gap gap : gaps) {
-          gap.offerNextScan(scan);
-        }
+    // Process each scan
+    for (int scanNumber : scanNumbers) {
 
-        processedScans++;
+      // Canceled?
+      if (isCanceled()) {
+        return;
       }
 
-      // Finalize gaps
-      for (Gap gap : gaps) {
-        gap.noMoreOffers(lock);
+      // Get the scan
+      Scan scan = dataFile.getScan(scanNumber);
+
+      // Feed this scan to the gaps in its RT range, reading the scan data only once
+      if (sweep.isScanNeeded(scan.getRetentionTime())) {
+        scanData.readScan(scan);
+        sweep.offerNextScan(scan, scanData);
       }
+
+      processedScans++;
+
+      // All gaps are finished, skip the remaining scans
+      if (sweep.isFinished())
+        break;
     }
 
-    // first notify listener
-    listener.accept(processedPeakList);
+    // Finalize gaps
+    for (int i = 0; i < gaps.size(); i++) {
+      peaks[gapPositions.get(i)] = gaps.get(i).finish();
+    }
 
-    logger.info("Finished sub task: Multithreaded gap filler " + taskIndex + " on raw files "
-        + (start + 1) + "-" + endexcl + " of pkl:" + peakList);
+    processedScans = totalScans;
     setStatus(TaskStatus.FINISHED);
   }
 
+  /**
+   * Indexes of the rows of this block in the peak list
+   */
+  int[] getRows() {
+    return rows;
+  }
+
+  /**
+   * Resulting peaks of the rows of this block, in the order of getRows(). Valid after the task has
+   * finished.
+   */
+  Feature[] getPeaks() {
+    return peaks;
+  }
+
+  RawDataFile getDataFile() {
+    return dataFile;
+  }
 
+  int getProcessedScans() {
+    return processedScans;
+  }
+
+  int getTotalScans() {
+    return totalScans;
+  }
 
   public double getFinishedPercentage() {
     if (totalScans == 0) {
@@ -178,8 +199,8 @@ class MultiThreadPeakFinderTask extends AbstractTask {
   }
 
   public String getTaskDescription() {
-    return "Sub task " + taskIndex + ": Gap filling on raw files " + (start + 1) + "-" + endexcl
-        + " of pkl:" + peakList;
+    return "Sub task " + taskIndex + ": Gap filling on " + dataFile + ", " + rows.length
+        + " rows of pkl:" + peakList;
   }
 
   PeakList getPeakList() {
@@ -26,49 +26,47 @@ import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.modules.peaklistmethods.qualityparameters.QualityParameters;
 import net.sf.mzmine.parameters.ParameterSet;
 
+/**
+ * Finalises the results of the multithreaded gap filling, after all sub tasks have finished and
+ * their peaks were added to the processed peak list.
+ */
 public class SubTaskFinishListener implements Consumer<PeakList> {
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
   private final MZmineProject project;
   private ParameterSet parameters;
   private PeakList peakList;
-  private int tasks;
-  private int finished = 0;
   private boolean removeOriginal;
 
 
   public SubTaskFinishListener(MZmineProject project, ParameterSet parameters, PeakList peakList,
-      boolean removeOriginal, int tasks) {
+      boolean removeOriginal) {
     super();
     this.project = project;
     this.parameters = parameters;
     this.peakList = peakList;
-    this.tasks = tasks;
     this.removeOriginal = removeOriginal;
   }
 
   @Override
   public synchronized void accept(PeakList processedPeakList) {
-    finished++;
-    if (finished == tasks) {
-      logger.info("All sub tasks of multithreaded gap-filling have finished. Finalising results.");
-      // add pkl to project
-      // Append processed peak list to the project
-      project.addPeakList(processedPeakList);
+    logger.info("All sub tasks of multithreaded gap-filling have finished. Finalising results.");
+    // add pkl to project
+    // Append processed peak list to the project
+    project.addPeakList(processedPeakList);
 
-      // Add quality parameters to peaks
-      QualityParameters.calculateQualityParameters(processedPeakList);
+    // Add quality parameters to peaks
+    QualityParameters.calculateQualityParameters(processedPeakList);
 
-      // Add task description to peakList
-      processedPeakList
-          .addDescriptionOfAppliedTask(new SimplePeakListAppliedMethod("Gap filling ", parameters));
+    // Add task description to peakList
+    processedPeakList
+        .addDescriptionOfAppliedTask(new SimplePeakListAppliedMethod("Gap filling ", parameters));
 
-      // Remove the original peaklist if requested
-      if (removeOriginal)
-        project.removePeakList(peakList);
+    // Remove the original peaklist if requested
+    if (removeOriginal)
+      project.removePeakList(peakList);
 
-      logger.info("Completed: Multithreaded gap-filling successfull");
-    }
+    logger.info("Completed: Multithreaded gap-filling successfull");
   }
 
 }
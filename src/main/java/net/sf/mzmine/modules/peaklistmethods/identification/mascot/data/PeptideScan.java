@@ -88,6 +88,14 @@ public class PeptideScan implements Scan {
 	return dataPoints;
     }
 
+    /**
+     * @see net.sf.mzmine.datamodel.Scan#getDataPoints(double[], double[])
+     */
+    public int getDataPoints(@Nonnull double mzValues[],
+	    @Nonnull double intensityValues[]) {
+	return ScanUtils.copyDataPoints(dataPoints, mzValues, intensityValues);
+    }
+
     /**
      * @return Returns scan datapoints within a given range
      */
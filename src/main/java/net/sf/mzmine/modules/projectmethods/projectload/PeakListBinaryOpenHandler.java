@@ -0,0 +1,356 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectload;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.IsotopePattern.IsotopePatternStatus;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleIsotopePattern;
+import net.sf.mzmine.datamodel.impl.SimplePeakIdentity;
+import net.sf.mzmine.datamodel.impl.SimplePeakInformation;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
+import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.modules.projectmethods.projectsave.PeakListBinarySaveHandler;
+import net.sf.mzmine.project.impl.MappedDataPointsFile;
+
+/**
+ * Reads a peak list saved by PeakListBinarySaveHandler. Only the summaries of
+ * the rows and features are read into memory, the data points of the features
+ * are read from the chromatograms file when they are needed (see
+ * StoredFeature).
+ */
+public class PeakListBinaryOpenHandler {
+
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
+    private final Hashtable<String, RawDataFile> dataFilesIDMap;
+
+    private boolean canceled = false;
+
+    public PeakListBinaryOpenHandler(
+            Hashtable<String, RawDataFile> dataFilesIDMap) {
+        this.dataFilesIDMap = dataFilesIDMap;
+    }
+
+    /**
+     * Reads the peak list from the peaks entry of the project ZIP file
+     *
+     * @param chromatogramsFile
+     *            Temporary file or project file region with the content of the
+     *            chromatograms entry of the same peak list. It is closed by
+     *            closeUnusedChromatograms() when the peak list is removed.
+     * @return The new peak list, or null if the loading was canceled
+     */
+    public PeakList readPeakList(InputStream inputStream,
+            MappedDataPointsFile chromatogramsFile) throws IOException {
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                inputStream));
+
+        if (in.readInt() != PeakListBinarySaveHandler.PEAKLIST_MAGIC)
+            throw new IOException("Invalid peak list data");
+        final int formatVersion = in.readInt();
+        if (formatVersion > PeakListBinarySaveHandler.FORMAT_VERSION)
+            throw new IOException("Unsupported peak list format version "
+                    + formatVersion);
+
+        final String name = readString(in);
+        final String dateCreated = readString(in);
+
+        final int numOfMethods = in.readInt();
+        String methodDescriptions[] = new String[numOfMethods];
+        String methodParameters[] = new String[numOfMethods];
+        for (int i = 0; i < numOfMethods; i++) {
+            methodDescriptions[i] = readString(in);
+            methodParameters[i] = readString(in);
+        }
+
+        RawDataFile dataFiles[] = new RawDataFile[in.readInt()];
+        for (int i = 0; i < dataFiles.length; i++)
+            dataFiles[i] = getDataFile(readString(in));
+
+        logger.finest("Loading peak list " + name);
+
+        SimplePeakList peakList = new SimplePeakList(name, dataFiles);
+        for (int i = 0; i < numOfMethods; i++) {
+            peakList.addDescriptionOfAppliedTask(new SimplePeakListAppliedMethod(
+                    methodDescriptions[i], methodParameters[i]));
+        }
+        peakList.setDateCreated(dateCreated);
+
+        SimplePeakListRow rows[] = readRows(in);
+        if (rows == null)
+            return null;
+
+        StoredChromatograms chromatograms = new StoredChromatograms(
+                chromatogramsFile);
+        if (readFeatures(in, chromatograms, rows) == null) {
+            chromatograms.close();
+            return null;
+        }
+
+        for (SimplePeakListRow row : rows)
+            peakList.addRow(row);
+
+        return peakList;
+
+    }
+
+    private SimplePeakListRow[] readRows(DataInputStream in)
+            throws IOException {
+
+        final int numOfRows = in.readInt();
+        SimplePeakListRow rows[] = new SimplePeakListRow[numOfRows];
+
+        for (int i = 0; i < numOfRows; i++)
+            rows[i] = new SimplePeakListRow(in.readInt());
+        for (int i = 0; i < numOfRows; i++) {
+            String comment = readString(in);
+            if (comment != null)
+                rows[i].setComment(comment);
+        }
+
+        for (int i = 0; i < numOfRows; i++) {
+            if (canceled)
+                return null;
+            final int numOfIdentities = in.readInt();
+            final int preferredIndex = in.readInt();
+            for (int j = 0; j < numOfIdentities; j++) {
+                SimplePeakIdentity identity = new SimplePeakIdentity(
+                        readProperties(in));
+                rows[i].addPeakIdentity(identity, j == preferredIndex);
+            }
+        }
+
+        for (int i = 0; i < numOfRows; i++) {
+            Hashtable<String, String> properties = readProperties(in);
+            if (properties != null)
+                rows[i].setPeakInformation(new SimplePeakInformation(
+                        properties));
+        }
+
+        return rows;
+
+    }
+
+    /**
+     * Reads the feature columns and adds the features to their rows
+     */
+    private Feature[] readFeatures(DataInputStream in,
+            StoredChromatograms chromatograms, SimplePeakListRow rows[])
+            throws IOException {
+
+        final int n = in.readInt();
+
+        int rowIndexes[] = readIntColumn(in, n);
+        RawDataFile dataFiles[] = new RawDataFile[n];
+        for (int i = 0; i < n; i++)
+            dataFiles[i] = getDataFile(readString(in));
+        double mz[] = readDoubleColumn(in, n);
+        double rt[] = readDoubleColumn(in, n);
+        double height[] = readDoubleColumn(in, n);
+        double area[] = readDoubleColumn(in, n);
+        FeatureStatus status[] = new FeatureStatus[n];
+        for (int i = 0; i < n; i++)
+            status[i] = FeatureStatus.valueOf(readString(in));
+        int charge[] = readIntColumn(in, n);
+        int representativeScan[] = readIntColumn(in, n);
+        int fragmentScan[] = readIntColumn(in, n);
+        double rtRanges[] = readDoubleColumn(in, 2 * n);
+        double mzRanges[] = readDoubleColumn(in, 2 * n);
+        double intensityRanges[] = readDoubleColumn(in, 2 * n);
+        double fwhm[] = readDoubleColumn(in, n);
+        double tailingFactor[] = readDoubleColumn(in, n);
+        double asymmetryFactor[] = readDoubleColumn(in, n);
+
+        if (canceled)
+            return null;
+
+        SimpleIsotopePattern isotopePatterns[] = new SimpleIsotopePattern[n];
+        for (int i = 0; i < n; i++) {
+            final int numOfIsotopes = in.readInt();
+            if (numOfIsotopes < 0)
+                continue;
+            IsotopePatternStatus isotopeStatus = IsotopePatternStatus
+                    .valueOf(readString(in));
+            String description = readString(in);
+            DataPoint isotopes[] = new DataPoint[numOfIsotopes];
+            for (int j = 0; j < numOfIsotopes; j++) {
+                double isotopeMz = in.readDouble();
+                double isotopeIntensity = in.readDouble();
+                isotopes[j] = new SimpleDataPoint(isotopeMz, isotopeIntensity);
+            }
+            isotopePatterns[i] = new SimpleIsotopePattern(isotopes,
+                    isotopeStatus, description);
+        }
+
+        long offsets[] = new long[n];
+        for (int i = 0; i < n; i++)
+            offsets[i] = in.readLong();
+        int numOfDataPoints[] = readIntColumn(in, n);
+
+        Feature features[] = new Feature[n];
+        for (int i = 0; i < n; i++) {
+            if (canceled)
+                return null;
+            StoredFeature feature = new StoredFeature(dataFiles[i], mz[i],
+                    rt[i], height[i], area[i], status[i],
+                    representativeScan[i], fragmentScan[i], rtRanges[2 * i],
+                    rtRanges[2 * i + 1], mzRanges[2 * i], mzRanges[2 * i + 1],
+                    intensityRanges[2 * i], intensityRanges[2 * i + 1],
+                    chromatograms, offsets[i], numOfDataPoints[i]);
+            feature.setCharge(charge[i]);
+            feature.setFWHM(toNullable(fwhm[i]));
+            feature.setTailingFactor(toNullable(tailingFactor[i]));
+            feature.setAsymmetryFactor(toNullable(asymmetryFactor[i]));
+            if (isotopePatterns[i] != null)
+                feature.setIsotopePattern(isotopePatterns[i]);
+            rows[rowIndexes[i]].addPeak(dataFiles[i], feature);
+            features[i] = feature;
+        }
+
+        return features;
+
+    }
+
+    private RawDataFile getDataFile(String fileID) throws IOException {
+        RawDataFile dataFile = dataFilesIDMap.get(fileID);
+        if (dataFile == null)
+            throw new IOException("Cannot find raw data file with ID " + fileID);
+        return dataFile;
+    }
+
+    /**
+     * Closes the chromatograms files of the features of a peak list removed
+     * from the project, unless the features are still used by one of the
+     * remaining peak lists (e.g. an aligned peak list shares the features of
+     * the original ones)
+     */
+    static void closeUnusedChromatograms(
+            @Nonnull PeakList removedPeakList,
+            @Nonnull PeakList remainingPeakLists[]) {
+
+        Set<StoredChromatograms> unused = getStoredChromatograms(removedPeakList);
+        for (PeakList peakList : remainingPeakLists) {
+            if (unused.isEmpty())
+                return;
+            if (peakList != removedPeakList)
+                unused.removeAll(getStoredChromatograms(peakList));
+        }
+
+        for (StoredChromatograms chromatograms : unused)
+            chromatograms.close();
+
+    }
+
+    /**
+     * Copies the chromatograms of the given peak lists, which are read in
+     * place from the given project file, to temporary files, so that the
+     * project file can be replaced
+     */
+    public static void releaseProjectFile(@Nonnull PeakList peakLists[],
+            @Nonnull File projectFile) throws IOException {
+        Set<StoredChromatograms> chromatograms = new HashSet<StoredChromatograms>();
+        for (PeakList peakList : peakLists)
+            chromatograms.addAll(getStoredChromatograms(peakList));
+        for (StoredChromatograms c : chromatograms)
+            c.releaseProjectFile(projectFile);
+    }
+
+    private static Set<StoredChromatograms> getStoredChromatograms(
+            PeakList peakList) {
+        Set<StoredChromatograms> result = new HashSet<StoredChromatograms>();
+        for (PeakListRow row : peakList.getRows()) {
+            for (Feature peak : row.getPeaks()) {
+                if (peak instanceof StoredFeature)
+                    result.add(((StoredFeature) peak).getStoredChromatograms());
+            }
+        }
+        return result;
+    }
+
+    private static Double toNullable(double value) {
+        return Double.isNaN(value) ? null : value;
+    }
+
+    private static int[] readIntColumn(DataInputStream in, int n)
+            throws IOException {
+        int column[] = new int[n];
+        for (int i = 0; i < n; i++)
+            column[i] = in.readInt();
+        return column;
+    }
+
+    private static double[] readDoubleColumn(DataInputStream in, int n)
+            throws IOException {
+        double column[] = new double[n];
+        for (int i = 0; i < n; i++)
+            column[i] = in.readDouble();
+        return column;
+    }
+
+    private static Hashtable<String, String> readProperties(DataInputStream in)
+            throws IOException {
+        final int numOfProperties = in.readInt();
+        if (numOfProperties < 0)
+            return null;
+        Hashtable<String, String> properties = new Hashtable<String, String>();
+        for (int i = 0; i < numOfProperties; i++) {
+            String key = readString(in);
+            String value = readString(in);
+            if ((key != null) && (value != null))
+                properties.put(key, value);
+        }
+        return properties;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte bytes[] = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public void cancel() {
+        canceled = true;
+    }
+
+}
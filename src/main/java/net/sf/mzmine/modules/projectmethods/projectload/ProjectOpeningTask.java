@@ -52,6 +52,7 @@ import net.sf.mzmine.modules.projectmethods.projectsave.ProjectSavingTask;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.project.ProjectManager;
 import net.sf.mzmine.project.impl.MZmineProjectImpl;
+import net.sf.mzmine.project.impl.MappedDataPointsFile;
 import net.sf.mzmine.project.impl.RawDataFileImpl;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
@@ -72,6 +73,7 @@ public class ProjectOpeningTask extends AbstractTask {
 
     private RawDataFileOpenHandler rawDataFileOpenHandler;
     private PeakListOpenHandler peakListOpenHandler;
+    private PeakListBinaryOpenHandler peakListBinaryOpenHandler;
     private UserParameterOpenHandler userParameterOpenHandler;
     private StreamCopy copyMachine;
 
@@ -81,7 +83,13 @@ public class ProjectOpeningTask extends AbstractTask {
 
     // This hashtable maps stored IDs to raw data file objects
     private final Hashtable<String, RawDataFile> dataFilesIDMap = new Hashtable<>();
-    private final Hashtable<String, File> scanFilesIDMap = new Hashtable<>();
+    private final Hashtable<String, MappedDataPointsFile> scanFilesIDMap = new Hashtable<>();
+
+    // Stored entries of the project file, which are read in place
+    private StoredZipEntries storedEntries;
+
+    // Chromatograms of the binary peak lists, by peak list number
+    private final Hashtable<String, MappedDataPointsFile> chromatogramFilesMap = new Hashtable<>();
 
     public ProjectOpeningTask(ParameterSet parameters) {
         this.openFile = parameters.getParameter(
@@ -144,6 +152,8 @@ public class ProjectOpeningTask extends AbstractTask {
             // Create a new project
             newProject = new MZmineProjectImpl();
             newProject.setProjectFile(openFile);
+            newProject.addProjectListener(new StoredChromatogramsCloser(
+                    newProject));
 
             // Close all windows related to previous project
             GUIUtils.closeAllWindows();
@@ -154,6 +164,16 @@ public class ProjectOpeningTask extends AbstractTask {
             // Open the ZIP file
             ZipFile zipFile = new ZipFile(openFile);
 
+            // Find the uncompressed entries, which do not have to be
+            // extracted
+            try {
+                storedEntries = new StoredZipEntries(openFile);
+            } catch (IOException e) {
+                logger.warning("Could not read the central directory of "
+                        + openFile + ", all entries will be extracted: "
+                        + e.toString());
+            }
+
             // Get total uncompressed size
             Enumeration<? extends ZipEntry> entries = zipFile.entries();
             while (entries.hasMoreElements()) {
@@ -167,6 +187,10 @@ public class ProjectOpeningTask extends AbstractTask {
                     .compile("Raw data file #([\\d]+) (.*)\\.scans$");
             final Pattern peakListPattern = Pattern
                     .compile("Peak list #([\\d]+) (.*)\\.xml$");
+            final Pattern chromatogramsFilePattern = Pattern
+                    .compile("Peak list #([\\d]+) (.*)\\.chromatograms$");
+            final Pattern peaksFilePattern = Pattern
+                    .compile("Peak list #([\\d]+) (.*)\\.peaks$");
 
             boolean versionInformationLoaded = false;
 
@@ -213,7 +237,7 @@ public class ProjectOpeningTask extends AbstractTask {
                 if (scansFileMatcher.matches()) {
                     final String fileID = scansFileMatcher.group(1);
                     final String fileName = scansFileMatcher.group(2);
-                    loadScansFile(cis, fileID, fileName);
+                    loadScansFile(cis, entryName, fileID, fileName);
                 }
 
                 // Load a peak list
@@ -224,6 +248,26 @@ public class ProjectOpeningTask extends AbstractTask {
                     loadPeakList(cis, peakListName);
                 }
 
+                // Load the data points of a binary peak list
+                final Matcher chromatogramsFileMatcher = chromatogramsFilePattern
+                        .matcher(entryName);
+                if (chromatogramsFileMatcher.matches()) {
+                    final String peakListID = chromatogramsFileMatcher.group(1);
+                    final String peakListName = chromatogramsFileMatcher
+                            .group(2);
+                    loadChromatogramsFile(cis, entryName, peakListID,
+                            peakListName);
+                }
+
+                // Load a binary peak list
+                final Matcher peaksFileMatcher = peaksFilePattern
+                        .matcher(entryName);
+                if (peaksFileMatcher.matches()) {
+                    final String peakListID = peaksFileMatcher.group(1);
+                    final String peakListName = peaksFileMatcher.group(2);
+                    loadBinaryPeakList(cis, peakListID, peakListName);
+                }
+
                 // Close the ZIP entry
                 cis.close();
 
@@ -281,6 +325,9 @@ public class ProjectOpeningTask extends AbstractTask {
         if (peakListOpenHandler != null)
             peakListOpenHandler.cancel();
 
+        if (peakListBinaryOpenHandler != null)
+            peakListBinaryOpenHandler.cancel();
+
         if (userParameterOpenHandler != null)
             userParameterOpenHandler.cancel();
 
@@ -399,7 +446,7 @@ public class ProjectOpeningTask extends AbstractTask {
 
         currentLoadedObjectName = fileName;
 
-        File scansFile = scanFilesIDMap.get(fileID);
+        MappedDataPointsFile scansFile = scanFilesIDMap.get(fileID);
         if (scansFile == null) {
             throw new IOException("Missing scans data for file ID " + fileID);
         }
@@ -411,13 +458,33 @@ public class ProjectOpeningTask extends AbstractTask {
 
     }
 
-    private void loadScansFile(InputStream is, String fileID, String fileName)
-            throws IOException {
+    private void loadScansFile(InputStream is, String entryName,
+            String fileID, String fileName) throws IOException {
 
         logger.info("Loading scans data #" + fileID + ": " + fileName);
 
         currentLoadedObjectName = fileName + " scan data";
 
+        scanFilesIDMap.put(fileID, openDataEntry(is, entryName));
+
+    }
+
+    /**
+     * Opens the content of a binary ZIP entry (scans or chromatograms). Stored
+     * entries are read in place from the project file, which takes no time
+     * and no temporary space. Compressed entries (e.g. from projects saved by
+     * older versions) are extracted into a temporary file.
+     */
+    private MappedDataPointsFile openDataEntry(InputStream is, String entryName)
+            throws IOException {
+
+        if (storedEntries != null) {
+            MappedDataPointsFile entryFile = storedEntries
+                    .openEntry(entryName);
+            if (entryFile != null)
+                return entryFile;
+        }
+
         final File tempFile = RawDataFileImpl.createNewDataPointsFile();
         final FileOutputStream os = new FileOutputStream(tempFile);
 
@@ -425,7 +492,7 @@ public class ProjectOpeningTask extends AbstractTask {
         copyMachine.copy(is, os);
         os.close();
 
-        scanFilesIDMap.put(fileID, tempFile);
+        return new MappedDataPointsFile(tempFile);
 
     }
 
@@ -445,6 +512,47 @@ public class ProjectOpeningTask extends AbstractTask {
         QualityParameters.calculateQualityParameters(newPeakList);
     }
 
+    private void loadChromatogramsFile(InputStream is, String entryName,
+            String peakListID, String peakListName) throws IOException {
+
+        logger.info("Loading chromatograms of peak list #" + peakListID + ": "
+                + peakListName);
+
+        currentLoadedObjectName = peakListName + " chromatograms";
+
+        // If the chromatograms have to be extracted, they are kept in a
+        // temporary file like scan data, so it is cleaned up the same way
+        chromatogramFilesMap.put(peakListID, openDataEntry(is, entryName));
+
+    }
+
+    private void loadBinaryPeakList(InputStream is, String peakListID,
+            String peakListName) throws IOException {
+
+        logger.info("Loading peak list " + peakListName);
+
+        currentLoadedObjectName = peakListName;
+
+        MappedDataPointsFile chromatogramsFile = chromatogramFilesMap
+                .get(peakListID);
+        if (chromatogramsFile == null) {
+            throw new IOException("Missing chromatograms for peak list #"
+                    + peakListID);
+        }
+
+        peakListBinaryOpenHandler = new PeakListBinaryOpenHandler(
+                dataFilesIDMap);
+        PeakList newPeakList = peakListBinaryOpenHandler.readPeakList(is,
+                chromatogramsFile);
+        if (newPeakList == null)
+            return;
+
+        // Quality parameters were saved with the peaks, so they are not
+        // calculated again
+        newProject.addPeakList(newPeakList);
+
+    }
+
     private void loadUserParameters(InputStream is) throws IOException,
             ParserConfigurationException, SAXException, InstantiationException,
             IllegalAccessException {
@@ -19,19 +19,20 @@
 
 package net.sf.mzmine.modules.projectmethods.projectload;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 
 import javax.xml.parsers.ParserConfigurationException;
 
 import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.project.impl.MappedDataPointsFile;
 
 import org.xml.sax.SAXException;
 
 public interface RawDataFileOpenHandler {
 
-    RawDataFile readRawDataFile(InputStream is, File scansFile) throws IOException,
+    RawDataFile readRawDataFile(InputStream is,
+            MappedDataPointsFile scansFile) throws IOException,
             ParserConfigurationException, SAXException;
 
     void cancel();
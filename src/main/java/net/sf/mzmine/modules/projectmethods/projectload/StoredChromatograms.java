@@ -0,0 +1,136 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectload;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.project.impl.MappedDataPointsFile;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+
+/**
+ * Chromatograms file of a binary peak list, shared by all its StoredFeatures.
+ * The file is memory-mapped and unmapped when it is closed, so the reads hold
+ * a shared lock and copy the data out of the mapping; closing waits for the
+ * reads in progress. Reads after the file was closed fail with an
+ * IOException.
+ */
+class StoredChromatograms {
+
+    private static final Logger logger = Logger
+            .getLogger(StoredChromatograms.class.getName());
+
+    // Size of the blocks copied by releaseProjectFile() (16 MB)
+    private static final int COPY_SIZE = 1 << 24;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private MappedDataPointsFile file;
+
+    StoredChromatograms(MappedDataPointsFile file) {
+        this.file = file;
+    }
+
+    /**
+     * @return Copy of numOfBytes bytes stored at the given offset, positioned
+     *         at 0
+     */
+    ByteBuffer read(long offset, int numOfBytes) throws IOException {
+        lock.readLock().lock();
+        try {
+            if (file == null)
+                throw new IOException("Chromatograms file is closed");
+            ByteBuffer copy = ByteBuffer.allocate(numOfBytes);
+            copy.put(file.read(offset, numOfBytes));
+            copy.flip();
+            return copy;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * If the chromatograms are read in place from the given project file,
+     * copies them to a temporary file and unmaps the project file, so that it
+     * can be replaced. The offsets of the chromatograms do not change.
+     */
+    void releaseProjectFile(File projectFile) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if ((file == null) || (!file.isRegion()))
+                return;
+            if (!file.getFile().getCanonicalFile()
+                    .equals(projectFile.getCanonicalFile()))
+                return;
+
+            final File newFileName = RawDataFileImpl
+                    .createNewDataPointsFile();
+            final MappedDataPointsFile newFile = new MappedDataPointsFile(
+                    newFileName);
+            try {
+                final long length = file.length();
+                for (long offset = 0; offset < length; offset += COPY_SIZE) {
+                    final int numOfBytes = (int) Math.min(COPY_SIZE, length
+                            - offset);
+                    newFile.append(file.read(offset, numOfBytes));
+                }
+            } catch (IOException e) {
+                try {
+                    newFile.closeAndDelete();
+                } catch (IOException e2) {
+                    // Report the original error
+                }
+                throw e;
+            }
+            newFileName.deleteOnExit();
+
+            logger.finest("Copied chromatograms from " + projectFile + " to "
+                    + newFileName);
+            file.close();
+            file = newFile;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the file. A temporary file extracted from the project is
+     * deleted, a region of the project file is only unmapped.
+     */
+    void close() {
+        lock.writeLock().lock();
+        try {
+            if (file == null)
+                return;
+            logger.finest("Closing chromatograms file " + file.getFile());
+            file.closeAndDelete();
+        } catch (IOException e) {
+            logger.warning("Could not close chromatograms file "
+                    + file.getFile() + ": " + e.toString());
+        } finally {
+            file = null;
+            lock.writeLock().unlock();
+        }
+    }
+
+}
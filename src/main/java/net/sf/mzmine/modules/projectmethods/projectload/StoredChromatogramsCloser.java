@@ -0,0 +1,60 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectload;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.MZmineProjectListener;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.RawDataFile;
+
+/**
+ * Closes the chromatograms files of the binary peak lists of an opened
+ * project when the peak lists are removed from the project, which also removes
+ * the temporary data
+ */
+class StoredChromatogramsCloser implements MZmineProjectListener {
+
+    private final MZmineProject project;
+
+    StoredChromatogramsCloser(@Nonnull MZmineProject project) {
+        this.project = project;
+    }
+
+    @Override
+    public void dataFileAdded(RawDataFile newFile) {
+    }
+
+    @Override
+    public void peakListAdded(PeakList newPeakList) {
+    }
+
+    @Override
+    public void dataFileRemoved(RawDataFile newFile) {
+    }
+
+    @Override
+    public void peakListRemoved(PeakList newPeakList) {
+        PeakListBinaryOpenHandler.closeUnusedChromatograms(newPeakList,
+                project.getPeakLists());
+    }
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectload;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.IsotopePattern;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimplePeakInformation;
+import net.sf.mzmine.util.PeakUtils;
+
+import com.google.common.collect.Range;
+
+/**
+ * Feature loaded from a project in the binary peak list format (see
+ * PeakListBinarySaveHandler). The summary values are kept in memory, while the
+ * scan numbers and data points stay in the chromatograms file until they are
+ * needed, e.g. when the feature is drawn. The loaded data points are only
+ * softly referenced, so they can be dropped again when memory runs low.
+ */
+class StoredFeature implements Feature {
+
+    private static final Logger logger = Logger.getLogger(StoredFeature.class
+            .getName());
+
+    /**
+     * Scan numbers and data points of the feature, loaded together
+     */
+    private static class Chromatogram {
+        final int scanNumbers[];
+        final DataPoint dataPoints[];
+
+        Chromatogram(int scanNumbers[], DataPoint dataPoints[]) {
+            this.scanNumbers = scanNumbers;
+            this.dataPoints = dataPoints;
+        }
+    }
+
+    private final RawDataFile dataFile;
+    private final double mz, rt, height, area;
+    private final FeatureStatus featureStatus;
+    private final int representativeScan, fragmentScan;
+    private final double rtMin, rtMax, mzMin, mzMax, intensityMin,
+            intensityMax;
+
+    private int charge;
+    private Double fwhm, tailingFactor, asymmetryFactor;
+    private IsotopePattern isotopePattern;
+    private SimplePeakInformation peakInfo;
+
+    private final StoredChromatograms chromatograms;
+    private final long offset;
+    private final int numOfDataPoints;
+    private SoftReference<Chromatogram> chromatogram;
+
+    StoredFeature(RawDataFile dataFile, double mz, double rt, double height,
+            double area, FeatureStatus featureStatus, int representativeScan,
+            int fragmentScan, double rtMin, double rtMax, double mzMin,
+            double mzMax, double intensityMin, double intensityMax,
+            StoredChromatograms chromatograms, long offset,
+            int numOfDataPoints) {
+        this.dataFile = dataFile;
+        this.mz = mz;
+        this.rt = rt;
+        this.height = height;
+        this.area = area;
+        this.featureStatus = featureStatus;
+        this.representativeScan = representativeScan;
+        this.fragmentScan = fragmentScan;
+        this.rtMin = rtMin;
+        this.rtMax = rtMax;
+        this.mzMin = mzMin;
+        this.mzMax = mzMax;
+        this.intensityMin = intensityMin;
+        this.intensityMax = intensityMax;
+        this.chromatograms = chromatograms;
+        this.offset = offset;
+        this.numOfDataPoints = numOfDataPoints;
+    }
+
+    /**
+     * Returns the scan numbers and data points, reading them from the
+     * chromatograms file if they are not in memory
+     */
+    private synchronized Chromatogram getChromatogram() {
+
+        Chromatogram loaded = (chromatogram != null) ? chromatogram.get()
+                : null;
+        if (loaded != null)
+            return loaded;
+
+        final int scanNumbers[] = new int[numOfDataPoints];
+        final DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
+
+        try {
+            ByteBuffer buffer = chromatograms.read(offset,
+                    numOfDataPoints * 12);
+            buffer.asIntBuffer().get(scanNumbers);
+            buffer.position(numOfDataPoints * 4);
+            final float values[] = new float[numOfDataPoints * 2];
+            buffer.asFloatBuffer().get(values);
+            for (int i = 0; i < numOfDataPoints; i++) {
+                final float dpMz = values[i];
+                if (dpMz == 0)
+                    continue;
+                dataPoints[i] = new SimpleDataPoint(dpMz, values[i
+                        + numOfDataPoints]);
+            }
+        } catch (IOException e) {
+            logger.severe("Could not read data from temporary file "
+                    + e.toString());
+            return new Chromatogram(new int[0], new DataPoint[0]);
+        }
+
+        loaded = new Chromatogram(scanNumbers, dataPoints);
+        chromatogram = new SoftReference<Chromatogram>(loaded);
+        return loaded;
+
+    }
+
+    /**
+     * @return Chromatograms file of the peak list this feature was loaded with
+     */
+    StoredChromatograms getStoredChromatograms() {
+        return chromatograms;
+    }
+
+    public @Nonnull FeatureStatus getFeatureStatus() {
+        return featureStatus;
+    }
+
+    public double getMZ() {
+        return mz;
+    }
+
+    public double getRT() {
+        return rt;
+    }
+
+    public double getHeight() {
+        return height;
+    }
+
+    public double getArea() {
+        return area;
+    }
+
+    public @Nonnull RawDataFile getDataFile() {
+        return dataFile;
+    }
+
+    public @Nonnull int[] getScanNumbers() {
+        return getChromatogram().scanNumbers;
+    }
+
+    public int getRepresentativeScanNumber() {
+        return representativeScan;
+    }
+
+    public @Nullable DataPoint getDataPoint(int scanNumber) {
+        Chromatogram loaded = getChromatogram();
+        int index = Arrays.binarySearch(loaded.scanNumbers, scanNumber);
+        if (index < 0)
+            return null;
+        return loaded.dataPoints[index];
+    }
+
+    public @Nonnull Range<Double> getRawDataPointsRTRange() {
+        return Range.closed(rtMin, rtMax);
+    }
+
+    public @Nonnull Range<Double> getRawDataPointsMZRange() {
+        return Range.closed(mzMin, mzMax);
+    }
+
+    public @Nonnull Range<Double> getRawDataPointsIntensityRange() {
+        return Range.closed(intensityMin, intensityMax);
+    }
+
+    public int getMostIntenseFragmentScanNumber() {
+        return fragmentScan;
+    }
+
+    public @Nullable IsotopePattern getIsotopePattern() {
+        return isotopePattern;
+    }
+
+    public void setIsotopePattern(@Nonnull IsotopePattern isotopePattern) {
+        this.isotopePattern = isotopePattern;
+    }
+
+    public int getCharge() {
+        return charge;
+    }
+
+    public void setCharge(int charge) {
+        this.charge = charge;
+    }
+
+    public Double getFWHM() {
+        return fwhm;
+    }
+
+    public Double getTailingFactor() {
+        return tailingFactor;
+    }
+
+    public Double getAsymmetryFactor() {
+        return asymmetryFactor;
+    }
+
+    public void setFWHM(Double fwhm) {
+        this.fwhm = fwhm;
+    }
+
+    public void setTailingFactor(Double tf) {
+        this.tailingFactor = tf;
+    }
+
+    public void setAsymmetryFactor(Double af) {
+        this.asymmetryFactor = af;
+    }
+
+    public void outputChromToFile() {
+    }
+
+    public void setPeakInformation(SimplePeakInformation peakInfoIn) {
+        this.peakInfo = peakInfoIn;
+    }
+
+    public SimplePeakInformation getPeakInformation() {
+        return peakInfo;
+    }
+
+    public String toString() {
+        return PeakUtils.peakToString(this);
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+
+import net.sf.mzmine.project.impl.MappedDataPointsFile;
+
+/**
+ * Locates the stored (uncompressed) entries of a project ZIP file, so their
+ * content can be read in place instead of being extracted into temporary
+ * files. java.util.zip does not tell where the data of an entry start, so the
+ * central directory of the ZIP file (including the ZIP64 extensions written by
+ * ProjectZipWriter) is read here.
+ */
+public class StoredZipEntries {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int STORED = 0;
+
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+
+    private final File zipFile;
+
+    // Local header offset and size of each stored entry, by name
+    private final Hashtable<String, long[]> storedEntries = new Hashtable<String, long[]>();
+
+    public StoredZipEntries(File zipFile) throws IOException {
+        this.zipFile = zipFile;
+        RandomAccessFile file = new RandomAccessFile(zipFile, "r");
+        try {
+            readCentralDirectory(file);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Opens the content of the given entry for reading in place.
+     *
+     * @return The content of the entry, or null if the entry is not stored
+     *         uncompressed
+     */
+    public MappedDataPointsFile openEntry(String name) throws IOException {
+
+        final long entry[] = storedEntries.get(name);
+        if (entry == null)
+            return null;
+        final long localHeaderOffset = entry[0];
+        final long size = entry[1];
+
+        // The data follow the local header, whose extra field may differ
+        // from the one in the central directory
+        ByteBuffer header;
+        RandomAccessFile file = new RandomAccessFile(zipFile, "r");
+        try {
+            header = read(file, localHeaderOffset, 30);
+        } finally {
+            file.close();
+        }
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE)
+            throw new IOException("Invalid local header of entry " + name
+                    + " in " + zipFile);
+        final int nameLength = header.getShort(26) & 0xFFFF;
+        final int extraLength = header.getShort(28) & 0xFFFF;
+
+        return new MappedDataPointsFile(zipFile, localHeaderOffset + 30
+                + nameLength + extraLength, size);
+
+    }
+
+    private void readCentralDirectory(RandomAccessFile file)
+            throws IOException {
+
+        // Find the end of central directory record, which is followed only
+        // by the ZIP file comment
+        final long fileLength = file.length();
+        final int tailLength = (int) Math.min(fileLength, END_SIZE
+                + MAX_COMMENT_LENGTH);
+        ByteBuffer tail = read(file, fileLength - tailLength, tailLength);
+        int endPosition = -1;
+        for (int i = tailLength - END_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIGNATURE) {
+                endPosition = i;
+                break;
+            }
+        }
+        if (endPosition < 0)
+            throw new IOException("Cannot find the central directory of "
+                    + zipFile);
+
+        long numOfEntries = tail.getShort(endPosition + 10) & 0xFFFF;
+        long directorySize = tail.getInt(endPosition + 12) & 0xFFFFFFFFL;
+        long directoryOffset = tail.getInt(endPosition + 16) & 0xFFFFFFFFL;
+
+        // ZIP64 end of central directory record
+        final int locatorPosition = endPosition - ZIP64_LOCATOR_SIZE;
+        if ((locatorPosition >= 0)
+                && (tail.getInt(locatorPosition) == ZIP64_LOCATOR_SIGNATURE)) {
+            final long zip64EndOffset = tail.getLong(locatorPosition + 8);
+            ByteBuffer zip64End = read(file, zip64EndOffset, 56);
+            if (zip64End.getInt(0) != ZIP64_END_SIGNATURE)
+                throw new IOException("Invalid ZIP64 end record in "
+                        + zipFile);
+            numOfEntries = zip64End.getLong(32);
+            directorySize = zip64End.getLong(40);
+            directoryOffset = zip64End.getLong(48);
+        }
+
+        if (directorySize > Integer.MAX_VALUE)
+            throw new IOException("Central directory of " + zipFile
+                    + " is too large");
+        ByteBuffer directory = read(file, directoryOffset,
+                (int) directorySize);
+
+        int position = 0;
+        for (long i = 0; i < numOfEntries; i++) {
+
+            if (directory.getInt(position) != CENTRAL_HEADER_SIGNATURE)
+                throw new IOException("Invalid central directory of "
+                        + zipFile);
+
+            final int method = directory.getShort(position + 10) & 0xFFFF;
+            long compressedSize = directory.getInt(position + 20) & 0xFFFFFFFFL;
+            long size = directory.getInt(position + 24) & 0xFFFFFFFFL;
+            final int nameLength = directory.getShort(position + 28) & 0xFFFF;
+            final int extraLength = directory.getShort(position + 30) & 0xFFFF;
+            final int commentLength = directory.getShort(position + 32) & 0xFFFF;
+            long localHeaderOffset = directory.getInt(position + 42) & 0xFFFFFFFFL;
+
+            byte nameBytes[] = new byte[nameLength];
+            directory.position(position + 46);
+            directory.get(nameBytes);
+            final String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+            // The ZIP64 extra field contains only the values which do not
+            // fit into their fields of the header, in this order
+            int extraPosition = position + 46 + nameLength;
+            final int extraEnd = extraPosition + extraLength;
+            while (extraPosition + 4 <= extraEnd) {
+                final int id = directory.getShort(extraPosition) & 0xFFFF;
+                final int dataLength = directory.getShort(extraPosition + 2) & 0xFFFF;
+                if (id == ZIP64_EXTRA_ID) {
+                    int valuePosition = extraPosition + 4;
+                    if (size == 0xFFFFFFFFL) {
+                        size = directory.getLong(valuePosition);
+                        valuePosition += 8;
+                    }
+                    if (compressedSize == 0xFFFFFFFFL) {
+                        compressedSize = directory.getLong(valuePosition);
+                        valuePosition += 8;
+                    }
+                    if (localHeaderOffset == 0xFFFFFFFFL)
+                        localHeaderOffset = directory.getLong(valuePosition);
+                }
+                extraPosition += 4 + dataLength;
+            }
+
+            if ((method == STORED) && (compressedSize == size))
+                storedEntries.put(name,
+                        new long[] { localHeaderOffset, size });
+
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+
+    }
+
+    /**
+     * Reads numOfBytes bytes at the given position into a little-endian
+     * buffer
+     */
+    private ByteBuffer read(RandomAccessFile file, long position,
+            int numOfBytes) throws IOException {
+        if ((position < 0) || (position + numOfBytes > file.length()))
+            throw new IOException("Unexpected end of " + zipFile);
+        byte bytes[] = new byte[numOfBytes];
+        file.seek(position);
+        file.readFully(bytes);
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+}
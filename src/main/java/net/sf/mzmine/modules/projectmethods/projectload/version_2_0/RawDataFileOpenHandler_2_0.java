@@ -19,10 +19,9 @@
 
 package net.sf.mzmine.modules.projectmethods.projectload.version_2_0;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.TreeMap;
+import java.util.SortedMap;
 import java.util.logging.Logger;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -34,6 +33,7 @@ import net.sf.mzmine.datamodel.PolarityType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.projectmethods.projectload.RawDataFileOpenHandler;
+import net.sf.mzmine.project.impl.MappedDataPointsFile;
 import net.sf.mzmine.project.impl.RawDataFileImpl;
 import net.sf.mzmine.project.impl.StorableScan;
 
@@ -71,8 +71,9 @@ public class RawDataFileOpenHandler_2_0 extends DefaultHandler implements
      * @throws SAXException
      * @throws ParserConfigurationException
      */
-    public RawDataFile readRawDataFile(InputStream is, File scansFile)
-            throws IOException, ParserConfigurationException, SAXException {
+    public RawDataFile readRawDataFile(InputStream is,
+            MappedDataPointsFile scansFile) throws IOException,
+            ParserConfigurationException, SAXException {
 
         storageFileOffset = 0;
 
@@ -195,9 +196,9 @@ public class RawDataFileOpenHandler_2_0 extends DefaultHandler implements
 
             try {
                 int newStorageID = 1;
-                TreeMap<Integer, Long> dataPointsOffsets = newRawDataFile
+                SortedMap<Integer, Long> dataPointsOffsets = newRawDataFile
                         .getDataPointsOffsets();
-                TreeMap<Integer, Integer> dataPointsLengths = newRawDataFile
+                SortedMap<Integer, Integer> dataPointsLengths = newRawDataFile
                         .getDataPointsLengths();
                 if (!dataPointsOffsets.isEmpty())
                     newStorageID = dataPointsOffsets.lastKey().intValue() + 1;
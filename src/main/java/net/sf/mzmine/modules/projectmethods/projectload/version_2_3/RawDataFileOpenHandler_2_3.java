@@ -19,11 +19,10 @@
 
 package net.sf.mzmine.modules.projectmethods.projectload.version_2_3;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.TreeMap;
+import java.util.SortedMap;
 import java.util.logging.Logger;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -38,6 +37,7 @@ import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleMassList;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.projectmethods.projectload.RawDataFileOpenHandler;
+import net.sf.mzmine.project.impl.MappedDataPointsFile;
 import net.sf.mzmine.project.impl.RawDataFileImpl;
 import net.sf.mzmine.project.impl.StorableScan;
 import net.sf.mzmine.util.ScanUtils;
@@ -78,8 +78,9 @@ public class RawDataFileOpenHandler_2_3 extends DefaultHandler implements
      * @throws SAXException
      * @throws ParserConfigurationException
      */
-    public RawDataFile readRawDataFile(InputStream is, File scansFile)
-            throws IOException, ParserConfigurationException, SAXException {
+    public RawDataFile readRawDataFile(InputStream is,
+            MappedDataPointsFile scansFile) throws IOException,
+            ParserConfigurationException, SAXException {
 
         storageFileOffset = 0;
 
@@ -229,9 +230,9 @@ public class RawDataFileOpenHandler_2_3 extends DefaultHandler implements
 
             try {
                 int newStorageID = 1;
-                TreeMap<Integer, Long> dataPointsOffsets = newRawDataFile
+                SortedMap<Integer, Long> dataPointsOffsets = newRawDataFile
                         .getDataPointsOffsets();
-                TreeMap<Integer, Integer> dataPointsLengths = newRawDataFile
+                SortedMap<Integer, Integer> dataPointsLengths = newRawDataFile
                         .getDataPointsLengths();
                 if (!dataPointsOffsets.isEmpty())
                     newStorageID = dataPointsOffsets.lastKey().intValue() + 1;
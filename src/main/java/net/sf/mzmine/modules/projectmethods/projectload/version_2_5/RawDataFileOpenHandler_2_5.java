@@ -19,11 +19,10 @@
 
 package net.sf.mzmine.modules.projectmethods.projectload.version_2_5;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.TreeMap;
+import java.util.SortedMap;
 import java.util.logging.Logger;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -40,6 +39,7 @@ import net.sf.mzmine.datamodel.PolarityType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.projectmethods.projectload.RawDataFileOpenHandler;
+import net.sf.mzmine.project.impl.MappedDataPointsFile;
 import net.sf.mzmine.project.impl.RawDataFileImpl;
 import net.sf.mzmine.project.impl.StorableMassList;
 import net.sf.mzmine.project.impl.StorableScan;
@@ -64,8 +64,8 @@ public class RawDataFileOpenHandler_2_5 extends DefaultHandler
     private int currentStorageID;
     private int storedDataID;
     private int storedDataNumDP;
-    private TreeMap<Integer, Long> dataPointsOffsets;
-    private TreeMap<Integer, Integer> dataPointsLengths;
+    private SortedMap<Integer, Long> dataPointsOffsets;
+    private SortedMap<Integer, Integer> dataPointsLengths;
     private ArrayList<StorableMassList> massLists;
     private PolarityType polarity = PolarityType.UNKNOWN;
     private String scanDescription = "";
@@ -83,8 +83,9 @@ public class RawDataFileOpenHandler_2_5 extends DefaultHandler
      * @throws SAXException
      * @throws ParserConfigurationException
      */
-    public RawDataFile readRawDataFile(InputStream is, File scansFile)
-            throws IOException, ParserConfigurationException, SAXException {
+    public RawDataFile readRawDataFile(InputStream is,
+            MappedDataPointsFile scansFile) throws IOException,
+            ParserConfigurationException, SAXException {
 
         charBuffer = new StringBuffer();
         massLists = new ArrayList<StorableMassList>();
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectsave;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.IsotopePattern;
+import net.sf.mzmine.datamodel.PeakIdentity;
+import net.sf.mzmine.datamodel.PeakInformation;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakList.PeakListAppliedMethod;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+
+/**
+ * Saves a peak list in the binary columnar format. Each peak list is saved as
+ * two ZIP entries:
+ * 
+ * "Peak list #N name.chromatograms" contains the data points of all features,
+ * one after another. The data points of each feature are stored as the array
+ * of scan numbers (int), followed by the arrays of m/z values and intensities
+ * (float). Missing data points have m/z 0.
+ * 
+ * "Peak list #N name.peaks" contains the peak list description and the
+ * summaries of all rows and features. After a header (PEAKLIST_MAGIC,
+ * FORMAT_VERSION), the name, date, applied methods and raw data file IDs, each
+ * row and feature property is stored as one column, i.e. the values of all rows
+ * or features one after another. The last feature columns are the offsets and
+ * numbers of data points of each feature in the chromatograms entry, so the
+ * data points can be loaded only when they are needed.
+ * 
+ * The chromatograms entry must precede the peaks entry in the project, so it
+ * is already available when the peaks entry is read. All numbers are
+ * big-endian (DataOutputStream), strings are stored as their UTF-8 length (-1
+ * for null) and bytes.
+ */
+public class PeakListBinarySaveHandler {
+
+    public static final int PEAKLIST_MAGIC = 0x4D5A504C; // "MZPL"
+    public static final int FORMAT_VERSION = 1;
+
+    public static final String CHROMATOGRAMS_SUFFIX = ".chromatograms";
+    public static final String PEAKS_SUFFIX = ".peaks";
+
+    public static DateFormat dateFormat = new SimpleDateFormat(
+	    "yyyy/MM/dd HH:mm:ss");
+
+    private final Hashtable<RawDataFile, String> dataFilesIDMap;
+
+    private int numberOfFeatures, finishedFeatures;
+    private int numberOfRows, finishedRows;
+    private volatile boolean canceled = false;
+
+    public PeakListBinarySaveHandler(
+	    Hashtable<RawDataFile, String> dataFilesIDMap) {
+	this.dataFilesIDMap = dataFilesIDMap;
+    }
+
+    /**
+     * Saves the peak list into the content of its two project ZIP entries.
+     * The streams are not closed.
+     */
+    public void savePeakList(PeakList peakList,
+	    OutputStream chromatogramsStream, OutputStream peaksStream)
+	    throws IOException {
+
+	numberOfRows = peakList.getNumberOfRows();
+	finishedRows = 0;
+
+	// Collect the features of all rows
+	List<Feature> features = new ArrayList<Feature>();
+	List<Integer> featureRows = new ArrayList<Integer>();
+	for (int i = 0; i < numberOfRows; i++) {
+	    for (Feature peak : peakList.getRow(i).getPeaks()) {
+		features.add(peak);
+		featureRows.add(i);
+	    }
+	}
+	numberOfFeatures = features.size();
+	finishedFeatures = 0;
+
+	// Data points of the features
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+		chromatogramsStream));
+	long offsets[] = new long[numberOfFeatures];
+	int numOfDataPoints[] = new int[numberOfFeatures];
+	long offset = 0;
+	for (int i = 0; i < numberOfFeatures; i++) {
+	    if (canceled)
+		return;
+	    offsets[i] = offset;
+	    offset += writeDataPoints(features.get(i), out);
+	    numOfDataPoints[i] = features.get(i).getScanNumbers().length;
+	    finishedFeatures++;
+	}
+	out.flush();
+
+	// Summaries of the peak list, rows and features
+	out = new DataOutputStream(new BufferedOutputStream(peaksStream));
+
+	out.writeInt(PEAKLIST_MAGIC);
+	out.writeInt(FORMAT_VERSION);
+
+	writeString(out, peakList.getName());
+	String dateText = ((SimplePeakList) peakList).getDateCreated();
+	if (dateText == null)
+	    dateText = dateFormat.format(new Date());
+	writeString(out, dateText);
+
+	PeakListAppliedMethod[] processes = peakList.getAppliedMethods();
+	out.writeInt(processes.length);
+	for (PeakListAppliedMethod proc : processes) {
+	    writeString(out, proc.getDescription());
+	    writeString(out, proc.getParameters());
+	}
+
+	RawDataFile[] dataFiles = peakList.getRawDataFiles();
+	out.writeInt(dataFiles.length);
+	for (RawDataFile dataFile : dataFiles)
+	    writeString(out, dataFilesIDMap.get(dataFile));
+
+	writeRows(peakList, out);
+	if (canceled)
+	    return;
+
+	writeFeatures(features, featureRows, out);
+
+	// Index of the data points in the chromatograms entry
+	for (int i = 0; i < numberOfFeatures; i++)
+	    out.writeLong(offsets[i]);
+	for (int i = 0; i < numberOfFeatures; i++)
+	    out.writeInt(numOfDataPoints[i]);
+
+	out.flush();
+
+    }
+
+    /**
+     * @return Number of bytes written
+     */
+    private long writeDataPoints(Feature peak, DataOutputStream out)
+	    throws IOException {
+
+	final int scanNumbers[] = peak.getScanNumbers();
+	final DataPoint dataPoints[] = new DataPoint[scanNumbers.length];
+	for (int i = 0; i < scanNumbers.length; i++) {
+	    out.writeInt(scanNumbers[i]);
+	    dataPoints[i] = peak.getDataPoint(scanNumbers[i]);
+	}
+	for (DataPoint dp : dataPoints)
+	    out.writeFloat(dp != null ? (float) dp.getMZ() : 0f);
+	for (DataPoint dp : dataPoints)
+	    out.writeFloat(dp != null ? (float) dp.getIntensity() : 0f);
+
+	return scanNumbers.length * 12L;
+
+    }
+
+    private void writeRows(PeakList peakList, DataOutputStream out)
+	    throws IOException {
+
+	out.writeInt(numberOfRows);
+
+	for (int i = 0; i < numberOfRows; i++)
+	    out.writeInt(peakList.getRow(i).getID());
+	for (int i = 0; i < numberOfRows; i++)
+	    writeString(out, peakList.getRow(i).getComment());
+
+	// Identities, the preferred one is stored first
+	for (int i = 0; i < numberOfRows; i++) {
+	    if (canceled)
+		return;
+	    PeakListRow row = peakList.getRow(i);
+	    PeakIdentity preferredIdentity = row.getPreferredPeakIdentity();
+	    PeakIdentity identities[] = row.getPeakIdentities();
+	    out.writeInt(identities.length);
+	    int preferredIndex = -1;
+	    for (int j = 0; j < identities.length; j++) {
+		if (identities[j] == preferredIdentity)
+		    preferredIndex = j;
+	    }
+	    out.writeInt(preferredIndex);
+	    for (PeakIdentity identity : identities)
+		writeProperties(out, identity.getAllProperties());
+	}
+
+	for (int i = 0; i < numberOfRows; i++) {
+	    PeakInformation information = peakList.getRow(i)
+		    .getPeakInformation();
+	    writeProperties(out, information != null ? information
+		    .getAllProperties() : null);
+	    finishedRows++;
+	}
+
+    }
+
+    private void writeFeatures(List<Feature> features,
+	    List<Integer> featureRows, DataOutputStream out)
+	    throws IOException {
+
+	out.writeInt(numberOfFeatures);
+
+	for (int row : featureRows)
+	    out.writeInt(row);
+	for (Feature p : features)
+	    writeString(out, dataFilesIDMap.get(p.getDataFile()));
+	for (Feature p : features)
+	    out.writeDouble(p.getMZ());
+	for (Feature p : features)
+	    out.writeDouble(p.getRT());
+	for (Feature p : features)
+	    out.writeDouble(p.getHeight());
+	for (Feature p : features)
+	    out.writeDouble(p.getArea());
+	for (Feature p : features)
+	    writeString(out, p.getFeatureStatus().name());
+	for (Feature p : features)
+	    out.writeInt(p.getCharge());
+	for (Feature p : features)
+	    out.writeInt(p.getRepresentativeScanNumber());
+	for (Feature p : features)
+	    out.writeInt(p.getMostIntenseFragmentScanNumber());
+	for (Feature p : features) {
+	    out.writeDouble(p.getRawDataPointsRTRange().lowerEndpoint());
+	    out.writeDouble(p.getRawDataPointsRTRange().upperEndpoint());
+	}
+	for (Feature p : features) {
+	    out.writeDouble(p.getRawDataPointsMZRange().lowerEndpoint());
+	    out.writeDouble(p.getRawDataPointsMZRange().upperEndpoint());
+	}
+	for (Feature p : features) {
+	    out.writeDouble(p.getRawDataPointsIntensityRange().lowerEndpoint());
+	    out.writeDouble(p.getRawDataPointsIntensityRange().upperEndpoint());
+	}
+
+	// Quality parameters, NaN if not set
+	for (Feature p : features)
+	    writeNullableDouble(out, p.getFWHM());
+	for (Feature p : features)
+	    writeNullableDouble(out, p.getTailingFactor());
+	for (Feature p : features)
+	    writeNullableDouble(out, p.getAsymmetryFactor());
+
+	// Isotope patterns, -1 data points if there is none
+	for (Feature p : features) {
+	    IsotopePattern isotopePattern = p.getIsotopePattern();
+	    if (isotopePattern == null) {
+		out.writeInt(-1);
+		continue;
+	    }
+	    DataPoint isotopes[] = isotopePattern.getDataPoints();
+	    out.writeInt(isotopes.length);
+	    writeString(out, isotopePattern.getStatus().name());
+	    writeString(out, isotopePattern.getDescription());
+	    for (DataPoint isotope : isotopes) {
+		out.writeDouble(isotope.getMZ());
+		out.writeDouble(isotope.getIntensity());
+	    }
+	}
+
+    }
+
+    private static void writeNullableDouble(DataOutputStream out, Double value)
+	    throws IOException {
+	out.writeDouble(value != null ? value : Double.NaN);
+    }
+
+    private static void writeProperties(DataOutputStream out,
+	    Map<String, String> properties) throws IOException {
+	if (properties == null) {
+	    out.writeInt(-1);
+	    return;
+	}
+	out.writeInt(properties.size());
+	for (Entry<String, String> property : properties.entrySet()) {
+	    writeString(out, property.getKey());
+	    writeString(out, property.getValue());
+	}
+    }
+
+    private static void writeString(DataOutputStream out, String value)
+	    throws IOException {
+	if (value == null) {
+	    out.writeInt(-1);
+	    return;
+	}
+	byte bytes[] = value.getBytes(StandardCharsets.UTF_8);
+	out.writeInt(bytes.length);
+	out.write(bytes);
+    }
+
+    /**
+     * @return the progress of these functions saving the peak list to the zip
+     *         file.
+     */
+    public double getProgress() {
+	if (numberOfFeatures + numberOfRows == 0)
+	    return 0;
+	return (double) (finishedFeatures + finishedRows)
+		/ (numberOfFeatures + numberOfRows);
+    }
+
+    public void cancel() {
+	canceled = true;
+    }
+
+}
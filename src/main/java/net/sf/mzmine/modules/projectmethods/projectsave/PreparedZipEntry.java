@@ -0,0 +1,137 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectsave;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Content of a project ZIP entry, written into a temporary file before the
+ * entry is added to the project by ProjectZipWriter. This way the entries can
+ * be serialized (and deflated) by several threads in parallel, while the ZIP
+ * file itself is written by a single thread, which just copies the prepared
+ * data.
+ */
+class PreparedZipEntry extends OutputStream {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final String name;
+    private final boolean compressed;
+    private final File file;
+    private final CRC32 crc = new CRC32();
+    private final Deflater deflater;
+    private final OutputStream out;
+    private long size = 0;
+    private boolean closed = false;
+
+    /**
+     * @param compressed
+     *            True to deflate the content, false to store it as it is (for
+     *            binary data which would not get much smaller)
+     * @param directory
+     *            Directory of the temporary file, or null for the default
+     *            temporary directory
+     */
+    PreparedZipEntry(String name, boolean compressed, File directory)
+	    throws IOException {
+	this.name = name;
+	this.compressed = compressed;
+	this.file = File.createTempFile("mzmine", ".zipentry", directory);
+	file.deleteOnExit();
+	OutputStream fileStream = new FileOutputStream(file);
+	if (compressed) {
+	    deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	    out = new DeflaterOutputStream(fileStream, deflater, BUFFER_SIZE);
+	} else {
+	    deflater = null;
+	    out = new BufferedOutputStream(fileStream, BUFFER_SIZE);
+	}
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+	out.write(b);
+	crc.update(b);
+	size++;
+    }
+
+    @Override
+    public void write(byte b[], int off, int len) throws IOException {
+	out.write(b, off, len);
+	crc.update(b, off, len);
+	size += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+	if (closed)
+	    return;
+	closed = true;
+	try {
+	    out.close();
+	} finally {
+	    if (deflater != null)
+		deflater.end();
+	}
+    }
+
+    /**
+     * Closes and deletes the temporary file
+     */
+    void discard() {
+	try {
+	    close();
+	} catch (IOException e) {
+	    // ignore
+	}
+	file.delete();
+    }
+
+    String getName() {
+	return name;
+    }
+
+    boolean isCompressed() {
+	return compressed;
+    }
+
+    File getFile() {
+	return file;
+    }
+
+    long getCrc() {
+	return crc.getValue();
+    }
+
+    /**
+     * @return Size of the content before compression
+     */
+    long getSize() {
+	return size;
+    }
+
+}
@@ -20,12 +20,14 @@ package net.sf.mzmine.modules.projectmethods.projectsave;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import javax.xml.transform.TransformerConfigurationException;
 
@@ -34,6 +36,7 @@ import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.desktop.impl.MainWindow;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.modules.projectmethods.projectload.PeakListBinaryOpenHandler;
 import net.sf.mzmine.modules.projectmethods.projectload.ProjectLoaderParameters;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.project.impl.MZmineProjectImpl;
@@ -53,13 +56,19 @@ public class ProjectSavingTask extends AbstractTask {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
-  private File saveFile;
+  private File saveFile, tempDirectory;
   private MZmineProjectImpl savedProject;
 
+  private final List<RawDataFileSaveHandler> rawDataFileSaveHandlers = new ArrayList<>();
+  private final List<PeakListBinarySaveHandler> peakListSaveHandlers = new ArrayList<>();
   private RawDataFileSaveHandler rawDataFileSaveHandler;
-  private PeakListSaveHandler peakListSaveHandler;
   private UserParameterSaveHandler userParameterSaveHandler;
 
+  // Raw data file descriptions and peak lists, serialized in parallel while
+  // the data points are written to the project
+  private final List<ForkJoinTask<PreparedZipEntry[]>> descriptionTasks = new ArrayList<>();
+  private final List<ForkJoinTask<PreparedZipEntry[]>> peakListTasks = new ArrayList<>();
+
   private final int totalSaveItems;
   private int currentStage, finishedSaveItems = 0;
   private String currentSavedObjectName;
@@ -95,12 +104,11 @@ public class ProjectSavingTask extends AbstractTask {
 
     switch (currentStage) {
       case 2:
-        if (rawDataFileSaveHandler != null)
-          currentItemProgress = rawDataFileSaveHandler.getProgress();
+        RawDataFileSaveHandler handler = rawDataFileSaveHandler;
+        if (handler != null)
+          currentItemProgress = handler.getProgress();
         break;
       case 3:
-        if (peakListSaveHandler != null)
-          currentItemProgress = peakListSaveHandler.getProgress();
         break;
       case 4:
       case 5:
@@ -123,11 +131,15 @@ public class ProjectSavingTask extends AbstractTask {
 
     setStatus(TaskStatus.CANCELED);
 
-    if (rawDataFileSaveHandler != null)
-      rawDataFileSaveHandler.cancel();
+    synchronized (rawDataFileSaveHandlers) {
+      for (RawDataFileSaveHandler handler : rawDataFileSaveHandlers)
+        handler.cancel();
+    }
 
-    if (peakListSaveHandler != null)
-      peakListSaveHandler.cancel();
+    synchronized (peakListSaveHandlers) {
+      for (PeakListBinarySaveHandler handler : peakListSaveHandlers)
+        handler.cancel();
+    }
 
     if (userParameterSaveHandler != null)
       userParameterSaveHandler.cancel();
@@ -146,55 +158,72 @@ public class ProjectSavingTask extends AbstractTask {
 
       // Prepare a temporary ZIP file. We create this file in the same
       // directory as the final saveFile to avoid moving between
-      // filesystems in the last stage (renameTo)
-      File tempFile = File.createTempFile(saveFile.getName(), ".tmp", saveFile.getParentFile());
+      // filesystems in the last stage (renameTo). The prepared entries are
+      // created there as well, so they are copied within one filesystem.
+      tempDirectory = saveFile.getAbsoluteFile().getParentFile();
+      File tempFile = File.createTempFile(saveFile.getName(), ".tmp", tempDirectory);
       tempFile.deleteOnExit();
 
-      // Create a ZIP stream writing to the temporary file
-      FileOutputStream tempStream = new FileOutputStream(tempFile);
-      ZipOutputStream zipStream = new ZipOutputStream(tempStream);
-
-      // Stage 1 - save version and configuration
-      currentStage++;
-      saveVersion(zipStream);
-      saveConfiguration(zipStream);
-      if (isCanceled()) {
-        zipStream.close();
-        tempFile.delete();
-        return;
-      }
-
-      // Stage 2 - save RawDataFile objects
-      currentStage++;
-      saveRawDataFiles(zipStream);
-      if (isCanceled()) {
-        zipStream.close();
-        tempFile.delete();
-        return;
-      }
-
-      // Stage 3 - save PeakList objects
-      currentStage++;
-      savePeakLists(zipStream);
-      if (isCanceled()) {
-        zipStream.close();
+      // Create a ZIP writer writing to the temporary file
+      ProjectZipWriter zipWriter = new ProjectZipWriter(tempFile);
+
+      try {
+
+        // Stage 1 - save version and configuration
+        currentStage++;
+        saveVersion(zipWriter);
+        saveConfiguration(zipWriter);
+        if (isCanceled()) {
+          zipWriter.close();
+          tempFile.delete();
+          return;
+        }
+
+        // Stage 2 - save RawDataFile objects, while the peak lists are
+        // serialized in parallel
+        currentStage++;
+        saveRawDataFiles(zipWriter);
+        if (isCanceled()) {
+          zipWriter.close();
+          tempFile.delete();
+          return;
+        }
+
+        // Stage 3 - save PeakList objects
+        currentStage++;
+        savePeakLists(zipWriter);
+        if (isCanceled()) {
+          zipWriter.close();
+          tempFile.delete();
+          return;
+        }
+
+        // Stage 4 - save user parameters
+        currentStage++;
+        saveUserParameters(zipWriter);
+        if (isCanceled()) {
+          zipWriter.close();
+          tempFile.delete();
+          return;
+        }
+
+      } catch (Throwable e) {
+        cancelPreparation();
+        try {
+          zipWriter.close();
+        } catch (Throwable e2) {
+          // Report the original error
+        }
         tempFile.delete();
-        return;
-      }
-
-      // Stage 4 - save user parameters
-      currentStage++;
-      saveUserParameters(zipStream);
-      if (isCanceled()) {
-        zipStream.close();
-        tempFile.delete();
-        return;
+        throw e;
+      } finally {
+        discardPreparedEntries();
       }
 
       // Stage 5 - finish and close the temporary ZIP file
       currentStage++;
       currentSavedObjectName = null;
-      zipStream.close();
+      zipWriter.close();
 
       // Final check for cancel
       if (isCanceled()) {
@@ -202,9 +231,21 @@ public class ProjectSavingTask extends AbstractTask {
         return;
       }
 
-      // Move the temporary ZIP file to the final location
-      if (saveFile.exists() && !saveFile.delete()) {
-        throw new IOException("Could not delete old file " + saveFile);
+      // Move the temporary ZIP file to the final location. The scans and
+      // chromatograms of an opened project are read from its file in place,
+      // so they are copied to temporary files first. Otherwise the old file
+      // could not be deleted on some systems (Windows).
+      if (saveFile.exists()) {
+        try {
+          releaseProjectFile();
+        } catch (Throwable e) {
+          tempFile.delete();
+          throw e;
+        }
+        if (!saveFile.delete()) {
+          tempFile.delete();
+          throw new IOException("Could not delete old file " + saveFile);
+        }
       }
 
       boolean renameOK = tempFile.renameTo(saveFile);
@@ -242,18 +283,31 @@ public class ProjectSavingTask extends AbstractTask {
     }
   }
 
+  /**
+   * Stops reading the data of the project in place from the file which is
+   * going to be replaced
+   */
+  private void releaseProjectFile() throws IOException {
+    for (RawDataFile dataFile : savedProject.getDataFiles()) {
+      if (dataFile instanceof RawDataFileImpl)
+        ((RawDataFileImpl) dataFile).releaseProjectFile(saveFile);
+    }
+    PeakListBinaryOpenHandler.releaseProjectFile(savedProject.getPeakLists(), saveFile);
+  }
+
   /**
    * Save the version info
    * 
    * @throws java.io.IOException
    */
-  private void saveVersion(ZipOutputStream zipStream) throws IOException {
+  private void saveVersion(ProjectZipWriter zipWriter) throws IOException {
 
-    zipStream.putNextEntry(new ZipEntry(VERSION_FILENAME));
+    PreparedZipEntry entry = new PreparedZipEntry(VERSION_FILENAME, true, tempDirectory);
 
     String MZmineVersion = MZmineCore.getMZmineVersion();
 
-    zipStream.write(MZmineVersion.getBytes());
+    entry.write(MZmineVersion.getBytes());
+    zipWriter.addEntry(entry);
 
   }
 
@@ -262,13 +316,13 @@ public class ProjectSavingTask extends AbstractTask {
    * 
    * @throws java.io.IOException
    */
-  private void saveConfiguration(ZipOutputStream zipStream) throws IOException {
+  private void saveConfiguration(ProjectZipWriter zipWriter) throws IOException {
 
     logger.info("Saving configuration file");
 
     currentSavedObjectName = "configuration";
 
-    zipStream.putNextEntry(new ZipEntry(CONFIG_FILENAME));
+    PreparedZipEntry entry = new PreparedZipEntry(CONFIG_FILENAME, true, tempDirectory);
 
     try {
       File tempConfigFile = File.createTempFile("mzmineconfig", ".tmp");
@@ -276,7 +330,7 @@ public class ProjectSavingTask extends AbstractTask {
       FileInputStream fileStream = new FileInputStream(tempConfigFile);
 
       StreamCopy copyMachine = new StreamCopy();
-      copyMachine.copy(fileStream, zipStream);
+      copyMachine.copy(fileStream, entry);
 
       fileStream.close();
       tempConfigFile.delete();
@@ -285,70 +339,170 @@ public class ProjectSavingTask extends AbstractTask {
       logger.warning("Could not save configuration" + ExceptionUtils.exceptionToString(e));
     }
 
+    zipWriter.addEntry(entry);
+
   }
 
   /**
-   * Save the raw data files
-   * 
-   * @throws SAXException
-   * @throws TransformerConfigurationException
+   * Save the raw data files. The descriptions of the files and the peak lists
+   * are serialized by the ForkJoinPool meanwhile, this thread only writes the
+   * data points.
    */
-  private void saveRawDataFiles(ZipOutputStream zipStream)
-      throws IOException, TransformerConfigurationException, SAXException {
-
-    rawDataFileSaveHandler = new RawDataFileSaveHandler(zipStream);
+  private void saveRawDataFiles(ProjectZipWriter zipWriter) throws Exception {
 
     RawDataFile rawDataFiles[] = savedProject.getDataFiles();
 
+    // The peak lists refer to the raw data files by their IDs
+    for (int i = 0; i < rawDataFiles.length; i++)
+      dataFilesIDMap.put(rawDataFiles[i], String.valueOf(i + 1));
+
+    final ForkJoinPool pool = MZmineCore.getTaskController().getForkJoinPool();
+
+    for (int i = 0; i < rawDataFiles.length; i++) {
+      RawDataFileSaveHandler handler =
+          new RawDataFileSaveHandler((RawDataFileImpl) rawDataFiles[i], i + 1);
+      synchronized (rawDataFileSaveHandlers) {
+        rawDataFileSaveHandlers.add(handler);
+      }
+      descriptionTasks.add(pool.submit(
+          () -> new PreparedZipEntry[] {handler.prepareDescription(tempDirectory)}));
+    }
+
+    submitPeakLists(pool);
+
     for (int i = 0; i < rawDataFiles.length; i++) {
 
       if (isCanceled())
         return;
 
       currentSavedObjectName = rawDataFiles[i].getName();
-      rawDataFileSaveHandler.writeRawDataFile((RawDataFileImpl) rawDataFiles[i], i + 1);
-      dataFilesIDMap.put(rawDataFiles[i], String.valueOf(i + 1));
+      rawDataFileSaveHandler = rawDataFileSaveHandlers.get(i);
+      rawDataFileSaveHandler.writeDataPoints(zipWriter);
+      if (isCanceled())
+        return;
+
+      // The description must follow the data points, see ProjectOpeningTask
+      addPreparedEntries(zipWriter, descriptionTasks.get(i));
       finishedSaveItems++;
     }
   }
 
   /**
-   * Save the peak lists
-   * 
-   * @throws SAXException
-   * @throws TransformerConfigurationException
+   * Starts serializing the peak lists in the ForkJoinPool
    */
-  private void savePeakLists(ZipOutputStream zipStream)
-      throws IOException, TransformerConfigurationException, SAXException {
+  private void submitPeakLists(ForkJoinPool pool) {
 
     PeakList peakLists[] = savedProject.getPeakLists();
 
     for (int i = 0; i < peakLists.length; i++) {
 
-      if (isCanceled())
-        return;
+      final PeakList peakList = peakLists[i];
+      final String peakListSavedName = "Peak list #" + (i + 1) + " " + peakList.getName();
+      final PeakListBinarySaveHandler handler = new PeakListBinarySaveHandler(dataFilesIDMap);
+      synchronized (peakListSaveHandlers) {
+        peakListSaveHandlers.add(handler);
+      }
 
-      logger.info("Saving peak list: " + peakLists[i].getName());
+      peakListTasks.add(pool.submit(() -> {
+        logger.info("Saving peak list: " + peakList.getName());
+        // The chromatograms are dense binary data, not worth deflating
+        PreparedZipEntry chromatograms = new PreparedZipEntry(
+            peakListSavedName + PeakListBinarySaveHandler.CHROMATOGRAMS_SUFFIX, false,
+            tempDirectory);
+        PreparedZipEntry peaks = new PreparedZipEntry(
+            peakListSavedName + PeakListBinarySaveHandler.PEAKS_SUFFIX, true, tempDirectory);
+        try {
+          handler.savePeakList(peakList, chromatograms, peaks);
+          chromatograms.close();
+          peaks.close();
+        } catch (IOException | RuntimeException e) {
+          chromatograms.discard();
+          peaks.discard();
+          throw e;
+        }
+        return new PreparedZipEntry[] {chromatograms, peaks};
+      }));
+    }
+  }
+
+  /**
+   * Save the peak lists, which were serialized in parallel
+   */
+  private void savePeakLists(ProjectZipWriter zipWriter) throws Exception {
 
-      String peakListSavedName = "Peak list #" + (i + 1) + " " + peakLists[i].getName();
+    PeakList peakLists[] = savedProject.getPeakLists();
 
-      zipStream.putNextEntry(new ZipEntry(peakListSavedName + ".xml"));
+    for (int i = 0; i < peakLists.length; i++) {
 
-      peakListSaveHandler = new PeakListSaveHandler(zipStream, dataFilesIDMap);
+      if (isCanceled())
+        return;
 
       currentSavedObjectName = peakLists[i].getName();
-      peakListSaveHandler.savePeakList(peakLists[i]);
+      addPreparedEntries(zipWriter, peakListTasks.get(i));
       finishedSaveItems++;
     }
   }
 
   /**
-   * Save the peak lists
+   * Waits for the task and adds its entries to the project
+   */
+  private void addPreparedEntries(ProjectZipWriter zipWriter,
+      ForkJoinTask<PreparedZipEntry[]> task) throws Exception {
+
+    PreparedZipEntry entries[];
+    try {
+      entries = task.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception)
+        throw (Exception) e.getCause();
+      throw e;
+    }
+
+    for (PreparedZipEntry entry : entries) {
+      // Canceled meanwhile
+      if (entry == null)
+        return;
+      zipWriter.addEntry(entry);
+    }
+  }
+
+  private void cancelPreparation() {
+    synchronized (rawDataFileSaveHandlers) {
+      for (RawDataFileSaveHandler handler : rawDataFileSaveHandlers)
+        handler.cancel();
+    }
+    synchronized (peakListSaveHandlers) {
+      for (PeakListBinarySaveHandler handler : peakListSaveHandlers)
+        handler.cancel();
+    }
+  }
+
+  /**
+   * Waits for all preparation tasks and deletes the temporary files of the
+   * entries which were not added to the project
+   */
+  private void discardPreparedEntries() {
+    List<ForkJoinTask<PreparedZipEntry[]>> tasks = new ArrayList<>(descriptionTasks);
+    tasks.addAll(peakListTasks);
+    for (ForkJoinTask<PreparedZipEntry[]> task : tasks) {
+      try {
+        for (PreparedZipEntry entry : task.get()) {
+          if (entry != null)
+            entry.discard();
+        }
+      } catch (Exception e) {
+        // Already reported, or the entries were discarded by the task
+      }
+    }
+  }
+
+  /**
+   * Save the user parameters
    * 
    * @throws SAXException
    * @throws TransformerConfigurationException
    */
-  private void saveUserParameters(ZipOutputStream zipStream)
+  private void saveUserParameters(ProjectZipWriter zipWriter)
       throws IOException, TransformerConfigurationException, SAXException {
 
     if (isCanceled())
@@ -356,14 +510,16 @@ public class ProjectSavingTask extends AbstractTask {
 
     logger.info("Saving user parameters");
 
-    zipStream.putNextEntry(new ZipEntry(PARAMETERS_FILENAME));
+    PreparedZipEntry entry = new PreparedZipEntry(PARAMETERS_FILENAME, true, tempDirectory);
 
     userParameterSaveHandler =
-        new UserParameterSaveHandler(zipStream, savedProject, dataFilesIDMap);
+        new UserParameterSaveHandler(entry, savedProject, dataFilesIDMap);
 
     currentSavedObjectName = "User parameters";
     userParameterSaveHandler.saveParameters();
 
+    zipWriter.addEntry(entry);
+
   }
 
 }
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectsave;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Writes the project ZIP file directly through a FileChannel, so the content of
+ * the entries can be copied by FileChannel.transferTo() instead of being pushed
+ * through a ZipOutputStream. Entries are either prepared in temporary files
+ * (see PreparedZipEntry), or written directly to the channel between
+ * startStoredEntry() and finishStoredEntry(). The latter are STORED
+ * (uncompressed) entries, whose size and CRC-32 follow the data in a data
+ * descriptor.
+ *
+ * ZIP64 extensions are used when an entry, the file or the number of entries
+ * exceeds the limits of the original ZIP format, so the file can be read by
+ * java.util.zip.ZipFile in any case. Tests can lower the size limit, so the
+ * ZIP64 records are written without files of several GB.
+ */
+class ProjectZipWriter implements Closeable {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int METHOD_STORED = 0, METHOD_DEFLATED = 8;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08,
+	    FLAG_UTF8 = 0x800;
+    private static final int VERSION = 20, VERSION_ZIP64 = 45;
+    private static final int HOST_UNIX = 3 << 8;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long MAX_32 = 0xFFFFFFFFL;
+    private static final int MAX_16 = 0xFFFF;
+
+    private static class Entry {
+	byte name[];
+	int method, flags;
+	long crc, compressedSize, size, offset;
+    }
+
+    private final FileOutputStream fileStream;
+    private final FileChannel channel;
+    private final int dosTime;
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private Entry openEntry;
+    private long openEntryDataStart;
+
+    // Sizes and offsets from this value on are written to ZIP64 records
+    private final long zip64Threshold;
+
+    ProjectZipWriter(File file) throws IOException {
+	this(file, MAX_32);
+    }
+
+    /**
+     * @param zip64Threshold
+     *            Sizes and offsets from this value on are written as ZIP64
+     *            values, at most MAX_32 (for tests)
+     */
+    ProjectZipWriter(File file, long zip64Threshold) throws IOException {
+	if ((zip64Threshold <= 0) || (zip64Threshold > MAX_32))
+	    throw new IllegalArgumentException("Invalid ZIP64 threshold "
+		    + zip64Threshold);
+	this.zip64Threshold = zip64Threshold;
+	this.fileStream = new FileOutputStream(file);
+	this.channel = fileStream.getChannel();
+	this.dosTime = toDosTime(System.currentTimeMillis());
+    }
+
+    /**
+     * Adds the prepared entry, copying the content of its temporary file.
+     * The temporary file is deleted afterwards.
+     */
+    void addEntry(PreparedZipEntry preparedEntry) throws IOException {
+
+	checkNoOpenEntry();
+	preparedEntry.close();
+
+	Entry entry = new Entry();
+	entry.name = preparedEntry.getName().getBytes(StandardCharsets.UTF_8);
+	entry.method = preparedEntry.isCompressed() ? METHOD_DEFLATED
+		: METHOD_STORED;
+	entry.flags = FLAG_UTF8;
+	entry.crc = preparedEntry.getCrc();
+	entry.size = preparedEntry.getSize();
+	entry.offset = channel.position();
+
+	try (FileInputStream in = new FileInputStream(preparedEntry.getFile())) {
+	    FileChannel source = in.getChannel();
+	    entry.compressedSize = source.size();
+	    writeLocalHeader(entry);
+	    long position = 0;
+	    while (position < entry.compressedSize)
+		position += source.transferTo(position, entry.compressedSize
+			- position, channel);
+	}
+	preparedEntry.discard();
+
+	entries.add(entry);
+
+    }
+
+    /**
+     * Starts a STORED entry, whose content is written directly to the
+     * returned channel (at its current position). Must be followed by
+     * finishStoredEntry().
+     */
+    FileChannel startStoredEntry(String name) throws IOException {
+
+	checkNoOpenEntry();
+
+	Entry entry = new Entry();
+	entry.name = name.getBytes(StandardCharsets.UTF_8);
+	entry.method = METHOD_STORED;
+	entry.flags = FLAG_UTF8 | FLAG_DATA_DESCRIPTOR;
+	entry.offset = channel.position();
+	writeLocalHeader(entry);
+
+	openEntry = entry;
+	openEntryDataStart = channel.position();
+	return channel;
+
+    }
+
+    /**
+     * Finishes the entry started by startStoredEntry()
+     *
+     * @param crc
+     *            CRC-32 of the data written to the channel
+     */
+    void finishStoredEntry(long crc) throws IOException {
+
+	if (openEntry == null)
+	    throw new IllegalStateException("No entry was started");
+
+	Entry entry = openEntry;
+	openEntry = null;
+	entry.crc = crc;
+	entry.size = channel.position() - openEntryDataStart;
+	entry.compressedSize = entry.size;
+
+	// The local header announced ZIP64 sizes
+	ByteBuffer buffer = newBuffer(24);
+	buffer.putInt(DATA_DESCRIPTOR_SIGNATURE);
+	buffer.putInt((int) entry.crc);
+	buffer.putLong(entry.compressedSize);
+	buffer.putLong(entry.size);
+	write(buffer);
+
+	entries.add(entry);
+
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException {
+
+	final boolean descriptor = (entry.flags & FLAG_DATA_DESCRIPTOR) != 0;
+	final boolean zip64 = descriptor || (entry.size >= zip64Threshold)
+		|| (entry.compressedSize >= zip64Threshold);
+
+	ByteBuffer buffer = newBuffer(30 + entry.name.length + 20);
+	buffer.putInt(LOCAL_HEADER_SIGNATURE);
+	buffer.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));
+	buffer.putShort((short) entry.flags);
+	buffer.putShort((short) entry.method);
+	buffer.putInt(dosTime);
+	buffer.putInt(descriptor ? 0 : (int) entry.crc);
+	buffer.putInt(zip64 ? (int) MAX_32 : (int) entry.compressedSize);
+	buffer.putInt(zip64 ? (int) MAX_32 : (int) entry.size);
+	buffer.putShort((short) entry.name.length);
+	buffer.putShort((short) (zip64 ? 20 : 0));
+	buffer.put(entry.name);
+	if (zip64) {
+	    // Sizes are 0 if they follow in the data descriptor
+	    buffer.putShort((short) ZIP64_EXTRA_ID);
+	    buffer.putShort((short) 16);
+	    buffer.putLong(descriptor ? 0 : entry.size);
+	    buffer.putLong(descriptor ? 0 : entry.compressedSize);
+	}
+	write(buffer);
+
+    }
+
+    /**
+     * Writes the central directory and closes the file
+     */
+    @Override
+    public void close() throws IOException {
+
+	try {
+	    checkNoOpenEntry();
+
+	    final long centralStart = channel.position();
+	    for (Entry entry : entries)
+		writeCentralHeader(entry);
+	    final long centralEnd = channel.position();
+	    final long centralSize = centralEnd - centralStart;
+
+	    final boolean zip64 = (entries.size() >= MAX_16)
+		    || (centralStart >= zip64Threshold)
+		    || (centralSize >= zip64Threshold);
+
+	    if (zip64) {
+		ByteBuffer buffer = newBuffer(56 + 20);
+		buffer.putInt(ZIP64_END_SIGNATURE);
+		buffer.putLong(44);
+		buffer.putShort((short) VERSION_ZIP64);
+		buffer.putShort((short) VERSION_ZIP64);
+		buffer.putInt(0);
+		buffer.putInt(0);
+		buffer.putLong(entries.size());
+		buffer.putLong(entries.size());
+		buffer.putLong(centralSize);
+		buffer.putLong(centralStart);
+		buffer.putInt(ZIP64_LOCATOR_SIGNATURE);
+		buffer.putInt(0);
+		buffer.putLong(centralEnd);
+		buffer.putInt(1);
+		write(buffer);
+	    }
+
+	    final int numOfEntries = Math.min(entries.size(), MAX_16);
+	    ByteBuffer buffer = newBuffer(22);
+	    buffer.putInt(END_SIGNATURE);
+	    buffer.putShort((short) 0);
+	    buffer.putShort((short) 0);
+	    buffer.putShort((short) numOfEntries);
+	    buffer.putShort((short) numOfEntries);
+	    buffer.putInt(to32(centralSize));
+	    buffer.putInt(to32(centralStart));
+	    buffer.putShort((short) 0);
+	    write(buffer);
+	} finally {
+	    fileStream.close();
+	}
+
+    }
+
+    private void writeCentralHeader(Entry entry) throws IOException {
+
+	// ZIP64 extra field contains only the values which do not fit
+	final boolean largeSize = entry.size >= zip64Threshold;
+	final boolean largeCompressedSize = entry.compressedSize >= zip64Threshold;
+	final boolean largeOffset = entry.offset >= zip64Threshold;
+	final int extraLength = (largeSize ? 8 : 0)
+		+ (largeCompressedSize ? 8 : 0) + (largeOffset ? 8 : 0);
+	final boolean zip64 = (extraLength > 0)
+		|| ((entry.flags & FLAG_DATA_DESCRIPTOR) != 0);
+
+	ByteBuffer buffer = newBuffer(46 + entry.name.length + 4 + extraLength);
+	buffer.putInt(CENTRAL_HEADER_SIGNATURE);
+	buffer.putShort((short) (HOST_UNIX | VERSION_ZIP64)); // made by
+	buffer.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));
+	buffer.putShort((short) entry.flags);
+	buffer.putShort((short) entry.method);
+	buffer.putInt(dosTime);
+	buffer.putInt((int) entry.crc);
+	buffer.putInt(to32(entry.compressedSize));
+	buffer.putInt(to32(entry.size));
+	buffer.putShort((short) entry.name.length);
+	buffer.putShort((short) (extraLength > 0 ? extraLength + 4 : 0));
+	buffer.putShort((short) 0); // comment length
+	buffer.putShort((short) 0); // disk number
+	buffer.putShort((short) 0); // internal attributes
+	buffer.putInt(0); // external attributes
+	buffer.putInt(to32(entry.offset));
+	buffer.put(entry.name);
+	if (extraLength > 0) {
+	    buffer.putShort((short) ZIP64_EXTRA_ID);
+	    buffer.putShort((short) extraLength);
+	    if (largeSize)
+		buffer.putLong(entry.size);
+	    if (largeCompressedSize)
+		buffer.putLong(entry.compressedSize);
+	    if (largeOffset)
+		buffer.putLong(entry.offset);
+	}
+	write(buffer);
+
+    }
+
+    /**
+     * @return The value for a 32-bit field, or MAX_32 if the value is written
+     *         to a ZIP64 record
+     */
+    private int to32(long value) {
+	return (int) (value >= zip64Threshold ? MAX_32 : value);
+    }
+
+    private void checkNoOpenEntry() {
+	if (openEntry != null)
+	    throw new IllegalStateException("Entry "
+		    + new String(openEntry.name, StandardCharsets.UTF_8)
+		    + " was not finished");
+    }
+
+    private static ByteBuffer newBuffer(int capacity) {
+	return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+	buffer.flip();
+	while (buffer.hasRemaining())
+	    channel.write(buffer);
+    }
+
+    private static int toDosTime(long time) {
+	Calendar calendar = Calendar.getInstance();
+	calendar.setTimeInMillis(time);
+	final int year = calendar.get(Calendar.YEAR);
+	if (year < 1980)
+	    return (1 << 21) | (1 << 16);
+	return ((year - 1980) << 25)
+		| ((calendar.get(Calendar.MONTH) + 1) << 21)
+		| (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+		| (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+		| (calendar.get(Calendar.MINUTE) << 5)
+		| (calendar.get(Calendar.SECOND) >> 1);
+    }
+
+}
@@ -19,14 +19,16 @@
 
 package net.sf.mzmine.modules.projectmethods.projectsave;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.CRC32;
 
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
@@ -48,83 +50,95 @@ import com.google.common.collect.Range;
 
 class RawDataFileSaveHandler {
 
+    // Number of storage IDs transferred at once, between checks for cancel
+    private static final int TRANSFER_BATCH_SIZE = 1000;
+
     private Logger logger = Logger.getLogger(this.getClass().getName());
+    private final RawDataFileImpl rawDataFile;
+    private final String rawDataSavedName;
     private int numOfScans, completedScans;
-    private ZipOutputStream zipOutputStream;
-    private boolean canceled = false;
-    private Map<Integer, Long> dataPointsOffsets;
-    private Map<Integer, Long> consolidatedDataPointsOffsets;
-    private Map<Integer, Integer> dataPointsLengths;
-    private double progress = 0;
-
-    RawDataFileSaveHandler(ZipOutputStream zipOutputStream) {
-	this.zipOutputStream = zipOutputStream;
-    }
+    private volatile boolean canceled = false;
+    private final Map<Integer, Integer> dataPointsLengths;
+    private final Map<Integer, Long> consolidatedDataPointsOffsets;
+    private double dataPointsProgress = 0, descriptionProgress = 0;
 
     /**
-     * Copy the data points file of the raw data file from the temporary folder
-     * to the zip file. Create an XML file which contains the description of the
-     * same raw data file an copy it into the same zip file.
+     * The structure of the data points file is taken when the handler is
+     * created, so the description and the data points can be saved by
+     * different threads.
      * 
-     * @param rawDataFile
-     *            raw data file to be copied
-     * @param rawDataSavedName
-     *            name of the raw data inside the zip file
-     * @throws java.io.IOException
-     * @throws TransformerConfigurationException
-     * @throws SAXException
+     * @param number
+     *            Number of the raw data file within the saved project
      */
-    void writeRawDataFile(RawDataFileImpl rawDataFile, int number)
-	    throws IOException, TransformerConfigurationException, SAXException {
+    RawDataFileSaveHandler(RawDataFileImpl rawDataFile, int number) {
 
-	numOfScans = rawDataFile.getNumOfScans();
+	this.rawDataFile = rawDataFile;
+	this.rawDataSavedName = "Raw data file #" + number + " "
+		+ rawDataFile.getName();
 
-	// Get the structure of the data points file
-	dataPointsOffsets = rawDataFile.getDataPointsOffsets();
-	dataPointsLengths = rawDataFile.getDataPointsLengths();
+	// We save only those data points that still have a reference in the
+	// dataPointsOffset table. Some deleted mass lists may still be present
+	// in the data points file, we don't want to copy those. The data points
+	// are saved uncompressed, one after another, even if the temporary file
+	// is compressed.
+	dataPointsLengths = new TreeMap<Integer, Integer>(
+		rawDataFile.getDataPointsLengths());
 	consolidatedDataPointsOffsets = new TreeMap<Integer, Long>();
+	long newOffset = 0;
+	for (Map.Entry<Integer, Integer> entry : dataPointsLengths.entrySet()) {
+	    consolidatedDataPointsOffsets.put(entry.getKey(), newOffset);
+	    newOffset += entry.getValue() * 4L * 2;
+	}
 
-	// step 1 - save data file
-	logger.info("Saving data points of: " + rawDataFile.getName());
+    }
 
-	String rawDataSavedName = "Raw data file #" + number + " "
-		+ rawDataFile.getName();
+    /**
+     * Writes the data points of the raw data file as a STORED entry of the
+     * project ZIP file. The data is copied from the temporary file by
+     * FileChannel.transferTo() where possible.
+     */
+    void writeDataPoints(ProjectZipWriter zipWriter) throws IOException {
 
-	zipOutputStream.putNextEntry(new ZipEntry(rawDataSavedName + ".scans"));
+	logger.info("Saving data points of: " + rawDataFile.getName());
 
-	// We save only those data points that still have a reference in the
-	// dataPointsOffset table. Some deleted mass lists may still be present
-	// in the data points file, we don't want to copy those.
-	long newOffset = 0;
-	byte buffer[] = new byte[1 << 20];
-	RandomAccessFile dataPointsFile = rawDataFile.getDataPointsFile();
-	for (Integer storageID : dataPointsOffsets.keySet()) {
+	FileChannel channel = zipWriter.startStoredEntry(rawDataSavedName
+		+ ".scans");
+	CRC32 crc = new CRC32();
 
+	List<Integer> storageIDs = new ArrayList<Integer>(
+		dataPointsLengths.keySet());
+	for (int i = 0; i < storageIDs.size(); i += TRANSFER_BATCH_SIZE) {
 	    if (canceled)
-		return;
+		break;
+	    List<Integer> batch = storageIDs.subList(i,
+		    Math.min(i + TRANSFER_BATCH_SIZE, storageIDs.size()));
+	    rawDataFile.transferDataPoints(batch, channel, crc);
+	    dataPointsProgress = (double) (i + batch.size())
+		    / storageIDs.size();
+	}
 
-	    final long offset = dataPointsOffsets.get(storageID);
-	    dataPointsFile.seek(offset);
+	zipWriter.finishStoredEntry(crc.getValue());
 
-	    final int bytes = dataPointsLengths.get(storageID) * 4 * 2;
-	    consolidatedDataPointsOffsets.put(storageID, newOffset);
-	    if (buffer.length < bytes) {
-		buffer = new byte[bytes * 2];
-	    }
-	    dataPointsFile.read(buffer, 0, bytes);
-	    zipOutputStream.write(buffer, 0, bytes);
-	    newOffset += bytes;
-	    progress = 0.9 * ((double) offset / dataPointsFile.length());
-	}
+    }
 
-	if (canceled)
-	    return;
+    /**
+     * Creates an XML file which contains the description of the raw data
+     * file, to be added to the project after the data points.
+     * 
+     * @param tempDirectory
+     *            Directory for the temporary file of the entry
+     * @return The prepared entry, or null if saving was canceled
+     */
+    PreparedZipEntry prepareDescription(File tempDirectory)
+	    throws IOException, TransformerConfigurationException, SAXException {
 
-	// step 2 - save raw data description
 	logger.info("Saving raw data description of: " + rawDataFile.getName());
 
-	zipOutputStream.putNextEntry(new ZipEntry(rawDataSavedName + ".xml"));
-	OutputStream finalStream = zipOutputStream;
+	numOfScans = rawDataFile.getNumOfScans();
+
+	PreparedZipEntry entry = new PreparedZipEntry(rawDataSavedName + ".xml",
+		true, tempDirectory);
+	OutputStream finalStream = entry;
 
 	StreamResult streamResult = new StreamResult(finalStream);
 	SAXTransformerFactory tf = (SAXTransformerFactory) SAXTransformerFactory
@@ -139,6 +153,13 @@ class RawDataFileSaveHandler {
 	hd.startDocument();
 	saveRawDataInformation(rawDataFile, hd);
 	hd.endDocument();
+	entry.close();
+
+	if (canceled) {
+	    entry.discard();
+	    return null;
+	}
+	return entry;
     }
 
     /**
@@ -165,11 +186,11 @@ class RawDataFileSaveHandler {
 
 	// <STORED_DATAPOINTS>
 	atts.addAttribute("", "", RawDataElementName.QUANTITY.getElementName(),
-		"CDATA", String.valueOf(dataPointsOffsets.size()));
+		"CDATA", String.valueOf(dataPointsLengths.size()));
 	hd.startElement("", "",
 		RawDataElementName.STORED_DATAPOINTS.getElementName(), atts);
 	atts.clear();
-	for (Integer storageID : dataPointsOffsets.keySet()) {
+	for (Integer storageID : dataPointsLengths.keySet()) {
 	    if (canceled)
 		return;
 	    int length = dataPointsLengths.get(storageID);
@@ -216,7 +237,7 @@ class RawDataFileSaveHandler {
 	    hd.endElement("", "", RawDataElementName.SCAN.getElementName());
 	    atts.clear();
 	    completedScans++;
-	    progress = 0.9 + (0.1 * ((double) completedScans / numOfScans));
+	    descriptionProgress = (double) completedScans / numOfScans;
 	}
 
 	hd.endElement("", "", RawDataElementName.RAWDATA.getElementName());
@@ -362,7 +383,7 @@ class RawDataFileSaveHandler {
      *         to the zip file.
      */
     double getProgress() {
-	return progress;
+	return 0.9 * dataPointsProgress + 0.1 * descriptionProgress;
     }
 
     void cancel() {
@@ -441,6 +441,24 @@ public class BaselineCorrectorSetupDialog extends
 
     }
 
+    /**
+     * Aborts the preview task before the datasets of the preview are removed,
+     * so that it does not add new ones to the closed dialog
+     */
+    @Override
+    public void dispose() {
+        if (previewTask != null
+                && previewTask.getStatus() == TaskStatus.PROCESSING) {
+            previewTask.kill();
+            try {
+                previewThread.join();
+            } catch (InterruptedException e) {
+                // Remove the datasets anyway
+            }
+        }
+        super.dispose();
+    }
+
     /**
      * This function sets all the information into the plot chart
      */
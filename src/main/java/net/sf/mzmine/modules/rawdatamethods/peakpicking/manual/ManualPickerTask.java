@@ -19,29 +19,28 @@
 package net.sf.mzmine.modules.rawdatamethods.peakpicking.manual;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
 import javax.swing.table.AbstractTableModel;
 import com.google.common.collect.Range;
 import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.IonChromatogram;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
-import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.modules.peaklistmethods.qualityparameters.QualityParameters;
 import net.sf.mzmine.modules.visualization.peaklisttable.table.PeakListTable;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
-import net.sf.mzmine.util.ScanUtils;
+import net.sf.mzmine.util.XICExtractor;
 
 class ManualPickerTask extends AbstractTask {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
-  private int processedScans, totalScans;
-
   private final MZmineProject project;
   private final PeakListTable table;
   private final PeakList peakList;
@@ -49,6 +48,8 @@ class ManualPickerTask extends AbstractTask {
   private RawDataFile dataFiles[];
   private Range<Double> rtRange, mzRange;
 
+  private volatile XICExtractor.ParallelExtraction extraction;
+
   ManualPickerTask(MZmineProject project, PeakListRow peakListRow, RawDataFile dataFiles[],
       ManualPickerParameters parameters, PeakList peakList, PeakListTable table) {
 
@@ -65,9 +66,10 @@ class ManualPickerTask extends AbstractTask {
   }
 
   public double getFinishedPercentage() {
-    if (totalScans == 0)
+    final XICExtractor.ParallelExtraction currentExtraction = extraction;
+    if (currentExtraction == null)
       return 0;
-    return (double) processedScans / totalScans;
+    return currentExtraction.getFinishedPercentage();
   }
 
   public String getTaskDescription() {
@@ -80,42 +82,31 @@ class ManualPickerTask extends AbstractTask {
 
     logger.finest("Starting manual peak picker, RT: " + rtRange + ", m/z: " + mzRange);
 
-    // Calculate total number of scans to process
-    for (RawDataFile dataFile : dataFiles) {
-      int[] scanNumbers = dataFile.getScanNumbers(1, rtRange);
-      totalScans += scanNumbers.length;
-    }
+    // Extract the most intense m/z peak of each scan from all data files in parallel
+    extraction = new XICExtractor.ParallelExtraction(dataFiles, 1,
+        Collections.singletonList(mzRange), Collections.singletonList(rtRange));
+    IonChromatogram chromatograms[][] = extraction.extract(this);
+
+    if ((chromatograms == null) || isCanceled())
+      return;
 
     // Find peak in each data file
-    for (RawDataFile dataFile : dataFiles) {
+    for (int i = 0; i < dataFiles.length; i++) {
+
+      RawDataFile dataFile = dataFiles[i];
+      IonChromatogram chromatogram = chromatograms[i][0];
 
       ManualPeak newPeak = new ManualPeak(dataFile);
       boolean dataPointFound = false;
 
-      int[] scanNumbers = dataFile.getScanNumbers(1, rtRange);
-
-      for (int scanNumber : scanNumbers) {
-
-        if (isCanceled())
-          return;
-
-        // Get next scan
-        Scan scan = dataFile.getScan(scanNumber);
-
-        // Find most intense m/z peak
-        DataPoint basePeak = ScanUtils.findBasePeak(scan, mzRange);
-
-        if (basePeak != null) {
-          if (basePeak.getIntensity() > 0)
-            dataPointFound = true;
-          newPeak.addDatapoint(scan.getScanNumber(), basePeak);
-        } else {
-          final double mzCenter = (mzRange.lowerEndpoint() + mzRange.upperEndpoint()) / 2.0;
-          DataPoint fakeDataPoint = new SimpleDataPoint(mzCenter, 0);
-          newPeak.addDatapoint(scan.getScanNumber(), fakeDataPoint);
-        }
+      for (int j = 0; j < chromatogram.getNumberOfDataPoints(); j++) {
 
-        processedScans++;
+        // Scans without data points in the m/z range have intensity 0
+        DataPoint basePeak =
+            new SimpleDataPoint(chromatogram.getMZ(j), chromatogram.getIntensity(j));
+        if (basePeak.getIntensity() > 0)
+          dataPointFound = true;
+        newPeak.addDatapoint(chromatogram.getScanNumber(j), basePeak);
 
       }
 
@@ -147,7 +138,8 @@ class ManualPickerTask extends AbstractTask {
       ((AbstractTableModel) table.getModel()).fireTableDataChanged();
     }
 
-    logger.finest("Finished manual peak picker, " + processedScans + " scans processed");
+    logger.finest("Finished manual peak picker, " + chromatograms.length
+        + " chromatograms extracted");
 
     setStatus(TaskStatus.FINISHED);
 
@@ -31,6 +31,7 @@ import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelection;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.DataPointsBuffer;
 
 import ucar.nc2.NetcdfFileWriter;
 import ucar.nc2.Dimension;
@@ -152,6 +153,9 @@ public class MassDetectionTask extends AbstractTask {
             final Scan scans[] = scanSelection.getMatchingScans(dataFile);
             totalScans = scans.length;
 
+            // Buffer of the scan data, reused for all scans of this task
+            final DataPointsBuffer buffer = new DataPointsBuffer();
+
             // Process scans one by one
             for (Scan scan : scans) {
 
@@ -160,29 +164,34 @@ public class MassDetectionTask extends AbstractTask {
 
                 MassDetector detector = massDetector.getModule();
                 DataPoint mzPeaks[] = detector.getMassValues(scan,
-                        massDetector.getParameterSet());
+                        massDetector.getParameterSet(), buffer);
 
                 SimpleMassList newMassList = new SimpleMassList(name, scan, mzPeaks);
 
                 // Add new mass list to the scan
                 scan.addMassList(newMassList);
 
-                curTotalIntensity = 0;
-                for (int a=0;a<mzPeaks.length;a++){
-                    DataPoint curMzPeak = mzPeaks[a];
-                    allMZ.add(curMzPeak.getMZ());
-                    allIntensities.add(curMzPeak.getIntensity());
+                // The masses are only collected if we are going to write
+                // them to a CDF file, otherwise boxing every m/z and
+                // intensity value just produces garbage
+                if (saveToCDF) {
+                    curTotalIntensity = 0;
+                    for (int a=0;a<mzPeaks.length;a++){
+                        DataPoint curMzPeak = mzPeaks[a];
+                        allMZ.add(curMzPeak.getMZ());
+                        allIntensities.add(curMzPeak.getIntensity());
 
-                    curTotalIntensity += curMzPeak.getIntensity();
-                }
+                        curTotalIntensity += curMzPeak.getIntensity();
+                    }
 
-                scanAcquisitionTime.add(scan.getRetentionTime());
-                pointsInScans.add(0);
-                startIndex.add(mzPeaks.length+lastPointCount);
-                totalIntensity.add(curTotalIntensity);
+                    scanAcquisitionTime.add(scan.getRetentionTime());
+                    pointsInScans.add(0);
+                    startIndex.add(mzPeaks.length+lastPointCount);
+                    totalIntensity.add(curTotalIntensity);
 
 
-                lastPointCount = mzPeaks.length+lastPointCount;
+                    lastPointCount = mzPeaks.length+lastPointCount;
+                }
 
                 processedScans++;
             }
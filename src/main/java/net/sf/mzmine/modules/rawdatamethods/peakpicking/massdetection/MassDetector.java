@@ -23,6 +23,7 @@ import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.modules.MZmineModule;
 import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.util.DataPointsBuffer;
 
 /**
  * 
@@ -34,4 +35,14 @@ public interface MassDetector extends MZmineModule {
      */
     public DataPoint[] getMassValues(Scan scan, ParameterSet parameters);
 
+    /**
+     * Returns mass and intensity values detected in given scan. Detectors may
+     * read the scan data points into the given buffer, which the caller reuses
+     * for all its scans.
+     */
+    public default DataPoint[] getMassValues(Scan scan, ParameterSet parameters,
+            DataPointsBuffer buffer) {
+        return getMassValues(scan, parameters);
+    }
+
 }
@@ -25,27 +25,40 @@ import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetector;
 import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.util.DataPointsBuffer;
 
 public class CentroidMassDetector implements MassDetector {
 
     public DataPoint[] getMassValues(Scan scan, ParameterSet parameters) {
+	return getMassValues(scan, parameters, new DataPointsBuffer());
+    }
+
+    @Override
+    public DataPoint[] getMassValues(Scan scan, ParameterSet parameters,
+	    DataPointsBuffer buffer) {
 
 	double noiseLevel = parameters.getParameter(
 		CentroidMassDetectorParameters.noiseLevel).getValue();
 
 	ArrayList<DataPoint> mzPeaks = new ArrayList<DataPoint>();
 
-	DataPoint dataPoints[] = scan.getDataPoints();
+	// Read the scan into primitive arrays, so only the data points above
+	// the noise level are instantiated
+	final int numOfDataPoints = buffer.readScan(scan);
+	final double mzValues[] = buffer.getMzValues();
+	final double intensityValues[] = buffer.getIntensityValues();
 
 	// Find possible mzPeaks
-	for (int j = 0; j < dataPoints.length; j++) {
+	for (int j = 0; j < numOfDataPoints; j++) {
 
 	    // Is intensity above the noise level?
-	    if (dataPoints[j].getIntensity() >= noiseLevel) {
+	    if (intensityValues[j] >= noiseLevel) {
 		// Yes, then mark this index as mzPeak
-		mzPeaks.add(dataPoints[j]);
+		mzPeaks.add(new SimpleDataPoint(mzValues[j],
+			intensityValues[j]));
 	    }
 	}
 	return mzPeaks.toArray(new DataPoint[0]);
@@ -25,8 +25,10 @@ import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetector;
 import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.util.DataPointsBuffer;
 
 /**
  * This class detects all local maxima in a given scan.
@@ -34,6 +36,12 @@ import net.sf.mzmine.parameters.ParameterSet;
 public class LocalMaxMassDetector implements MassDetector {
 
     public DataPoint[] getMassValues(Scan scan, ParameterSet parameters) {
+	return getMassValues(scan, parameters, new DataPointsBuffer());
+    }
+
+    @Override
+    public DataPoint[] getMassValues(Scan scan, ParameterSet parameters,
+	    DataPointsBuffer buffer) {
 
 	double noiseLevel = parameters.getParameter(
 		LocalMaxMassDetectorParameters.noiseLevel).getValue();
@@ -41,23 +49,24 @@ public class LocalMaxMassDetector implements MassDetector {
 	// List of found mz peaks
 	ArrayList<DataPoint> mzPeaks = new ArrayList<DataPoint>();
 
-	DataPoint dataPoints[] = scan.getDataPoints();
-
-	// All data points of current m/z peak
+	// Read the scan into primitive arrays, so only the detected m/z peaks
+	// are instantiated
+	final int numOfDataPoints = buffer.readScan(scan);
+	final double mzValues[] = buffer.getMzValues();
+	final double intensityValues[] = buffer.getIntensityValues();
 
-	// Top data point of current m/z peak
-	DataPoint currentMzPeakTop = null;
+	// Index of the top data point of current m/z peak
+	int currentMzPeakTop = -1;
 
 	// True if we haven't reached the current local maximum yet
 	boolean ascending = true;
 
 	// Iterate through all data points
-	for (int i = 0; i < dataPoints.length - 1; i++) {
+	for (int i = 0; i < numOfDataPoints - 1; i++) {
 
-	    boolean nextIsBigger = dataPoints[i + 1].getIntensity() > dataPoints[i]
-		    .getIntensity();
-	    boolean nextIsZero = dataPoints[i + 1].getIntensity() == 0;
-	    boolean currentIsZero = dataPoints[i].getIntensity() == 0;
+	    boolean nextIsBigger = intensityValues[i + 1] > intensityValues[i];
+	    boolean nextIsZero = intensityValues[i + 1] == 0;
+	    boolean currentIsZero = intensityValues[i] == 0;
 
 	    // Ignore zero intensity regions
 	    if (currentIsZero)
@@ -65,19 +74,20 @@ public class LocalMaxMassDetector implements MassDetector {
 
 	    // Check for local maximum
 	    if (ascending && (!nextIsBigger)) {
-		currentMzPeakTop = dataPoints[i];
+		currentMzPeakTop = i;
 		ascending = false;
 		continue;
 	    }
 
-	    assert currentMzPeakTop != null;
+	    assert currentMzPeakTop >= 0;
 
 	    // Check for the end of the peak
 	    if ((!ascending) && (nextIsBigger || nextIsZero)) {
 
 		// Add the m/z peak if it is above the noise level
-		if (currentMzPeakTop.getIntensity() > noiseLevel) {
-		    mzPeaks.add(currentMzPeakTop);
+		if (intensityValues[currentMzPeakTop] > noiseLevel) {
+		    mzPeaks.add(new SimpleDataPoint(mzValues[currentMzPeakTop],
+			    intensityValues[currentMzPeakTop]));
 		}
 
 		// Reset and start with new peak
@@ -22,6 +22,8 @@ package net.sf.mzmine.modules.rawdatamethods.peakpicking.targetedpeakdetection;
 import java.util.List;
 import java.util.Vector;
 
+import javax.annotation.Nonnull;
+
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature.FeatureStatus;
 import net.sf.mzmine.datamodel.PeakListRow;
@@ -30,10 +32,11 @@ import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleFeature;
 import net.sf.mzmine.util.ScanUtils;
+import net.sf.mzmine.util.XICExtractor;
 
 import com.google.common.collect.Range;
 
-class Gap {
+class Gap implements XICExtractor.Target {
 
     private PeakListRow peakListRow;
     private RawDataFile rawDataFile;
@@ -64,7 +67,32 @@ class Gap {
 	this.noiseLevel = noiseLevel;
     }
 
-    void offerNextScan(Scan scan) {
+    @Override
+    public @Nonnull Range<Double> getMZRange() {
+	return mzRange;
+    }
+
+    @Override
+    public @Nonnull Range<Double> getRTRange() {
+	return rtRange;
+    }
+
+    /**
+     * After the RT range, the scans are needed only until the last peak is
+     * finished
+     */
+    @Override
+    public boolean isFinished(double scanRT) {
+	return (scanRT > rtRange.upperEndpoint())
+		&& (currentPeakDataPoints == null);
+    }
+
+    /**
+     * Adds the top m/z peak of the next scan within our m/z range, see
+     * XICExtractor
+     */
+    @Override
+    public void addDataPoint(@Nonnull Scan scan, double mz, double intensity) {
 
 	double scanRT = scan.getRetentionTime();
 
@@ -74,24 +102,12 @@ class Gap {
 	}
 
 	// If we have passed the RT range and finished processing last peak
-	if ((scanRT > rtRange.upperEndpoint())
-		&& (currentPeakDataPoints == null)) {
+	if (isFinished(scanRT)) {
 	    return;
 	}
 
-	// Find top m/z peak in our range
-	DataPoint basePeak = ScanUtils.findBasePeak(scan, mzRange);
-
-	GapDataPoint currentDataPoint;
-	if (basePeak != null) {
-	    currentDataPoint = new GapDataPoint(scan.getScanNumber(),
-		    basePeak.getMZ(), scanRT, basePeak.getIntensity());
-	} else {
-	    final double mzCenter = (mzRange.lowerEndpoint() + mzRange
-		    .upperEndpoint()) / 2.0;
-	    currentDataPoint = new GapDataPoint(scan.getScanNumber(), mzCenter,
-		    scanRT, 0);
-	}
+	GapDataPoint currentDataPoint = new GapDataPoint(scan.getScanNumber(),
+		mz, scanRT, intensity);
 
 	// If we have not yet started, just create a new peak
 	if (currentPeakDataPoints == null) {
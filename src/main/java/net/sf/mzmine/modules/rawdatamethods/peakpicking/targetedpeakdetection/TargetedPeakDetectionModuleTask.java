@@ -28,7 +28,6 @@ import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
-import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimplePeakIdentity;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
@@ -40,6 +39,7 @@ import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.XICExtractor;
 
 import com.Ostermiller.util.CSVParser;
 import com.google.common.collect.Range;
@@ -56,7 +56,7 @@ class TargetedPeakDetectionModuleTask extends AbstractTask {
   private RTTolerance rtTolerance;
   private double intTolerance;
   private ParameterSet parameters;
-  private int processedScans, totalScans;
+  private volatile XICExtractor extractor;
   private File peakListFile;
   private String fieldSeparator;
   private boolean ignoreFirstLine;
@@ -89,9 +89,6 @@ class TargetedPeakDetectionModuleTask extends AbstractTask {
 
     setStatus(TaskStatus.PROCESSING);
 
-    // Calculate total number of scans in all files
-    totalScans = dataFile.getNumOfScans(1);
-
     // Create new peak list
     processedPeakList = new SimplePeakList(dataFile.getName() + " " + suffix, dataFile);
 
@@ -133,31 +130,11 @@ class TargetedPeakDetectionModuleTask extends AbstractTask {
 
     }
 
-    // Stop processing this file if there are no gaps
-    if (gaps.isEmpty()) {
-      processedScans += dataFile.getNumOfScans();
-    }
-
-    // Get all scans of this data file
-    int scanNumbers[] = dataFile.getScanNumbers(1);
-
-    // Process each scan
-    for (int scanNumber : scanNumbers) {
-
-      // Canceled?
-      if (isCanceled()) {
-        return;
-      }
-
-      // Get the scan
-      Scan scan = dataFile.getScan(scanNumber);
-
-      // Feed this scan to all gaps
-      for (Gap gap : gaps) {
-        gap.offerNextScan(scan);
-      }
-
-      processedScans++;
+    // Feed all scans of this data file to the gaps in a single pass, each
+    // scan is read only if any gap needs it
+    extractor = new XICExtractor(gaps);
+    if (!extractor.extract(dataFile, dataFile.getScanNumbers(1), this)) {
+      return;
     }
 
     // Finalize gaps
@@ -219,10 +196,11 @@ class TargetedPeakDetectionModuleTask extends AbstractTask {
   }
 
   public double getFinishedPercentage() {
-    if (totalScans == 0) {
+    final XICExtractor extractor = this.extractor;
+    if (extractor == null) {
       return 0;
     }
-    return (double) processedScans / (double) totalScans;
+    return extractor.getFinishedPercentage();
 
   }
 
@@ -1,17 +1,17 @@
 /*
  * Copyright 2006-2015 The MZmine 2 Development Team
- * 
+ *
  * This file is part of MZmine 2.
- * 
+ *
  * MZmine 2 is free software; you can redistribute it and/or modify it under the
  * terms of the GNU General Public License as published by the Free Software
  * Foundation; either version 2 of the License, or (at your option) any later
  * version.
- * 
+ *
  * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
  * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
  * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
- * 
+ *
  * You should have received a copy of the GNU General Public License along with
  * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
  * St, Fifth Floor, Boston, MA 02110-1301 USA
@@ -21,26 +21,27 @@ package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Hashtable;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.List;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
-import com.alanmrace.jimzmlparser.imzml.ImzML;
-import com.alanmrace.jimzmlparser.mzml.BinaryDataArray;
-import com.alanmrace.jimzmlparser.mzml.BinaryDataArrayList;
-import com.alanmrace.jimzmlparser.mzml.CVParam;
-import com.alanmrace.jimzmlparser.mzml.Precursor;
-import com.alanmrace.jimzmlparser.mzml.PrecursorList;
-import com.alanmrace.jimzmlparser.mzml.Scan;
-import com.alanmrace.jimzmlparser.mzml.ScanList;
-import com.alanmrace.jimzmlparser.mzml.SelectedIon;
-import com.alanmrace.jimzmlparser.mzml.SelectedIonList;
-import com.alanmrace.jimzmlparser.mzml.Spectrum;
-import com.alanmrace.jimzmlparser.mzml.SpectrumList;
-import com.alanmrace.jimzmlparser.parser.ImzMLHandler;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 import net.sf.mzmine.datamodel.Coordinates;
 import net.sf.mzmine.datamodel.DataPoint;
@@ -51,44 +52,89 @@ import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.datamodel.impl.CoordinatesXY;
 import net.sf.mzmine.datamodel.impl.CoordinatesXYZ;
 import net.sf.mzmine.datamodel.impl.ImagingParameters;
-import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.ImagingParameters.HorizontalStart;
+import net.sf.mzmine.datamodel.impl.ImagingParameters.ScanDirection;
+import net.sf.mzmine.datamodel.impl.ImagingParameters.VerticalStart;
 import net.sf.mzmine.datamodel.impl.SimpleImagingScan;
-import net.sf.mzmine.datamodel.impl.SimpleScan;
 import net.sf.mzmine.project.impl.ImagingRawDataFileImpl;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
-import net.sf.mzmine.util.ScanUtils; 
+import net.sf.mzmine.util.ScanUtils;
 
 /**
- * This class reads mzML 1.0 and 1.1.0 files
- * (http://www.psidev.info/index.php?q=node/257) using the jmzml library
- * (http://code.google.com/p/jmzml/).
+ * This class reads imzML files (http://www.imzml.org). Only the XML metadata
+ * of each spectrum (position, offsets and lengths of its arrays in the binary
+ * file etc.) are parsed, using a SAX parser. The m/z and intensity arrays are
+ * read from the memory-mapped .ibd file and stored as soon as the spectrum
+ * element is closed, so no object model of the whole file is built. Both
+ * continuous (one m/z array shared by all spectra) and processed files are
+ * supported; in continuous files, the shared m/z array is decoded only once.
+ * Arrays compressed by zlib are inflated after they are read.
  */
 public class ImzMLReadTask extends AbstractTask {
 
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
+    // Controlled vocabulary accessions
+    private static final String CONTINUOUS = "IMS:1000030";
+    private static final String PROCESSED = "IMS:1000031";
+    private static final String MAX_COUNT_OF_PIXELS_X = "IMS:1000042";
+    private static final String MAX_COUNT_OF_PIXELS_Y = "IMS:1000043";
+    private static final String MAX_DIMENSION_X = "IMS:1000044";
+    private static final String MAX_DIMENSION_Y = "IMS:1000045";
+    private static final String PIXEL_SIZE_X = "IMS:1000046";
+    private static final String PIXEL_SIZE_Y = "IMS:1000047";
+    private static final String POSITION_X = "IMS:1000050";
+    private static final String POSITION_Y = "IMS:1000051";
+    private static final String POSITION_Z = "IMS:1000052";
+    private static final String EXTERNAL_OFFSET = "IMS:1000102";
+    private static final String EXTERNAL_ARRAY_LENGTH = "IMS:1000103";
+    private static final String EXTERNAL_ENCODED_LENGTH = "IMS:1000104";
+    private static final String LINE_SCAN_RIGHT_LEFT = "IMS:1000490";
+    private static final String LINE_SCAN_BOTTOM_UP = "IMS:1000492";
+    private static final String SCAN_PATTERN_MEANDERING = "IMS:1000410";
+    private static final String SCAN_PATTERN_RANDOM_ACCESS = "IMS:1000412";
+    private static final String SCAN_PATTERN_FLYBACK = "IMS:1000413";
+    private static final String SCAN_TYPE_VERTICAL = "IMS:1000481";
+    private static final String MZ_ARRAY = "MS:1000514";
+    private static final String INTENSITY_ARRAY = "MS:1000515";
+    private static final String FLOAT_32 = "MS:1000521";
+    private static final String FLOAT_64 = "MS:1000523";
+    private static final String[] INT_32 = { "MS:1000519", "IMS:1000141" };
+    private static final String[] INT_64 = { "MS:1000522", "IMS:1000142" };
+    private static final String ZLIB_COMPRESSION = "MS:1000574";
+    private static final String MS_LEVEL = "MS:1000511";
+    private static final String POSITIVE_SCAN = "MS:1000130";
+    private static final String NEGATIVE_SCAN = "MS:1000129";
+    private static final String FILTER_STRING = "MS:1000512";
+    private static final String SCAN_START_TIME = "MS:1000016";
+    private static final String ELECTROMAGNETIC_RADIATION_SPECTRUM = "MS:1000804";
+    private static final String SELECTED_ION_MZ = "MS:1000744";
+    private static final String SELECTED_ION_MZ_1_0 = "MS:1000040";
+    private static final String CHARGE_STATE = "MS:1000041";
+
+    private static final Pattern scanNumberPattern = Pattern
+            .compile("scan=([0-9]+)");
+
     private File file;
     private MZmineProject project;
     private RawDataFileWriter newMZmineFile;
+    private RawDataFileImpl storage;
     private ImagingRawDataFileImpl finalRawDataFile;
     private int totalScans = 0, parsedScans;
 
     private int lastScanNumber = 0;
 
-    private Map<String, Integer> scanIdTable = new Hashtable<String, Integer>();
+    private final ImagingParameters imagingParameters = new ImagingParameters();
+    private boolean pixelShapeGiven = false;
+    private int maxX, maxY, maxZ;
+    private double minMZ = Double.MAX_VALUE, maxMZ = -Double.MAX_VALUE;
+    private Coordinates firstCoordinates;
+    private int spectraAtFirstCoordinates;
 
-    /*
-     * This stack stores at most 20 consecutive scans. This window serves to
-     * find possible fragments (current scan) that belongs to any of the stored
-     * scans in the stack. The reason of the size follows the concept of
-     * neighborhood of scans and all his fragments. These solution is
-     * implemented because exists the possibility to find fragments of one scan
-     * after one or more full scans.
-     */
-    private static final int PARENT_STACK_SIZE = 20;
-    private LinkedList<SimpleScan> parentStack = new LinkedList<SimpleScan>();
+    private IbdFile ibdFile;
 
     public ImzMLReadTask(MZmineProject project, File fileToOpen,
             RawDataFileWriter newMZmineFile) {
@@ -112,88 +158,36 @@ public class ImzMLReadTask extends AbstractTask {
         setStatus(TaskStatus.PROCESSING);
         logger.info("Started parsing file " + file);
 
-        //file = new File("C:/DATA/MALDI Sh/examples/Example_Processed.imzML");
-        ImzML imzml = ImzMLHandler.parseimzML(file.getAbsolutePath());
-        
-        SpectrumList spectra = imzml.getRun().getSpectrumList();
-        totalScans = spectra.size();
-        
-        try {
-
-            for(int i=0; i<totalScans; i++) {
-
-                if (isCanceled())
-                    return;
-
-                Spectrum spectrum = spectra.get(i);
-
-                // Ignore scans that are not MS, e.g. UV
-                if (!isMsSpectrum(spectrum)) {
-                    parsedScans++;
-                    continue;
-                }
-
-                String scanId = spectrum.getID();
-                int scanNumber = convertScanIdToScanNumber(scanId);
-
-                // Extract scan data
-                int msLevel = extractMSLevel(spectrum);
-                double retentionTime = extractRetentionTime(spectrum);
-                PolarityType polarity = extractPolarity(spectrum);
-                int parentScan = extractParentScanNumber(spectrum);
-                double precursorMz = extractPrecursorMz(spectrum);
-                int precursorCharge = extractPrecursorCharge(spectrum);
-                String scanDefinition = extractScanDefinition(spectrum);
-                DataPoint dataPoints[] = extractDataPoints(spectrum);
-                
-                // imaging
-                Coordinates coord = extractCoordinates(spectrum);
-
-                // Auto-detect whether this scan is centroided
-                MassSpectrumType spectrumType = ScanUtils
-                        .detectSpectrumType(dataPoints);
-
-                SimpleImagingScan scan = new SimpleImagingScan(null, scanNumber, msLevel,
-                        retentionTime, precursorMz, precursorCharge, null,
-                        dataPoints, spectrumType, polarity, scanDefinition,
-                        null, coord);
-
-                for (SimpleScan s : parentStack) {
-                    if (s.getScanNumber() == parentScan) {
-                        s.addFragmentScan(scanNumber);
-                    }
-                }
+        // Use the default (non-validating) parser
+        SAXParserFactory factory = SAXParserFactory.newInstance();
 
-                /*
-                 * Verify the size of parentStack. The actual size of the window
-                 * to cover possible candidates is defined by limitSize.
-                 */
-                if (parentStack.size() > PARENT_STACK_SIZE) {
-                    SimpleScan firstScan = parentStack.removeLast();
-                    newMZmineFile.addScan(firstScan);
-                }
+        try {
 
-                parentStack.addFirst(scan);
-
-                parsedScans++;
+            storage = (RawDataFileImpl) newMZmineFile;
+            ibdFile = new IbdFile(findIbdFile());
 
+            try {
+                SAXParser saxParser = factory.newSAXParser();
+                saxParser.parse(file, new ImzMLHandler());
+            } finally {
+                ibdFile.close();
             }
 
-            while (!parentStack.isEmpty()) {
-                SimpleScan scan = parentStack.removeLast();
-                newMZmineFile.addScan(scan);
-
-            }
+            if (isCanceled())
+                return;
 
-            finalRawDataFile = (ImagingRawDataFileImpl)newMZmineFile.finishWriting();
+            finalRawDataFile = (ImagingRawDataFileImpl) newMZmineFile
+                    .finishWriting();
             // set settings of image
-            finalRawDataFile.setImagingParam(new ImagingParameters(imzml));
-            // 
+            finalRawDataFile.setImagingParam(finishImagingParameters());
             project.addFile(finalRawDataFile);
 
         } catch (Throwable e) {
+            /* we may already have set the status to CANCELED */
+            if (isCanceled())
+                return;
             setStatus(TaskStatus.ERROR);
-            setErrorMessage("Error parsing mzML: "
+            setErrorMessage("Error parsing imzML: "
                     + ExceptionUtils.exceptionToString(e));
             e.printStackTrace();
             return;
@@ -211,219 +205,553 @@ public class ImzMLReadTask extends AbstractTask {
 
     }
 
-    private int convertScanIdToScanNumber(String scanId) {
+    /**
+     * The binary data are stored in a file with the same name as the imzML
+     * file and the .ibd extension
+     */
+    private File findIbdFile() throws IOException {
+        final String name = file.getName();
+        final int dot = name.lastIndexOf('.');
+        final String baseName = (dot > 0) ? name.substring(0, dot) : name;
+        for (String extension : new String[] { ".ibd", ".IBD", ".Ibd" }) {
+            File ibd = new File(file.getParentFile(), baseName + extension);
+            if (ibd.exists())
+                return ibd;
+        }
+        throw new IOException("Cannot find the binary data file " + baseName
+                + ".ibd of " + file);
+    }
 
-        if (scanIdTable.containsKey(scanId))
-            return scanIdTable.get(scanId);
+    /**
+     * Sets the image dimensions and the m/z range, which were not given
+     * explicitly, from the imported spectra
+     */
+    private ImagingParameters finishImagingParameters() {
+        if (imagingParameters.getWidth() <= maxX)
+            imagingParameters.setWidth(maxX + 1);
+        if (imagingParameters.getHeight() <= maxY)
+            imagingParameters.setHeight(maxY + 1);
+        imagingParameters.setDepth(maxZ + 1);
+        if (!pixelShapeGiven)
+            imagingParameters.setPixelShape(imagingParameters.getPixelWidth());
+        imagingParameters.setSpectraPerPixel(Math.max(1,
+                spectraAtFirstCoordinates));
+        if (minMZ <= maxMZ) {
+            imagingParameters.setMinMZ(minMZ);
+            imagingParameters.setMaxMZ(maxMZ);
+        }
+        if (imagingParameters.getvStart() == null)
+            imagingParameters.setvStart(VerticalStart.TOP);
+        if (imagingParameters.gethStart() == null)
+            imagingParameters.sethStart(HorizontalStart.LEFT);
+        if (imagingParameters.getScanDirection() == null)
+            imagingParameters.setScanDirection(ScanDirection.HORIZONTAL);
+        return imagingParameters;
+    }
 
-        final Pattern pattern = Pattern.compile("scan=([0-9]+)");
-        final Matcher matcher = pattern.matcher(scanId);
-        boolean scanNumberFound = matcher.find();
+    private int convertScanIdToScanNumber(String scanId) {
 
         // Some vendors include scan=XX in the ID, some don't, such as
         // mzML converted from WIFF files. See the definition of nativeID in
         // http://psidev.cvs.sourceforge.net/viewvc/psidev/psi/psi-ms/mzML/controlledVocabulary/psi-ms.obo
-        if (scanNumberFound) {
-            int scanNumber = Integer.parseInt(matcher.group(1));
-            scanIdTable.put(scanId, scanNumber);
-            return scanNumber;
+        if (scanId != null) {
+            final Matcher matcher = scanNumberPattern.matcher(scanId);
+            if (matcher.find())
+                return Integer.parseInt(matcher.group(1));
         }
 
-        int scanNumber = lastScanNumber + 1;
         lastScanNumber++;
-        scanIdTable.put(scanId, scanNumber);
-        return scanNumber;
+        return lastScanNumber;
     }
 
-    private int extractMSLevel(Spectrum spectrum) {
-        // Browse the spectrum parameters
-        // MS level MS:1000511
-    	CVParam param = spectrum.getCVParam(Spectrum.msLevel);
-    	if(param!=null)
-    		return param.getValueAsInteger();
-        return 1;
+    public String getTaskDescription() {
+        return "Opening file " + file;
     }
 
-    private double extractRetentionTime(Spectrum spectrum) {
-        ScanList scanListElement = spectrum.getScanList();
-        if (scanListElement == null)
-            return 0; 
-
-        for (Scan scan : scanListElement) {
-        	try {
-        		// scan start time correct?
-        		CVParam param = scan.getCVParam(Scan.scanStartTimeID);
-        		if(param!=null)
-        			return param.getValueAsDouble();
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-        }
-
-        return 0;
+    /**
+     * Location and format of one binary data array of a spectrum
+     */
+    private static class BinaryArray {
+        boolean mzArray, intensityArray, compressed;
+        int valueSize = 4;
+        boolean integer = false;
+        long offset = -1;
+        int length;
+        long encodedLength = -1;
     }
 
-    private DataPoint[] extractDataPoints(Spectrum spectrum) {
-		try {
-	        BinaryDataArrayList dataList = spectrum.getBinaryDataArrayList();
-	
-	        BinaryDataArray mzArray = dataList.getmzArray();
-	        double mzValues[] = mzArray.getDataAsDouble();
-	        if ((dataList == null) || (mzValues.length==0))
-	            return new DataPoint[0];
-	
-	        BinaryDataArray intensityArray = dataList.getIntensityArray();
-	        double intensityValues[] = intensityArray.getDataAsDouble();
-	        DataPoint dataPoints[] = new DataPoint[mzValues.length];
-	        for (int i = 0; i < dataPoints.length; i++) {
-	            double mz = mzValues[i];
-	            double intensity = intensityValues[i];
-	            dataPoints[i] = new SimpleDataPoint(mz, intensity);
-	        }
-	        return dataPoints;
-	        
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-        return new DataPoint[0];
-    }
+    private class ImzMLHandler extends DefaultHandler {
+
+        // Parent elements of the current element
+        private final ArrayDeque<String> elements = new ArrayDeque<String>();
+
+        // cvParams of the referenceable parameter groups, as (accession,
+        // value, unit accession) triples
+        private final Hashtable<String, List<String[]>> paramGroups = new Hashtable<String, List<String[]>>();
+        private List<String[]> currentGroup;
+
+        // Continuous mode shares the m/z array of all spectra, so the last
+        // decoded m/z array is kept
+        private boolean continuous = false;
+        private long lastMzOffset = -1;
+        private int lastMzLength = -1;
+
+        private double mzValues[] = new double[0];
+        private double intensityValues[] = new double[0];
+
+        // The spectrum being parsed
+        private String spectrumId;
+        private int msLevel;
+        private double retentionTime, precursorMz;
+        private int precursorCharge;
+        private PolarityType polarity;
+        private String scanDefinition;
+        private boolean msSpectrum;
+        private int x, y, z;
+        private boolean hasPosition, hasZ;
+        private List<BinaryArray> arrays = new ArrayList<BinaryArray>();
+        private BinaryArray currentArray;
+
+        public void startElement(String namespaceURI, String lName,
+                String qName, Attributes attrs) throws SAXException {
+
+            if (isCanceled())
+                throw new SAXException("Parsing Cancelled");
+
+            final String parent = elements.peek();
+            elements.push(qName);
+
+            switch (qName) {
+
+            case "referenceableParamGroup":
+                currentGroup = new ArrayList<String[]>();
+                paramGroups.put(attrs.getValue("id"), currentGroup);
+                break;
+
+            case "spectrumList":
+                final String count = attrs.getValue("count");
+                if (count != null)
+                    totalScans = Integer.parseInt(count);
+                break;
+
+            case "spectrum":
+                spectrumId = attrs.getValue("id");
+                msLevel = 1;
+                retentionTime = 0;
+                precursorMz = 0;
+                precursorCharge = 0;
+                polarity = PolarityType.UNKNOWN;
+                scanDefinition = null;
+                msSpectrum = true;
+                hasPosition = false;
+                hasZ = false;
+                arrays.clear();
+                break;
+
+            case "binaryDataArray":
+                currentArray = new BinaryArray();
+                arrays.add(currentArray);
+                break;
+
+            case "cvParam":
+                handleParam(parent, attrs.getValue("accession"),
+                        attrs.getValue("value"),
+                        attrs.getValue("unitAccession"));
+                break;
+
+            case "referenceableParamGroupRef":
+                List<String[]> group = paramGroups.get(attrs.getValue("ref"));
+                if (group == null)
+                    break;
+                for (String param[] : group)
+                    handleParam(parent, param[0], param[1], param[2]);
+                break;
 
-    private Coordinates extractCoordinates(Spectrum spectrum) {
-    	ScanList list = spectrum.getScanList();
-    	if(list!=null) {
-	    	for (Scan scan : spectrum.getScanList()) {
-	            CVParam xValue = scan.getCVParam(Scan.positionXID);
-	            CVParam yValue = scan.getCVParam(Scan.positionYID);
-	            CVParam zValue = scan.getCVParam(Scan.positionZID);
-	
-	            if (xValue != null && yValue != null) {
-	                int x = xValue.getValueAsInteger()-1;
-	                int y = yValue.getValueAsInteger()-1;
-
-	                if(zValue!=null)
-	            		return new CoordinatesXYZ(x,y,zValue.getValueAsInteger()-1);
-	            	else return new CoordinatesXY(x,y);
-	            }
-	        }
-    	}
-		return null;
-    }
-    
-
-    private int extractParentScanNumber(Spectrum spectrum) {
-        PrecursorList precursorListElement = spectrum.getPrecursorList();
-        if ((precursorListElement == null)
-                || (precursorListElement.size()==0))
-            return -1;
-
-        for (Precursor parent : precursorListElement) {
-            // Get the precursor scan number
-            String precursorScanId = parent.getSpectrumRef().getID();
-            if (precursorScanId == null) {
-                return -1;
             }
-            int parentScan = convertScanIdToScanNumber(precursorScanId);
-            return parentScan;
+
         }
-        return -1;
-    }
 
-    private double extractPrecursorMz(Spectrum spectrum) {
+        public void endElement(String namespaceURI, String sName, String qName)
+                throws SAXException {
+
+            elements.pop();
+
+            switch (qName) {
+
+            case "referenceableParamGroup":
+                currentGroup = null;
+                break;
+
+            case "binaryDataArray":
+                currentArray = null;
+                break;
 
-        PrecursorList precursorListElement = spectrum.getPrecursorList();
-        if ((precursorListElement == null) || (precursorListElement.size()==0))
-            return 0;
+            case "spectrum":
+                try {
+                    finishSpectrum();
+                } catch (IOException e) {
+                    throw new SAXException(e);
+                }
+                parsedScans++;
+                break;
 
-        for (Precursor parent : precursorListElement) {
+            }
 
-            SelectedIonList selectedIonListElement = parent.getSelectedIonList();
-            if ((selectedIonListElement == null) || (selectedIonListElement.size()==0))
-                return 0;
+        }
 
-            // MS:1000040 is used in mzML 1.0,
-            // MS:1000744 is used in mzML 1.1.0
-            for (SelectedIon sion : selectedIonListElement) {
-            	CVParam param = sion.getCVParam("MS:1000040");
-            	if(param!=null) 
-            		return param.getValueAsDouble();
+        /**
+         * Processes a cvParam of the given element
+         */
+        private void handleParam(String element, String accession,
+                String value, String unitAccession) {
+
+            if ((element == null) || (accession == null))
+                return;
+
+            switch (element) {
+
+            case "referenceableParamGroup":
+                currentGroup.add(new String[] { accession, value,
+                        unitAccession });
+                break;
+
+            case "fileContent":
+                if (accession.equals(CONTINUOUS))
+                    continuous = true;
+                else if (accession.equals(PROCESSED))
+                    continuous = false;
+                break;
+
+            case "scanSettings":
+                handleScanSettingsParam(accession, value);
+                break;
+
+            case "spectrum":
+            case "scan":
+                if (accession.equals(MS_LEVEL))
+                    msLevel = Integer.parseInt(value);
+                else if (accession.equals(POSITIVE_SCAN))
+                    polarity = PolarityType.POSITIVE;
+                else if (accession.equals(NEGATIVE_SCAN))
+                    polarity = PolarityType.NEGATIVE;
+                else if (accession.equals(FILTER_STRING))
+                    scanDefinition = value;
+                else if (accession.equals(ELECTROMAGNETIC_RADIATION_SPECTRUM))
+                    msSpectrum = false;
+                else if (accession.equals(SCAN_START_TIME)) {
+                    // Retention time in minutes, unless it is given in
+                    // seconds (UO:0000010)
+                    retentionTime = Double.parseDouble(value);
+                    if ("UO:0000010".equals(unitAccession))
+                        retentionTime /= 60d;
+                } else if (accession.equals(POSITION_X)) {
+                    x = Integer.parseInt(value) - 1;
+                    hasPosition = true;
+                } else if (accession.equals(POSITION_Y))
+                    y = Integer.parseInt(value) - 1;
+                else if (accession.equals(POSITION_Z)) {
+                    z = Integer.parseInt(value) - 1;
+                    hasZ = true;
+                }
+                break;
+
+            case "selectedIon":
+                // MS:1000040 is used in mzML 1.0,
+                // MS:1000744 is used in mzML 1.1.0
+                if (accession.equals(SELECTED_ION_MZ)
+                        || accession.equals(SELECTED_ION_MZ_1_0))
+                    precursorMz = Double.parseDouble(value);
+                else if (accession.equals(CHARGE_STATE))
+                    precursorCharge = Integer.parseInt(value);
+                break;
+
+            case "binaryDataArray":
+                if (accession.equals(MZ_ARRAY))
+                    currentArray.mzArray = true;
+                else if (accession.equals(INTENSITY_ARRAY))
+                    currentArray.intensityArray = true;
+                else if (accession.equals(FLOAT_32)) {
+                    currentArray.valueSize = 4;
+                    currentArray.integer = false;
+                } else if (accession.equals(FLOAT_64)) {
+                    currentArray.valueSize = 8;
+                    currentArray.integer = false;
+                } else if (accession.equals(INT_32[0])
+                        || accession.equals(INT_32[1])) {
+                    currentArray.valueSize = 4;
+                    currentArray.integer = true;
+                } else if (accession.equals(INT_64[0])
+                        || accession.equals(INT_64[1])) {
+                    currentArray.valueSize = 8;
+                    currentArray.integer = true;
+                } else if (accession.equals(ZLIB_COMPRESSION))
+                    currentArray.compressed = true;
+                else if (accession.equals(EXTERNAL_OFFSET))
+                    currentArray.offset = Long.parseLong(value);
+                else if (accession.equals(EXTERNAL_ARRAY_LENGTH))
+                    currentArray.length = Integer.parseInt(value);
+                else if (accession.equals(EXTERNAL_ENCODED_LENGTH))
+                    currentArray.encodedLength = Long.parseLong(value);
+                break;
 
-            	param = sion.getCVParam("MS:1000744");
-            	if(param!=null) 
-            		return param.getValueAsDouble();
             }
+
         }
-        return 0;
-    }
 
-    private int extractPrecursorCharge(Spectrum spectrum) {
-        PrecursorList precursorList = spectrum.getPrecursorList();
-        if ((precursorList == null)
-                || (precursorList.size()==0))
-            return 0;
-
-        for (Precursor parent : precursorList) {
-            SelectedIonList selectedIonListElement = parent.getSelectedIonList();
-            if ((selectedIonListElement == null) || (selectedIonListElement.size()==0))
-                return 0;
-            
-            for (SelectedIon sion : selectedIonListElement) {
-            	
-            	// precursor charge 
-            	CVParam param = sion.getCVParam("MS:1000041");
-            	if(param!=null)
-            		return param.getValueAsInteger();
+        private void handleScanSettingsParam(String accession, String value) {
+            switch (accession) {
+            case MAX_COUNT_OF_PIXELS_X:
+                imagingParameters.setWidth(Integer.parseInt(value));
+                break;
+            case MAX_COUNT_OF_PIXELS_Y:
+                imagingParameters.setHeight(Integer.parseInt(value));
+                break;
+            case MAX_DIMENSION_X:
+                imagingParameters.setLateralWidth(Double.parseDouble(value));
+                break;
+            case MAX_DIMENSION_Y:
+                imagingParameters.setLateralHeight(Double.parseDouble(value));
+                break;
+            case PIXEL_SIZE_X:
+                imagingParameters.setPixelWidth(Double.parseDouble(value));
+                break;
+            case PIXEL_SIZE_Y:
+                // is this the shape or height? test dataset says height obo
+                // says shape
+                imagingParameters.setPixelShape(Double.parseDouble(value));
+                pixelShapeGiven = true;
+                break;
+            case LINE_SCAN_BOTTOM_UP:
+                imagingParameters.setvStart(VerticalStart.BOTTOM);
+                break;
+            case LINE_SCAN_RIGHT_LEFT:
+                imagingParameters.sethStart(HorizontalStart.RIGHT);
+                break;
+            case SCAN_PATTERN_MEANDERING:
+                imagingParameters.setPattern(ImagingParameters.Pattern.MEANDER);
+                break;
+            case SCAN_PATTERN_FLYBACK:
+                imagingParameters
+                        .setPattern(ImagingParameters.Pattern.FLY_BACK);
+                break;
+            case SCAN_PATTERN_RANDOM_ACCESS:
+                imagingParameters.setPattern(ImagingParameters.Pattern.RANDOM);
+                break;
+            case SCAN_TYPE_VERTICAL:
+                imagingParameters.setScanDirection(ScanDirection.VERTICAL);
+                break;
             }
         }
-        return 0;
-    }
 
-    private PolarityType extractPolarity(Spectrum spectrum) {
-        CVParam cv = spectrum.getCVParam(Spectrum.scanPolarityID);
-        if (spectrum.getCVParam("MS:1000130")!=null)
-            return PolarityType.POSITIVE;
-        else if(spectrum.getCVParam("MS:1000129")!=null)
-            return PolarityType.NEGATIVE;
-        
-        ScanList scanListElement = spectrum.getScanList();
-        if (scanListElement != null) {
-            for (int i=0; i<scanListElement.size(); i++) {
-            	Scan scan = scanListElement.get(i);
-
-                if (scan.getCVParam("MS:1000130")!=null)
-                    return PolarityType.POSITIVE;
-                else if(scan.getCVParam("MS:1000129")!=null)
-                    return PolarityType.NEGATIVE;
+        /**
+         * Reads the arrays of the spectrum from the binary file and stores
+         * the scan
+         */
+        private void finishSpectrum() throws IOException {
+
+            // Ignore scans that are not MS, e.g. UV
+            if (!msSpectrum)
+                return;
+
+            BinaryArray mzArray = null, intensityArray = null;
+            for (BinaryArray array : arrays) {
+                if (array.mzArray)
+                    mzArray = array;
+                else if (array.intensityArray)
+                    intensityArray = array;
+            }
+            if ((mzArray == null) || (intensityArray == null)
+                    || (mzArray.offset < 0) || (intensityArray.offset < 0))
+                throw new IOException("Missing binary data of spectrum "
+                        + spectrumId);
+            if ((mzArray.compressed && (mzArray.encodedLength < 0))
+                    || (intensityArray.compressed
+                            && (intensityArray.encodedLength < 0)))
+                throw new IOException(
+                        "Missing encoded length of compressed binary data of spectrum "
+                                + spectrumId);
+
+            final int numOfDataPoints = Math.min(mzArray.length,
+                    intensityArray.length);
+            if (mzValues.length < mzArray.length) {
+                mzValues = new double[mzArray.length];
+                lastMzOffset = -1;
             }
+            if (intensityValues.length < intensityArray.length)
+                intensityValues = new double[intensityArray.length];
+
+            if (!continuous || (mzArray.offset != lastMzOffset)
+                    || (mzArray.length != lastMzLength)) {
+                ibdFile.readValues(mzArray, mzValues);
+                lastMzOffset = mzArray.offset;
+                lastMzLength = mzArray.length;
+            }
+            ibdFile.readValues(intensityArray, intensityValues);
+
+            if (numOfDataPoints > 0) {
+                minMZ = Math.min(minMZ, mzValues[0]);
+                maxMZ = Math.max(maxMZ, mzValues[numOfDataPoints - 1]);
+            }
+
+            // imaging
+            Coordinates coordinates = null;
+            if (hasPosition) {
+                coordinates = hasZ ? new CoordinatesXYZ(x, y, z)
+                        : new CoordinatesXY(x, y);
+                maxX = Math.max(maxX, x);
+                maxY = Math.max(maxY, y);
+                if (hasZ)
+                    maxZ = Math.max(maxZ, z);
+                if (firstCoordinates == null)
+                    firstCoordinates = coordinates;
+                if ((coordinates.getX() == firstCoordinates.getX())
+                        && (coordinates.getY() == firstCoordinates.getY())
+                        && (coordinates.getZ() == firstCoordinates.getZ()))
+                    spectraAtFirstCoordinates++;
+            }
+
+            // Auto-detect whether this scan is centroided
+            MassSpectrumType spectrumType = ScanUtils.detectSpectrumType(
+                    mzValues, intensityValues, numOfDataPoints);
+
+            // The data points are passed to the raw data file as arrays, the
+            // scan only carries the other properties
+            final int scanNumber = convertScanIdToScanNumber(spectrumId);
+            SimpleImagingScan scan = new SimpleImagingScan(null, scanNumber,
+                    msLevel, retentionTime, precursorMz, precursorCharge,
+                    null, new DataPoint[0], spectrumType, polarity,
+                    scanDefinition != null ? scanDefinition : spectrumId,
+                    null, coordinates);
+
+            storage.addScan(scan, mzValues, intensityValues, numOfDataPoints);
+
         }
-        return PolarityType.UNKNOWN;
+
     }
 
-    private String extractScanDefinition(Spectrum spectrum) {
-        CVParam cvParams = spectrum.getCVParam("MS:1000512");
-        if(cvParams!=null) return cvParams.getValueAsString();
-        
-        ScanList scanListElement = spectrum.getScanList();
-        if (scanListElement != null) {
-                for (int i=0; i<scanListElement.size(); i++) {
-                	Scan scan = scanListElement.get(i);
-                	
-                    cvParams = scan.getCVParam("MS:1000512");
-                    if(cvParams!=null) return cvParams.getValueAsString();
-                }
+    /**
+     * The .ibd file, mapped into memory in windows of WINDOW_SIZE bytes. The
+     * spectra are usually stored in the order of the imzML file, so most
+     * arrays are read from the current window.
+     */
+    private static class IbdFile {
+
+        private static final int WINDOW_SIZE = 1 << 28;
+
+        private final File file;
+        private final RandomAccessFile randomAccessFile;
+        private final FileChannel channel;
+        private final long size;
+
+        private MappedByteBuffer window;
+        private long windowStart, windowEnd;
+
+        // Buffers for inflating compressed arrays
+        private final Inflater inflater = new Inflater();
+        private byte compressedBytes[] = new byte[0];
+        private byte inflatedBytes[] = new byte[0];
+
+        IbdFile(File file) throws IOException {
+            this.file = file;
+            this.randomAccessFile = new RandomAccessFile(file, "r");
+            this.channel = randomAccessFile.getChannel();
+            this.size = channel.size();
         }
-        return spectrum.getID();
-    }
 
-    public String getTaskDescription() {
-        return "Opening file " + file;
-    }
+        /**
+         * Reads the values of the array into the given array, as doubles
+         */
+        void readValues(BinaryArray array, double values[]) throws IOException {
+
+            final long numOfBytes = array.compressed ? array.encodedLength
+                    : (long) array.length * array.valueSize;
+            if ((array.offset < 0) || (array.offset + numOfBytes > size))
+                throw new IOException("Array of " + array.length
+                        + " values at offset " + array.offset
+                        + " exceeds the end of " + file);
+
+            if ((array.offset < windowStart)
+                    || (array.offset + numOfBytes > windowEnd)) {
+                final long mapSize = Math.min(
+                        Math.max(WINDOW_SIZE, numOfBytes), size - array.offset);
+                window = channel.map(FileChannel.MapMode.READ_ONLY,
+                        array.offset, mapSize);
+                windowStart = array.offset;
+                windowEnd = array.offset + mapSize;
+            }
+
+            // imzML binary data are little-endian
+            ByteBuffer data = window.duplicate().order(
+                    ByteOrder.LITTLE_ENDIAN);
+            data.position((int) (array.offset - windowStart));
+            if (array.compressed)
+                data = inflate(data, (int) numOfBytes, array.length
+                        * array.valueSize);
+
+            if (array.integer && (array.valueSize == 8)) {
+                for (int i = 0; i < array.length; i++)
+                    values[i] = data.getLong();
+            } else if (array.integer) {
+                for (int i = 0; i < array.length; i++)
+                    values[i] = data.getInt();
+            } else if (array.valueSize == 8) {
+                data.asDoubleBuffer().get(values, 0, array.length);
+            } else {
+                for (int i = 0; i < array.length; i++)
+                    values[i] = data.getFloat();
+            }
+
+        }
 
-    boolean isMsSpectrum(Spectrum spectrum) {
-    	// one thats not MS (code for UV?)
-        CVParam cvParams = spectrum.getCVParam("MS:1000804");
+        /**
+         * Inflates numOfBytes zlib-compressed bytes at the position of the
+         * given buffer, which must give exactly inflatedLength bytes
+         *
+         * @return Little-endian buffer of the inflated bytes
+         */
+        private ByteBuffer inflate(ByteBuffer data, int numOfBytes,
+                int inflatedLength) throws IOException {
+
+            if (compressedBytes.length < numOfBytes)
+                compressedBytes = new byte[numOfBytes];
+            if (inflatedBytes.length < inflatedLength + 1)
+                inflatedBytes = new byte[inflatedLength + 1];
+            data.get(compressedBytes, 0, numOfBytes);
+
+            // Inflate one byte more than expected, to detect longer data
+            inflater.reset();
+            inflater.setInput(compressedBytes, 0, numOfBytes);
+            int length = 0;
+            try {
+                while ((length <= inflatedLength) && !inflater.finished()) {
+                    final int inflated = inflater.inflate(inflatedBytes,
+                            length, inflatedLength + 1 - length);
+                    if ((inflated == 0)
+                            && (inflater.needsInput() || inflater
+                                    .needsDictionary()))
+                        break;
+                    length += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid compressed data in " + file
+                        + ": " + e.getMessage());
+            }
+            if (length != inflatedLength)
+                throw new IOException("Compressed array of " + numOfBytes
+                        + " bytes in " + file
+                        + " does not inflate to the expected "
+                        + inflatedLength + " bytes");
+
+            return ByteBuffer.wrap(inflatedBytes, 0, inflatedLength).order(
+                    ByteOrder.LITTLE_ENDIAN);
+        }
+
+        void close() throws IOException {
+            inflater.end();
+            window = null;
+            randomAccessFile.close();
+        }
 
-        // By default, let's assume unidentified spectra are MS spectra
-        return cvParams==null;
     }
 
-}
\ No newline at end of file
+}
@@ -43,13 +43,12 @@ import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import javax.swing.table.TableCellRenderer;
 import javax.swing.table.TableColumn;
-import javax.swing.table.TableRowSorter;
 
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.desktop.impl.WindowsMenu;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.visualization.peaklisttable.table.PeakListTable;
-import net.sf.mzmine.modules.visualization.peaklisttable.table.PeakListTableModel;
+import net.sf.mzmine.modules.visualization.peaklisttable.table.PeakListTableRowSorter;
 import net.sf.mzmine.modules.visualization.peaklisttable.table.PeakListTableColumnModel;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.WindowSettingsParameter;
@@ -74,6 +73,9 @@ public class PeakListTableWindow extends JFrame implements ActionListener {
     private JTextField filterTextIdentity;
     private JTextField filterTextComment;
 
+    // Texts of the current filter, in the order of the fields above
+    private String filterTexts[] = { "", "", "", "", "" };
+
     RowFilter<Object,Object > mzFilter = new RowFilter<Object, Object>() {
         public boolean include(Entry<? extends Object, ? extends Object> entry) {
             String mzValue = entry.getStringValue(1);
@@ -194,13 +196,11 @@ public class PeakListTableWindow extends JFrame implements ActionListener {
         });
     }
 
-    @SuppressWarnings("unchecked")
-	public void updateFilter() {
+    public void updateFilter() {
         
         List<RowFilter<Object,Object>> rowSorters = new ArrayList<RowFilter<Object,Object>>();
 
-        
-		TableRowSorter<PeakListTableModel> sorter = (TableRowSorter<PeakListTableModel>) table.getRowSorter();
+        PeakListTableRowSorter sorter = table.getTableRowSorter();
 
         String textId = "(?i)" + filterTextId.getText();
         String textIdentity = "(?i)" + filterTextIdentity.getText();
@@ -212,8 +212,26 @@ public class PeakListTableWindow extends JFrame implements ActionListener {
         rowSorters.add(RowFilter.regexFilter(textIdentity,3));
         rowSorters.add(RowFilter.regexFilter(textComment,4));
 
-        sorter.setRowFilter(RowFilter.andFilter(rowSorters));
-        table.setRowSorter(sorter);
+        String newTexts[] = { filterTextId.getText(), filterTextMz.getText(),
+                filterTextRt.getText(), filterTextIdentity.getText(),
+                filterTextComment.getText() };
+
+        // If the texts were only extended, the filter can only remove more
+        // rows. The m/z and RT texts are prefixes, the others are regular
+        // expressions and must be plain words for that.
+        boolean narrowed = true;
+        for (int i = 0; i < newTexts.length; i++) {
+            if (!newTexts[i].startsWith(filterTexts[i]))
+                narrowed = false;
+            if ((i != 1) && (i != 2) && !newTexts[i].matches("[\\w ]*"))
+                narrowed = false;
+        }
+        filterTexts = newTexts;
+
+        if (narrowed)
+            sorter.narrowRowFilter(RowFilter.andFilter(rowSorters));
+        else
+            sorter.setRowFilter(RowFilter.andFilter(rowSorters));
 
     }
     
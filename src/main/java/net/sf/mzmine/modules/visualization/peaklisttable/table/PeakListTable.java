@@ -33,7 +33,6 @@ import javax.swing.JTable;
 import javax.swing.UIManager;
 import javax.swing.event.RowSorterEvent;
 import javax.swing.table.TableCellEditor;
-import javax.swing.table.TableRowSorter;
 import net.sf.mzmine.datamodel.PeakIdentity;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
@@ -64,7 +63,7 @@ public class PeakListTable extends JTable implements ComponentToolTipProvider {
   private PeakListTableModel pkTableModel;
   private PeakList peakList;
   private PeakListRow peakListRow;
-  private TableRowSorter<PeakListTableModel> sorter;
+  private PeakListTableRowSorter sorter;
   private PeakListTableColumnModel cm;
   private ComponentToolTipManager ttm;
   private DefaultCellEditor currentEditor = null;
@@ -91,7 +90,7 @@ public class PeakListTable extends JTable implements ComponentToolTipProvider {
     cm.createColumns();
 
     // Initialize sorter
-    sorter = new TableRowSorter<PeakListTableModel>(pkTableModel);
+    sorter = new PeakListTableRowSorter(pkTableModel);
     setRowSorter(sorter);
 
     PeakListTablePopupMenu popupMenu = new PeakListTablePopupMenu(window, this, cm, peakList);
@@ -144,7 +143,7 @@ public class PeakListTable extends JTable implements ComponentToolTipProvider {
     return peakList;
   }
 
-  public TableRowSorter<PeakListTableModel> getTableRowSorter() {
+  public PeakListTableRowSorter getTableRowSorter() {
     return sorter;
   }
 
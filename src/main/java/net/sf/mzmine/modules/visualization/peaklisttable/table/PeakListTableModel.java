@@ -19,6 +19,13 @@
 
 package net.sf.mzmine.modules.visualization.peaklisttable.table;
 
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntBinaryOperator;
+
+import javax.swing.event.TableModelEvent;
 import javax.swing.table.AbstractTableModel;
 
 import net.sf.mzmine.datamodel.Feature;
@@ -36,6 +43,29 @@ public class PeakListTableModel extends AbstractTableModel {
 	private static final long serialVersionUID = 1L;
 	private PeakList peakList;
 
+	// Sort index of each column, built on first use and dropped whenever the
+	// model changes
+	private final Map<Integer, ColumnIndex> columnIndexes = new HashMap<Integer, ColumnIndex>();
+
+	/**
+	 * Sort order of the rows by the values of one column, see getColumnIndex()
+	 */
+	static class ColumnIndex {
+
+		// Model rows in ascending order of their values, rows with equal
+		// values in model order
+		final int sortedRows[];
+
+		// Rank of the value of each model row, equal for equal values
+		final int ranks[];
+
+		private ColumnIndex(int sortedRows[], int ranks[]) {
+			this.sortedRows = sortedRows;
+			this.ranks = ranks;
+		}
+
+	}
+
 	/**
 	 * Constructor, assign given dataset to this table
 	 */
@@ -180,6 +210,145 @@ public class PeakListTableModel extends AbstractTableModel {
 				peakListRow.setPreferredPeakIdentity((PeakIdentity) value);
 		}
 
+		fireTableCellUpdated(row, col);
+
+	}
+
+	/**
+	 * Drops the column indexes before the listeners are notified of any
+	 * change
+	 */
+	@Override
+	public void fireTableChanged(TableModelEvent e) {
+		columnIndexes.clear();
+		super.fireTableChanged(e);
+	}
+
+	/**
+	 * Returns the sort index of given column. The values of the column are
+	 * read once into an array of primitive sort keys, so the rows are compared
+	 * without reading the peak list rows again. Missing values are sorted
+	 * first, the other values like TableRowSorter would sort them.
+	 */
+	ColumnIndex getColumnIndex(int col) {
+
+		ColumnIndex index = columnIndexes.get(col);
+		if (index != null)
+			return index;
+
+		final int numOfRows = getRowCount();
+		final int rows[] = new int[numOfRows];
+		for (int row = 0; row < numOfRows; row++)
+			rows[row] = row;
+
+		final IntBinaryOperator comparator;
+		final Class<?> columnClass = getColumnClass(col);
+
+		if (Number.class.isAssignableFrom(columnClass)) {
+
+			final double values[] = new double[numOfRows];
+			final boolean missing[] = new boolean[numOfRows];
+			for (int row = 0; row < numOfRows; row++) {
+				Object value = getValueAt(row, col);
+				if (value == null)
+					missing[row] = true;
+				else
+					values[row] = ((Number) value).doubleValue();
+			}
+			comparator = (row1, row2) -> {
+				if (missing[row1] || missing[row2])
+					return Boolean.compare(!missing[row1], !missing[row2]);
+				return Double.compare(values[row1], values[row2]);
+			};
+
+		} else if (Enum.class.isAssignableFrom(columnClass)) {
+
+			final int ordinals[] = new int[numOfRows];
+			for (int row = 0; row < numOfRows; row++) {
+				Object value = getValueAt(row, col);
+				ordinals[row] = value == null ? -1 : ((Enum<?>) value)
+						.ordinal();
+			}
+			comparator = (row1, row2) -> Integer.compare(ordinals[row1],
+					ordinals[row2]);
+
+		} else {
+
+			// Other values are compared by their text
+			final Collator collator = Collator.getInstance();
+			final CollationKey keys[] = new CollationKey[numOfRows];
+			for (int row = 0; row < numOfRows; row++) {
+				Object value = getValueAt(row, col);
+				if (value != null)
+					keys[row] = collator.getCollationKey(value.toString());
+			}
+			comparator = (row1, row2) -> {
+				if ((keys[row1] == null) || (keys[row2] == null))
+					return Boolean.compare(keys[row1] != null,
+							keys[row2] != null);
+				return keys[row1].compareTo(keys[row2]);
+			};
+
+		}
+
+		sortRows(rows, comparator);
+
+		final int ranks[] = new int[numOfRows];
+		for (int i = 1; i < numOfRows; i++) {
+			ranks[rows[i]] = ranks[rows[i - 1]];
+			if (comparator.applyAsInt(rows[i - 1], rows[i]) != 0)
+				ranks[rows[i]]++;
+		}
+
+		index = new ColumnIndex(rows, ranks);
+		columnIndexes.put(col, index);
+		return index;
+
+	}
+
+	/**
+	 * Sorts the row indexes by given comparator. The sort is stable, so rows
+	 * which compare equal stay in their order.
+	 */
+	static void sortRows(int rows[], IntBinaryOperator comparator) {
+		if (rows.length > 1)
+			mergeSort(rows.clone(), rows, 0, rows.length, comparator);
+	}
+
+	private static void mergeSort(int src[], int dest[], int low, int high,
+			IntBinaryOperator comparator) {
+
+		// Insertion sort of short ranges
+		if (high - low < 8) {
+			for (int i = low + 1; i < high; i++) {
+				final int row = dest[i];
+				int j = i;
+				for (; (j > low) && (comparator.applyAsInt(dest[j - 1], row) > 0); j--)
+					dest[j] = dest[j - 1];
+				dest[j] = row;
+			}
+			return;
+		}
+
+		// Sort both halves of src, using dest as their source, and merge
+		// them into dest
+		final int mid = (low + high) >>> 1;
+		mergeSort(dest, src, low, mid, comparator);
+		mergeSort(dest, src, mid, high, comparator);
+
+		if (comparator.applyAsInt(src[mid - 1], src[mid]) <= 0) {
+			System.arraycopy(src, low, dest, low, high - low);
+			return;
+		}
+
+		for (int i = low, p = low, q = mid; i < high; i++) {
+			if ((q >= high)
+					|| ((p < mid) && (comparator.applyAsInt(src[p], src[q]) <= 0)))
+				dest[i] = src[p++];
+			else
+				dest[i] = src[q++];
+		}
+
 	}
 
 	boolean isCommonColumn(int col) {
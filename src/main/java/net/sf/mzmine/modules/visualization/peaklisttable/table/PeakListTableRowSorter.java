@@ -0,0 +1,392 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.visualization.peaklisttable.table;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.swing.RowFilter;
+import javax.swing.RowSorter;
+import javax.swing.SortOrder;
+
+import net.sf.mzmine.modules.visualization.peaklisttable.table.PeakListTableModel.ColumnIndex;
+
+/**
+ * Sorts and filters the rows of PeakListTableModel without reading the peak
+ * list rows on every comparison, unlike TableRowSorter.
+ * 
+ * Rows are sorted by the column indexes of the model, which keep the sort
+ * order and the rank of each row for each column. Sorting by a single column
+ * just walks its sorted rows, sorting by several columns compares the ranks.
+ * The rows which pass the filter are kept, so a filter which can only remove
+ * more rows (see narrowRowFilter()) is tested only on those rows. Without a
+ * filter and sort keys, the view rows are the model rows and no index is kept
+ * at all.
+ */
+public class PeakListTableRowSorter extends RowSorter<PeakListTableModel> {
+
+	private static final int MAX_SORT_KEYS = 3;
+
+	private final PeakListTableModel model;
+
+	private List<? extends SortKey> sortKeys = Collections.emptyList();
+	private RowFilter<? super PeakListTableModel, ? super Integer> filter;
+
+	// Model rows which pass the filter, null if there is no filter
+	private boolean included[];
+
+	// Model row of each view row and view row of each model row (-1 if it is
+	// filtered out), null if the rows are neither sorted nor filtered
+	private int viewToModel[];
+	private int modelToView[];
+
+	private int modelRowCount;
+
+	public PeakListTableRowSorter(PeakListTableModel model) {
+		this.model = model;
+		this.modelRowCount = model.getRowCount();
+	}
+
+	@Override
+	public PeakListTableModel getModel() {
+		return model;
+	}
+
+	@Override
+	public void toggleSortOrder(int column) {
+
+		checkColumn(column);
+
+		List<SortKey> keys = new ArrayList<SortKey>(sortKeys);
+		SortOrder order = SortOrder.ASCENDING;
+		for (int i = 0; i < keys.size(); i++) {
+			if (keys.get(i).getColumn() == column) {
+				if (i == 0
+						&& keys.get(0).getSortOrder() == SortOrder.ASCENDING)
+					order = SortOrder.DESCENDING;
+				keys.remove(i);
+				break;
+			}
+		}
+		keys.add(0, new SortKey(column, order));
+		if (keys.size() > MAX_SORT_KEYS)
+			keys = keys.subList(0, MAX_SORT_KEYS);
+
+		setSortKeys(keys);
+
+	}
+
+	@Override
+	public List<? extends SortKey> getSortKeys() {
+		return sortKeys;
+	}
+
+	@Override
+	public void setSortKeys(List<? extends SortKey> keys) {
+
+		List<SortKey> newKeys = new ArrayList<SortKey>();
+		if (keys != null) {
+			for (SortKey key : keys) {
+				checkColumn(key.getColumn());
+				newKeys.add(key);
+			}
+		}
+		if (newKeys.equals(sortKeys))
+			return;
+
+		sortKeys = Collections.unmodifiableList(newKeys);
+		fireSortOrderChanged();
+		sort();
+
+	}
+
+	public RowFilter<? super PeakListTableModel, ? super Integer> getRowFilter() {
+		return filter;
+	}
+
+	/**
+	 * Sets the filter of the rows and tests it on all rows
+	 */
+	public void setRowFilter(
+			RowFilter<? super PeakListTableModel, ? super Integer> filter) {
+		this.filter = filter;
+		included = null;
+		sort();
+	}
+
+	/**
+	 * Sets a filter which includes only rows that are included by the current
+	 * filter too, e.g. because the filter text was extended. The filter is
+	 * only tested on the rows which are currently included.
+	 */
+	public void narrowRowFilter(
+			RowFilter<? super PeakListTableModel, ? super Integer> filter) {
+		this.filter = filter;
+		sort();
+	}
+
+	@Override
+	public int convertRowIndexToModel(int index) {
+		if (viewToModel == null) {
+			if ((index < 0) || (index >= modelRowCount))
+				throw new IndexOutOfBoundsException("Invalid index");
+			return index;
+		}
+		return viewToModel[index];
+	}
+
+	@Override
+	public int convertRowIndexToView(int index) {
+		if (viewToModel == null) {
+			if ((index < 0) || (index >= modelRowCount))
+				throw new IndexOutOfBoundsException("Invalid index");
+			return index;
+		}
+		if (modelToView == null) {
+			modelToView = new int[modelRowCount];
+			Arrays.fill(modelToView, -1);
+			for (int i = 0; i < viewToModel.length; i++)
+				modelToView[viewToModel[i]] = i;
+		}
+		return modelToView[index];
+	}
+
+	@Override
+	public int getViewRowCount() {
+		return viewToModel == null ? modelRowCount : viewToModel.length;
+	}
+
+	@Override
+	public int getModelRowCount() {
+		return modelRowCount;
+	}
+
+	@Override
+	public void modelStructureChanged() {
+		sortKeys = Collections.emptyList();
+		allRowsChanged();
+	}
+
+	@Override
+	public void allRowsChanged() {
+		modelRowCount = model.getRowCount();
+		included = null;
+		sort();
+	}
+
+	@Override
+	public void rowsInserted(int firstRow, int endRow) {
+		allRowsChanged();
+	}
+
+	@Override
+	public void rowsDeleted(int firstRow, int endRow) {
+		allRowsChanged();
+	}
+
+	/**
+	 * Updated rows keep their place, like with TableRowSorter
+	 */
+	@Override
+	public void rowsUpdated(int firstRow, int endRow) {
+	}
+
+	@Override
+	public void rowsUpdated(int firstRow, int endRow, int column) {
+	}
+
+	/**
+	 * Filters and sorts the rows, and notifies the listeners
+	 */
+	private void sort() {
+
+		final int oldViewToModel[] = viewToModel;
+		modelToView = null;
+
+		// Keep only the sort keys which sort
+		final List<SortKey> keys = new ArrayList<SortKey>();
+		for (SortKey key : sortKeys) {
+			if (key.getSortOrder() != SortOrder.UNSORTED)
+				keys.add(key);
+		}
+
+		filterRows();
+
+		if ((included == null) && keys.isEmpty()) {
+			viewToModel = null;
+		} else if (keys.size() == 1) {
+			viewToModel = sortByColumn(keys.get(0));
+		} else {
+			viewToModel = sortByColumns(keys);
+		}
+
+		fireRowSorterChanged(oldViewToModel);
+
+	}
+
+	/**
+	 * Tests the filter on all rows, or only on the included rows if it was
+	 * narrowed
+	 */
+	private void filterRows() {
+
+		if (filter == null) {
+			included = null;
+			return;
+		}
+
+		final boolean testAll = (included == null);
+		if (testAll)
+			included = new boolean[modelRowCount];
+
+		final FilterEntry entry = new FilterEntry();
+		for (int row = 0; row < modelRowCount; row++) {
+			if (!testAll && !included[row])
+				continue;
+			entry.row = row;
+			included[row] = filter.include(entry);
+		}
+
+	}
+
+	private boolean isIncluded(int row) {
+		return (included == null) || included[row];
+	}
+
+	private int getIncludedRowCount() {
+		if (included == null)
+			return modelRowCount;
+		int count = 0;
+		for (boolean rowIncluded : included) {
+			if (rowIncluded)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Walks the sorted rows of the column. In descending order, rows with
+	 * equal values stay in model order.
+	 */
+	private int[] sortByColumn(SortKey key) {
+
+		final ColumnIndex index = model.getColumnIndex(key.getColumn());
+		final int sortedRows[] = index.sortedRows;
+		final int rows[] = new int[getIncludedRowCount()];
+		int count = 0;
+
+		if (key.getSortOrder() == SortOrder.ASCENDING) {
+			for (int row : sortedRows) {
+				if (isIncluded(row))
+					rows[count++] = row;
+			}
+		} else {
+			int end = sortedRows.length;
+			while (end > 0) {
+				int start = end - 1;
+				final int rank = index.ranks[sortedRows[start]];
+				while ((start > 0) && (index.ranks[sortedRows[start - 1]] == rank))
+					start--;
+				for (int i = start; i < end; i++) {
+					if (isIncluded(sortedRows[i]))
+						rows[count++] = sortedRows[i];
+				}
+				end = start;
+			}
+		}
+
+		return rows;
+
+	}
+
+	/**
+	 * Sorts the included rows by the ranks of their values in the columns of
+	 * the keys, and by model order if they are equal
+	 */
+	private int[] sortByColumns(List<SortKey> keys) {
+
+		final int rows[] = new int[getIncludedRowCount()];
+		int count = 0;
+		for (int row = 0; row < modelRowCount; row++) {
+			if (isIncluded(row))
+				rows[count++] = row;
+		}
+
+		if (keys.isEmpty())
+			return rows;
+
+		final int ranks[][] = new int[keys.size()][];
+		final boolean descending[] = new boolean[keys.size()];
+		for (int k = 0; k < keys.size(); k++) {
+			ranks[k] = model.getColumnIndex(keys.get(k).getColumn()).ranks;
+			descending[k] = keys.get(k).getSortOrder() == SortOrder.DESCENDING;
+		}
+
+		PeakListTableModel.sortRows(rows, (row1, row2) -> {
+			for (int k = 0; k < ranks.length; k++) {
+				int result = Integer.compare(ranks[k][row1], ranks[k][row2]);
+				if (result != 0)
+					return descending[k] ? -result : result;
+			}
+			return 0;
+		});
+
+		return rows;
+
+	}
+
+	private void checkColumn(int column) {
+		if ((column < 0) || (column >= model.getColumnCount()))
+			throw new IndexOutOfBoundsException("Invalid column " + column);
+	}
+
+	/**
+	 * Row of the model, as seen by the filter
+	 */
+	private class FilterEntry extends
+			RowFilter.Entry<PeakListTableModel, Integer> {
+
+		private int row;
+
+		@Override
+		public PeakListTableModel getModel() {
+			return model;
+		}
+
+		@Override
+		public int getValueCount() {
+			return model.getColumnCount();
+		}
+
+		@Override
+		public Object getValue(int index) {
+			return model.getValueAt(row, index);
+		}
+
+		@Override
+		public Integer getIdentifier() {
+			return row;
+		}
+
+	}
+
+}
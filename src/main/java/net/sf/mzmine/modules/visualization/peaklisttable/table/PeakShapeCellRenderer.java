@@ -21,10 +21,12 @@ package net.sf.mzmine.modules.visualization.peaklisttable.table;
 
 import java.awt.Color;
 import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 
-import javax.swing.JPanel;
+import javax.swing.JComponent;
 import javax.swing.JTable;
-import javax.swing.OverlayLayout;
 import javax.swing.table.TableCellRenderer;
 
 import net.sf.mzmine.datamodel.Feature;
@@ -33,18 +35,45 @@ import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.modules.visualization.peaklisttable.PeakListTableParameters;
 import net.sf.mzmine.modules.visualization.peaklisttable.PeakShapeNormalization;
+import net.sf.mzmine.modules.visualization.peaklisttable.table.PeakShapeThumbnails.PeakShape;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.util.components.CombinedXICComponent;
+import net.sf.mzmine.util.components.ComponentToolTipManager;
 import net.sf.mzmine.util.components.PeakXICComponent;
 
-public class PeakShapeCellRenderer implements TableCellRenderer {
+import com.google.common.collect.Range;
+
+/**
+ * Paints the peak shape of a feature, or the combined peak shapes of a row,
+ * like PeakXICComponent and CombinedXICComponent. The shapes are taken from
+ * PeakShapeThumbnails, and a flat line is painted while they are being loaded.
+ * A single component is reused for all cells.
+ */
+public class PeakShapeCellRenderer extends JComponent implements
+	TableCellRenderer {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Color placeholderColor = Color.lightGray;
 
     private PeakList peakList;
     private ParameterSet parameters;
 
+    // Shapes of the features painted in the table, created on first use
+    private PeakShapeThumbnails thumbnails;
+
+    // Cell which is being painted
+    private Color bgColor;
+    private Feature peaks[];
+    private Color peakColors[];
+    private boolean fillPeaks;
+    private Range<Double> rtRange;
+    private double maxIntensity;
+
     public PeakShapeCellRenderer(PeakList peakList, ParameterSet parameters) {
 	this.peakList = peakList;
 	this.parameters = parameters;
+	setBorder(PeakXICComponent.componentBorder);
     }
 
     /**
@@ -54,22 +83,22 @@ public class PeakShapeCellRenderer implements TableCellRenderer {
     public Component getTableCellRendererComponent(JTable table, Object value,
 	    boolean isSelected, boolean hasFocus, int row, int column) {
 
-        JPanel newPanel = new JPanel();
-	newPanel.setLayout(new OverlayLayout(newPanel));
-
-	Color bgColor;
+	if (thumbnails == null)
+	    thumbnails = new PeakShapeThumbnails(table);
 
 	if (isSelected)
 	    bgColor = table.getSelectionBackground();
 	else
 	    bgColor = table.getBackground();
 
-	newPanel.setBackground(bgColor);
+	peaks = null;
+	rtRange = null;
+	maxIntensity = 0;
+	setToolTipText(null);
 
 	if (value instanceof Feature) {
 
 	    Feature peak = (Feature) value;
-	    double maxHeight = 0;
 
 	    PeakShapeNormalization norm = parameters.getParameter(
 		    PeakListTableParameters.peakShapeNormalization).getValue();
@@ -77,23 +106,27 @@ public class PeakShapeCellRenderer implements TableCellRenderer {
 		norm = PeakShapeNormalization.ROWMAX;
 	    switch (norm) {
 	    case GLOBALMAX:
-		maxHeight = peakList.getDataPointMaxIntensity();
+		maxIntensity = peakList.getDataPointMaxIntensity();
 		break;
 	    case ROWMAX:
-		int rowNumber = peakList.getPeakRowNum(peak);
-		maxHeight = peakList.getRow(rowNumber)
+		// The table rows are the peak list rows, searching the row of
+		// the peak would take as long as the peak list
+		int rowNumber = table.convertRowIndexToModel(row);
+		maxIntensity = peakList.getRow(rowNumber)
 			.getDataPointMaxIntensity();
 		break;
 	    default:
-		maxHeight = peak.getRawDataPointsIntensityRange()
+		maxIntensity = peak.getRawDataPointsIntensityRange()
 			.upperEndpoint();
 		break;
 	    }
-	    PeakXICComponent xic = new PeakXICComponent(peak, maxHeight);
 
-	    newPanel.add(xic);
+	    peaks = new Feature[] { peak };
+	    peakColors = new Color[] { PeakXICComponent.XICColor };
+	    fillPeaks = true;
+	    rtRange = peak.getDataFile().getDataRTRange();
 
-	    newPanel.setToolTipText(xic.getToolTipText());
+	    setToolTipText(peak.toString());
 
 	}
 
@@ -102,22 +135,105 @@ public class PeakShapeCellRenderer implements TableCellRenderer {
 	    PeakListRow plRow = (PeakListRow) value;
 
 	    RawDataFile[] dataFiles = peakList.getRawDataFiles();
-	    Feature[] peaks = new Feature[dataFiles.length];
+	    peaks = new Feature[dataFiles.length];
+	    peakColors = new Color[dataFiles.length];
+	    fillPeaks = false;
 	    for (int i = 0; i < dataFiles.length; i++) {
 		peaks[i] = plRow.getPeak(dataFiles[i]);
+		peakColors[i] = CombinedXICComponent.plotColors[i
+			% CombinedXICComponent.plotColors.length];
+		if (peaks[i] == null)
+		    continue;
+		maxIntensity = Math.max(maxIntensity, peaks[i]
+			.getRawDataPointsIntensityRange().upperEndpoint());
+		if (rtRange == null)
+		    rtRange = peaks[i].getDataFile().getDataRTRange();
+		else
+		    rtRange = rtRange.span(peaks[i].getDataFile()
+			    .getDataRTRange());
+	    }
+
+	    // We use the tool tip text as a id for customTooltipProvider
+	    setToolTipText(ComponentToolTipManager.CUSTOM + plRow.getID());
+
+	}
+
+	return this;
+
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+
+	final int width = getWidth(), height = getHeight();
+
+	g.setColor(bgColor);
+	g.fillRect(0, 0, width, height);
+
+	if ((peaks == null) || (rtRange == null))
+	    return;
+
+	// use Graphics2D for antialiasing
+	Graphics2D g2 = (Graphics2D) g;
+	g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+		RenderingHints.VALUE_ANTIALIAS_ON);
+
+	final double rtMin = rtRange.lowerEndpoint();
+	final double rtMax = rtRange.upperEndpoint();
+
+	for (int i = 0; i < peaks.length; i++) {
+
+	    if (peaks[i] == null)
+		continue;
+
+	    final PeakShape shape = thumbnails.getShape(peaks[i]);
+
+	    // Placeholder until the shape is loaded
+	    if (shape == null) {
+		g2.setColor(placeholderColor);
+		g2.drawLine(0, height - 1, width - 1, height - 1);
+		continue;
 	    }
 
-	    CombinedXICComponent xic = new CombinedXICComponent(peaks,
-		    plRow.getID());
+	    if (shape.getNumberOfDataPoints() == 0)
+		continue;
 
-	    newPanel.add(xic);
+	    final int xValues[] = shape.getXValues(width, height, rtMin,
+		    rtMax, maxIntensity);
+	    final int yValues[] = shape.getYValues(width, height, rtMin,
+		    rtMax, maxIntensity);
 
-	    newPanel.setToolTipText(xic.getToolTipText());
+	    g2.setColor(peakColors[i]);
+	    if (fillPeaks)
+		g2.fillPolygon(xValues, yValues, xValues.length);
+	    else
+		g2.drawPolyline(xValues, yValues, xValues.length);
 
 	}
 
-	return newPanel;
+    }
+
+    // The methods below are overridden for performance reasons, like in
+    // DefaultTableCellRenderer
+
+    @Override
+    public void invalidate() {
+    }
+
+    @Override
+    public void validate() {
+    }
+
+    @Override
+    public void revalidate() {
+    }
+
+    @Override
+    public void repaint(long tm, int x, int y, int width, int height) {
+    }
 
+    @Override
+    public void repaint() {
     }
 
 }
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.visualization.peaklisttable.table;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.JTable;
+import javax.swing.SwingUtilities;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+
+/**
+ * Cache of the peak shapes painted by PeakShapeCellRenderer, so scrolling the
+ * table does not read the data points and retention times of the features
+ * again and again.
+ *
+ * The shapes are loaded by a background thread, and the table is repainted
+ * when they are ready. The most recently requested shapes are loaded first,
+ * so the rows which are currently visible appear first while scrolling. Only
+ * the MAX_SHAPES most recently painted shapes are kept. All shapes are dropped
+ * when the table model changes, because the features may have changed.
+ *
+ * Except for the loading, all methods must be called on the EDT.
+ */
+class PeakShapeThumbnails implements TableModelListener {
+
+    private static final Logger logger = Logger
+	    .getLogger(PeakShapeThumbnails.class.getName());
+
+    // Maximum number of cached shapes
+    private static final int MAX_SHAPES = 20000;
+
+    // Maximum number of shapes waiting to be loaded, the oldest requests are
+    // dropped first
+    private static final int MAX_PENDING = 2000;
+
+    // A single background thread loads the shapes of all tables
+    private static final ExecutorService loader = Executors
+	    .newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Peak shape loader");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		return thread;
+	    });
+
+    /**
+     * Retention times and intensities of the data points of a feature, and
+     * the pixel coordinates of its outline in the most recently painted cells
+     */
+    static class PeakShape {
+
+	// Number of outlines kept per shape. A feature may be painted with
+	// different ranges at the same time, e.g. in its own column and in
+	// the combined shape of its row.
+	private static final int MAX_OUTLINES = 4;
+
+	private final double retentionTimes[];
+	private final double intensities[];
+
+	// Outlines, the most recently used first
+	private final ArrayList<Outline> outlines = new ArrayList<Outline>(
+		MAX_OUTLINES);
+
+	private PeakShape(Feature peak) {
+	    final int scanNumbers[] = peak.getScanNumbers();
+	    retentionTimes = new double[scanNumbers.length];
+	    intensities = new double[scanNumbers.length];
+	    final RawDataFile dataFile = peak.getDataFile();
+	    for (int i = 0; i < scanNumbers.length; i++) {
+		final DataPoint dataPoint = peak.getDataPoint(scanNumbers[i]);
+		if (dataPoint != null)
+		    intensities[i] = dataPoint.getIntensity();
+		final Scan scan = dataFile.getScan(scanNumbers[i]);
+		if (scan != null)
+		    retentionTimes[i] = scan.getRetentionTime();
+	    }
+	}
+
+	int getNumberOfDataPoints() {
+	    return retentionTimes.length;
+	}
+
+	/**
+	 * Returns the x coordinates of the outline of this shape in a cell of
+	 * given size. The outline starts and ends at the bottom of the cell.
+	 * The arrays are reused as long as the same parameters are painted.
+	 */
+	int[] getXValues(int width, int height, double rtMin, double rtMax,
+		double maxIntensity) {
+	    return getOutline(width, height, rtMin, rtMax, maxIntensity).xValues;
+	}
+
+	/**
+	 * Returns the y coordinates of the outline, see getXValues()
+	 */
+	int[] getYValues(int width, int height, double rtMin, double rtMax,
+		double maxIntensity) {
+	    return getOutline(width, height, rtMin, rtMax, maxIntensity).yValues;
+	}
+
+	private Outline getOutline(int width, int height, double rtMin,
+		double rtMax, double maxIntensity) {
+
+	    for (int i = 0; i < outlines.size(); i++) {
+		final Outline outline = outlines.get(i);
+		if (outline.matches(width, height, rtMin, rtMax, maxIntensity)) {
+		    if (i > 0) {
+			outlines.remove(i);
+			outlines.add(0, outline);
+		    }
+		    return outline;
+		}
+	    }
+
+	    final Outline outline = new Outline(width, height, rtMin, rtMax,
+		    maxIntensity, retentionTimes, intensities);
+	    if (outlines.size() == MAX_OUTLINES)
+		outlines.remove(MAX_OUTLINES - 1);
+	    outlines.add(0, outline);
+	    return outline;
+	}
+
+    }
+
+    /**
+     * Pixel coordinates of a peak shape painted with given parameters
+     */
+    private static class Outline {
+
+	private final int width, height;
+	private final double rtMin, rtMax, maxIntensity;
+	private final int xValues[], yValues[];
+
+	private Outline(int width, int height, double rtMin, double rtMax,
+		double maxIntensity, double retentionTimes[],
+		double intensities[]) {
+
+	    this.width = width;
+	    this.height = height;
+	    this.rtMin = rtMin;
+	    this.rtMax = rtMax;
+	    this.maxIntensity = maxIntensity;
+
+	    final int n = retentionTimes.length;
+	    xValues = new int[n + 2];
+	    yValues = new int[n + 2];
+	    for (int i = 0; i < n; i++) {
+		xValues[i + 1] = (int) Math.floor((retentionTimes[i] - rtMin)
+			/ (rtMax - rtMin) * (width - 1));
+		yValues[i + 1] = height
+			- (int) Math.floor(intensities[i] / maxIntensity
+				* (height - 1));
+	    }
+	    xValues[0] = xValues[1];
+	    yValues[0] = height - 1;
+	    xValues[n + 1] = xValues[n];
+	    yValues[n + 1] = height - 1;
+	}
+
+	private boolean matches(int width, int height, double rtMin,
+		double rtMax, double maxIntensity) {
+	    return (width == this.width) && (height == this.height)
+		    && (rtMin == this.rtMin) && (rtMax == this.rtMax)
+		    && (maxIntensity == this.maxIntensity);
+	}
+
+    }
+
+    private final JTable table;
+
+    // Loaded shapes, least recently painted first
+    private final LinkedHashMap<Feature, PeakShape> shapes = new LinkedHashMap<Feature, PeakShape>(
+	    16, 0.75f, true) {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<Feature, PeakShape> eldest) {
+	    return size() > MAX_SHAPES;
+	}
+    };
+
+    // Features waiting to be loaded, the most recent request last. Guarded by
+    // this object, like the fields below.
+    private final ArrayDeque<Feature> pending = new ArrayDeque<Feature>();
+    private final Set<Feature> pendingSet = new HashSet<Feature>();
+
+    // Shapes which were loaded, but not added to the cache yet
+    private final List<Feature> loadedPeaks = new ArrayList<Feature>();
+    private final List<PeakShape> loadedShapes = new ArrayList<PeakShape>();
+
+    // Incremented when the cache is cleared, so shapes of the old features
+    // are not added
+    private int generation = 0;
+
+    PeakShapeThumbnails(JTable table) {
+	this.table = table;
+	table.getModel().addTableModelListener(this);
+    }
+
+    /**
+     * @return The shape of given feature, or null if it is being loaded. The
+     *         table is repainted when it is ready.
+     */
+    PeakShape getShape(Feature peak) {
+
+	final PeakShape shape = shapes.get(peak);
+	if (shape != null)
+	    return shape;
+
+	synchronized (this) {
+	    if (pendingSet.add(peak)) {
+		pending.addLast(peak);
+		if (pending.size() > MAX_PENDING)
+		    pendingSet.remove(pending.pollFirst());
+		final int requestGeneration = generation;
+		loader.execute(() -> loadNext(requestGeneration));
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Drops all shapes, because the features may have changed
+     */
+    @Override
+    public void tableChanged(TableModelEvent e) {
+	shapes.clear();
+	synchronized (this) {
+	    generation++;
+	    pending.clear();
+	    pendingSet.clear();
+	    loadedPeaks.clear();
+	    loadedShapes.clear();
+	}
+    }
+
+    /**
+     * Loads the most recently requested shape, on the loader thread
+     */
+    private void loadNext(int requestGeneration) {
+
+	final Feature peak;
+	synchronized (this) {
+	    if (requestGeneration != generation)
+		return;
+	    peak = pending.pollLast();
+	}
+	if (peak == null)
+	    return;
+
+	PeakShape shape = null;
+	try {
+	    shape = new PeakShape(peak);
+	} catch (Exception e) {
+	    logger.log(Level.WARNING, "Could not load the shape of " + peak,
+		    e);
+	}
+
+	synchronized (this) {
+	    if (requestGeneration != generation)
+		return;
+	    pendingSet.remove(peak);
+	    if (shape == null)
+		return;
+	    loadedPeaks.add(peak);
+	    loadedShapes.add(shape);
+	    // Add the shapes and repaint once for all shapes loaded in the
+	    // meantime
+	    if (loadedPeaks.size() == 1)
+		SwingUtilities.invokeLater(this::addLoadedShapes);
+	}
+
+    }
+
+    private void addLoadedShapes() {
+	synchronized (this) {
+	    for (int i = 0; i < loadedPeaks.size(); i++)
+		shapes.put(loadedPeaks.get(i), loadedShapes.get(i));
+	    loadedPeaks.clear();
+	    loadedShapes.clear();
+	}
+	table.repaint();
+    }
+
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.visualization.tic;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.taskcontrol.TaskPriority;
+
+import com.google.common.collect.Range;
+
+/**
+ * Extracts the chromatogram traces shown by the TIC visualizers in the
+ * background.
+ *
+ * All traces requested for a raw data file are extracted by a single task,
+ * which reads each scan at most once for all of them, even if they have
+ * different m/z ranges. Traces requested while the task is running are taken
+ * up by its next pass over the scans. Complete traces are cached, so opening
+ * the same chromatogram again does not read the raw data file. A trace whose
+ * requests were all released before it was complete is dropped from the
+ * extraction.
+ */
+public class ChromatogramExtractionService {
+
+    // Maximum number of scans of all cached traces, 32 bytes each
+    private static final int MAX_CACHED_SCANS = 2 * 1024 * 1024;
+
+    // Cached traces of raw data files which are not used any more
+    private static final ReferenceQueue<RawDataFile> collectedFiles = new ReferenceQueue<RawDataFile>();
+
+    // Complete traces, least recently used first
+    private static final LinkedHashMap<TraceKey, ChromatogramTrace> cache = new LinkedHashMap<TraceKey, ChromatogramTrace>(
+            16, 0.75f, true);
+    private static int cachedScans = 0;
+
+    // Traces which are waiting for their extraction or being extracted
+    private static final Map<TraceKey, ChromatogramTrace> extractedTraces = new HashMap<TraceKey, ChromatogramTrace>();
+
+    // Traces waiting for the next pass over each raw data file
+    private static final Map<RawDataFile, List<ChromatogramTrace>> pendingTraces = new HashMap<RawDataFile, List<ChromatogramTrace>>();
+
+    // Extraction task of each raw data file
+    private static final Map<RawDataFile, ChromatogramExtractionTask> tasks = new HashMap<RawDataFile, ChromatogramExtractionTask>();
+
+    private ChromatogramExtractionService() {
+    }
+
+    /**
+     * Returns the trace of given scans within the m/z range. The trace may be
+     * incomplete, in that case the listener is notified while its values are
+     * extracted. The trace must be released by releaseTrace() when it is not
+     * needed any more.
+     */
+    public static ChromatogramTrace requestTrace(RawDataFile dataFile,
+            Scan scans[], Range<Double> mzRange,
+            ChromatogramTrace.Listener listener) {
+
+        ChromatogramExtractionTask newTask = null;
+        ChromatogramTrace trace;
+
+        synchronized (ChromatogramExtractionService.class) {
+
+            removeCollectedFiles();
+
+            final int scanNumbers[] = new int[scans.length];
+            for (int i = 0; i < scans.length; i++)
+                scanNumbers[i] = scans[i].getScanNumber();
+            Arrays.sort(scanNumbers);
+            final TraceKey key = new TraceKey(dataFile, scanNumbers, mzRange);
+
+            trace = cache.get(key);
+            if (trace == null)
+                trace = extractedTraces.get(key);
+
+            if (trace == null) {
+                trace = new ChromatogramTrace(scans, mzRange);
+                extractedTraces.put(key, trace);
+                List<ChromatogramTrace> traces = pendingTraces.get(dataFile);
+                if (traces == null) {
+                    traces = new ArrayList<ChromatogramTrace>();
+                    pendingTraces.put(dataFile, traces);
+                }
+                traces.add(trace);
+                if (!tasks.containsKey(dataFile)) {
+                    newTask = new ChromatogramExtractionTask(dataFile);
+                    tasks.put(dataFile, newTask);
+                }
+            }
+
+            trace.users++;
+            trace.listeners.add(listener);
+        }
+
+        if (newTask != null)
+            MZmineCore.getTaskController().addTask(newTask, TaskPriority.HIGH);
+
+        return trace;
+    }
+
+    /**
+     * Releases a trace returned by requestTrace(). Its extraction is stopped
+     * if it is not complete and not requested by anybody else.
+     */
+    public static synchronized void releaseTrace(ChromatogramTrace trace,
+            ChromatogramTrace.Listener listener) {
+
+        if (!trace.listeners.remove(listener))
+            return;
+
+        trace.users--;
+        if ((trace.users > 0) || trace.isComplete())
+            return;
+
+        trace.cancel();
+        extractedTraces.values().remove(trace);
+        for (List<ChromatogramTrace> traces : pendingTraces.values())
+            traces.remove(trace);
+
+    }
+
+    /**
+     * Takes the traces to extract by the next pass of given task. If there
+     * are none, the task is finished and unregistered.
+     */
+    static synchronized List<ChromatogramTrace> takePendingTraces(
+            RawDataFile dataFile, ChromatogramExtractionTask task) {
+
+        final List<ChromatogramTrace> traces = pendingTraces.remove(dataFile);
+        if ((traces == null) || traces.isEmpty()) {
+            tasks.remove(dataFile, task);
+            return Collections.emptyList();
+        }
+        return traces;
+
+    }
+
+    /**
+     * Caches the complete traces of a finished pass, and drops the others
+     */
+    static void tracesExtracted(List<ChromatogramTrace> traces) {
+
+        synchronized (ChromatogramExtractionService.class) {
+
+            Iterator<Map.Entry<TraceKey, ChromatogramTrace>> entries = extractedTraces
+                    .entrySet().iterator();
+            while (entries.hasNext()) {
+                final Map.Entry<TraceKey, ChromatogramTrace> entry = entries
+                        .next();
+                final ChromatogramTrace trace = entry.getValue();
+                if (!traces.contains(trace))
+                    continue;
+                entries.remove();
+                if (trace.isComplete()) {
+                    cache.put(entry.getKey(), trace);
+                    cachedScans += trace.getNumberOfScans();
+                }
+            }
+
+            // Remove the least recently used traces, but keep at least the
+            // last one
+            Iterator<ChromatogramTrace> cachedTraces = cache.values()
+                    .iterator();
+            while ((cachedScans > MAX_CACHED_SCANS) && (cache.size() > 1)) {
+                cachedScans -= cachedTraces.next().getNumberOfScans();
+                cachedTraces.remove();
+            }
+
+            for (ChromatogramTrace trace : traces) {
+                if (!trace.isComplete())
+                    trace.cancel();
+            }
+        }
+
+        for (ChromatogramTrace trace : traces)
+            trace.fireTraceChanged();
+
+    }
+
+    /**
+     * Drops the traces of a task which was canceled by the user, including
+     * the ones waiting for its next pass
+     */
+    static void extractionCanceled(RawDataFile dataFile,
+            ChromatogramExtractionTask task, List<ChromatogramTrace> traces) {
+
+        final List<ChromatogramTrace> canceledTraces = new ArrayList<ChromatogramTrace>(
+                traces);
+
+        synchronized (ChromatogramExtractionService.class) {
+            if (tasks.remove(dataFile, task)) {
+                final List<ChromatogramTrace> pending = pendingTraces
+                        .remove(dataFile);
+                if (pending != null)
+                    canceledTraces.addAll(pending);
+            }
+            for (ChromatogramTrace trace : canceledTraces) {
+                trace.cancel();
+                extractedTraces.values().remove(trace);
+            }
+        }
+
+        for (ChromatogramTrace trace : canceledTraces)
+            trace.fireTraceChanged();
+
+    }
+
+    private static void removeCollectedFiles() {
+        Reference<? extends RawDataFile> reference;
+        while ((reference = collectedFiles.poll()) != null) {
+            final ChromatogramTrace trace = cache.remove(reference);
+            if (trace != null)
+                cachedScans -= trace.getNumberOfScans();
+        }
+    }
+
+    /**
+     * Identifies a trace by its raw data file, scan numbers and m/z range.
+     * The raw data file is only weakly referenced, so the cache does not keep
+     * removed files in memory.
+     */
+    private static class TraceKey extends WeakReference<RawDataFile> {
+
+        private final int scanNumbers[];
+        private final Range<Double> mzRange;
+        private final int hashCode;
+
+        TraceKey(RawDataFile dataFile, int scanNumbers[], Range<Double> mzRange) {
+            super(dataFile, collectedFiles);
+            this.scanNumbers = scanNumbers;
+            this.mzRange = mzRange;
+            this.hashCode = 31 * (31 * System.identityHashCode(dataFile) + Arrays
+                    .hashCode(scanNumbers)) + mzRange.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this)
+                return true;
+            if (!(o instanceof TraceKey))
+                return false;
+            final TraceKey key = (TraceKey) o;
+            final RawDataFile dataFile = get();
+            return (dataFile != null) && (dataFile == key.get())
+                    && mzRange.equals(key.mzRange)
+                    && Arrays.equals(scanNumbers, key.scanNumbers);
+        }
+
+    }
+
+}
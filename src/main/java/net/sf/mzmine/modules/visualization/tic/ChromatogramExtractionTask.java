@@ -0,0 +1,202 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.visualization.tic;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.DataPointsBuffer;
+
+import com.google.common.collect.Range;
+
+/**
+ * Extracts the pending chromatogram traces of one raw data file, see
+ * ChromatogramExtractionService
+ */
+class ChromatogramExtractionTask extends AbstractTask {
+
+    private static final Logger LOG = Logger
+            .getLogger(ChromatogramExtractionTask.class.getName());
+
+    // Interval of notifying the listeners of the traces (in milliseconds)
+    private static final long REDRAW_INTERVAL = 100L;
+
+    private final RawDataFile dataFile;
+
+    // Progress of the current pass
+    private int totalScans = 0, processedScans = 0;
+
+    ChromatogramExtractionTask(RawDataFile dataFile) {
+        this.dataFile = dataFile;
+    }
+
+    @Override
+    public String getTaskDescription() {
+        return "Extracting chromatograms of " + dataFile;
+    }
+
+    @Override
+    public double getFinishedPercentage() {
+        return totalScans == 0 ? 0.0 : (double) processedScans
+                / (double) totalScans;
+    }
+
+    @Override
+    public void run() {
+
+        setStatus(TaskStatus.PROCESSING);
+
+        List<ChromatogramTrace> traces = Collections.emptyList();
+        try {
+            while (!isCanceled()) {
+                traces = ChromatogramExtractionService.takePendingTraces(
+                        dataFile, this);
+                if (traces.isEmpty())
+                    break;
+                extractTraces(traces);
+                if (isCanceled())
+                    break;
+                ChromatogramExtractionService.tracesExtracted(traces);
+                traces = Collections.emptyList();
+            }
+        } catch (Throwable t) {
+            LOG.log(Level.SEVERE, "Problem extracting chromatograms of "
+                    + dataFile, t);
+            setErrorMessage(t.getMessage());
+            setStatus(TaskStatus.ERROR);
+        }
+
+        if (isCanceled()) {
+            ChromatogramExtractionService.extractionCanceled(dataFile, this,
+                    traces);
+            return;
+        }
+
+        setStatus(TaskStatus.FINISHED);
+
+    }
+
+    /**
+     * Extracts given traces in a single pass over their scans, in the order
+     * of scan numbers
+     */
+    private void extractTraces(List<ChromatogramTrace> traces) {
+
+        final int numOfTraces = traces.size();
+
+        // Index of the next scan of each trace
+        final int nextScans[] = new int[numOfTraces];
+
+        totalScans = 0;
+        processedScans = 0;
+        for (ChromatogramTrace trace : traces)
+            totalScans += trace.getNumberOfScans();
+
+        // Buffer for the scan data, reused for all scans
+        final DataPointsBuffer buffer = new DataPointsBuffer();
+
+        long lastRedrawTime = System.currentTimeMillis();
+
+        while (!isCanceled()) {
+
+            // Next scan of any trace which is still needed
+            Scan scan = null;
+            for (int t = 0; t < numOfTraces; t++) {
+                final ChromatogramTrace trace = traces.get(t);
+                if (!trace.isWanted()
+                        || (nextScans[t] == trace.getNumberOfScans()))
+                    continue;
+                final Scan nextScan = trace.getScans()[nextScans[t]];
+                if ((scan == null)
+                        || (nextScan.getScanNumber() < scan.getScanNumber()))
+                    scan = nextScan;
+            }
+            if (scan == null)
+                break;
+
+            final Range<Double> scanMZRange = scan.getDataPointMZRange();
+            boolean scanRead = false;
+
+            for (int t = 0; t < numOfTraces; t++) {
+
+                final ChromatogramTrace trace = traces.get(t);
+                final int index = nextScans[t];
+                if (!trace.isWanted() || (index == trace.getNumberOfScans())
+                        || (trace.getScanNumber(index) != scan.getScanNumber()))
+                    continue;
+
+                final Range<Double> mzRange = trace.getMZRange();
+                double tic = 0.0, basePeakIntensity = 0.0, basePeakMZ = 0.0;
+
+                if (mzRange.encloses(scanMZRange)) {
+
+                    // Whole scan - use the precalculated values
+                    tic = scan.getTIC();
+                    final DataPoint basePeak = scan.getHighestDataPoint();
+                    if (basePeak != null) {
+                        basePeakIntensity = basePeak.getIntensity();
+                        basePeakMZ = basePeak.getMZ();
+                    }
+
+                } else {
+
+                    // Read the scan once for all traces and determine base
+                    // peak and total ion count within the m/z range
+                    if (!scanRead) {
+                        buffer.readScan(scan);
+                        scanRead = true;
+                    }
+                    final int firstIndex = buffer.findFirstIndex(mzRange
+                            .lowerEndpoint());
+                    final double mzMax = mzRange.upperEndpoint();
+                    tic = buffer.sumIntensities(firstIndex, mzMax);
+                    final int basePeakIndex = buffer.findBasePeakIndex(
+                            firstIndex, mzMax);
+                    if (basePeakIndex >= 0) {
+                        basePeakIntensity = buffer.getIntensityValues()[basePeakIndex];
+                        basePeakMZ = buffer.getMzValues()[basePeakIndex];
+                    }
+                }
+
+                trace.setValues(index, scan.getRetentionTime(), tic,
+                        basePeakIntensity, basePeakMZ);
+                nextScans[t]++;
+                processedScans++;
+            }
+
+            // Show the new values every REDRAW_INTERVAL ms
+            final long now = System.currentTimeMillis();
+            if (now - lastRedrawTime > REDRAW_INTERVAL) {
+                for (ChromatogramTrace trace : traces)
+                    trace.fireTraceChanged();
+                lastRedrawTime = now;
+            }
+        }
+
+    }
+
+}
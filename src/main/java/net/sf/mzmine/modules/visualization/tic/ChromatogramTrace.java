@@ -0,0 +1,167 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.visualization.tic;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.sf.mzmine.datamodel.Scan;
+
+import com.google.common.collect.Range;
+
+/**
+ * Total ion count and base peak of each scan of a raw data file within an m/z
+ * range, as extracted by ChromatogramExtractionService. The values are filled
+ * in scan number order while the trace is extracted, the first
+ * getNumberOfProcessedScans() values can be read at any time.
+ */
+public class ChromatogramTrace {
+
+    /**
+     * Listener of the progress of a trace. It is called from the extraction
+     * task, not from the event dispatching thread.
+     */
+    public interface Listener {
+        void traceChanged(ChromatogramTrace trace);
+    }
+
+    private final int scanNumbers[];
+    private final Range<Double> mzRange;
+
+    private final double retentionTimes[];
+    private final double totalIonCounts[];
+    private final double basePeakIntensities[];
+    private final double basePeakMZValues[];
+    private volatile int processedScans = 0;
+
+    // Scans to extract, released once the trace is complete
+    private Scan scans[];
+
+    // Set if the trace is not needed any more, or its extraction failed
+    private volatile boolean canceled = false;
+
+    final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    // Number of requests of this trace, guarded by the service
+    int users = 0;
+
+    ChromatogramTrace(Scan scans[], Range<Double> mzRange) {
+        this.scans = scans.clone();
+        Arrays.sort(this.scans, new Comparator<Scan>() {
+            @Override
+            public int compare(Scan s1, Scan s2) {
+                return Integer.compare(s1.getScanNumber(), s2.getScanNumber());
+            }
+        });
+        this.mzRange = mzRange;
+        scanNumbers = new int[scans.length];
+        for (int i = 0; i < scans.length; i++)
+            scanNumbers[i] = this.scans[i].getScanNumber();
+        retentionTimes = new double[scans.length];
+        totalIonCounts = new double[scans.length];
+        basePeakIntensities = new double[scans.length];
+        basePeakMZValues = new double[scans.length];
+    }
+
+    public Range<Double> getMZRange() {
+        return mzRange;
+    }
+
+    /**
+     * @return Number of scans of this trace
+     */
+    public int getNumberOfScans() {
+        return scanNumbers.length;
+    }
+
+    /**
+     * @return Number of scans whose values were extracted so far
+     */
+    public int getNumberOfProcessedScans() {
+        return processedScans;
+    }
+
+    public boolean isComplete() {
+        return processedScans == scanNumbers.length;
+    }
+
+    /**
+     * @return True if the extraction of this trace was stopped before it was
+     *         complete
+     */
+    public boolean isCanceled() {
+        return canceled && !isComplete();
+    }
+
+    public int getScanNumber(int index) {
+        return scanNumbers[index];
+    }
+
+    public double getRetentionTime(int index) {
+        return retentionTimes[index];
+    }
+
+    public double getTIC(int index) {
+        return totalIonCounts[index];
+    }
+
+    public double getBasePeakIntensity(int index) {
+        return basePeakIntensities[index];
+    }
+
+    public double getBasePeakMZ(int index) {
+        return basePeakMZValues[index];
+    }
+
+    Scan[] getScans() {
+        return scans;
+    }
+
+    boolean isWanted() {
+        return !canceled;
+    }
+
+    void cancel() {
+        canceled = true;
+    }
+
+    /**
+     * Sets the values of the scan with given index, which must be the next
+     * one to process
+     */
+    void setValues(int index, double retentionTime, double tic,
+            double basePeakIntensity, double basePeakMZ) {
+        retentionTimes[index] = retentionTime;
+        totalIonCounts[index] = tic;
+        basePeakIntensities[index] = basePeakIntensity;
+        basePeakMZValues[index] = basePeakMZ;
+        // Publishes the values to the readers
+        processedScans = index + 1;
+        if (processedScans == scanNumbers.length)
+            scans = null;
+    }
+
+    void fireTraceChanged() {
+        for (Listener listener : listeners)
+            listener.traceChanged(this);
+    }
+
+}
@@ -20,22 +20,15 @@
 package net.sf.mzmine.modules.visualization.tic;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 import javax.swing.SwingUtilities;
 
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
-import net.sf.mzmine.main.MZmineCore;
-import net.sf.mzmine.taskcontrol.Task;
-import net.sf.mzmine.taskcontrol.TaskPriority;
-import net.sf.mzmine.taskcontrol.TaskStatus;
-import net.sf.mzmine.util.ScanUtils;
 
+import org.jfree.data.DomainInfo;
+import org.jfree.data.RangeInfo;
 import org.jfree.data.xy.AbstractXYZDataset;
 
 import com.google.common.collect.Range;
@@ -48,39 +41,29 @@ import com.google.common.primitives.Ints;
  * 
  * Added the possibility to switch to TIC plot type from a
  * "non-TICVisualizerWindow" context.
+ * 
+ * The values are extracted in the background by
+ * ChromatogramExtractionService, and the data set is redrawn while they come
+ * in. The data set must be disposed when it is removed from the plot, so the
+ * extraction stops if nobody else needs it.
  */
-public class TICDataSet extends AbstractXYZDataset implements Task {
+public class TICDataSet extends AbstractXYZDataset implements DomainInfo,
+        RangeInfo, ChromatogramTrace.Listener {
 
     private static final long serialVersionUID = 1L;
 
-    // Logger.
-    private final Logger LOG = Logger.getLogger(this.getClass().getName());
-
     // For comparing small differences.
     private static final double EPSILON = 0.0000001;
 
-    // Refresh interval (in milliseconds).
-    private static final long REDRAW_INTERVAL = 100L;
-
-    // Last time the data set was redrawn.
-    private static long lastRedrawTime = System.currentTimeMillis();
-
     private final RawDataFile dataFile;
 
-    private final Scan scans[];
-    private final int totalScans;
-    private int processedScans;
+    private final ChromatogramTrace trace;
 
-    private final double[] basePeakValues;
-    private final double[] intensityValues;
-    private final double[] rtValues;
-    private final Range<Double> mzRange;
+    // Intensity bounds of the first boundedItems items.
+    private int boundedItems;
     private double intensityMin;
     private double intensityMax;
 
-    private TaskStatus status;
-    private String errorMessage;
-
     // Plot type
     private TICPlotType plotType;
 
@@ -121,70 +104,29 @@ public class TICDataSet extends AbstractXYZDataset implements Task {
             final Range<Double> rangeMZ, final TICVisualizerWindow window,
             TICPlotType plotType) {
 
-        mzRange = rangeMZ;
         dataFile = file;
-        this.scans = scans;
-        totalScans = scans.length;
-        basePeakValues = new double[totalScans];
-        intensityValues = new double[totalScans];
-        rtValues = new double[totalScans];
-        processedScans = 0;
+        boundedItems = 0;
         intensityMin = 0.0;
         intensityMax = 0.0;
 
-        status = TaskStatus.WAITING;
-        errorMessage = null;
-
         this.plotType = plotType;
 
-        // Start-up the refresh task.
-        MZmineCore.getTaskController().addTask(this, TaskPriority.HIGH);
-    }
-
-    @Override
-    public String getErrorMessage() {
-        return errorMessage;
+        // Request the values, which may be cached already.
+        trace = ChromatogramExtractionService.requestTrace(file, scans,
+                rangeMZ, this);
     }
 
-    @Override
-    public double getFinishedPercentage() {
-        return totalScans == 0 ? 0.0 : (double) processedScans
-                / (double) totalScans;
-    }
-
-    @Override
-    public TaskStatus getStatus() {
-        return status;
-    }
-
-    @Override
-    public String getTaskDescription() {
-        return "Updating TIC visualizer of " + dataFile;
+    /**
+     * Stops the extraction of the values, if they are not needed by another
+     * data set.
+     */
+    public void dispose() {
+        ChromatogramExtractionService.releaseTrace(trace, this);
     }
 
     @Override
-    public void run() {
-
-        try {
-            status = TaskStatus.PROCESSING;
-
-            calculateValues();
-
-            if (status != TaskStatus.CANCELED) {
-
-                // Always redraw when we add last value.
-                refresh();
-
-                LOG.info("TIC data calculated for " + dataFile);
-                status = TaskStatus.FINISHED;
-            }
-        } catch (Throwable t) {
-
-            LOG.log(Level.SEVERE, "Problem calculating data set values for "
-                    + dataFile, t);
-            status = TaskStatus.ERROR;
-            errorMessage = t.getMessage();
-        }
+    public void traceChanged(final ChromatogramTrace trace) {
+        refresh();
     }
 
     @Override
@@ -202,25 +144,31 @@ public class TICDataSet extends AbstractXYZDataset implements Task {
     @Override
     public Number getZ(final int series, final int item) {
 
-        return basePeakValues[item];
+        return trace.getBasePeakMZ(item);
     }
 
     @Override
     public int getItemCount(final int series) {
 
-        return processedScans;
+        return trace.getNumberOfProcessedScans();
     }
 
     @Override
     public Number getX(final int series, final int item) {
 
-        return rtValues[item];
+        return trace.getRetentionTime(item);
     }
 
     @Override
     public Number getY(final int series, final int item) {
 
-        return intensityValues[item];
+        return getIntensity(item);
+    }
+
+    private double getIntensity(final int item) {
+
+        return plotType == TICPlotType.TIC ? trace.getTIC(item) : trace
+                .getBasePeakIntensity(item);
     }
 
     /**
@@ -234,11 +182,12 @@ public class TICDataSet extends AbstractXYZDataset implements Task {
      */
     public int getIndex(final double retentionTime, final double intensity) {
 
+        final int processedScans = trace.getNumberOfProcessedScans();
         int index = -1;
         for (int i = 0; index < 0 && i < processedScans; i++) {
 
-            if (Math.abs(retentionTime - rtValues[i]) < EPSILON
-                    && Math.abs(intensity - intensityValues[i]) < EPSILON) {
+            if (Math.abs(retentionTime - trace.getRetentionTime(i)) < EPSILON
+                    && Math.abs(intensity - getIntensity(i)) < EPSILON) {
 
                 index = i;
             }
@@ -249,7 +198,7 @@ public class TICDataSet extends AbstractXYZDataset implements Task {
 
     public int getScanNumber(final int item) {
 
-        return scans[item].getScanNumber();
+        return trace.getScanNumber(item);
     }
 
     public RawDataFile getDataFile() {
@@ -267,15 +216,15 @@ public class TICDataSet extends AbstractXYZDataset implements Task {
     public boolean isLocalMaximum(final int item) {
 
         final boolean isLocalMaximum;
-        if (item <= 0 || item >= processedScans - 1) {
+        if (item <= 0 || item >= trace.getNumberOfProcessedScans() - 1) {
 
             isLocalMaximum = false;
 
         } else {
 
-            final double intensity = intensityValues[item];
-            isLocalMaximum = intensityValues[item - 1] <= intensity
-                    && intensity >= intensityValues[item + 1];
+            final double intensity = getIntensity(item);
+            isLocalMaximum = getIntensity(item - 1) <= intensity
+                    && intensity >= getIntensity(item + 1);
         }
 
         return isLocalMaximum;
@@ -298,32 +247,30 @@ public class TICDataSet extends AbstractXYZDataset implements Task {
             final double yMin, final double yMax) {
 
         // Save data set size.
-        final int currentSize = processedScans;
-        final double[] rtCopy;
-
-        // If the RT values array is not filled yet, create a smaller copy.
-        if (currentSize < rtValues.length) {
+        final int currentSize = trace.getNumberOfProcessedScans();
 
-            rtCopy = new double[currentSize];
-            System.arraycopy(rtValues, 0, rtCopy, 0, currentSize);
+        // Find the first item within the RT range.
+        int low = 0;
+        int high = currentSize;
+        while (low < high) {
 
-        } else {
+            final int mid = (low + high) >>> 1;
+            if (trace.getRetentionTime(mid) < xMin) {
 
-            rtCopy = rtValues;
-        }
+                low = mid + 1;
 
-        int startIndex = Arrays.binarySearch(rtCopy, xMin);
-        if (startIndex < 0) {
+            } else {
 
-            startIndex = -startIndex - 1;
+                high = mid;
+            }
         }
 
-        final int length = rtCopy.length;
-        final Collection<Integer> indices = new ArrayList<Integer>(length);
-        for (int index = startIndex; index < length && rtCopy[index] <= xMax; index++) {
+        final Collection<Integer> indices = new ArrayList<Integer>();
+        for (int index = low; index < currentSize
+                && trace.getRetentionTime(index) <= xMax; index++) {
 
             // Check Y range..
-            final double intensity = intensityValues[index];
+            final double intensity = getIntensity(index);
             if (yMin <= intensity && intensity <= yMax && isLocalMaximum(index)) {
 
                 indices.add(index);
@@ -335,6 +282,7 @@ public class TICDataSet extends AbstractXYZDataset implements Task {
 
     public double getMinIntensity() {
 
+        updateBounds();
         return intensityMin;
     }
 
@@ -342,66 +290,78 @@ public class TICDataSet extends AbstractXYZDataset implements Task {
         return this.plotType;
     }
 
-    private void calculateValues() {
+    /**
+     * Extends the intensity bounds by the items processed since the last
+     * call.
+     */
+    private synchronized void updateBounds() {
 
-        // Determine plot type (now done from constructor).
-        final TICPlotType plotType = this.plotType;
+        final int processedScans = trace.getNumberOfProcessedScans();
+        for (int index = boundedItems; index < processedScans; index++) {
 
-        // Process each scan.
-        for (int index = 0; status != TaskStatus.CANCELED && index < totalScans; index++) {
+            final double intensity = getIntensity(index);
+            if (index == 0) {
 
-            // Current scan.
-            final Scan scan = scans[index];
+                intensityMin = intensity;
+                intensityMax = intensity;
 
-            // Determine base peak value.
-            final DataPoint basePeak = mzRange.encloses(scan
-                    .getDataPointMZRange()) ? scan.getHighestDataPoint()
-                    : ScanUtils.findBasePeak(scan, mzRange);
-            if (basePeak != null) {
+            } else {
 
-                basePeakValues[index] = basePeak.getMZ();
+                intensityMin = Math.min(intensity, intensityMin);
+                intensityMax = Math.max(intensity, intensityMax);
             }
+        }
+        boundedItems = processedScans;
+    }
 
-            // Determine peak intensity.
-            double intensity = 0.0;
-            if (plotType == TICPlotType.TIC) {
+    // The bounds are known without iterating over all items, which matters
+    // when the plot is redrawn for each update of many data sets.
 
-                // Total ion count.
-                intensity = mzRange.encloses(scan.getDataPointMZRange()) ? scan
-                        .getTIC() : ScanUtils.calculateTIC(scan, mzRange);
+    @Override
+    public double getDomainLowerBound(final boolean includeInterval) {
 
-            } else if (plotType == TICPlotType.BASEPEAK && basePeak != null) {
+        return trace.getNumberOfProcessedScans() == 0 ? Double.NaN : trace
+                .getRetentionTime(0);
+    }
 
-                intensity = basePeak.getIntensity();
-            }
+    @Override
+    public double getDomainUpperBound(final boolean includeInterval) {
 
-            intensityValues[index] = intensity;
-            rtValues[index] = scan.getRetentionTime();
+        final int processedScans = trace.getNumberOfProcessedScans();
+        return processedScans == 0 ? Double.NaN : trace
+                .getRetentionTime(processedScans - 1);
+    }
 
-            // Update min and max.
-            if (index == 0) {
+    @Override
+    public org.jfree.data.Range getDomainBounds(final boolean includeInterval) {
 
-                intensityMin = intensity;
-                intensityMax = intensity;
+        final int processedScans = trace.getNumberOfProcessedScans();
+        return processedScans == 0 ? null : new org.jfree.data.Range(
+                trace.getRetentionTime(0),
+                trace.getRetentionTime(processedScans - 1));
+    }
 
-            } else {
+    @Override
+    public double getRangeLowerBound(final boolean includeInterval) {
 
-                intensityMin = Math.min(intensity, intensityMin);
-                intensityMax = Math.max(intensity, intensityMax);
-            }
+        final org.jfree.data.Range bounds = getRangeBounds(includeInterval);
+        return bounds == null ? Double.NaN : bounds.getLowerBound();
+    }
 
-            processedScans++;
+    @Override
+    public double getRangeUpperBound(final boolean includeInterval) {
 
-            // Refresh every REDRAW_INTERVAL ms.
-            synchronized (TICDataSet.class) {
+        final org.jfree.data.Range bounds = getRangeBounds(includeInterval);
+        return bounds == null ? Double.NaN : bounds.getUpperBound();
+    }
 
-                if (System.currentTimeMillis() - lastRedrawTime > REDRAW_INTERVAL) {
+    @Override
+    public synchronized org.jfree.data.Range getRangeBounds(
+            final boolean includeInterval) {
 
-                    refresh();
-                    lastRedrawTime = System.currentTimeMillis();
-                }
-            }
-        }
+        updateBounds();
+        return boundedItems == 0 ? null : new org.jfree.data.Range(
+                intensityMin, intensityMax);
     }
 
     /**
@@ -419,9 +379,4 @@ public class TICDataSet extends AbstractXYZDataset implements Task {
         });
     }
 
-    @Override
-    public void cancel() {
-        status = TaskStatus.CANCELED;
-    }
-
 }
@@ -691,6 +691,12 @@ public class TICPlot extends ChartPanel implements MouseWheelListener {
 	final int dataSetCount = plot.getDatasetCount();
 	for (int index = 0; index < dataSetCount; index++) {
 
+	    // Stop extracting chromatograms which are not shown any more.
+	    final XYDataset dataSet = plot.getDataset(index);
+	    if (dataSet instanceof TICDataSet) {
+
+		((TICDataSet) dataSet).dispose();
+	    }
 	    plot.setDataset(index, null);
 	}
 	numOfPeaks = 0;
@@ -48,8 +48,6 @@ import net.sf.mzmine.modules.visualization.spectra.SpectraVisualizerModule;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.WindowSettingsParameter;
 import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelection;
-import net.sf.mzmine.taskcontrol.Task;
-import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.SimpleSorter;
 import net.sf.mzmine.util.dialogs.LoadSaveFileChooser;
 
@@ -351,6 +349,7 @@ public class TICVisualizerWindow extends JFrame implements ActionListener {
         ticPlot.getXYPlot().setDataset(ticPlot.getXYPlot().indexOf(dataset),
                 null);
         ticDataSets.remove(file);
+        dataset.dispose();
     }
 
     /**
@@ -476,17 +475,10 @@ public class TICVisualizerWindow extends JFrame implements ActionListener {
 
     public void dispose() {
 
-        // If the window is closed, we want to cancel all running tasks of the
+        // If the window is closed, we want to stop the extraction of the
         // data sets
-        Task tasks[] = this.ticDataSets.values().toArray(new Task[0]);
-
-        for (Task task : tasks) {
-            TaskStatus status = task.getStatus();
-            if ((status == TaskStatus.WAITING)
-                    || (status == TaskStatus.PROCESSING)) {
-                task.cancel();
-            }
-
+        for (TICDataSet dataSet : ticDataSets.values()) {
+            dataSet.dispose();
         }
         super.dispose();
 
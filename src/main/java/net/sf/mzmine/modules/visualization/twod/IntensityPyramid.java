@@ -0,0 +1,339 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.visualization.twod;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+
+import com.google.common.collect.Range;
+
+/**
+ * Precomputed maximum intensities of the scans of a raw data file, so the 2D
+ * plot does not have to read the data points of all scans on every redraw.
+ *
+ * The finest level is a grid of columns (groups of scansPerColumn consecutive
+ * scans) and rows (m/z bins of equal width), which holds the highest intensity
+ * of the data points in each cell. The number of rows follows the number of
+ * scans (up to MAX_ROWS), because reading the data points of few scans for a
+ * narrow m/z range is fast anyway. Coarser levels merge 2 neighbouring columns
+ * and/or 2 neighbouring rows of a finer level, independently in both
+ * directions, so a plot zoomed in only along one axis still finds a suitable
+ * level. Each level is stored in square tiles of TILE_SIZE x TILE_SIZE cells,
+ * so the cells of a zoomed view are close together in the file.
+ *
+ * The levels are kept in a memory-mapped temporary file, next to the temporary
+ * files of the scans. A pyramid is reused by all 2D visualizers of the same
+ * scans and m/z range, until another pyramid is built for the raw data file.
+ */
+class IntensityPyramid {
+
+    private static final Logger logger = Logger
+            .getLogger(IntensityPyramid.class.getName());
+
+    static final int MAX_COLUMNS = 4096, MAX_ROWS = 4096;
+
+    // 32 x 32 floats make a tile of 4 kB
+    static final int TILE_SIZE = 32;
+
+    // Last pyramid built for each raw data file
+    private static final Map<RawDataFile, IntensityPyramid> pyramids = new WeakHashMap<RawDataFile, IntensityPyramid>();
+
+    private final int scanNumbers[];
+    private final Range<Double> mzRange;
+
+    private final int scansPerColumn, columns, rows;
+    private final double binWidth;
+
+    // Number of columns and rows of each level along x and y
+    private final int levelColumns[], levelRows[];
+
+    // Offset of the level [x][y] in the file, in floats
+    private final long levelOffsets[][];
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FloatBuffer values;
+
+    // Number of 2D visualizers using this pyramid
+    private int users = 0;
+
+    /**
+     * Creates an empty pyramid for given scans, sorted by retention time. The
+     * data points are added by addScan(), then the pyramid is completed by
+     * finish().
+     */
+    IntensityPyramid(Scan scans[], Range<Double> mzRange) throws IOException {
+
+        this.scanNumbers = new int[scans.length];
+        for (int i = 0; i < scans.length; i++)
+            scanNumbers[i] = scans[i].getScanNumber();
+        this.mzRange = mzRange;
+
+        scansPerColumn = Math.max(1, (scans.length + MAX_COLUMNS - 1)
+                / MAX_COLUMNS);
+        columns = Math.max(1, (scans.length + scansPerColumn - 1)
+                / scansPerColumn);
+        rows = Math.max(TILE_SIZE, Math.min(MAX_ROWS, scans.length));
+        binWidth = (mzRange.upperEndpoint() - mzRange.lowerEndpoint())
+                / rows;
+
+        levelColumns = getLevelSizes(columns);
+        levelRows = getLevelSizes(rows);
+        levelOffsets = new long[levelColumns.length][levelRows.length];
+        long size = 0;
+        for (int x = 0; x < levelColumns.length; x++) {
+            for (int y = 0; y < levelRows.length; y++) {
+                levelOffsets[x][y] = size;
+                size += (long) getTiles(levelColumns[x])
+                        * getTiles(levelRows[y]) * TILE_SIZE * TILE_SIZE;
+            }
+        }
+
+        // A new file is filled with zeros, which is the intensity of empty
+        // cells
+        file = File.createTempFile("mzmine", ".pyramid");
+        file.deleteOnExit();
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(size * 4);
+            values = randomAccessFile.getChannel()
+                    .map(FileChannel.MapMode.READ_WRITE, 0, size * 4)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        } catch (IOException | RuntimeException e) {
+            randomAccessFile.close();
+            file.delete();
+            throw e;
+        }
+
+    }
+
+    /**
+     * @return Number of cells of each level, starting with the finest one
+     */
+    private static int[] getLevelSizes(int finestSize) {
+        int numOfLevels = 1;
+        for (int size = finestSize; size > 1; size = (size + 1) / 2)
+            numOfLevels++;
+        int sizes[] = new int[numOfLevels];
+        sizes[0] = finestSize;
+        for (int i = 1; i < numOfLevels; i++)
+            sizes[i] = (sizes[i - 1] + 1) / 2;
+        return sizes;
+    }
+
+    private static int getTiles(int cells) {
+        return (cells + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    private int getIndex(int levelX, int levelY, int column, int row) {
+        final int tileRows = getTiles(levelRows[levelY]);
+        final long tile = (long) (column / TILE_SIZE) * tileRows
+                + (row / TILE_SIZE);
+        return (int) (levelOffsets[levelX][levelY] + tile * TILE_SIZE
+                * TILE_SIZE + (column % TILE_SIZE) * TILE_SIZE + (row % TILE_SIZE));
+    }
+
+    /**
+     * Adds the data points of the scan with given index to the finest level
+     */
+    void addScan(int scanIndex, double mzValues[], double intensityValues[],
+            int numOfDataPoints) {
+        final int column = scanIndex / scansPerColumn;
+        final double mzMin = mzRange.lowerEndpoint();
+        for (int i = 0; i < numOfDataPoints; i++) {
+            if (!mzRange.contains(mzValues[i]))
+                continue;
+            final int row = Math.min(rows - 1,
+                    (int) ((mzValues[i] - mzMin) / binWidth));
+            final int index = getIndex(0, 0, column, row);
+            if (intensityValues[i] > values.get(index))
+                values.put(index, (float) intensityValues[i]);
+        }
+    }
+
+    /**
+     * Computes the coarser levels from the finest one and makes this pyramid
+     * available to other 2D visualizers of the same raw data file
+     */
+    void finish(RawDataFile dataFile) {
+
+        for (int x = 0; x < levelColumns.length; x++) {
+            for (int y = 0; y < levelRows.length; y++) {
+                if ((x == 0) && (y == 0))
+                    continue;
+                // Merge pairs of columns of the level on the left, or pairs
+                // of rows of the level below
+                final boolean mergeColumns = (x > 0);
+                final int fromX = mergeColumns ? x - 1 : x;
+                final int fromY = mergeColumns ? y : y - 1;
+                for (int column = 0; column < levelColumns[x]; column++) {
+                    for (int row = 0; row < levelRows[y]; row++) {
+                        float max;
+                        if (mergeColumns) {
+                            max = values.get(getIndex(fromX, fromY,
+                                    2 * column, row));
+                            if (2 * column + 1 < levelColumns[fromX])
+                                max = Math.max(max, values.get(getIndex(
+                                        fromX, fromY, 2 * column + 1, row)));
+                        } else {
+                            max = values.get(getIndex(fromX, fromY, column,
+                                    2 * row));
+                            if (2 * row + 1 < levelRows[fromY])
+                                max = Math.max(max, values.get(getIndex(
+                                        fromX, fromY, column, 2 * row + 1)));
+                        }
+                        values.put(getIndex(x, y, column, row), max);
+                    }
+                }
+            }
+        }
+
+        synchronized (IntensityPyramid.class) {
+            IntensityPyramid previous = pyramids.put(dataFile, this);
+            if ((previous != null) && (previous.users == 0))
+                previous.dispose();
+        }
+
+    }
+
+    /**
+     * @return The pyramid of given scans and m/z range of the raw data file,
+     *         or null if there is none. The pyramid must be released by
+     *         release() when it is not needed any more.
+     */
+    static synchronized IntensityPyramid getPyramid(RawDataFile dataFile,
+            Scan scans[], Range<Double> mzRange) {
+        IntensityPyramid pyramid = pyramids.get(dataFile);
+        if ((pyramid == null) || !pyramid.mzRange.equals(mzRange)
+                || (pyramid.scanNumbers.length != scans.length))
+            return null;
+        for (int i = 0; i < scans.length; i++) {
+            if (pyramid.scanNumbers[i] != scans[i].getScanNumber())
+                return null;
+        }
+        pyramid.users++;
+        return pyramid;
+    }
+
+    /**
+     * Marks this pyramid as used, see release()
+     */
+    void acquire() {
+        synchronized (IntensityPyramid.class) {
+            users++;
+        }
+    }
+
+    /**
+     * Releases this pyramid. Its file is deleted once it is not used and
+     * another pyramid was built for the raw data file.
+     */
+    void release() {
+        synchronized (IntensityPyramid.class) {
+            users--;
+            if ((users == 0) && !pyramids.containsValue(this))
+                dispose();
+        }
+    }
+
+    /**
+     * Deletes the file of a pyramid which was not finished or is not used
+     * any more
+     */
+    void dispose() {
+        try {
+            randomAccessFile.close();
+        } catch (IOException e) {
+            logger.warning("Could not close file " + file + ": "
+                    + e.toString());
+        }
+        // The file cannot be deleted on Windows while it is mapped, then it
+        // is deleted on exit
+        file.delete();
+    }
+
+    /**
+     * Returns the highest intensity of the scans fromScanIndex to toScanIndex
+     * (inclusive) within the m/z range. The intensities are taken from the
+     * coarsest level whose cells are at most half of the given ranges, so the
+     * result may include data points up to half of the ranges outside.
+     *
+     * @return The highest intensity, or -1 if the ranges are too small for
+     *         this pyramid and the data points have to be read
+     */
+    double getMaxIntensity(int fromScanIndex, int toScanIndex,
+            Range<Double> mzRange) {
+
+        final double mzMin = this.mzRange.lowerEndpoint();
+        if ((mzRange.upperEndpoint() < mzMin)
+                || (mzRange.lowerEndpoint() > this.mzRange.upperEndpoint())
+                || (fromScanIndex > toScanIndex))
+            return 0;
+
+        final int fromColumn = fromScanIndex / scansPerColumn;
+        final int toColumn = Math.min(columns - 1, toScanIndex
+                / scansPerColumn);
+        final int fromRow = Math.max(0,
+                (int) ((mzRange.lowerEndpoint() - mzMin) / binWidth));
+        final int toRow = Math.min(rows - 1,
+                (int) ((mzRange.upperEndpoint() - mzMin) / binWidth));
+
+        final int levelX = getLevel(toColumn - fromColumn + 1,
+                levelColumns.length);
+        final int levelY = getLevel(toRow - fromRow + 1, levelRows.length);
+        if ((levelX < 0) || (levelY < 0))
+            return -1;
+
+        float max = 0;
+        for (int column = fromColumn >> levelX; column <= toColumn >> levelX; column++) {
+            for (int row = fromRow >> levelY; row <= toRow >> levelY; row++) {
+                max = Math.max(max,
+                        values.get(getIndex(levelX, levelY, column, row)));
+            }
+        }
+        return max;
+
+    }
+
+    /**
+     * @return The coarsest level with cells of at most half of the given
+     *         number of finest cells, or -1 if there is none
+     */
+    private static int getLevel(int cells, int numOfLevels) {
+        if (cells < 2)
+            return -1;
+        int level = 0;
+        while ((level + 1 < numOfLevels) && ((2 << (level + 1)) <= cells))
+            level++;
+        return level;
+    }
+
+}
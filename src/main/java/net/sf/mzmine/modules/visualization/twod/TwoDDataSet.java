@@ -19,9 +19,11 @@
 
 package net.sf.mzmine.modules.visualization.twod;
 
+import java.io.IOException;
 import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.RawDataFile;
@@ -43,12 +45,17 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
 
     private static final long serialVersionUID = 1L;
 
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
     private RawDataFile rawDataFile;
 
     private double retentionTimes[];
     private double basePeaks[];
     private SoftReference<DataPoint[]> dataPointMatrix[];
 
+    // Set when all scans were processed, null if it could not be built
+    private volatile IntensityPyramid pyramid;
+
     private final Range<Double> totalRTRange, totalMZRange;
     private int totalScans, processedScans;
     private final Scan scans[];
@@ -86,26 +93,76 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
 
         status = TaskStatus.PROCESSING;
 
+        // Reuse the pyramid of another 2D visualizer, or build a new one
+        // while reading the scans
+        IntensityPyramid newPyramid = IntensityPyramid.getPyramid(
+                rawDataFile, scans, totalMZRange);
+        final boolean build = (newPyramid == null);
+        if (build) {
+            try {
+                newPyramid = new IntensityPyramid(scans, totalMZRange);
+            } catch (IOException e) {
+                logger.warning("Could not create the intensity pyramid of "
+                        + rawDataFile + ": " + e.toString());
+            }
+        }
+
+        double mzValues[] = new double[0], intensityValues[] = new double[0];
+
         for (int index = 0; index < totalScans; index++) {
 
             // Cancel?
-            if (status == TaskStatus.CANCELED)
+            if (status == TaskStatus.CANCELED) {
+                if (newPyramid != null) {
+                    if (build)
+                        newPyramid.dispose();
+                    else
+                        newPyramid.release();
+                }
                 return;
+            }
 
             Scan scan = scans[index];
             DataPoint scanBasePeak = scan.getHighestDataPoint();
             retentionTimes[index] = scan.getRetentionTime();
             basePeaks[index] = (scanBasePeak == null ? 0 : scanBasePeak
                     .getIntensity());
-            DataPoint scanDataPoints[] = scan.getDataPoints();
-            dataPointMatrix[index] = new SoftReference<DataPoint[]>(
-                    scanDataPoints);
+            if (newPyramid == null) {
+                // Without a pyramid, all data points are read on each
+                // redraw
+                DataPoint scanDataPoints[] = scan.getDataPoints();
+                dataPointMatrix[index] = new SoftReference<DataPoint[]>(
+                        scanDataPoints);
+            } else if (build) {
+                final int numOfDataPoints = scan.getNumberOfDataPoints();
+                if (mzValues.length < numOfDataPoints) {
+                    mzValues = new double[numOfDataPoints];
+                    intensityValues = new double[numOfDataPoints];
+                }
+                final int numRead = scan.getDataPoints(mzValues,
+                        intensityValues);
+                newPyramid.addScan(index, mzValues, intensityValues, numRead);
+            }
             processedScans++;
         }
 
-        fireDatasetChanged();
+        if ((newPyramid != null) && build) {
+            newPyramid.finish(rawDataFile);
+            newPyramid.acquire();
+        }
+
+        synchronized (this) {
+            // Closed meanwhile?
+            if (status == TaskStatus.CANCELED) {
+                if (newPyramid != null)
+                    newPyramid.release();
+                return;
+            }
+            pyramid = newPyramid;
+            status = TaskStatus.FINISHED;
+        }
 
-        status = TaskStatus.FINISHED;
+        fireDatasetChanged();
 
     }
 
@@ -193,6 +250,23 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
                 return upperEndpointIntensity(startScanIndex, mzRange, plotMode);
         }
 
+        // Take the intensity from the pyramid, unless the ranges are so
+        // small that the data points have to be read
+        final IntensityPyramid currentPyramid = pyramid;
+        if (currentPyramid != null) {
+            int endScanIndex = Arrays.binarySearch(searchRetentionTimes,
+                    rtRange.upperEndpoint());
+            if (endScanIndex < 0)
+                endScanIndex = (endScanIndex * -1) - 2;
+            double pyramidMax = currentPyramid.getMaxIntensity(
+                    startScanIndex, endScanIndex, mzRange);
+            // An empty area of continuous data takes the intensity of the
+            // nearest data point, so it is left to the data points
+            if ((pyramidMax > 0)
+                    || ((pyramidMax == 0) && (plotMode == PlotMode.CENTROID)))
+                return pyramidMax;
+        }
+
         for (int scanIndex = startScanIndex; ((scanIndex < searchRetentionTimes.length) && (searchRetentionTimes[scanIndex] <= rtRange
                 .upperEndpoint())); scanIndex++) {
 
@@ -251,7 +325,7 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
         for (int scanIndex = startScanIndex; ((scanIndex < searchRetentionTimes.length) && (searchRetentionTimes[scanIndex] <= rtRange
                 .upperEndpoint())); scanIndex++) {
             // get the list of data points
-            DataPoint dataPoints[] = dataPointMatrix[scanIndex].get();
+            DataPoint dataPoints[] = getDataPoints(scanIndex);
             // Binary search for the mz values in the range you want
 
             DataPoint searchMZ = new SimpleDataPoint(mzRange.lowerEndpoint(), 0);
@@ -294,14 +368,37 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
 
     private double upperEndpointIntensity(int dataPointMatrixIndex,
             Range<Double> mzRange, PlotMode plotMode) {
-        DataPoint dataPoints[] = dataPointMatrix[dataPointMatrixIndex].get();
+        DataPoint dataPoints[] = getDataPoints(dataPointMatrixIndex);
+        return upperEndpointIntensity(dataPoints, mzRange, plotMode);
+    }
+
+    /**
+     * @return Data points of the scan with given index, which are read again
+     *         if they were not loaded yet or were garbage collected
+     */
+    private DataPoint[] getDataPoints(int dataPointMatrixIndex) {
+        SoftReference<DataPoint[]> reference = dataPointMatrix[dataPointMatrixIndex];
+        DataPoint dataPoints[] = (reference == null ? null : reference.get());
         if (dataPoints == null) {
             Scan scan = scans[dataPointMatrixIndex];
             dataPoints = scan.getDataPoints();
             dataPointMatrix[dataPointMatrixIndex] = new SoftReference<DataPoint[]>(
                     dataPoints);
         }
-        return upperEndpointIntensity(dataPoints, mzRange, plotMode);
+        return dataPoints;
+    }
+
+    /**
+     * Stops loading the scans and releases the intensity pyramid, when the
+     * visualizer is closed
+     */
+    synchronized void dispose() {
+        if (status == TaskStatus.WAITING || status == TaskStatus.PROCESSING)
+            cancel();
+        if (pyramid != null) {
+            pyramid.release();
+            pyramid = null;
+        }
     }
 
     private double upperEndpointIntensity(DataPoint dataPoints[],
@@ -114,6 +114,7 @@ public class TwoDVisualizerWindow extends JFrame implements ActionListener {
   public void dispose() {
     super.dispose();
     MZmineCore.getDesktop().removePeakListTreeListener(bottomPanel);
+    dataset.dispose();
   }
 
   void updateTitle() {
@@ -155,6 +155,7 @@ public abstract class ParameterSetupDialogWithChromatogramPreview extends
     }
 
     public void hidePreview() {
+	ticPlot.removeAllTICDataSets();
 	mainPanel.remove(ticPlot);
 	pnlPreviewFields.setVisible(false);
 	updateMinimumSize();
@@ -275,6 +276,9 @@ public abstract class ParameterSetupDialogWithChromatogramPreview extends
 	ticPlot.setBorder(BorderFactory.createEtchedBorder(EtchedBorder.RAISED));
 	ticPlot.setMinimumSize(new Dimension(400, 300));
 
+	// Closing the window must release the preview, too (see dispose())
+	setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
 	mainPanel.add(pnlPreviewFields, 0, getNumberOfParameters() + 3, 3, 1,
 		0, 0);
 
@@ -282,4 +286,15 @@ public abstract class ParameterSetupDialogWithChromatogramPreview extends
 	pack();
     }
 
+    /**
+     * Stops extracting the chromatograms of the preview when the dialog is
+     * closed
+     */
+    @Override
+    public void dispose() {
+	if (ticPlot != null)
+	    ticPlot.removeAllTICDataSets();
+	super.dispose();
+    }
+
 }
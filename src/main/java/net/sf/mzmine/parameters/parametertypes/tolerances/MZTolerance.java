@@ -48,7 +48,7 @@ public class MZTolerance {
 	return ppmTolerance;
     }
 
-    private double getMzToleranceForMass(final double mzValue) {
+    public double getMzToleranceForMass(final double mzValue) {
 	return Math.max(mzTolerance, mzValue / MILLION * ppmTolerance);
     }
 
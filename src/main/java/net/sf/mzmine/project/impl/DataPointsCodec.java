@@ -0,0 +1,155 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.nio.ByteBuffer;
+
+import net.sf.mzmine.datamodel.DataPoint;
+
+/**
+ * Compressed format of the data points stored in the data points file of
+ * RawDataFileImpl. The values are kept as floats, like in the uncompressed
+ * format, so the encoding is lossless. The block of all m/z values is followed
+ * by the block of all intensities. Each value is written as the difference of
+ * its float bit pattern to the previous value of the block, in 1 - 5 bytes
+ * (zig-zag encoded varint). Bit patterns of positive floats are ordered like
+ * the values, so the ascending m/z values of a scan give small differences,
+ * and runs of equal intensities (e.g. zeros in profile scans) take one byte per
+ * data point. Records of data points with a shared m/z axis (see
+ * RawDataFileImpl.storeMZAxis()) contain only the block of intensities.
+ */
+class DataPointsCodec {
+
+    /**
+     * @return Maximum number of bytes needed to encode given number of data
+     *         points
+     */
+    static int getMaxEncodedLength(int numOfDataPoints) {
+        return numOfDataPoints * 2 * 5;
+    }
+
+    /**
+     * Encodes the data points into the buffer, starting at its position
+     */
+    static void encode(DataPoint dataPoints[], ByteBuffer buffer) {
+        int previous = 0;
+        for (DataPoint dp : dataPoints) {
+            final int bits = Float.floatToRawIntBits((float) dp.getMZ());
+            putVarInt(buffer, bits - previous);
+            previous = bits;
+        }
+        previous = 0;
+        for (DataPoint dp : dataPoints) {
+            final int bits = Float
+                    .floatToRawIntBits((float) dp.getIntensity());
+            putVarInt(buffer, bits - previous);
+            previous = bits;
+        }
+    }
+
+    /**
+     * Encodes the first numOfDataPoints values of the arrays into the buffer,
+     * starting at its position
+     */
+    static void encode(double mzValues[], double intensityValues[],
+            int numOfDataPoints, ByteBuffer buffer) {
+        int previous = 0;
+        for (int i = 0; i < numOfDataPoints; i++) {
+            final int bits = Float.floatToRawIntBits((float) mzValues[i]);
+            putVarInt(buffer, bits - previous);
+            previous = bits;
+        }
+        previous = 0;
+        for (int i = 0; i < numOfDataPoints; i++) {
+            final int bits = Float
+                    .floatToRawIntBits((float) intensityValues[i]);
+            putVarInt(buffer, bits - previous);
+            previous = bits;
+        }
+    }
+
+    /**
+     * Encodes only the intensities of data points with a shared m/z axis, as
+     * the intensity block of encode()
+     */
+    static void encodeIntensities(double intensityValues[],
+            int numOfDataPoints, ByteBuffer buffer) {
+        int previous = 0;
+        for (int i = 0; i < numOfDataPoints; i++) {
+            final int bits = Float
+                    .floatToRawIntBits((float) intensityValues[i]);
+            putVarInt(buffer, bits - previous);
+            previous = bits;
+        }
+    }
+
+    /**
+     * Decodes the data points from the buffer into the values array, as
+     * interleaved m/z and intensity values
+     */
+    static void decode(ByteBuffer buffer, int numOfDataPoints,
+            float values[]) {
+        int previous = 0;
+        for (int i = 0; i < numOfDataPoints; i++) {
+            previous += getVarInt(buffer);
+            values[2 * i] = Float.intBitsToFloat(previous);
+        }
+        previous = 0;
+        for (int i = 0; i < numOfDataPoints; i++) {
+            previous += getVarInt(buffer);
+            values[2 * i + 1] = Float.intBitsToFloat(previous);
+        }
+    }
+
+    /**
+     * Decodes intensities encoded by encodeIntensities() into the intensity
+     * positions of the interleaved values array
+     */
+    static void decodeIntensities(ByteBuffer buffer, int numOfDataPoints,
+            float values[]) {
+        int previous = 0;
+        for (int i = 0; i < numOfDataPoints; i++) {
+            previous += getVarInt(buffer);
+            values[2 * i + 1] = Float.intBitsToFloat(previous);
+        }
+    }
+
+    private static void putVarInt(ByteBuffer buffer, int value) {
+        // Zig-zag encoding, so small negative differences are short, too
+        int bits = (value << 1) ^ (value >> 31);
+        while ((bits & ~0x7F) != 0) {
+            buffer.put((byte) ((bits & 0x7F) | 0x80));
+            bits >>>= 7;
+        }
+        buffer.put((byte) bits);
+    }
+
+    private static int getVarInt(ByteBuffer buffer) {
+        int bits = 0, shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            bits |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return (bits >>> 1) ^ -(bits & 1);
+    }
+
+}
@@ -18,6 +18,9 @@ public class ImagingRawDataFileImpl extends RawDataFileImpl implements ImagingRa
 	// TODO add ms level - one array for each level
 	private int [][][] xyzScanNumbers;
 	
+	// shared m/z axis of continuous-mode data (see storeMZAxis), 0 if none
+	private int sharedAxisID = 0;
+	
 	
 	public ImagingRawDataFileImpl(String dataFileName) throws IOException {
 		super(dataFileName);
@@ -34,6 +37,35 @@ public class ImagingRawDataFileImpl extends RawDataFileImpl implements ImagingRa
 		return param;
 	}
 
+	/**
+	 * Continuous-mode imaging data have the same m/z values in all spectra.
+	 * The m/z values of the first spectrum are stored as the shared axis, and
+	 * of all spectra with the same m/z values only the intensities are stored.
+	 */
+	@Override
+	protected int storeScanDataPoints(double[] mzValues,
+			double[] intensityValues, int numOfDataPoints) throws IOException {
+		if (sharedAxisID == 0 && numOfDataPoints > 0)
+			sharedAxisID = storeMZAxis(mzValues, numOfDataPoints);
+		if (isSharedMZAxis(mzValues, numOfDataPoints))
+			return storeIntensities(sharedAxisID, intensityValues);
+		return super.storeScanDataPoints(mzValues, intensityValues,
+				numOfDataPoints);
+	}
+
+	private boolean isSharedMZAxis(double[] mzValues, int numOfDataPoints) {
+		if (sharedAxisID == 0)
+			return false;
+		float[] axis = getMZAxisByID(sharedAxisID);
+		if (axis.length != numOfDataPoints)
+			return false;
+		for (int i = 0; i < numOfDataPoints; i++) {
+			if ((float) mzValues[i] != axis[i])
+				return false;
+		}
+		return true;
+	}
+
 	@Override
 	public Scan getScan(float x, float y) {
 		// 
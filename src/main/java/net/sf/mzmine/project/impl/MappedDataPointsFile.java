@@ -0,0 +1,376 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only storage of binary records in a temporary file, used as the
+ * backend of the RawDataFileImpl data points file.
+ *
+ * The file is divided into segments of SEGMENT_SIZE bytes. Each segment which
+ * has been completely written is memory-mapped (read-only) the first time it
+ * is accessed, and reads of records inside a mapped segment just return a
+ * slice of the mapping. Records in the unfinished tail of the file or records
+ * crossing a segment boundary are read using positional FileChannel reads.
+ * Neither path takes a lock, so any number of threads can read concurrently.
+ *
+ * Appends are serialized among the writers only, they never block readers.
+ * Data written by append() is visible to any reader which obtained the
+ * returned offset through a happens-before edge (e.g. a concurrent map).
+ *
+ * Alternatively, the records can be read in place from a region of another
+ * file, e.g. an uncompressed entry of a project ZIP file. Such a file is only
+ * opened for reading and never modified. Appended records are written into a
+ * temporary file, which is created by the first append and whose records
+ * follow the region in the offset space.
+ */
+public class MappedDataPointsFile {
+
+    /**
+     * Size of one mapped segment (64 MB)
+     */
+    static final int SEGMENT_SIZE = 1 << 26;
+
+    private final Logger logger = Logger.getLogger(this.getClass().getName());
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+
+    // Position of offset 0 in the file and the length of the region which
+    // can be read from the file. Records beyond the region are stored in the
+    // appendix. For our own temporary files, the region is unlimited.
+    private final long baseOffset;
+    private final long regionLength;
+    private volatile MappedDataPointsFile appendix;
+
+    // Length of the data written so far. The file itself may be longer, if it
+    // was extended by another process, but we never read beyond this length.
+    private volatile long length;
+
+    // Copy-on-write array of mapped segments, null for segments which have not
+    // been mapped yet
+    private volatile MappedByteBuffer segments[] = new MappedByteBuffer[0];
+
+    private final Object writeLock = new Object();
+    private final Object mapLock = new Object();
+
+    public MappedDataPointsFile(File file) throws IOException {
+
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+        this.length = channel.size();
+        this.baseOffset = 0;
+        this.regionLength = Long.MAX_VALUE;
+
+        // Locks the temporary file so it is not removed when another instance
+        // of MZmine is starting. Lock will be automatically released when this
+        // instance of MZmine exits. Locking may fail on network-mounted
+        // filesystems.
+        try {
+            channel.lock();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to lock the file " + file, e);
+        }
+
+    }
+
+    /**
+     * Opens numOfBytes bytes of the given file, starting at the given
+     * position, for reading in place. The file is not locked and it is never
+     * written to.
+     */
+    public MappedDataPointsFile(File file, long position, long numOfBytes)
+            throws IOException {
+
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "r");
+        this.channel = randomAccessFile.getChannel();
+        this.baseOffset = position;
+        this.regionLength = numOfBytes;
+        this.length = numOfBytes;
+
+        if ((position < 0) || (position + numOfBytes > channel.size())) {
+            randomAccessFile.close();
+            throw new IOException("Region of " + numOfBytes
+                    + " bytes at position " + position
+                    + " exceeds the end of " + file);
+        }
+
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return True if the records are read in place from a region of a file
+     *         which is not ours, so the file must not be deleted
+     */
+    public boolean isRegion() {
+        return regionLength != Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the underlying RandomAccessFile. Note that readers of this class
+     * do not use the file pointer, so seeking in the returned file does not
+     * interfere with them. For a region of another file, the whole file is
+     * returned, opened read-only, and the records do not start at position 0.
+     */
+    public RandomAccessFile getRandomAccessFile() {
+        return randomAccessFile;
+    }
+
+    /**
+     * @return Number of bytes stored in this file
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Appends the remaining bytes of the given buffer to the end of the file.
+     *
+     * @return Offset at which the data was written
+     */
+    public long append(ByteBuffer data) throws IOException {
+        synchronized (writeLock) {
+            if (isRegion()) {
+                if (appendix == null) {
+                    File appendixFile = RawDataFileImpl
+                            .createNewDataPointsFile();
+                    appendixFile.deleteOnExit();
+                    appendix = new MappedDataPointsFile(appendixFile);
+                }
+                final long offset = regionLength + appendix.append(data);
+                length = regionLength + appendix.length();
+                return offset;
+            }
+            final long offset = length;
+            long position = offset;
+            while (data.hasRemaining()) {
+                position += channel.write(data, position);
+            }
+            length = position;
+            return offset;
+        }
+    }
+
+    /**
+     * Returns a read-only buffer containing numOfBytes bytes stored at the
+     * given offset. The buffer is positioned at 0 and is private to the
+     * caller. This method does not take any lock.
+     */
+    public ByteBuffer read(long offset, int numOfBytes) throws IOException {
+
+        if ((offset < 0) || (offset + numOfBytes > length)) {
+            throw new IOException("Cannot read " + numOfBytes
+                    + " bytes at offset " + offset + " from " + file
+                    + " of length " + length);
+        }
+
+        if (offset + numOfBytes > regionLength) {
+            if (offset >= regionLength)
+                return appendix.read(offset - regionLength, numOfBytes);
+
+            // Data crossing the end of the region
+            final int inRegion = (int) (regionLength - offset);
+            ByteBuffer buffer = ByteBuffer.allocate(numOfBytes);
+            buffer.put(read(offset, inRegion));
+            buffer.put(appendix.read(0, numOfBytes - inRegion));
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        }
+
+        final int segmentIndex = (int) (offset / SEGMENT_SIZE);
+        final int segmentOffset = (int) (offset % SEGMENT_SIZE);
+
+        if (segmentOffset + numOfBytes <= SEGMENT_SIZE) {
+            MappedByteBuffer segment = getSegment(segmentIndex);
+            if (segment != null) {
+                ByteBuffer slice = segment.duplicate();
+                slice.position(segmentOffset);
+                slice.limit(segmentOffset + numOfBytes);
+                return slice.slice();
+            }
+        }
+
+        // Tail of the file or a record crossing the segment boundary
+        ByteBuffer buffer = ByteBuffer.allocate(numOfBytes);
+        long position = baseOffset + offset;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of file " + file);
+            position += read;
+        }
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+
+    }
+
+    /**
+     * Writes numOfBytes bytes stored at the given offset into the target
+     * channel. The data are transferred by the operating system, if possible,
+     * without copying them into memory.
+     */
+    public void transferTo(long offset, long numOfBytes,
+            WritableByteChannel target) throws IOException {
+
+        if ((offset < 0) || (offset + numOfBytes > length)) {
+            throw new IOException("Cannot transfer " + numOfBytes
+                    + " bytes at offset " + offset + " from " + file
+                    + " of length " + length);
+        }
+
+        if (offset + numOfBytes > regionLength) {
+            final long inRegion = Math.max(0, regionLength - offset);
+            if (inRegion > 0)
+                transferTo(offset, inRegion, target);
+            appendix.transferTo(offset + inRegion - regionLength, numOfBytes
+                    - inRegion, target);
+            return;
+        }
+
+        long position = baseOffset + offset;
+        final long end = position + numOfBytes;
+        while (position < end)
+            position += channel.transferTo(position, end - position, target);
+
+    }
+
+    /**
+     * Returns the mapping of the given segment, or null if the segment has not
+     * been completely written yet. The last segment of a region, which does
+     * not change, is mapped even if it is shorter than SEGMENT_SIZE.
+     */
+    private MappedByteBuffer getSegment(int index) throws IOException {
+
+        MappedByteBuffer currentSegments[] = segments;
+        if ((index < currentSegments.length)
+                && (currentSegments[index] != null))
+            return currentSegments[index];
+
+        final long segmentStart = (long) index * SEGMENT_SIZE;
+        final long segmentSize = Math.min(SEGMENT_SIZE, regionLength
+                - segmentStart);
+        if (segmentStart + segmentSize > length)
+            return null;
+
+        synchronized (mapLock) {
+            currentSegments = segments;
+            if ((index < currentSegments.length)
+                    && (currentSegments[index] != null))
+                return currentSegments[index];
+
+            MappedByteBuffer segment = channel.map(
+                    FileChannel.MapMode.READ_ONLY, baseOffset + segmentStart,
+                    segmentSize);
+
+            MappedByteBuffer newSegments[] = Arrays.copyOf(currentSegments,
+                    Math.max(currentSegments.length, index + 1));
+            newSegments[index] = segment;
+            segments = newSegments;
+            return segment;
+        }
+
+    }
+
+    /**
+     * Closes the file and unmaps the mapped segments, so the file can be
+     * deleted even on Windows, which does not delete mapped files. The
+     * buffers returned by read() must not be used any more after the file is
+     * closed. The temporary file of records appended to a region is deleted.
+     */
+    public void close() throws IOException {
+        synchronized (mapLock) {
+            for (MappedByteBuffer segment : segments) {
+                if (segment != null)
+                    unmap(segment);
+            }
+            segments = new MappedByteBuffer[0];
+        }
+        synchronized (writeLock) {
+            randomAccessFile.close();
+            if (appendix != null)
+                appendix.closeAndDelete();
+        }
+    }
+
+    /**
+     * Closes the file and deletes it, unless the records are read from a
+     * region of another file. If the file cannot be deleted now, it is
+     * deleted when MZmine exits.
+     */
+    public void closeAndDelete() throws IOException {
+        close();
+        if (!isRegion() && file.exists() && !file.delete()) {
+            logger.fine("Could not delete " + file + ", deleting it on exit");
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Releases the mapping of the given buffer immediately, instead of waiting
+     * for the garbage collector. There is no public API for that, so the
+     * cleaner of the buffer is invoked via reflection (sun.misc.Unsafe on Java
+     * 9 and newer, the cleaner() method of the buffer on Java 8). If neither
+     * is accessible, the mapping is released by the garbage collector.
+     */
+    private void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+                    ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (NoSuchMethodException e) {
+            // Java 8, see below
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Could not unmap a segment of " + file, e);
+            return;
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null)
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Could not unmap a segment of " + file, e);
+        }
+    }
+
+}
@@ -20,6 +20,7 @@ package net.sf.mzmine.project.impl;
 
 import java.io.File;
 import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.projectmethods.projectload.ProjectLoadModule;
@@ -59,6 +60,11 @@ public class ProjectManagerImpl implements ProjectManager {
       for (RawDataFile prevDataFile : prevDataFiles) {
         prevDataFile.close();
       }
+      // Remove previous peak lists, so the project listeners can release
+      // their data
+      for (PeakList prevPeakList : currentProject.getPeakLists()) {
+        currentProject.removePeakList(prevPeakList);
+      }
     }
 
     this.currentProject = project;
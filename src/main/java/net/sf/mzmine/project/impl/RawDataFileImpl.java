@@ -21,63 +21,141 @@ package net.sf.mzmine.project.impl;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
-import java.nio.channels.FileChannel;
-import java.util.ArrayList;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
-import java.util.Enumeration;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Hashtable;
-import java.util.Set;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.TreeMap;
-import java.util.logging.Level;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.ImagingScan;
+import net.sf.mzmine.datamodel.IonChromatogram;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleIonChromatogram;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
+import net.sf.mzmine.main.MZmineConfiguration;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.util.XICExtractor;
 
 import com.google.common.collect.Range;
-import com.google.common.primitives.Ints;
 
 /**
  * RawDataFile implementation. It provides storage of data points for scans and
  * mass lists using the storeDataPoints() and readDataPoints() methods. The data
  * points are stored in a temporary file (dataPointsFile) and the structure of
- * the file is stored in two TreeMaps. The dataPointsOffsets maps storage ID to
- * the offset in the dataPointsFile. The dataPointsLength maps the storage ID to
- * the number of data points stored under this ID. When stored data points are
- * deleted using removeStoredDataPoints(), the dataPointsFile is not modified,
- * the storage ID is just deleted from the two TreeMaps. When the project is
- * saved, the contents of the dataPointsFile are consolidated - only data points
- * referenced by the TreeMaps are saved (see the RawDataFileSaveHandler class).
+ * the file is stored in two concurrent sorted maps. The dataPointsOffsets maps
+ * storage ID to the offset in the dataPointsFile. The dataPointsLength maps the
+ * storage ID to the number of data points stored under this ID. When stored
+ * data points are deleted using removeStoredDataPoints(), the storage ID is
+ * just deleted from the two maps. Once the deleted records take more than half
+ * of the dataPointsFile (and at least COMPACTION_MIN_DEAD_BYTES), the file is
+ * compacted: the live records are copied to a new temporary file, which
+ * replaces the old one. When the project is saved, only data points referenced
+ * by the maps are saved (see the RawDataFileSaveHandler class).
+ * 
+ * Data points are stored as pairs of floats, or in the compressed format of
+ * DataPointsCodec if enabled in the preferences. The byte length of each
+ * compressed record is kept in dataPointsEncodedLengths. If the same data
+ * points are stored again (e.g. a mass list detected again with the same
+ * parameters), the new storage ID refers to the existing record.
+ * 
+ * Spectra of continuous-mode imaging files share one m/z axis. The axis is
+ * stored once by storeMZAxis() and kept in memory, and the records of such
+ * spectra contain only the intensities (see storeIntensities()). The storage
+ * IDs of these records are mapped to their axis in dataPointsAxes. Saved
+ * projects contain the full data points of every record.
+ * 
+ * The dataPointsFile is memory-mapped (see MappedDataPointsFile), so
+ * readDataPoints() does not take any lock and can be called by many threads in
+ * parallel. Only writers are serialized. A reader which overlaps with the
+ * replacement of a compacted file notices the change of storageVersion and
+ * reads again. Decoded data points are kept in a SpectraCache, so repeated
+ * reads of the same scan or mass list do not touch the data points file.
  */
 public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
     private final Logger logger = Logger.getLogger(this.getClass().getName());
 
+    /**
+     * Minimum size of deleted records in the data points file to compact it
+     * (64 MB)
+     */
+    private static final long COMPACTION_MIN_DEAD_BYTES = 1L << 26;
+
+    /**
+     * A record of the data points file, which may be shared by several storage
+     * IDs
+     */
+    private static class StoredRecord {
+	final int numOfBytes;
+	int references = 0;
+
+	StoredRecord(int numOfBytes) {
+	    this.numOfBytes = numOfBytes;
+	}
+    }
+
     // Name of this raw data file - may be changed by the user
     private String dataFileName;
 
+    // Ranges set explicitly by setMZRange() and setRTRange(), these take
+    // precedence over the ranges computed from the scans
     private final Hashtable<Integer, Range<Double>> dataMZRange, dataRTRange;
-    private final Hashtable<Integer, Double> dataMaxBasePeakIntensity,
-	    dataMaxTIC;
-    private final Hashtable<Integer, int[]> scanNumbersCache;
+
+    // Index of scan numbers, retention times and data limits
+    private volatile ScanIndex scanIndex;
 
     private ByteBuffer buffer = ByteBuffer.allocate(20000);
-    private final TreeMap<Integer, Long> dataPointsOffsets;
-    private final TreeMap<Integer, Integer> dataPointsLengths;
+    private final ConcurrentSkipListMap<Integer, Long> dataPointsOffsets;
+    private final ConcurrentSkipListMap<Integer, Integer> dataPointsLengths;
+    private final ConcurrentSkipListMap<Integer, Integer> dataPointsEncodedLengths;
+    private final ConcurrentSkipListMap<Integer, Integer> dataPointsAxes;
 
-    // Temporary file for scan data storage
+    // Shared m/z axes by axis ID
+    private final Map<Integer, float[]> mzAxes = new ConcurrentHashMap<Integer, float[]>();
+
+    // Temporary file for scan data storage, null if the data points are read
+    // in place from a project file, which must not be deleted
     private File dataPointsFileName;
-    private RandomAccessFile dataPointsFile;
+    private volatile MappedDataPointsFile dataPointsFile;
+
+    // Incremented before and after the data points file is replaced by a
+    // compacted one, so it is odd while the replacement is in progress
+    private volatile int storageVersion = 0;
+
+    // Number of reads in progress, and replaced data points files which are
+    // closed (and unmapped) once no read is in progress any more
+    private final AtomicInteger activeReads = new AtomicInteger();
+    private final Queue<MappedDataPointsFile> retiredFiles = new ConcurrentLinkedQueue<MappedDataPointsFile>();
+
+    // Live records of the data points file by offset, and their total size.
+    // Built from the maps on the first change after opening a file, because
+    // the maps of loaded projects are filled from outside.
+    private TreeMap<Long, StoredRecord> storedRecords;
+    private long liveBytes;
+
+    // Storage ID of the last stored data points with given hash code
+    private final Map<Integer, Integer> storedHashes = new HashMap<Integer, Integer>();
+    private final SpectraCache spectraCache;
 
     /**
      * Scans
@@ -88,15 +166,15 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
 	this.dataFileName = dataFileName;
 
-	// Prepare the hashtables for scan numbers and data limits.
-	scanNumbersCache = new Hashtable<Integer, int[]>();
+	// Prepare the hashtables for data limits.
 	dataMZRange = new Hashtable<Integer, Range<Double>>();
 	dataRTRange = new Hashtable<Integer, Range<Double>>();
-	dataMaxBasePeakIntensity = new Hashtable<Integer, Double>();
-	dataMaxTIC = new Hashtable<Integer, Double>();
 	scans = new Hashtable<Integer, StorableScan>();
-	dataPointsOffsets = new TreeMap<Integer, Long>();
-	dataPointsLengths = new TreeMap<Integer, Integer>();
+	dataPointsOffsets = new ConcurrentSkipListMap<Integer, Long>();
+	dataPointsLengths = new ConcurrentSkipListMap<Integer, Integer>();
+	dataPointsEncodedLengths = new ConcurrentSkipListMap<Integer, Integer>();
+	dataPointsAxes = new ConcurrentSkipListMap<Integer, Integer>();
+	spectraCache = new SpectraCache(dataFileName);
 
     }
 
@@ -117,13 +195,27 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
      * in case no scans have been added yet to this RawDataFileImpl instance
      */
     public RandomAccessFile getDataPointsFile() {
-	return dataPointsFile;
+	if (dataPointsFile == null)
+	    return null;
+	return dataPointsFile.getRandomAccessFile();
+    }
+
+    /**
+     * Returns the current size of the data points file in bytes, or 0 if no
+     * scans have been added yet
+     */
+    public long getDataPointsFileSize() {
+	MappedDataPointsFile file = dataPointsFile;
+	if (file == null)
+	    return 0;
+	return file.length();
     }
 
     /**
      * Opens the given file as a data points file for this RawDataFileImpl
-     * instance. If the file is not empty, the TreeMaps supplied as parameters
-     * have to describe the mapping of storage IDs to data points in the file.
+     * instance. If the file is not empty, the maps returned by
+     * getDataPointsOffsets() and getDataPointsLengths() have to be filled to
+     * describe the mapping of storage IDs to data points in the file.
      */
     public synchronized void openDataPointsFile(File dataPointsFileName)
 	    throws IOException {
@@ -133,23 +225,35 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 		    "Cannot open another data points file, because one is already open");
 	}
 
-	this.dataPointsFileName = dataPointsFileName;
-	this.dataPointsFile = new RandomAccessFile(dataPointsFileName, "rw");
+	openDataPointsFile(new MappedDataPointsFile(dataPointsFileName));
 
-	// Locks the temporary file so it is not removed when another instance
-	// of MZmine is starting. Lock will be automatically released when this
-	// instance of MZmine exits. Locking may fail on network-mounted filesystems.
-	try {
-	    FileChannel fileChannel = dataPointsFile.getChannel();
-	    fileChannel.lock();
-	} catch (IOException e) {
-	    logger.log(Level.WARNING, "Failed to lock the file " + dataPointsFileName, e);
+    }
+
+    /**
+     * Uses the given, already opened file as the data points file for this
+     * RawDataFileImpl instance, see openDataPointsFile(File). A temporary file
+     * is deleted when this raw data file is closed, while a region of a
+     * project file (see MappedDataPointsFile.isRegion()) is only read, and new
+     * data points are stored in a temporary file.
+     */
+    public synchronized void openDataPointsFile(
+	    MappedDataPointsFile dataPointsFile) throws IOException {
+
+	if (this.dataPointsFile != null) {
+	    throw new IOException(
+		    "Cannot open another data points file, because one is already open");
 	}
 
+	this.dataPointsFileName = dataPointsFile.isRegion() ? null
+		: dataPointsFile.getFile();
+	this.dataPointsFile = dataPointsFile;
+	this.storedRecords = null;
+
 	// Unfortunately, deleteOnExit() doesn't work on Windows, see JDK
 	// bug #4171239. We will try to remove the temporary files in a
 	// shutdown hook registered in the main.ShutDownHook class
-	dataPointsFileName.deleteOnExit();
+	if (dataPointsFileName != null)
+	    dataPointsFileName.deleteOnExit();
 
     }
 
@@ -167,16 +271,27 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	return scans.get(scanNumber);
     }
 
+    /**
+     * Returns the index of the scan metadata, building it if necessary. The
+     * index is built in finishWriting() and discarded whenever a scan is
+     * added.
+     */
+    private ScanIndex getScanIndex() {
+	ScanIndex index = scanIndex;
+	if (index != null)
+	    return index;
+	synchronized (this) {
+	    if (scanIndex == null)
+		scanIndex = new ScanIndex(scans.values());
+	    return scanIndex;
+	}
+    }
+
     /**
      * @see net.sf.mzmine.datamodel.RawDataFile#getScanNumbers(int)
      */
     public @Nonnull int[] getScanNumbers(int msLevel) {
-	if (scanNumbersCache.containsKey(msLevel))
-	    return scanNumbersCache.get(msLevel);
-	Range<Double> all = Range.all();
-	int scanNumbers[] = getScanNumbers(msLevel, all);
-	scanNumbersCache.put(msLevel, scanNumbers);
-	return scanNumbers;
+	return getScanIndex().getScanNumbers(msLevel);
     }
 
     /**
@@ -188,136 +303,199 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
 	assert rtRange != null;
 
-	ArrayList<Integer> eligibleScanNumbers = new ArrayList<Integer>();
-
-	Enumeration<StorableScan> scansEnum = scans.elements();
-	while (scansEnum.hasMoreElements()) {
-	    Scan scan = scansEnum.nextElement();
-
-	    if ((scan.getMSLevel() == msLevel)
-		    && (rtRange.contains(scan.getRetentionTime())))
-		eligibleScanNumbers.add(scan.getScanNumber());
-	}
-
-	int[] numbersArray = Ints.toArray(eligibleScanNumbers);
-	Arrays.sort(numbersArray);
-
-	return numbersArray;
+	return getScanIndex().getScanNumbers(msLevel, rtRange);
     }
 
     /**
      * @see net.sf.mzmine.datamodel.RawDataFile#getScanNumbers()
      */
     public @Nonnull int[] getScanNumbers() {
-
-	if (scanNumbersCache.containsKey(0))
-	    return scanNumbersCache.get(0);
-
-	Set<Integer> allScanNumbers = scans.keySet();
-	int[] numbersArray = Ints.toArray(allScanNumbers);
-	Arrays.sort(numbersArray);
-
-	scanNumbersCache.put(0, numbersArray);
-
-	return numbersArray;
-
+	return getScanIndex().getScanNumbers();
     }
 
     /**
      * @see net.sf.mzmine.datamodel.RawDataFile#getMSLevels()
      */
     public @Nonnull int[] getMSLevels() {
-
-	Set<Integer> msLevelsSet = new HashSet<Integer>();
-
-	Enumeration<StorableScan> scansEnum = scans.elements();
-	while (scansEnum.hasMoreElements()) {
-	    Scan scan = scansEnum.nextElement();
-	    msLevelsSet.add(scan.getMSLevel());
-	}
-
-	int[] msLevels = Ints.toArray(msLevelsSet);
-	Arrays.sort(msLevels);
-	return msLevels;
-
+	return getScanIndex().getMSLevels();
     }
 
     /**
      * @see net.sf.mzmine.datamodel.RawDataFile#getDataMaxBasePeakIntensity()
      */
     public double getDataMaxBasePeakIntensity(int msLevel) {
+	return getScanIndex().getMaxBasePeakIntensity(msLevel);
+    }
 
-	// check if we have this value already cached
-	Double maxBasePeak = dataMaxBasePeakIntensity.get(msLevel);
-	if (maxBasePeak != null)
-	    return maxBasePeak;
+    /**
+     * @see net.sf.mzmine.datamodel.RawDataFile#getDataMaxTotalIonCurrent()
+     */
+    public double getDataMaxTotalIonCurrent(int msLevel) {
+	return getScanIndex().getMaxTIC(msLevel);
+    }
 
-	// find the value
-	Enumeration<StorableScan> scansEnum = scans.elements();
-	while (scansEnum.hasMoreElements()) {
-	    Scan scan = scansEnum.nextElement();
+    /**
+     * @see net.sf.mzmine.datamodel.RawDataFile#getIonChromatograms(int, List,
+     *      List)
+     */
+    public @Nonnull IonChromatogram[] getIonChromatograms(int msLevel,
+	    @Nonnull List<Range<Double>> mzRanges,
+	    @Nonnull List<Range<Double>> rtRanges) {
 
-	    // ignore scans of other ms levels
-	    if (scan.getMSLevel() != msLevel)
-		continue;
+	assert mzRanges.size() == rtRanges.size();
 
-	    DataPoint scanBasePeak = scan.getHighestDataPoint();
-	    if (scanBasePeak == null)
-		continue;
+	final SimpleIonChromatogram chromatograms[] = new SimpleIonChromatogram[mzRanges
+		.size()];
+	for (int i = 0; i < chromatograms.length; i++)
+	    chromatograms[i] = new SimpleIonChromatogram(mzRanges.get(i),
+		    rtRanges.get(i));
 
-	    if ((maxBasePeak == null)
-		    || (scanBasePeak.getIntensity() > maxBasePeak))
-		maxBasePeak = scanBasePeak.getIntensity();
+	new XICExtractor(Arrays.asList(chromatograms)).extract(this,
+		getScanNumbers(msLevel), null);
+	return chromatograms;
+    }
 
-	}
+    public synchronized int storeDataPoints(DataPoint dataPoints[])
+	    throws IOException {
 
-	// return -1 if no scan at this MS level
-	if (maxBasePeak == null)
-	    maxBasePeak = -1d;
+	final int numOfDataPoints = dataPoints.length;
+	final boolean compress = isCompressionEnabled();
 
-	// cache the value
-	dataMaxBasePeakIntensity.put(msLevel, maxBasePeak);
+	// Convert the dataPoints into a byte array. Each float takes 4 bytes,
+	// compressed data points take at most 5 bytes per value
+	final int maxBytes = prepareBuffer(numOfDataPoints, compress);
+	if (compress) {
+	    DataPointsCodec.encode(dataPoints, buffer);
+	} else {
+	    FloatBuffer floatBuffer = buffer.asFloatBuffer();
+	    for (DataPoint dp : dataPoints) {
+		floatBuffer.put((float) dp.getMZ());
+		floatBuffer.put((float) dp.getIntensity());
+	    }
+	    buffer.position(maxBytes);
+	}
 
-	return maxBasePeak;
+	return storeBuffer(numOfDataPoints, compress, 0);
 
     }
 
     /**
-     * @see net.sf.mzmine.datamodel.RawDataFile#getDataMaxTotalIonCurrent()
+     * Stores the first numOfDataPoints values of given arrays, like
+     * storeDataPoints(DataPoint[]), without creating any DataPoint instances
      */
-    public double getDataMaxTotalIonCurrent(int msLevel) {
+    public synchronized int storeDataPoints(double mzValues[],
+	    double intensityValues[], int numOfDataPoints) throws IOException {
 
-	// check if we have this value already cached
-	Double maxTIC = dataMaxTIC.get(msLevel);
-	if (maxTIC != null)
-	    return maxTIC.doubleValue();
+	final boolean compress = isCompressionEnabled();
 
-	// find the value
-	Enumeration<StorableScan> scansEnum = scans.elements();
-	while (scansEnum.hasMoreElements()) {
-	    Scan scan = scansEnum.nextElement();
+	final int maxBytes = prepareBuffer(numOfDataPoints, compress);
+	if (compress) {
+	    DataPointsCodec.encode(mzValues, intensityValues, numOfDataPoints,
+		    buffer);
+	} else {
+	    FloatBuffer floatBuffer = buffer.asFloatBuffer();
+	    for (int i = 0; i < numOfDataPoints; i++) {
+		floatBuffer.put((float) mzValues[i]);
+		floatBuffer.put((float) intensityValues[i]);
+	    }
+	    buffer.position(maxBytes);
+	}
 
-	    // ignore scans of other ms levels
-	    if (scan.getMSLevel() != msLevel)
-		continue;
+	return storeBuffer(numOfDataPoints, compress, 0);
+
+    }
 
-	    if ((maxTIC == null) || (scan.getTIC() > maxTIC))
-		maxTIC = scan.getTIC();
+    /**
+     * Stores an m/z axis shared by many spectra, e.g. of a continuous-mode
+     * imaging file. The axis is kept in memory, the intensities of each
+     * spectrum are then stored by storeIntensities().
+     * 
+     * @return ID of the axis
+     */
+    public synchronized int storeMZAxis(double mzValues[], int numOfValues) {
+	final float axis[] = new float[numOfValues];
+	for (int i = 0; i < numOfValues; i++)
+	    axis[i] = (float) mzValues[i];
+	final int axisID = mzAxes.size() + 1;
+	mzAxes.put(axisID, axis);
+	return axisID;
+    }
 
+    /**
+     * Stores the intensities of data points whose m/z values are the shared
+     * axis of given ID. The array must have at least as many values as the
+     * axis. The data points are read by readDataPoints() like any others.
+     */
+    public synchronized int storeIntensities(int axisID,
+	    double intensityValues[]) throws IOException {
+
+	final float axis[] = mzAxes.get(axisID);
+	if (axis == null)
+	    throw new IllegalArgumentException("Unknown m/z axis " + axisID);
+	final int numOfDataPoints = axis.length;
+	final boolean compress = isCompressionEnabled();
+
+	prepareBuffer(numOfDataPoints, compress);
+	if (compress) {
+	    DataPointsCodec.encodeIntensities(intensityValues,
+		    numOfDataPoints, buffer);
+	} else {
+	    FloatBuffer floatBuffer = buffer.asFloatBuffer();
+	    for (int i = 0; i < numOfDataPoints; i++)
+		floatBuffer.put((float) intensityValues[i]);
+	    buffer.position(numOfDataPoints * 4);
 	}
 
-	// return -1 if no scan at this MS level
-	if (maxTIC == null)
-	    maxTIC = -1d;
+	return storeBuffer(numOfDataPoints, compress, axisID);
 
-	// cache the value
-	dataMaxTIC.put(msLevel, maxTIC);
+    }
 
-	return maxTIC;
+    /**
+     * Returns the shared m/z axis of the data points stored under given
+     * storage ID. The returned array must not be modified.
+     * 
+     * @return The m/z axis, or null if the m/z values are stored with the
+     *         intensities
+     */
+    float[] getMZAxis(int ID) {
+	final Integer axisID = dataPointsAxes.get(ID);
+	if (axisID == null)
+	    return null;
+	return mzAxes.get(axisID);
+    }
 
+    /**
+     * @return The shared m/z axis of given axis ID, which must not be
+     *         modified
+     */
+    float[] getMZAxisByID(int axisID) {
+	return mzAxes.get(axisID);
     }
 
-    public synchronized int storeDataPoints(DataPoint dataPoints[])
+    /**
+     * Clears the buffer, making sure it can hold the encoded data points
+     * 
+     * @return Maximum number of bytes of the encoded data points
+     */
+    private int prepareBuffer(int numOfDataPoints, boolean compress) {
+	final int maxBytes = compress ? DataPointsCodec
+		.getMaxEncodedLength(numOfDataPoints) : numOfDataPoints * 2 * 4;
+	if (buffer.capacity() < maxBytes) {
+	    buffer = ByteBuffer.allocate(maxBytes * 2);
+	} else {
+	    buffer.clear();
+	}
+	return maxBytes;
+    }
+
+    /**
+     * Stores the data points encoded in the buffer under a new storage ID
+     * 
+     * @param axisID
+     *            ID of the shared m/z axis if the buffer contains only
+     *            intensities, otherwise 0
+     */
+    private int storeBuffer(int numOfDataPoints, boolean compress, int axisID)
 	    throws IOException {
 
 	if (dataPointsFile == null) {
@@ -325,84 +503,513 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	    openDataPointsFile(newFile);
 	}
 
-	final long currentOffset = dataPointsFile.length();
-
 	final int currentID;
 	if (!dataPointsOffsets.isEmpty())
 	    currentID = dataPointsOffsets.lastKey() + 1;
 	else
 	    currentID = 1;
 
-	final int numOfDataPoints = dataPoints.length;
+	// The ID may have been used by data points which were removed, make
+	// sure no stale data points are served from the cache
+	spectraCache.remove(currentID);
+
+	buffer.flip();
+	final int numOfBytes = buffer.remaining();
+
+	// Reuse the record of identical data points, if any
+	final int hash = buffer.hashCode();
+	Long currentOffset = null;
+	final Integer sameID = storedHashes.get(hash);
+	if ((sameID != null)
+		&& isStoredRecord(sameID, buffer, numOfDataPoints, compress,
+			axisID))
+	    currentOffset = dataPointsOffsets.get(sameID);
+	if (currentOffset == null) {
+	    currentOffset = dataPointsFile.append(buffer);
+	    storedHashes.put(hash, currentID);
+	}
+	addReference(currentOffset, numOfBytes);
 
-	// Convert the dataPoints into a byte array. Each float takes 4 bytes,
-	// so we get the current float offset by dividing the size of the file
-	// by 4
-	final int numOfBytes = numOfDataPoints * 2 * 4;
+	// The lengths must be published first, because readers look up the
+	// offset
+	if (compress)
+	    dataPointsEncodedLengths.put(currentID, numOfBytes);
+	else
+	    dataPointsEncodedLengths.remove(currentID);
+	if (axisID != 0)
+	    dataPointsAxes.put(currentID, axisID);
+	else
+	    dataPointsAxes.remove(currentID);
+	dataPointsLengths.put(currentID, numOfDataPoints);
+	dataPointsOffsets.put(currentID, currentOffset);
 
-	if (buffer.capacity() < numOfBytes) {
-	    buffer = ByteBuffer.allocate(numOfBytes * 2);
-	} else {
-	    buffer.clear();
+	return currentID;
+
+    }
+
+    /**
+     * @return True if the data points of given storage ID are stored in the
+     *         same format and with the same bytes as the given buffer
+     */
+    private boolean isStoredRecord(int ID, ByteBuffer data,
+	    int numOfDataPoints, boolean compressed, int axisID)
+	    throws IOException {
+	final Long offset = dataPointsOffsets.get(ID);
+	final Integer length = dataPointsLengths.get(ID);
+	if ((offset == null) || (length == null) || (length != numOfDataPoints))
+	    return false;
+	if (compressed != dataPointsEncodedLengths.containsKey(ID))
+	    return false;
+	final Integer storedAxisID = dataPointsAxes.get(ID);
+	if ((storedAxisID == null) ? (axisID != 0) : (storedAxisID != axisID))
+	    return false;
+	if (getRecordSize(ID) != data.remaining())
+	    return false;
+	return dataPointsFile.read(offset, data.remaining()).equals(data);
+    }
+
+    /**
+     * @return Number of bytes of the record of given storage ID
+     */
+    private int getRecordSize(int ID) {
+	final Integer encodedLength = dataPointsEncodedLengths.get(ID);
+	if (encodedLength != null)
+	    return encodedLength;
+	if (dataPointsAxes.containsKey(ID))
+	    return dataPointsLengths.get(ID) * 4;
+	return dataPointsLengths.get(ID) * 2 * 4;
+    }
+
+    /**
+     * Returns the live records of the data points file, building them from
+     * the maps if necessary. Must be called while holding the lock.
+     */
+    private TreeMap<Long, StoredRecord> getStoredRecords() {
+	if (storedRecords == null) {
+	    storedRecords = new TreeMap<Long, StoredRecord>();
+	    liveBytes = 0;
+	    for (Map.Entry<Integer, Long> entry : dataPointsOffsets.entrySet())
+		addReference(entry.getValue(), getRecordSize(entry.getKey()));
 	}
+	return storedRecords;
+    }
 
-	FloatBuffer floatBuffer = buffer.asFloatBuffer();
-	for (DataPoint dp : dataPoints) {
-	    floatBuffer.put((float) dp.getMZ());
-	    floatBuffer.put((float) dp.getIntensity());
+    private void addReference(long offset, int numOfBytes) {
+	StoredRecord record = getStoredRecords().get(offset);
+	if (record == null) {
+	    record = new StoredRecord(numOfBytes);
+	    storedRecords.put(offset, record);
+	    liveBytes += numOfBytes;
 	}
+	record.references++;
+    }
 
-	dataPointsFile.seek(currentOffset);
-	dataPointsFile.write(buffer.array(), 0, numOfBytes);
+    private void removeReference(long offset) {
+	StoredRecord record = getStoredRecords().get(offset);
+	if (record == null)
+	    return;
+	record.references--;
+	if (record.references == 0) {
+	    storedRecords.remove(offset);
+	    liveBytes -= record.numOfBytes;
+	}
+    }
 
-	dataPointsOffsets.put(currentID, currentOffset);
-	dataPointsLengths.put(currentID, numOfDataPoints);
+    /**
+     * @return True if the data points should be stored in the compressed
+     *         format, as set in the preferences
+     */
+    private static boolean isCompressionEnabled() {
+	MZmineConfiguration configuration = MZmineCore.getConfiguration();
+	if (configuration == null)
+	    return false;
+	Boolean value = configuration.getPreferences()
+		.getParameter(MZminePreferences.compressTemporaryFiles)
+		.getValue();
+	return (value != null) && value;
+    }
 
-	return currentID;
+    /**
+     * Reads the data points stored under given storage ID. This method is not
+     * synchronized, the data points file can be read by many threads in
+     * parallel.
+     */
+    public DataPoint[] readDataPoints(int ID) throws IOException {
+
+	final float values[] = readValues(ID);
+	final int numOfDataPoints = values.length / 2;
+
+	DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
+
+	for (int i = 0; i < numOfDataPoints; i++) {
+	    dataPoints[i] = new SimpleDataPoint(values[2 * i],
+		    values[2 * i + 1]);
+	}
+
+	return dataPoints;
 
     }
 
-    public synchronized DataPoint[] readDataPoints(int ID) throws IOException {
+    /**
+     * Reads the data points stored under given storage ID into the given
+     * arrays, without creating DataPoint instances. The arrays must have at
+     * least getNumberOfStoredDataPoints(ID) elements.
+     * 
+     * @return Number of data points read
+     */
+    public int readDataPoints(int ID, double mzValues[],
+	    double intensityValues[]) throws IOException {
+
+	final float values[] = readValues(ID);
+	final int numOfDataPoints = values.length / 2;
+
+	if ((mzValues.length < numOfDataPoints)
+		|| (intensityValues.length < numOfDataPoints)) {
+	    throw new IllegalArgumentException("Arrays too small for "
+		    + numOfDataPoints + " data points");
+	}
 
+	for (int i = 0; i < numOfDataPoints; i++) {
+	    mzValues[i] = values[2 * i];
+	    intensityValues[i] = values[2 * i + 1];
+	}
+
+	return numOfDataPoints;
+
+    }
+
+    /**
+     * Returns the m/z and intensity values (interleaved) stored under given
+     * storage ID. The values are taken from the spectra cache if possible,
+     * otherwise they are decoded from the data points file and added to the
+     * cache. The returned array is shared with the cache and must not be
+     * modified.
+     */
+    private float[] readValues(int ID) throws IOException {
+
+	float values[] = spectraCache.get(ID);
+	if (values != null)
+	    return values;
+
+	values = readStoredValues(ID);
+
+	spectraCache.put(ID, values);
+
+	return values;
+
+    }
+
+    /**
+     * A read of the data points file, see readConsistently()
+     */
+    private interface StorageRead<T> {
+	T read() throws IOException;
+    }
+
+    /**
+     * Decodes the values stored under given storage ID from the data points
+     * file, see readConsistently()
+     */
+    private float[] readStoredValues(int ID) throws IOException {
+	return readConsistently(() -> decodeValues(ID));
+    }
+
+    /**
+     * Performs the read of the data points file. If the file is replaced by a
+     * compacted one meanwhile, the read is repeated.
+     */
+    private <T> T readConsistently(StorageRead<T> read) throws IOException {
+	activeReads.incrementAndGet();
+	try {
+	    return readRepeatedly(read);
+	} finally {
+	    if (activeReads.decrementAndGet() == 0)
+		closeRetiredFiles();
+	}
+    }
+
+    private <T> T readRepeatedly(StorageRead<T> read) throws IOException {
+
+	while (true) {
+
+	    final int version = storageVersion;
+	    if ((version & 1) != 0) {
+		// Replacement of the file in progress
+		Thread.yield();
+		continue;
+	    }
+
+	    T result;
+	    try {
+		result = read.read();
+	    } catch (IOException | RuntimeException e) {
+		if (storageVersion == version)
+		    throw e;
+		continue;
+	    }
+
+	    if (storageVersion == version)
+		return result;
+
+	}
+
+    }
+
+    private float[] decodeValues(int ID) throws IOException {
+
+	final MappedDataPointsFile file = dataPointsFile;
 	final Long currentOffset = dataPointsOffsets.get(ID);
 	final Integer numOfDataPoints = dataPointsLengths.get(ID);
 
-	if ((currentOffset == null) || (numOfDataPoints == null)) {
+	if ((file == null) || (currentOffset == null)
+		|| (numOfDataPoints == null)) {
 	    throw new IllegalArgumentException("Unknown storage ID " + ID);
 	}
 
-	final int numOfBytes = numOfDataPoints * 2 * 4;
-
-	if (buffer.capacity() < numOfBytes) {
-	    buffer = ByteBuffer.allocate(numOfBytes * 2);
+	final float values[] = new float[numOfDataPoints * 2];
+
+	final Integer encodedLength = dataPointsEncodedLengths.get(ID);
+	final float axis[] = getMZAxis(ID);
+	if (axis != null) {
+	    for (int i = 0; i < numOfDataPoints; i++)
+		values[2 * i] = axis[i];
+	    if (encodedLength != null) {
+		DataPointsCodec.decodeIntensities(
+			file.read(currentOffset, encodedLength),
+			numOfDataPoints, values);
+	    } else {
+		FloatBuffer intensities = file.read(currentOffset,
+			numOfDataPoints * 4).asFloatBuffer();
+		for (int i = 0; i < numOfDataPoints; i++)
+		    values[2 * i + 1] = intensities.get(i);
+	    }
+	} else if (encodedLength != null) {
+	    DataPointsCodec.decode(file.read(currentOffset, encodedLength),
+		    numOfDataPoints, values);
 	} else {
-	    buffer.clear();
+	    final int numOfBytes = numOfDataPoints * 2 * 4;
+	    file.read(currentOffset, numOfBytes).asFloatBuffer().get(values);
 	}
 
-	dataPointsFile.seek(currentOffset);
-	dataPointsFile.read(buffer.array(), 0, numOfBytes);
+	return values;
 
-	FloatBuffer floatBuffer = buffer.asFloatBuffer();
+    }
 
-	DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
+    /**
+     * Writes the data points stored under given storage ID to the stream as
+     * pairs of floats, which is the format of the data points file in saved
+     * projects. The spectra cache is not used.
+     */
+    public void writeDataPoints(int ID, OutputStream out) throws IOException {
+	final float values[] = readStoredValues(ID);
+	ByteBuffer bytes = ByteBuffer.allocate(values.length * 4);
+	bytes.asFloatBuffer().put(values);
+	out.write(bytes.array());
+    }
+
+    /**
+     * Writes the data points stored under given storage IDs, one after
+     * another, to the channel as pairs of floats, like writeDataPoints().
+     * Uncompressed records are copied from the data points file by
+     * FileChannel.transferTo(), so the bytes do not pass through the Java heap
+     * if the target is a file. Adjacent records are copied together. Other
+     * records (compressed, or with a shared m/z axis) are decoded first.
+     * 
+     * @param checksum
+     *            Updated with the written bytes
+     * @return Number of written bytes
+     */
+    public synchronized long transferDataPoints(Collection<Integer> IDs,
+	    WritableByteChannel target, CRC32 checksum) throws IOException {
+
+	long written = 0;
+	long runOffset = 0, runLength = 0;
+
+	for (Integer ID : IDs) {
+
+	    final Long offset = dataPointsOffsets.get(ID);
+	    final Integer numOfDataPoints = dataPointsLengths.get(ID);
+	    if ((dataPointsFile == null) || (offset == null)
+		    || (numOfDataPoints == null))
+		throw new IOException("Unknown storage ID " + ID);
+
+	    if (dataPointsEncodedLengths.containsKey(ID)
+		    || dataPointsAxes.containsKey(ID)) {
+		written += transferRun(runOffset, runLength, target, checksum);
+		runLength = 0;
+		final float values[] = decodeValues(ID);
+		ByteBuffer bytes = ByteBuffer.allocate(values.length * 4);
+		bytes.asFloatBuffer().put(values);
+		checksum.update(bytes);
+		bytes.rewind();
+		while (bytes.hasRemaining())
+		    target.write(bytes);
+		written += values.length * 4;
+		continue;
+	    }
+
+	    // Extend the current run, if the record follows it. A run never
+	    // gets larger than one mapped segment.
+	    final long numOfBytes = numOfDataPoints * 2L * 4;
+	    if ((runLength > 0) && (offset == runOffset + runLength)
+		    && (runLength + numOfBytes <= MappedDataPointsFile.SEGMENT_SIZE)) {
+		runLength += numOfBytes;
+		continue;
+	    }
+	    written += transferRun(runOffset, runLength, target, checksum);
+	    runOffset = offset;
+	    runLength = numOfBytes;
 
-	for (int i = 0; i < numOfDataPoints; i++) {
-	    float mz = floatBuffer.get();
-	    float intensity = floatBuffer.get();
-	    dataPoints[i] = new SimpleDataPoint(mz, intensity);
 	}
 
-	return dataPoints;
+	written += transferRun(runOffset, runLength, target, checksum);
+	return written;
+
+    }
+
+    private long transferRun(long offset, long length,
+	    WritableByteChannel target, CRC32 checksum) throws IOException {
+	if (length == 0)
+	    return 0;
+	checksum.update(dataPointsFile.read(offset, (int) length));
+	dataPointsFile.transferTo(offset, length, target);
+	return length;
+    }
 
+    /**
+     * @return Cache of decoded data points of this file
+     */
+    public SpectraCache getSpectraCache() {
+	return spectraCache;
+    }
+
+    /**
+     * @return Number of data points stored under given storage ID, or 0 if the
+     *         ID is unknown
+     */
+    public int getNumberOfStoredDataPoints(int ID) {
+	final Integer numOfDataPoints = dataPointsLengths.get(ID);
+	if (numOfDataPoints == null)
+	    return 0;
+	return numOfDataPoints;
     }
 
     public synchronized void removeStoredDataPoints(int ID) throws IOException {
+	final Long offset = dataPointsOffsets.get(ID);
+	if (offset != null)
+	    removeReference(offset);
 	dataPointsOffsets.remove(ID);
 	dataPointsLengths.remove(ID);
+	dataPointsEncodedLengths.remove(ID);
+	dataPointsAxes.remove(ID);
+	spectraCache.remove(ID);
+
+	// Compact the file when most of it is not used any more
+	if (dataPointsFile == null)
+	    return;
+	final long deadBytes = dataPointsFile.length() - liveBytes;
+	if ((offset != null) && (deadBytes >= COMPACTION_MIN_DEAD_BYTES)
+		&& (deadBytes > liveBytes))
+	    compactDataPointsFile();
+    }
+
+    /**
+     * Copies the live records to a new data points file, which replaces the
+     * current one. If the copying fails, the current file is kept.
+     */
+    private void compactDataPointsFile() {
+
+	final long oldLength = dataPointsFile.length();
+	try {
+	    copyDataPointsFile();
+	} catch (IOException e) {
+	    logger.warning("Could not compact " + dataPointsFile.getFile()
+		    + ": " + e.toString());
+	    return;
+	}
+
+	logger.finest("Compacted data points file of " + dataFileName
+		+ " from " + oldLength + " to " + dataPointsFile.length()
+		+ " bytes");
+
+    }
+
+    /**
+     * Stops reading the data points in place from the given project file, so
+     * that the file can be replaced (e.g. when the project is saved under the
+     * same name). The live records are copied to a new temporary data points
+     * file. Does nothing if the data points are not read from the given file.
+     */
+    public synchronized void releaseProjectFile(File projectFile)
+	    throws IOException {
+	if ((dataPointsFile == null) || (!dataPointsFile.isRegion()))
+	    return;
+	if (!dataPointsFile.getFile().getCanonicalFile()
+		.equals(projectFile.getCanonicalFile()))
+	    return;
+	copyDataPointsFile();
+	logger.finest("Copied data points of " + dataFileName + " from "
+		+ projectFile + " to " + dataPointsFileName);
+    }
+
+    /**
+     * Copies the live records to a new temporary data points file, which
+     * replaces the current one. If the copying fails, the current file is kept.
+     */
+    private void copyDataPointsFile() throws IOException {
+
+	final TreeMap<Long, StoredRecord> records = getStoredRecords();
+
+	// Copy the records, in the order of the file
+	final File newFileName = createNewDataPointsFile();
+	final MappedDataPointsFile newFile = new MappedDataPointsFile(
+		newFileName);
+	Map<Long, Long> newOffsets = new HashMap<Long, Long>();
+	try {
+	    for (Map.Entry<Long, StoredRecord> entry : records.entrySet()) {
+		ByteBuffer data = dataPointsFile.read(entry.getKey(),
+			entry.getValue().numOfBytes);
+		newOffsets.put(entry.getKey(), newFile.append(data));
+	    }
+	} catch (IOException e) {
+	    try {
+		newFile.closeAndDelete();
+	    } catch (IOException e2) {
+		// Report the original error
+	    }
+	    throw e;
+	}
+	newFileName.deleteOnExit();
+
+	// Switch to the new file, readers retry until the version is even
+	final MappedDataPointsFile oldFile = dataPointsFile;
+	storageVersion++;
+	try {
+	    for (Map.Entry<Integer, Long> entry : dataPointsOffsets.entrySet())
+		dataPointsOffsets.put(entry.getKey(),
+			newOffsets.get(entry.getValue()));
+	    dataPointsFile = newFile;
+	    dataPointsFileName = newFileName;
+	} finally {
+	    storageVersion++;
+	}
+
+	TreeMap<Long, StoredRecord> newRecords = new TreeMap<Long, StoredRecord>();
+	for (Map.Entry<Long, StoredRecord> entry : records.entrySet())
+	    newRecords.put(newOffsets.get(entry.getKey()), entry.getValue());
+	storedRecords = newRecords;
+
+	// Forget the hash codes of removed data points
+	storedHashes.values().retainAll(dataPointsOffsets.keySet());
+
+	retireFile(oldFile);
+
     }
 
     public synchronized void addScan(Scan newScan) throws IOException {
 
+	scanIndex = null;
+
 	// When we are loading the project, scan data file is already prepare
 	// and we just need store the reference
 	if (newScan instanceof StorableScan) {
@@ -425,6 +1032,45 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
     }
 
+    /**
+     * Adds a scan whose data points are given as the first numOfDataPoints
+     * values of the arrays, so readers of large files do not have to create
+     * DataPoint instances. The data points of newScan itself are ignored, its
+     * other properties are stored as by addScan(Scan).
+     */
+    public synchronized void addScan(Scan newScan, double mzValues[],
+	    double intensityValues[], int numOfDataPoints) throws IOException {
+
+	scanIndex = null;
+
+	final int storageID = storeScanDataPoints(mzValues, intensityValues,
+		numOfDataPoints);
+
+	StorableScan storedScan;
+	if (ImagingScan.class.isInstance(newScan))
+	    storedScan = new StorableImagingScan(newScan, this,
+		    numOfDataPoints, storageID);
+	else
+	    storedScan = new StorableScan(newScan, this, numOfDataPoints,
+		    storageID);
+	storedScan.updateValues(mzValues, intensityValues, numOfDataPoints);
+
+	scans.put(newScan.getScanNumber(), storedScan);
+
+    }
+
+    /**
+     * Stores the data points of a scan added by addScan(Scan, double[],
+     * double[], int). Subclasses may store them differently, e.g. with a
+     * shared m/z axis.
+     * 
+     * @return Storage ID of the data points
+     */
+    protected int storeScanDataPoints(double mzValues[],
+	    double intensityValues[], int numOfDataPoints) throws IOException {
+	return storeDataPoints(mzValues, intensityValues, numOfDataPoints);
+    }
+
     /**
      * @see net.sf.mzmine.datamodel.RawDataFileWriter#finishWriting()
      */
@@ -432,6 +1078,7 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	for (StorableScan scan : scans.values()) {
 	    scan.updateValues();
 	}
+	scanIndex = new ScanIndex(scans.values());
 	logger.finest("Writing of scans to file " + dataPointsFileName
 		+ " finished");
 	return this;
@@ -443,29 +1090,13 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
     public @Nonnull Range<Double> getDataMZRange(int msLevel) {
 
-	// check if we have this value already cached
+	// check if the range was set explicitly
 	Range<Double> mzRange = dataMZRange.get(msLevel);
 	if (mzRange != null)
 	    return mzRange;
 
-	// find the value
-	for (Scan scan : scans.values()) {
-
-	    // ignore scans of other ms levels
-	    if ((msLevel != 0) && (scan.getMSLevel() != msLevel))
-		continue;
-
-	    if (mzRange == null)
-		mzRange = scan.getDataPointMZRange();
-	    else
-		mzRange = mzRange.span(scan.getDataPointMZRange());
-
-	}
-
-	// cache the value, if we found any
-	if (mzRange != null)
-	    dataMZRange.put(msLevel, mzRange);
-	else
+	mzRange = getScanIndex().getMZRange(msLevel);
+	if (mzRange == null)
 	    mzRange = Range.singleton(0.0);
 
 	return mzRange;
@@ -478,30 +1109,13 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
     public @Nonnull Range<Double> getDataRTRange(int msLevel) {
 
-	// check if we have this value already cached
+	// check if the range was set explicitly
 	Range<Double> rtRange = dataRTRange.get(msLevel);
 	if (rtRange != null)
 	    return rtRange;
 
-	// find the value
-	for (Scan scan : scans.values()) {
-
-	    // ignore scans of other ms levels
-	    if ((msLevel != 0) && (scan.getMSLevel() != msLevel))
-		continue;
-
-	    if (rtRange == null)
-		rtRange = Range.singleton(scan.getRetentionTime());
-	    else
-		rtRange = rtRange
-			.span(Range.singleton(scan.getRetentionTime()));
-
-	}
-
-	// cache the value
-	if (rtRange != null)
-	    dataRTRange.put(msLevel, rtRange);
-	else
+	rtRange = getScanIndex().getRTRange(msLevel);
+	if (rtRange == null)
 	    rtRange = Range.singleton(0.0);
 
 	return rtRange;
@@ -520,23 +1134,45 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	return getScanNumbers(msLevel).length;
     }
 
-    public synchronized TreeMap<Integer, Long> getDataPointsOffsets() {
+    public ConcurrentSkipListMap<Integer, Long> getDataPointsOffsets() {
 	return dataPointsOffsets;
     }
 
-    public synchronized TreeMap<Integer, Integer> getDataPointsLengths() {
+    public ConcurrentSkipListMap<Integer, Integer> getDataPointsLengths() {
 	return dataPointsLengths;
     }
 
     public synchronized void close() {
-	try {
-	    if(dataPointsFileName != null) {
-    	    	dataPointsFile.close();
-    	    	dataPointsFileName.delete();
+	spectraCache.dispose();
+	if (dataPointsFile != null) {
+	    final MappedDataPointsFile file = dataPointsFile;
+	    storageVersion++;
+	    dataPointsFile = null;
+	    storageVersion++;
+	    retireFile(file);
+	}
+    }
+
+    /**
+     * Closes and deletes a data points file which is not used any more. The
+     * segments of the file are unmapped, so the file is closed only after the
+     * reads which may still use them have finished.
+     */
+    private void retireFile(MappedDataPointsFile file) {
+	retiredFiles.add(file);
+	if (activeReads.get() == 0)
+	    closeRetiredFiles();
+    }
+
+    private void closeRetiredFiles() {
+	MappedDataPointsFile file;
+	while ((file = retiredFiles.poll()) != null) {
+	    try {
+		file.closeAndDelete();
+	    } catch (IOException e) {
+		logger.warning("Could not close file " + file.getFile() + ": "
+			+ e.toString());
 	    }
-	} catch (IOException e) {
-	    logger.warning("Could not close file " + dataPointsFileName + ": "
-		    + e.toString());
 	}
     }
 
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Scan;
+
+import com.google.common.collect.BoundType;
+import com.google.common.collect.Range;
+
+/**
+ * Immutable index of the scan metadata of one raw data file. For each MS level,
+ * the scan numbers are kept in primitive arrays sorted by retention time, so
+ * the scans inside a retention time window are found by binary search. The
+ * m/z and RT ranges, maximum base peak intensities and maximum TICs are
+ * computed once, when the index is built.
+ *
+ * For the m/z and RT ranges, MS level 0 stands for all scans, the same as in
+ * the getDataMZRange(int) and getDataRTRange(int) methods of RawDataFile.
+ */
+class ScanIndex {
+
+    private static final int EMPTY[] = new int[0];
+
+    private final int msLevels[];
+    private final Map<Integer, LevelIndex> levels = new TreeMap<Integer, LevelIndex>();
+
+    // All scans regardless of MS level
+    private final LevelIndex allScans;
+
+    /**
+     * Scans of one MS level
+     */
+    private static class LevelIndex {
+
+        // Scan numbers in ascending order
+        int scanNumbers[];
+
+        // Scan numbers and retention times, sorted by retention time
+        int rtSortedScanNumbers[];
+        double retentionTimes[];
+
+        // True if the retention times grow with scan numbers, which is the
+        // usual case. Then the results of RT window queries need no sorting.
+        boolean rtOrderedByScanNumber;
+
+        Range<Double> mzRange, rtRange;
+        double maxBasePeakIntensity = -1, maxTIC = -1;
+
+        LevelIndex(int numOfScans) {
+            rtSortedScanNumbers = new int[numOfScans];
+            retentionTimes = new double[numOfScans];
+        }
+
+    }
+
+    ScanIndex(@Nonnull Collection<? extends Scan> scans) {
+
+        final int numOfScans = scans.size();
+        Scan sortedScans[] = scans.toArray(new Scan[numOfScans]);
+
+        // Sort by retention time, scan number breaks ties so the order is
+        // deterministic
+        Arrays.sort(sortedScans, new Comparator<Scan>() {
+            @Override
+            public int compare(Scan s1, Scan s2) {
+                int result = Double.compare(s1.getRetentionTime(),
+                        s2.getRetentionTime());
+                if (result != 0)
+                    return result;
+                return Integer.compare(s1.getScanNumber(),
+                        s2.getScanNumber());
+            }
+        });
+
+        // Count the scans of each MS level
+        TreeMap<Integer, int[]> counts = new TreeMap<Integer, int[]>();
+        for (Scan scan : sortedScans) {
+            int count[] = counts.get(scan.getMSLevel());
+            if (count == null) {
+                count = new int[1];
+                counts.put(scan.getMSLevel(), count);
+            }
+            count[0]++;
+        }
+
+        msLevels = new int[counts.size()];
+        int i = 0;
+        for (Map.Entry<Integer, int[]> entry : counts.entrySet()) {
+            msLevels[i++] = entry.getKey();
+            levels.put(entry.getKey(), new LevelIndex(entry.getValue()[0]));
+            // Reuse the counters as insert positions
+            entry.getValue()[0] = 0;
+        }
+
+        allScans = new LevelIndex(numOfScans);
+
+        for (int j = 0; j < numOfScans; j++) {
+            final Scan scan = sortedScans[j];
+            final int position = counts.get(scan.getMSLevel())[0]++;
+            add(levels.get(scan.getMSLevel()), position, scan);
+            add(allScans, j, scan);
+        }
+
+        for (LevelIndex level : levels.values())
+            finish(level);
+        finish(allScans);
+
+    }
+
+    private static void add(LevelIndex level, int position, Scan scan) {
+
+        level.rtSortedScanNumbers[position] = scan.getScanNumber();
+        level.retentionTimes[position] = scan.getRetentionTime();
+
+        Range<Double> scanMZRange = scan.getDataPointMZRange();
+        if (scanMZRange != null) {
+            if (level.mzRange == null)
+                level.mzRange = scanMZRange;
+            else
+                level.mzRange = level.mzRange.span(scanMZRange);
+        }
+
+        DataPoint basePeak = scan.getHighestDataPoint();
+        if ((basePeak != null)
+                && (basePeak.getIntensity() > level.maxBasePeakIntensity))
+            level.maxBasePeakIntensity = basePeak.getIntensity();
+
+        if (scan.getTIC() > level.maxTIC)
+            level.maxTIC = scan.getTIC();
+
+    }
+
+    private static void finish(LevelIndex level) {
+
+        final int numOfScans = level.rtSortedScanNumbers.length;
+
+        level.scanNumbers = level.rtSortedScanNumbers.clone();
+        Arrays.sort(level.scanNumbers);
+        level.rtOrderedByScanNumber = Arrays.equals(level.scanNumbers,
+                level.rtSortedScanNumbers);
+
+        if (numOfScans > 0)
+            level.rtRange = Range.closed(level.retentionTimes[0],
+                    level.retentionTimes[numOfScans - 1]);
+
+    }
+
+    /**
+     * @return All scan numbers in ascending order
+     */
+    @Nonnull
+    int[] getScanNumbers() {
+        return allScans.scanNumbers;
+    }
+
+    /**
+     * @return Scan numbers of given MS level in ascending order
+     */
+    @Nonnull
+    int[] getScanNumbers(int msLevel) {
+        LevelIndex level = levels.get(msLevel);
+        if (level == null)
+            return EMPTY;
+        return level.scanNumbers;
+    }
+
+    /**
+     * @return Scan numbers of given MS level with retention time inside the
+     *         given range, in ascending order
+     */
+    @Nonnull
+    int[] getScanNumbers(int msLevel, @Nonnull Range<Double> rtRange) {
+
+        LevelIndex level = levels.get(msLevel);
+        if (level == null)
+            return EMPTY;
+
+        final double rts[] = level.retentionTimes;
+
+        int from = 0, to = rts.length;
+        if (rtRange.hasLowerBound()) {
+            from = firstIndexAbove(rts, rtRange.lowerEndpoint(),
+                    rtRange.lowerBoundType() == BoundType.CLOSED);
+        }
+        if (rtRange.hasUpperBound()) {
+            to = firstIndexAbove(rts, rtRange.upperEndpoint(),
+                    rtRange.upperBoundType() == BoundType.OPEN);
+        }
+
+        if (from >= to)
+            return EMPTY;
+
+        if ((from == 0) && (to == rts.length))
+            return level.scanNumbers.clone();
+
+        int result[] = Arrays.copyOfRange(level.rtSortedScanNumbers, from, to);
+        if (!level.rtOrderedByScanNumber)
+            Arrays.sort(result);
+        return result;
+
+    }
+
+    /**
+     * Binary search in an ascending array.
+     *
+     * @return Index of the first value greater or equal to the given value
+     *         (inclusive = true), or greater than the given value (inclusive =
+     *         false). Returns values.length if there is no such value.
+     */
+    private static int firstIndexAbove(double values[], double value,
+            boolean inclusive) {
+        int low = 0, high = values.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            final boolean below = inclusive ? (values[mid] < value)
+                    : (values[mid] <= value);
+            if (below)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * @return MS levels present in the file, in ascending order
+     */
+    @Nonnull
+    int[] getMSLevels() {
+        return msLevels.clone();
+    }
+
+    /**
+     * @return m/z range of given MS level, or null if there are no data points
+     */
+    Range<Double> getMZRange(int msLevel) {
+        LevelIndex level = (msLevel == 0) ? allScans : levels.get(msLevel);
+        if (level == null)
+            return null;
+        return level.mzRange;
+    }
+
+    /**
+     * @return RT range of given MS level, or null if there are no scans
+     */
+    Range<Double> getRTRange(int msLevel) {
+        LevelIndex level = (msLevel == 0) ? allScans : levels.get(msLevel);
+        if (level == null)
+            return null;
+        return level.rtRange;
+    }
+
+    /**
+     * @return Maximum base peak intensity of given MS level, or -1 if there
+     *         is no scan at this level
+     */
+    double getMaxBasePeakIntensity(int msLevel) {
+        LevelIndex level = levels.get(msLevel);
+        if (level == null)
+            return -1;
+        return level.maxBasePeakIntensity;
+    }
+
+    /**
+     * @return Maximum TIC of given MS level, or -1 if there is no scan at this
+     *         level
+     */
+    double getMaxTIC(int msLevel) {
+        LevelIndex level = levels.get(msLevel);
+        if (level == null)
+            return -1;
+        return level.maxTIC;
+    }
+
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
+import net.sf.mzmine.main.MZmineConfiguration;
+import net.sf.mzmine.main.MZmineCore;
+
+/**
+ * Cache of decoded data points (scans and mass lists) of one RawDataFileImpl,
+ * keyed by storage ID. The data points are kept as interleaved m/z and
+ * intensity values in a float array, the same layout and precision as in the
+ * data points file, so one entry can serve both the DataPoint[] and the
+ * primitive readers and costs 8 bytes per data point. All caches share one memory budget, which is set by the
+ * "Spectra cache size" preference. When the budget is exceeded, the least
+ * recently used entries of all raw data files are evicted until the cache
+ * occupies at most EVICTION_TARGET of the budget.
+ *
+ * Lookups do not take any lock. The recency of each entry is tracked by a
+ * global access counter, so the eviction order is the same as in a strict LRU
+ * list, but the list is only sorted when eviction actually happens.
+ */
+public class SpectraCache {
+
+    /**
+     * Size of the cache after eviction, relative to the memory budget
+     */
+    private static final double EVICTION_TARGET = 0.75;
+
+    private static final long DEFAULT_CACHE_SIZE_MB = 256;
+
+    private static final Logger logger = Logger
+            .getLogger(SpectraCache.class.getName());
+
+    // Shared state of all caches
+    private static final List<SpectraCache> allCaches = new CopyOnWriteArrayList<SpectraCache>();
+    private static final AtomicLong totalBytes = new AtomicLong();
+    private static final AtomicLong accessCounter = new AtomicLong();
+    private static final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final String name;
+    private final Map<Integer, CacheEntry> entries = new ConcurrentHashMap<Integer, CacheEntry>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(),
+            evictions = new AtomicLong();
+
+    // Set when the raw data file is closed, no entries are added afterwards
+    private volatile boolean disposed = false;
+
+    private static class CacheEntry {
+        final SpectraCache cache;
+        final int storageID;
+        final float values[];
+        final long size;
+        volatile long lastAccess;
+
+        CacheEntry(SpectraCache cache, int storageID, float values[]) {
+            this.cache = cache;
+            this.storageID = storageID;
+            this.values = values;
+            this.size = 16L + (long) values.length * 4;
+            this.lastAccess = accessCounter.incrementAndGet();
+        }
+    }
+
+    SpectraCache(String name) {
+        this.name = name;
+        allCaches.add(this);
+    }
+
+    /**
+     * Returns the cached values of given storage ID (m/z and intensity
+     * interleaved), or null. The returned array is shared, callers must not
+     * modify it.
+     */
+    float[] get(int storageID) {
+        CacheEntry entry = entries.get(storageID);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        entry.lastAccess = accessCounter.incrementAndGet();
+        hits.incrementAndGet();
+        return entry.values;
+    }
+
+    /**
+     * Adds decoded values (m/z and intensity interleaved) to the cache. The
+     * array must not be modified after this call.
+     */
+    void put(int storageID, float values[]) {
+
+        if (disposed)
+            return;
+
+        final long maxBytes = getMaxBytes();
+        CacheEntry newEntry = new CacheEntry(this, storageID, values);
+        if (newEntry.size > maxBytes)
+            return;
+
+        CacheEntry oldEntry = entries.put(storageID, newEntry);
+        if (oldEntry != null)
+            release(oldEntry);
+        bytes.addAndGet(newEntry.size);
+        totalBytes.addAndGet(newEntry.size);
+
+        // The cache may have been disposed while the entry was added
+        if (disposed) {
+            if (entries.remove(storageID, newEntry))
+                release(newEntry);
+            return;
+        }
+
+        if (totalBytes.get() > maxBytes)
+            evict(maxBytes);
+
+    }
+
+    /**
+     * Removes the data points of given storage ID, e.g. when the stored data
+     * points are deleted.
+     */
+    void remove(int storageID) {
+        CacheEntry entry = entries.remove(storageID);
+        if (entry != null)
+            release(entry);
+    }
+
+    /**
+     * Removes all entries and unregisters this cache. Called when the raw data
+     * file is closed. Entries added later are ignored.
+     */
+    void dispose() {
+        if (disposed)
+            return;
+        logger.info("Spectra cache of " + name + ": " + getStatistics());
+        disposed = true;
+        allCaches.remove(this);
+        for (Integer storageID : entries.keySet())
+            remove(storageID);
+    }
+
+    private void release(CacheEntry entry) {
+        bytes.addAndGet(-entry.size);
+        totalBytes.addAndGet(-entry.size);
+    }
+
+    /**
+     * Evicts least recently used entries of all caches, until the total size
+     * drops below EVICTION_TARGET * maxBytes. Only one thread evicts at a
+     * time, other threads just continue.
+     */
+    private static void evict(long maxBytes) {
+
+        if (!evictionLock.tryLock())
+            return;
+
+        try {
+            if (totalBytes.get() <= maxBytes)
+                return;
+
+            List<CacheEntry> candidates = new ArrayList<CacheEntry>();
+            for (SpectraCache cache : allCaches)
+                candidates.addAll(cache.entries.values());
+
+            Collections.sort(candidates, new Comparator<CacheEntry>() {
+                @Override
+                public int compare(CacheEntry e1, CacheEntry e2) {
+                    return Long.compare(e1.lastAccess, e2.lastAccess);
+                }
+            });
+
+            final long targetBytes = (long) (maxBytes * EVICTION_TARGET);
+            for (CacheEntry entry : candidates) {
+                if (totalBytes.get() <= targetBytes)
+                    break;
+                // Only remove the entry if it was not replaced in the meantime
+                if (entry.cache.entries.remove(entry.storageID, entry)) {
+                    entry.cache.release(entry);
+                    entry.cache.evictions.incrementAndGet();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+
+    }
+
+    /**
+     * @return Memory budget of all spectra caches in bytes, as set in the
+     *         preferences
+     */
+    static long getMaxBytes() {
+        long sizeMB = DEFAULT_CACHE_SIZE_MB;
+        MZmineConfiguration configuration = MZmineCore.getConfiguration();
+        if (configuration != null) {
+            Integer value = configuration.getPreferences()
+                    .getParameter(MZminePreferences.spectraCacheSize)
+                    .getValue();
+            if (value != null)
+                sizeMB = value;
+        }
+        return sizeMB << 20;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return Estimated heap size of the entries of this cache in bytes
+     */
+    public long getSize() {
+        return bytes.get();
+    }
+
+    /**
+     * @return Estimated heap size of all spectra caches in bytes
+     */
+    public static long getTotalSize() {
+        return totalBytes.get();
+    }
+
+    public String getStatistics() {
+        final long h = hits.get(), m = misses.get();
+        final long hitRate = (h + m) == 0 ? 0 : (100 * h / (h + m));
+        return h + " hits, " + m + " misses (" + hitRate + "% hit rate), "
+                + evictions.get() + " evictions, " + entries.size()
+                + " entries using " + (bytes.get() >> 10) + " kB";
+    }
+
+}
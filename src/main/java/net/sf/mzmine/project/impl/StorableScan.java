@@ -34,6 +34,7 @@ import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.PolarityType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.desktop.impl.projecttree.RawDataTreeModel;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.util.ScanUtils;
@@ -65,6 +66,10 @@ public class StorableScan implements Scan {
 
 	private int storageID;
 
+	// True if the m/z range, base peak and TIC were computed when the data
+	// points were stored, so updateValues() does not have to read them
+	private boolean storedValuesKnown = false;
+
 	/**
 	 * Constructor for creating a storable scan from a given scan
 	 */
@@ -131,6 +136,23 @@ public class StorableScan implements Scan {
 
 	}
 
+	/**
+	 * @see net.sf.mzmine.datamodel.Scan#getDataPoints(double[], double[])
+	 */
+	public int getDataPoints(@Nonnull double mzValues[],
+			@Nonnull double intensityValues[]) {
+
+		try {
+			return rawDataFile.readDataPoints(storageID, mzValues,
+					intensityValues);
+		} catch (IOException e) {
+			logger.severe("Could not read data from temporary file "
+					+ e.toString());
+			return 0;
+		}
+
+	}
+
 	/**
 	 * @return Returns scan datapoints within a given range
 	 */
@@ -231,6 +253,9 @@ public class StorableScan implements Scan {
 	}
 
 	void updateValues() {
+		if (storedValuesKnown)
+			return;
+
 		DataPoint dataPoints[] = getDataPoints();
 
 		// find m/z range and base peak
@@ -259,6 +284,42 @@ public class StorableScan implements Scan {
 		}
 	}
 
+	/**
+	 * Computes the m/z range, base peak and TIC from the values which were
+	 * stored for this scan, rounded to float like the stored data points
+	 */
+	void updateValues(double mzValues[], double intensityValues[],
+			int numOfDataPoints) {
+
+		storedValuesKnown = true;
+
+		if (numOfDataPoints == 0) {
+			basePeak = null;
+			mzRange = Range.singleton(0.0);
+			totalIonCurrent = new Double(0);
+			return;
+		}
+
+		int basePeakIndex = 0;
+		double minMZ = Double.MAX_VALUE, maxMZ = -Double.MAX_VALUE;
+		double tic = 0;
+		for (int i = 0; i < numOfDataPoints; i++) {
+			final double mz = (float) mzValues[i];
+			final double intensity = (float) intensityValues[i];
+			if (intensity > (float) intensityValues[basePeakIndex])
+				basePeakIndex = i;
+			minMZ = Math.min(minMZ, mz);
+			maxMZ = Math.max(maxMZ, mz);
+			tic += intensity;
+		}
+
+		basePeak = new SimpleDataPoint((float) mzValues[basePeakIndex],
+				(float) intensityValues[basePeakIndex]);
+		mzRange = Range.closed(minMZ, maxMZ);
+		totalIonCurrent = new Double(tic);
+
+	}
+
 	/**
 	 * @see net.sf.mzmine.datamodel.Scan#getMZRangeMax()
 	 */
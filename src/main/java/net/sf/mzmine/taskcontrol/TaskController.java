@@ -19,6 +19,8 @@
 
 package net.sf.mzmine.taskcontrol;
 
+import java.util.concurrent.ForkJoinPool;
+
 import net.sf.mzmine.taskcontrol.impl.TaskQueue;
 
 /**
@@ -40,4 +42,11 @@ public interface TaskController {
 
     public TaskQueue getTaskQueue();
 
+    /**
+     * Returns the work-stealing pool which executes the tasks. A running task
+     * can fork sub-work into this pool (e.g. using invokeAll() or submit()) and
+     * wait for it, instead of adding further tasks to the queue.
+     */
+    public ForkJoinPool getForkJoinPool();
+
 }
@@ -21,10 +21,16 @@ package net.sf.mzmine.taskcontrol.impl;
 
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Set;
-import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.desktop.preferences.MZminePreferences;
@@ -38,9 +44,18 @@ import net.sf.mzmine.taskcontrol.TaskPriority;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 
 /**
- * Task controller implementation
+ * Task controller implementation. Tasks are started as soon as they are added,
+ * there is no polling. Tasks of NORMAL priority are executed by a work-stealing
+ * ForkJoinPool, and at most "Number of concurrently running tasks" (see
+ * preferences) of them run at the same time. The remaining tasks wait in the
+ * queue and are started whenever a running task finishes. Tasks of HIGH
+ * priority are started immediately on a separate pool of reusable threads.
+ * 
+ * Running tasks may fork sub-work into the ForkJoinPool returned by
+ * getForkJoinPool(). Idle workers of the pool steal the sub-work, so a single
+ * running task can use all processors.
  */
-public class TaskControllerImpl implements TaskController, Runnable {
+public class TaskControllerImpl implements TaskController {
 
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
@@ -49,18 +64,33 @@ public class TaskControllerImpl implements TaskController, Runnable {
     /**
      * Update the task progress window every 300 ms
      */
-    private final int TASKCONTROLLER_THREAD_SLEEP = 300;
-
-    private Thread taskControllerThread;
+    private final int TASKCONTROLLER_REFRESH_INTERVAL = 300;
 
     private TaskQueue taskQueue;
 
     /**
-     * This vector contains references to all running threads of NORMAL
-     * priority. Maximum number of concurrent threads is specified in the
-     * preferences dialog.
+     * Pool executing tasks of NORMAL priority and their sub-work
+     */
+    private volatile ForkJoinPool forkJoinPool;
+
+    /**
+     * Threads executing tasks of HIGH priority. Idle threads are kept for a
+     * while, so they are reused by subsequent tasks.
+     */
+    private ExecutorService highPriorityExecutor;
+
+    /**
+     * Low-priority thread that refreshes the task progress window and sends
+     * the module usage statistics
+     */
+    private ScheduledExecutorService taskControllerThread;
+
+    /**
+     * Number of currently running tasks of NORMAL priority. Guarded by this.
      */
-    private Vector<WorkerThread> runningThreads;
+    private int runningNormalTasks = 0;
+
+    private int previousQueueSize = -1;
 
     /**
      * Initialize the task controller
@@ -69,13 +99,39 @@ public class TaskControllerImpl implements TaskController, Runnable {
 
 	taskQueue = new TaskQueue();
 
-	runningThreads = new Vector<WorkerThread>();
-
-	// Create a low-priority thread that will manage the queue and start
-	// worker threads for tasks
-	taskControllerThread = new Thread(this, "Task controller thread");
-	taskControllerThread.setPriority(Thread.MIN_PRIORITY);
-	taskControllerThread.start();
+	forkJoinPool = new ForkJoinPool(getMaxRunningTasks());
+
+	final AtomicInteger threadCounter = new AtomicInteger();
+	highPriorityExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+		60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+		new ThreadFactory() {
+		    @Override
+		    public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r,
+				"High priority task thread "
+					+ threadCounter.incrementAndGet());
+			thread.setPriority(Thread.MAX_PRIORITY);
+			return thread;
+		    }
+		});
+
+	taskControllerThread = Executors
+		.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		    @Override
+		    public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Task controller thread");
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.setDaemon(true);
+			return thread;
+		    }
+		});
+	taskControllerThread.scheduleWithFixedDelay(new Runnable() {
+	    @Override
+	    public void run() {
+		refreshTaskQueue();
+	    }
+	}, TASKCONTROLLER_REFRESH_INTERVAL, TASKCONTROLLER_REFRESH_INTERVAL,
+		TimeUnit.MILLISECONDS);
 
     }
 
@@ -83,6 +139,10 @@ public class TaskControllerImpl implements TaskController, Runnable {
 	return taskQueue;
     }
 
+    public ForkJoinPool getForkJoinPool() {
+	return forkJoinPool;
+    }
+
     public void addTask(Task task) {
 	addTasks(new Task[] { task }, TaskPriority.NORMAL);
     }
@@ -111,114 +171,103 @@ public class TaskControllerImpl implements TaskController, Runnable {
 	    taskQueue.addWrappedTask(newQueueEntry);
 	}
 
-	// Track module usage
-	
+	// Track module usage. The tracker runs in the task controller thread,
+	// so we do not create a new thread for each added task
 	for (String value : uniqueTaskClasses) {
 	    GoogleAnalyticsTracker GAT = new GoogleAnalyticsTracker(value,
 		    "/JAVA/" + value);
-	    Thread gatThread = new Thread(GAT);
-	    gatThread.setPriority(Thread.MIN_PRIORITY);
-	    gatThread.start();
+	    taskControllerThread.execute(GAT);
 	}
 
-	// Wake up the task controller thread
-	synchronized (this) {
-	    this.notifyAll();
-	}
+	// Start the tasks right away
+	startWaitingTasks();
 
     }
 
     /**
-     * Task controller thread main method.
-     * 
-     * @see java.lang.Runnable#run()
+     * Starts the tasks waiting in the queue. HIGH priority tasks are always
+     * started, NORMAL priority tasks only if less than the maximum number of
+     * tasks is running.
      */
-    public void run() {
-
-	int previousQueueSize = -1;
+    private synchronized void startWaitingTasks() {
 
-	while (true) {
+	final int maxRunningTasks = getMaxRunningTasks();
 
-	    int currentQueueSize = taskQueue.getNumOfWaitingTasks();
-	    if (currentQueueSize != previousQueueSize) {
-		previousQueueSize = currentQueueSize;
-		for (TaskControlListener listener : listeners)
-		    listener.numberOfWaitingTasksChanged(currentQueueSize);
-	    }
+	// If the number of threads was increased in the preferences, start new
+	// tasks in a bigger pool. The old pool is not shut down, because running
+	// tasks may still fork sub-work into it. Its threads terminate once they
+	// are idle.
+	if (maxRunningTasks > forkJoinPool.getParallelism())
+	    forkJoinPool = new ForkJoinPool(maxRunningTasks);
 
-	    // If the queue is empty, we can sleep. When new task is added into
-	    // the queue, we will be awaken by notify()
-	    synchronized (this) {
-		while (taskQueue.isEmpty()) {
-		    try {
-			this.wait();
-		    } catch (InterruptedException e) {
-			// Ignore
-		    }
-		}
-	    }
+	for (WrappedTask task : taskQueue.getQueueSnapshot()) {
 
-	    // Check if all tasks in the queue are finished
-	    if (taskQueue.allTasksFinished()) {
-		taskQueue.clear();
+	    // Skip assigned and canceled tasks
+	    if (task.isAssigned()
+		    || (task.getActualTask().getStatus() == TaskStatus.CANCELED))
 		continue;
-	    }
 
-	    // Remove already finished threads from runningThreads
-	    Iterator<WorkerThread> threadIterator = runningThreads.iterator();
-	    while (threadIterator.hasNext()) {
-		WorkerThread thread = threadIterator.next();
-		if (thread.isFinished())
-		    threadIterator.remove();
+	    if (task.getPriority() == TaskPriority.HIGH) {
+		TaskWorker worker = new TaskWorker(task, this, false);
+		highPriorityExecutor.execute(worker);
+	    } else if (runningNormalTasks < maxRunningTasks) {
+		TaskWorker worker = new TaskWorker(task, this, true);
+		runningNormalTasks++;
+		forkJoinPool.execute(worker);
 	    }
+	}
 
-	    // Get a snapshot of the queue
-	    WrappedTask[] queueSnapshot = taskQueue.getQueueSnapshot();
-
-	    // Obtain the settings of max concurrent threads
-	    NumOfThreadsParameter parameter = MZmineCore.getConfiguration()
-		    .getPreferences()
-		    .getParameter(MZminePreferences.numOfThreads);
-	    int maxRunningThreads;
-	    if (parameter.isAutomatic() || (parameter.getValue() == null))
-		maxRunningThreads = Runtime.getRuntime().availableProcessors();
-	    else
-		maxRunningThreads = parameter.getValue();
-
-	    // Check all tasks in the queue
-	    for (WrappedTask task : queueSnapshot) {
-
-		// Skip assigned and canceled tasks
-		if (task.isAssigned()
-			|| (task.getActualTask().getStatus() == TaskStatus.CANCELED))
-		    continue;
-
-		// Create a new thread if the task is high-priority or if we
-		// have less then maximum # of threads running
-		if ((task.getPriority() == TaskPriority.HIGH)
-			|| (runningThreads.size() < maxRunningThreads)) {
-		    WorkerThread newThread = new WorkerThread(task);
-
-		    if (task.getPriority() == TaskPriority.NORMAL) {
-			runningThreads.add(newThread);
-		    }
+	taskQueue.refresh();
 
-		    newThread.start();
-		}
-	    }
+    }
 
-	    // Tell the queue to refresh the Task progress window
-	    taskQueue.refresh();
+    /**
+     * Called by TaskWorker when a task has finished
+     */
+    synchronized void taskFinished(TaskWorker worker) {
 
-	    // Sleep for a while until next update
-	    try {
-		Thread.sleep(TASKCONTROLLER_THREAD_SLEEP);
-	    } catch (InterruptedException e) {
-		// Ignore
-	    }
+	if (worker.isCountedAsNormal())
+	    runningNormalTasks--;
+
+	// Check if all tasks in the queue are finished
+	if (taskQueue.allTasksFinished())
+	    taskQueue.clear();
+
+	startWaitingTasks();
 
+    }
+
+    /**
+     * Refresh the Task progress window and notify the listeners if the number
+     * of waiting tasks has changed
+     */
+    private void refreshTaskQueue() {
+
+	int currentQueueSize = taskQueue.getNumOfWaitingTasks();
+	if (currentQueueSize != previousQueueSize) {
+	    previousQueueSize = currentQueueSize;
+	    for (TaskControlListener listener : listeners)
+		listener.numberOfWaitingTasksChanged(currentQueueSize);
 	}
 
+	if (!taskQueue.isEmpty())
+	    taskQueue.refresh();
+
+    }
+
+    /**
+     * Obtain the settings of max concurrent threads
+     */
+    private int getMaxRunningTasks() {
+	NumOfThreadsParameter parameter = MZmineCore.getConfiguration()
+		.getPreferences()
+		.getParameter(MZminePreferences.numOfThreads);
+	int maxRunningThreads;
+	if (parameter.isAutomatic() || (parameter.getValue() == null))
+	    maxRunningThreads = Runtime.getRuntime().availableProcessors();
+	else
+	    maxRunningThreads = parameter.getValue();
+	return Math.max(1, maxRunningThreads);
     }
 
     public void setTaskPriority(Task task, TaskPriority priority) {
@@ -234,9 +283,9 @@ public class TaskControllerImpl implements TaskController, Runnable {
 			+ task.getTaskDescription() + "\" to " + priority);
 		wrappedTask.setPriority(priority);
 
-		// Call refresh to re-sort the queue according to new priority
-		// and update the Task progress window
-		taskQueue.refresh();
+		// Start the task if it is waiting and became high-priority, and
+		// update the Task progress window
+		startWaitingTasks();
 	    }
 	}
     }
@@ -24,23 +24,28 @@ import java.util.logging.Logger;
 
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.taskcontrol.Task;
+import net.sf.mzmine.taskcontrol.TaskPriority;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
 
 /**
- * Task controller worker thread, this thread will process one task and then
- * finish
+ * Task controller worker, processes one task in a thread of one of the task
+ * controller's pools and then notifies the task controller
  */
-class WorkerThread extends Thread {
+class TaskWorker implements Runnable {
 
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
-    private WrappedTask wrappedTask;
-    private boolean finished = false;
+    private final WrappedTask wrappedTask;
+    private final TaskControllerImpl taskController;
+    private final boolean countedAsNormal;
+    private volatile Thread executingThread;
 
-    WorkerThread(WrappedTask wrappedTask) {
-	super("Thread executing task " + wrappedTask);
+    TaskWorker(WrappedTask wrappedTask, TaskControllerImpl taskController,
+	    boolean countedAsNormal) {
 	this.wrappedTask = wrappedTask;
+	this.taskController = taskController;
+	this.countedAsNormal = countedAsNormal;
 	wrappedTask.assignTo(this);
     }
 
@@ -51,6 +56,15 @@ class WorkerThread extends Thread {
 
 	Task actualTask = wrappedTask.getActualTask();
 
+	// Pool threads are reused, so we have to restore their name and
+	// priority when the task is done
+	final Thread currentThread = Thread.currentThread();
+	final String originalName = currentThread.getName();
+	final int originalPriority = currentThread.getPriority();
+	currentThread.setName("Thread executing task " + wrappedTask);
+	executingThread = currentThread;
+	setThreadPriority(wrappedTask.getPriority());
+
 	try {
 
 	    // Log the start (INFO level events go to the Status bar, too)
@@ -111,15 +125,37 @@ class WorkerThread extends Thread {
 
 	}
 
-	/*
-	 * Mark this thread as finished
-	 */
-	finished = true;
+	executingThread = null;
+	currentThread.setName(originalName);
+	currentThread.setPriority(originalPriority);
+
+	taskController.taskFinished(this);
 
     }
 
-    boolean isFinished() {
-	return finished;
+    /**
+     * @return True if this worker occupies one of the slots for NORMAL
+     *         priority tasks
+     */
+    boolean isCountedAsNormal() {
+	return countedAsNormal;
+    }
+
+    /**
+     * Sets the priority of the thread executing the task, if it is running
+     */
+    void setThreadPriority(TaskPriority priority) {
+	Thread thread = executingThread;
+	if (thread == null)
+	    return;
+	switch (priority) {
+	case HIGH:
+	    thread.setPriority(Thread.MAX_PRIORITY);
+	    break;
+	case NORMAL:
+	    thread.setPriority(Thread.NORM_PRIORITY);
+	    break;
+	}
     }
 
 }
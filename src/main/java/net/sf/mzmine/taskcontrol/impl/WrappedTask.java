@@ -28,8 +28,8 @@ import net.sf.mzmine.taskcontrol.TaskPriority;
 public class WrappedTask {
 
     private Task task;
-    private TaskPriority priority;
-    private WorkerThread assignedTo;
+    private volatile TaskPriority priority;
+    private volatile TaskWorker assignedTo;
 
     WrappedTask(Task task, TaskPriority priority) {
 	this.task = task;
@@ -49,16 +49,9 @@ public class WrappedTask {
      */
     void setPriority(TaskPriority priority) {
 	this.priority = priority;
-	if (assignedTo != null) {
-	    switch (priority) {
-	    case HIGH:
-		assignedTo.setPriority(Thread.MAX_PRIORITY);
-		break;
-	    case NORMAL:
-		assignedTo.setPriority(Thread.NORM_PRIORITY);
-		break;
-	    }
-	}
+	TaskWorker worker = assignedTo;
+	if (worker != null)
+	    worker.setThreadPriority(priority);
     }
 
     /**
@@ -68,8 +61,8 @@ public class WrappedTask {
 	return assignedTo != null;
     }
 
-    void assignTo(WorkerThread thread) {
-	assignedTo = thread;
+    void assignTo(TaskWorker worker) {
+	assignedTo = worker;
     }
 
     /**
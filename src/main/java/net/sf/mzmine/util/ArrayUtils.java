@@ -30,4 +30,69 @@ public class ArrayUtils {
 	return -1;
     }
 
+    /**
+     * Sorts the first length elements of the order array, which contains
+     * indices into the keys arrays, by descending keys[i]. Ties are sorted by
+     * descending secondaryKeys[i]. This is the primitive equivalent of sorting
+     * DataPoints with DataPointSorter(SortingProperty.Intensity,
+     * SortingDirection.Descending), without allocating any objects except for
+     * the given temporary buffer, which must have at least length elements.
+     */
+    public static void sortIndicesDescending(int order[], int tmp[],
+	    int length, double keys[], double secondaryKeys[]) {
+	mergeSortDescending(order, tmp, 0, length, keys, secondaryKeys);
+    }
+
+    private static void mergeSortDescending(int order[], int tmp[], int from,
+	    int to, double keys[], double secondaryKeys[]) {
+
+	// Insertion sort for small ranges
+	if (to - from < 16) {
+	    for (int i = from + 1; i < to; i++) {
+		final int index = order[i];
+		int j = i - 1;
+		while ((j >= from)
+			&& (compareDescending(order[j], index, keys,
+				secondaryKeys) > 0)) {
+		    order[j + 1] = order[j];
+		    j--;
+		}
+		order[j + 1] = index;
+	    }
+	    return;
+	}
+
+	final int mid = (from + to) >>> 1;
+	mergeSortDescending(order, tmp, from, mid, keys, secondaryKeys);
+	mergeSortDescending(order, tmp, mid, to, keys, secondaryKeys);
+
+	// Already in order
+	if (compareDescending(order[mid - 1], order[mid], keys,
+		secondaryKeys) <= 0)
+	    return;
+
+	System.arraycopy(order, from, tmp, from, to - from);
+	int left = from, right = mid, target = from;
+	while ((left < mid) && (right < to)) {
+	    if (compareDescending(tmp[left], tmp[right], keys,
+		    secondaryKeys) <= 0)
+		order[target++] = tmp[left++];
+	    else
+		order[target++] = tmp[right++];
+	}
+	while (left < mid)
+	    order[target++] = tmp[left++];
+	while (right < to)
+	    order[target++] = tmp[right++];
+
+    }
+
+    private static int compareDescending(int i1, int i2, double keys[],
+	    double secondaryKeys[]) {
+	int result = Double.compare(keys[i2], keys[i1]);
+	if (result == 0)
+	    result = Double.compare(secondaryKeys[i2], secondaryKeys[i1]);
+	return result;
+    }
+
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.MassList;
+import net.sf.mzmine.datamodel.Scan;
+
+/**
+ * Reusable primitive buffer for the m/z and intensity values of one scan or
+ * mass list. The arrays only grow, so reading many spectra through the same
+ * buffer does not allocate anything once the largest spectrum was seen. The
+ * arrays returned by getMzValues() and getIntensityValues() may be longer than
+ * getSize(), only the first getSize() elements are valid. Instances are not
+ * thread-safe.
+ */
+public class DataPointsBuffer {
+
+    private double mzValues[] = new double[0];
+    private double intensityValues[] = new double[0];
+    private int size = 0;
+
+    /**
+     * Reads the data points of given scan into this buffer
+     *
+     * @return Number of data points
+     */
+    public int readScan(@Nonnull Scan scan) {
+	ensureCapacity(scan.getNumberOfDataPoints());
+	size = scan.getDataPoints(mzValues, intensityValues);
+	return size;
+    }
+
+    /**
+     * Reads the data points of given mass list into this buffer
+     *
+     * @return Number of data points
+     */
+    public int readMassList(@Nonnull MassList massList) {
+	ensureCapacity(massList.getNumberOfDataPoints());
+	size = massList.getDataPoints(mzValues, intensityValues);
+	return size;
+    }
+
+    private void ensureCapacity(int capacity) {
+	if (mzValues.length < capacity) {
+	    mzValues = new double[capacity];
+	    intensityValues = new double[capacity];
+	}
+    }
+
+    public double[] getMzValues() {
+	return mzValues;
+    }
+
+    public double[] getIntensityValues() {
+	return intensityValues;
+    }
+
+    public int getSize() {
+	return size;
+    }
+
+    /**
+     * @return Index of the first data point with m/z greater or equal to given
+     *         value, or getSize() if there is none
+     */
+    public int findFirstIndex(double mz) {
+	return ScanUtils.findFirstMzIndex(mzValues, size, mz);
+    }
+
+    /**
+     * Same as findFirstIndex(double), but only searches the data points from
+     * given index on. This allows to find the indexes of ascending m/z values
+     * in a single pass.
+     */
+    public int findFirstIndex(int fromIndex, double mz) {
+	return ScanUtils.findFirstMzIndex(mzValues, fromIndex, size, mz);
+    }
+
+    /**
+     * @return Index of the most intense data point from given index up to m/z
+     *         mzMax (inclusive), or -1 if there is none. If several data
+     *         points have the highest intensity, the first one is returned.
+     */
+    public int findBasePeakIndex(int fromIndex, double mzMax) {
+	int basePeakIndex = -1;
+	for (int i = fromIndex; (i < size) && (mzValues[i] <= mzMax); i++) {
+	    if ((basePeakIndex < 0)
+		    || (intensityValues[i] > intensityValues[basePeakIndex]))
+		basePeakIndex = i;
+	}
+	return basePeakIndex;
+    }
+
+    /**
+     * @return Sum of the intensities of the data points from given index up
+     *         to m/z mzMax (inclusive)
+     */
+    public double sumIntensities(int fromIndex, double mzMax) {
+	double sum = 0.0;
+	for (int i = fromIndex; (i < size) && (mzValues[i] <= mzMax); i++)
+	    sum += intensityValues[i];
+	return sum;
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.util.Arrays;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+
+/**
+ * Compact map of scan number -> data point (m/z and intensity), stored in three
+ * growable primitive arrays sorted by scan number. It replaces
+ * Hashtable<Integer, DataPoint> in chromatograms, where each data point would
+ * otherwise cost a boxed key, a hash entry and a DataPoint instance. Data
+ * points are usually added in the order of scans, which is a plain append.
+ * Adding in any other order inserts into the arrays. Instances are not
+ * thread-safe.
+ */
+public class DataPointsByScan {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private int scanNumbers[] = new int[INITIAL_CAPACITY];
+    private double mzValues[] = new double[INITIAL_CAPACITY];
+    private double intensityValues[] = new double[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * Stores the data point for given scan, replacing any data point
+     * previously stored for that scan
+     */
+    public void put(int scanNumber, double mz, double intensity) {
+        int index = indexOf(scanNumber);
+        if (index < 0)
+            index = insert(-(index + 1), scanNumber);
+        mzValues[index] = mz;
+        intensityValues[index] = intensity;
+    }
+
+    /**
+     * Stores the data point for given scan, unless a data point is already
+     * stored for that scan
+     *
+     * @return True if the data point was stored
+     */
+    public boolean putIfAbsent(int scanNumber, double mz, double intensity) {
+        int index = indexOf(scanNumber);
+        if (index >= 0)
+            return false;
+        index = insert(-(index + 1), scanNumber);
+        mzValues[index] = mz;
+        intensityValues[index] = intensity;
+        return true;
+    }
+
+    /**
+     * Removes the data point of given scan, if present
+     */
+    public void remove(int scanNumber) {
+        final int index = indexOf(scanNumber);
+        if (index < 0)
+            return;
+        final int tail = size - index - 1;
+        System.arraycopy(scanNumbers, index + 1, scanNumbers, index, tail);
+        System.arraycopy(mzValues, index + 1, mzValues, index, tail);
+        System.arraycopy(intensityValues, index + 1, intensityValues, index,
+                tail);
+        size--;
+    }
+
+    public boolean contains(int scanNumber) {
+        return indexOf(scanNumber) >= 0;
+    }
+
+    /**
+     * @return Index of the data point of given scan, or (-(insertion point) -
+     *         1) if there is none, see Arrays.binarySearch()
+     */
+    public int indexOf(int scanNumber) {
+        // Fast path for appending
+        if ((size == 0) || (scanNumber > scanNumbers[size - 1]))
+            return -(size + 1);
+        return Arrays.binarySearch(scanNumbers, 0, size, scanNumber);
+    }
+
+    /**
+     * @return Data point of given scan, or null
+     */
+    public DataPoint get(int scanNumber) {
+        final int index = indexOf(scanNumber);
+        if (index < 0)
+            return null;
+        return new SimpleDataPoint(mzValues[index], intensityValues[index]);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Scan number of the index-th data point, in ascending order
+     */
+    public int getScanNumber(int index) {
+        return scanNumbers[index];
+    }
+
+    public double getMZ(int index) {
+        return mzValues[index];
+    }
+
+    public double getIntensity(int index) {
+        return intensityValues[index];
+    }
+
+    /**
+     * Releases unused capacity, e.g. when the chromatogram is finished
+     */
+    public void trimToSize() {
+        if (scanNumbers.length == size)
+            return;
+        scanNumbers = Arrays.copyOf(scanNumbers, size);
+        mzValues = Arrays.copyOf(mzValues, size);
+        intensityValues = Arrays.copyOf(intensityValues, size);
+    }
+
+    private int insert(int index, int scanNumber) {
+        if (size == scanNumbers.length) {
+            final int capacity = Math.max(INITIAL_CAPACITY, size * 2);
+            scanNumbers = Arrays.copyOf(scanNumbers, capacity);
+            mzValues = Arrays.copyOf(mzValues, capacity);
+            intensityValues = Arrays.copyOf(intensityValues, capacity);
+        }
+        final int tail = size - index;
+        System.arraycopy(scanNumbers, index, scanNumbers, index + 1, tail);
+        System.arraycopy(mzValues, index, mzValues, index + 1, tail);
+        System.arraycopy(intensityValues, index, intensityValues, index + 1,
+                tail);
+        scanNumbers[index] = scanNumber;
+        size++;
+        return index;
+    }
+
+}
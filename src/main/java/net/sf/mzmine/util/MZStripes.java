@@ -0,0 +1,210 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+
+import com.google.common.collect.Range;
+
+/**
+ * Splits the m/z range of a raw data file into stripes, which can be processed
+ * independently by chromatogram builders. A boundary between two stripes is
+ * only placed into an m/z gap which does not contain any data point of any
+ * scan and is wider than twice the m/z tolerance. Data points on the two sides
+ * of such a gap can never be within m/z tolerance of each other, so
+ * chromatograms built in each stripe separately are the same as chromatograms
+ * built from the whole m/z range.
+ *
+ * The m/z values are first collected by addDataPoints() into a bit set of
+ * occupied m/z bins, the bin width is a fraction of the m/z tolerance. The
+ * boundaries are then chosen among all wide-enough gaps, so that the stripes
+ * contain about the same number of data points.
+ */
+public class MZStripes {
+
+    // Maximum number of m/z bins (4 MB of bits)
+    private static final int MAX_BINS = 1 << 25;
+
+    // Number of bins for counting the data points, used to balance the
+    // stripes
+    private static final int COUNT_BINS = 1 << 12;
+
+    private final MZTolerance mzTolerance;
+    private final double minMz, maxMz, binWidth, countBinWidth;
+    private final int numOfBins;
+    private final long occupied[];
+    private final long counts[] = new long[COUNT_BINS];
+    private long totalCount = 0;
+
+    /**
+     * @param mzRange
+     *            m/z range of the data points. Data points outside of the
+     *            range are accepted, but they never create a boundary.
+     */
+    public MZStripes(@Nonnull Range<Double> mzRange,
+            @Nonnull MZTolerance mzTolerance) {
+        this.mzTolerance = mzTolerance;
+        this.minMz = mzRange.lowerEndpoint();
+        this.maxMz = Math.max(mzRange.upperEndpoint(), minMz);
+        final double span = maxMz - minMz;
+
+        // At least 4 bins per m/z tolerance, if possible
+        double width = mzTolerance.getMzToleranceForMass(minMz) / 4;
+        width = Math.max(width, span / MAX_BINS);
+        if (!(width > 0))
+            width = 1;
+        this.binWidth = width;
+        this.numOfBins = (int) Math.min(MAX_BINS, Math.ceil(span / width) + 1);
+        this.occupied = new long[(numOfBins + 63) / 64];
+        this.countBinWidth = Math.max(span / COUNT_BINS, Double.MIN_NORMAL);
+    }
+
+    /**
+     * Adds the m/z values of one scan or mass list
+     */
+    public void addDataPoints(double mzValues[], int numOfDataPoints) {
+        for (int i = 0; i < numOfDataPoints; i++)
+            addDataPoint(mzValues[i]);
+    }
+
+    /**
+     * Adds a single m/z value
+     */
+    public void addDataPoint(double mz) {
+        final int bin = getBin(mz, binWidth, numOfBins);
+        occupied[bin >> 6] |= 1L << bin;
+        counts[getBin(mz, countBinWidth, COUNT_BINS)]++;
+        totalCount++;
+    }
+
+    private int getBin(double mz, double width, int bins) {
+        final double bin = Math.floor((mz - minMz) / width);
+        if (!(bin > 0))
+            return 0;
+        return (int) Math.min(bin, bins - 1);
+    }
+
+    private boolean isOccupied(int bin) {
+        return (occupied[bin >> 6] & (1L << bin)) != 0;
+    }
+
+    /**
+     * Chooses the boundaries of at most maxStripes stripes. Stripe i contains
+     * the data points with boundaries[i - 1] <= m/z < boundaries[i], the first
+     * stripe has no lower and the last stripe has no upper limit.
+     *
+     * @return Boundaries in ascending order, empty if the m/z range cannot be
+     *         split
+     */
+    public @Nonnull double[] getBoundaries(int maxStripes) {
+
+        if ((maxStripes < 2) || (totalCount == 0))
+            return new double[0];
+
+        // Cumulative data point counts at the lower edge of each count bin
+        long cumulativeCounts[] = new long[COUNT_BINS + 1];
+        for (int i = 0; i < COUNT_BINS; i++)
+            cumulativeCounts[i + 1] = cumulativeCounts[i] + counts[i];
+
+        // All gaps wide enough to place a boundary
+        double candidates[] = new double[16];
+        long candidateCounts[] = new long[16];
+        int numOfCandidates = 0;
+
+        int bin = 0;
+        while (bin < numOfBins) {
+            if (isOccupied(bin)) {
+                bin++;
+                continue;
+            }
+            final int firstEmpty = bin;
+            while ((bin < numOfBins) && !isOccupied(bin))
+                bin++;
+
+            // Gaps at the ends of the range do not separate anything
+            if ((firstEmpty == 0) || (bin == numOfBins))
+                continue;
+
+            // Data points next to the gap may fall into the neighbouring bins
+            // due to rounding, so one bin at each side does not count
+            final double lowerEdge = minMz + firstEmpty * binWidth;
+            final double upperEdge = minMz + bin * binWidth;
+            final double gap = upperEdge - lowerEdge - 2 * binWidth;
+            final double tolerance = mzTolerance
+                    .getMzToleranceForMass(upperEdge + binWidth);
+            if (!(gap > 2 * tolerance * (1 + 1e-6) + 1e-9 * upperEdge))
+                continue;
+
+            final double boundary = (lowerEdge + upperEdge) / 2;
+            if (numOfCandidates == candidates.length) {
+                candidates = Arrays.copyOf(candidates, numOfCandidates * 2);
+                candidateCounts = Arrays.copyOf(candidateCounts,
+                        numOfCandidates * 2);
+            }
+            candidates[numOfCandidates] = boundary;
+            candidateCounts[numOfCandidates] = cumulativeCounts[getBin(
+                    boundary, countBinWidth, COUNT_BINS)];
+            numOfCandidates++;
+        }
+
+        // For each stripe, take the gap closest to its share of data points
+        double boundaries[] = new double[maxStripes - 1];
+        int numOfBoundaries = 0;
+        int next = 0;
+        for (int stripe = 1; stripe < maxStripes; stripe++) {
+            final long target = totalCount * stripe / maxStripes;
+            while ((next < numOfCandidates)
+                    && (candidateCounts[next] < target))
+                next++;
+            int chosen = next;
+            if ((chosen == numOfCandidates) || ((chosen > 0)
+                    && (target - candidateCounts[chosen - 1] < candidateCounts[chosen]
+                            - target)))
+                chosen--;
+            if ((chosen < 0) || ((numOfBoundaries > 0)
+                    && (candidates[chosen] <= boundaries[numOfBoundaries - 1])))
+                continue;
+            boundaries[numOfBoundaries++] = candidates[chosen];
+        }
+
+        return Arrays.copyOf(boundaries, numOfBoundaries);
+
+    }
+
+    /**
+     * @return Index of the stripe containing given m/z, see getBoundaries()
+     */
+    public static int getStripe(@Nonnull double boundaries[], double mz) {
+        int low = 0, high = boundaries.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (boundaries[mid] <= mz)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+}
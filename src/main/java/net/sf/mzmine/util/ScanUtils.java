@@ -392,6 +392,58 @@ public class ScanUtils {
 
 	}
 
+	/**
+	 * Returns index of the first m/z value which is greater or equal to given
+	 * value, or numOfDataPoints if there is no such value. We assume the first
+	 * numOfDataPoints values of the m/z array are sorted.
+	 */
+	public static int findFirstMzIndex(double mzValues[], int numOfDataPoints,
+			double mz) {
+		return findFirstMzIndex(mzValues, 0, numOfDataPoints, mz);
+	}
+
+	/**
+	 * Same as findFirstMzIndex(double[], int, double), but only searches the
+	 * values from fromIndex on. This allows to find the indexes of ascending
+	 * m/z values in a single pass.
+	 */
+	public static int findFirstMzIndex(double mzValues[], int fromIndex,
+			int numOfDataPoints, double mz) {
+
+		int low = fromIndex, high = numOfDataPoints;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (mzValues[mid] < mz)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+
+	}
+
+	/**
+	 * Copies m/z and intensity values of given data points into given arrays,
+	 * which must have at least dataPoints.length elements.
+	 *
+	 * @return Number of copied data points
+	 */
+	public static int copyDataPoints(@Nonnull DataPoint dataPoints[],
+			@Nonnull double mzValues[], @Nonnull double intensityValues[]) {
+
+		if ((mzValues.length < dataPoints.length)
+				|| (intensityValues.length < dataPoints.length))
+			throw new IllegalArgumentException("Arrays too small for "
+					+ dataPoints.length + " data points");
+
+		for (int i = 0; i < dataPoints.length; i++) {
+			mzValues[i] = dataPoints[i].getMZ();
+			intensityValues[i] = dataPoints[i].getIntensity();
+		}
+		return dataPoints.length;
+
+	}
+
 	/**
 	 * Determines if the spectrum represented by given array of data points is
 	 * centroided or continuous (profile or thresholded). Profile spectra are
@@ -409,21 +461,33 @@ public class ScanUtils {
 
 		double[] intensityValues = new double[dataPoints.length];
 		double[] mzValues = new double[dataPoints.length];
+		for (int i = 0; i < dataPoints.length; i++) {
+			intensityValues[i] = dataPoints[i].getIntensity();
+			mzValues[i] = dataPoints[i].getMZ();
+		}
+
+		return detectSpectrumType(mzValues, intensityValues, dataPoints.length);
+
+	}
+
+	/**
+	 * Determines the spectrum type like detectSpectrumType(DataPoint[]), for
+	 * the first size values of given arrays
+	 */
+	public static MassSpectrumType detectSpectrumType(
+			@Nonnull double mzValues[], @Nonnull double intensityValues[],
+			int size) {
 
 		// If the spectrum has less than 5 data points, it should be centroided.
-		if (dataPoints.length < 5)
+		if (size < 5)
 			return MassSpectrumType.CENTROIDED;
 
 		int basePeakIndex = 0;
 		boolean hasZeroDataPoint = false;
 
 		// Go through the data points and find the highest one
-		int size = dataPoints.length;
 		for (int i = 0; i < size; i++) {
 
-			intensityValues[i] = dataPoints[i].getIntensity();
-			mzValues[i] = dataPoints[i].getMZ();
-
 			// Update the maxDataPointIndex accordingly
 			if (intensityValues[i] > intensityValues[basePeakIndex])
 				basePeakIndex = i;
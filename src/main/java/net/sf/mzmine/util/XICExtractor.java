@@ -0,0 +1,293 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.sf.mzmine.datamodel.IonChromatogram;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleIonChromatogram;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.taskcontrol.Task;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+
+import com.google.common.collect.Range;
+
+/**
+ * Extracts the ion chromatograms of many targets from a raw data file in a
+ * single pass over its scans.
+ *
+ * The scans are visited in the order of retention time. A target becomes
+ * active at the start of its retention time range and stays active until it
+ * reports to be finished. Each scan is read only if any target is active, and
+ * then only once for all of them. The active targets are kept sorted by the
+ * lower end of their m/z range, so the data points of all targets are found
+ * by a merge join with the sorted data points of the scan: each binary search
+ * starts where the previous one ended.
+ *
+ * Instances are not thread-safe, but several raw data files can be processed
+ * in parallel by separate instances.
+ */
+public class XICExtractor {
+
+    /**
+     * Target of the extraction, which receives one data point of each scan
+     * while it is active
+     */
+    public interface Target {
+
+	@Nonnull
+	public Range<Double> getMZRange();
+
+	/**
+	 * @return Retention time range, whose lower end activates this target
+	 */
+	@Nonnull
+	public Range<Double> getRTRange();
+
+	/**
+	 * @return True if this target does not need the scan with given
+	 *         retention time, nor any later one
+	 */
+	public boolean isFinished(double scanRT);
+
+	/**
+	 * Adds the most intense data point of the scan within the m/z range.
+	 * If the scan has no data point within the range, the center of the
+	 * range and intensity 0 are given.
+	 */
+	public void addDataPoint(@Nonnull Scan scan, double mz, double intensity);
+
+    }
+
+    private static final Comparator<Target> rtComparator = new Comparator<Target>() {
+	@Override
+	public int compare(Target t1, Target t2) {
+	    return Double.compare(t1.getRTRange().lowerEndpoint(), t2
+		    .getRTRange().lowerEndpoint());
+	}
+    };
+
+    // Targets sorted by the start of RT range, and index of the next target
+    // to activate
+    private final Target targetsByRT[];
+    private int nextTarget = 0;
+
+    // Active targets sorted by the lower end of m/z range
+    private final List<Target> activeTargets = new ArrayList<Target>();
+
+    private volatile int processedScans = 0, totalScans = 0;
+
+    public XICExtractor(@Nonnull Collection<? extends Target> targets) {
+	targetsByRT = targets.toArray(new Target[0]);
+	Arrays.sort(targetsByRT, rtComparator);
+    }
+
+    /**
+     * Offers the given scans of the raw data file to all targets. The scan
+     * numbers must be sorted by retention time, as returned by
+     * RawDataFile.getScanNumbers().
+     *
+     * @param task
+     *            Task which runs the extraction, stops it when canceled. May
+     *            be null.
+     * @return False if the extraction was stopped because the task was
+     *         canceled
+     */
+    public boolean extract(@Nonnull RawDataFile dataFile,
+	    @Nonnull int scanNumbers[], @Nullable Task task) {
+
+	totalScans = scanNumbers.length;
+	final DataPointsBuffer buffer = new DataPointsBuffer();
+
+	for (int scanNumber : scanNumbers) {
+
+	    if ((task != null) && ((task.getStatus() == TaskStatus.CANCELED)
+		    || (task.getStatus() == TaskStatus.ERROR)))
+		return false;
+
+	    if ((nextTarget == targetsByRT.length) && activeTargets.isEmpty())
+		break;
+
+	    final Scan scan = dataFile.getScan(scanNumber);
+	    if (isScanNeeded(scan.getRetentionTime())) {
+		buffer.readScan(scan);
+		offerScan(scan, buffer);
+	    }
+	    processedScans++;
+	}
+
+	processedScans = totalScans;
+	return true;
+
+    }
+
+    public double getFinishedPercentage() {
+	return totalScans == 0 ? 0.0 : (double) processedScans
+		/ (double) totalScans;
+    }
+
+    /**
+     * Activates the targets whose RT range starts at given retention time and
+     * drops the finished ones
+     *
+     * @return True if any target needs the scan
+     */
+    private boolean isScanNeeded(double scanRT) {
+
+	while ((nextTarget < targetsByRT.length)
+		&& (targetsByRT[nextTarget].getRTRange().lowerEndpoint() <= scanRT)) {
+	    activate(targetsByRT[nextTarget]);
+	    nextTarget++;
+	}
+
+	int kept = 0;
+	for (int i = 0; i < activeTargets.size(); i++) {
+	    final Target target = activeTargets.get(i);
+	    if (!target.isFinished(scanRT))
+		activeTargets.set(kept++, target);
+	}
+	activeTargets.subList(kept, activeTargets.size()).clear();
+
+	return !activeTargets.isEmpty();
+    }
+
+    private void activate(Target target) {
+	// Insert after all active targets with the same or lower m/z
+	final double mz = target.getMZRange().lowerEndpoint();
+	int low = 0, high = activeTargets.size();
+	while (low < high) {
+	    final int mid = (low + high) >>> 1;
+	    if (activeTargets.get(mid).getMZRange().lowerEndpoint() <= mz)
+		low = mid + 1;
+	    else
+		high = mid;
+	}
+	activeTargets.add(low, target);
+    }
+
+    private void offerScan(Scan scan, DataPointsBuffer buffer) {
+
+	final double mzValues[] = buffer.getMzValues();
+	final double intensityValues[] = buffer.getIntensityValues();
+
+	int firstIndex = 0;
+	for (Target target : activeTargets) {
+
+	    final Range<Double> mzRange = target.getMZRange();
+	    firstIndex = buffer.findFirstIndex(firstIndex,
+		    mzRange.lowerEndpoint());
+	    final int basePeakIndex = buffer.findBasePeakIndex(firstIndex,
+		    mzRange.upperEndpoint());
+
+	    if (basePeakIndex >= 0)
+		target.addDataPoint(scan, mzValues[basePeakIndex],
+			intensityValues[basePeakIndex]);
+	    else
+		target.addDataPoint(scan, RangeUtils.rangeCenter(mzRange), 0);
+	}
+
+    }
+
+    /**
+     * Extraction of the same ion chromatograms from several raw data files, in
+     * parallel in the pool of the task controller. Each file is processed by
+     * its own XICExtractor, so the progress of all files can be followed
+     * while extract() runs.
+     */
+    public static class ParallelExtraction {
+
+	private final RawDataFile dataFiles[];
+	private final int msLevel;
+	private final SimpleIonChromatogram chromatograms[][];
+	private final XICExtractor extractors[];
+
+	public ParallelExtraction(@Nonnull RawDataFile dataFiles[],
+		int msLevel, @Nonnull List<Range<Double>> mzRanges,
+		@Nonnull List<Range<Double>> rtRanges) {
+
+	    assert mzRanges.size() == rtRanges.size();
+
+	    this.dataFiles = dataFiles;
+	    this.msLevel = msLevel;
+	    chromatograms = new SimpleIonChromatogram[dataFiles.length][mzRanges
+		    .size()];
+	    extractors = new XICExtractor[dataFiles.length];
+	    for (int i = 0; i < dataFiles.length; i++) {
+		for (int j = 0; j < mzRanges.size(); j++)
+		    chromatograms[i][j] = new SimpleIonChromatogram(
+			    mzRanges.get(j), rtRanges.get(j));
+		extractors[i] = new XICExtractor(
+			Arrays.asList(chromatograms[i]));
+	    }
+	}
+
+	/**
+	 * @param task
+	 *            Task which runs the extraction, stops it when canceled.
+	 *            May be null.
+	 * @return Ion chromatograms of each raw data file, see
+	 *         RawDataFile.getIonChromatograms(), or null if the task was
+	 *         canceled
+	 */
+	public @Nullable IonChromatogram[][] extract(@Nullable final Task task) {
+
+	    final ForkJoinPool pool = MZmineCore.getTaskController()
+		    .getForkJoinPool();
+	    final List<ForkJoinTask<Boolean>> fileTasks = new ArrayList<ForkJoinTask<Boolean>>();
+	    for (int i = 0; i < dataFiles.length; i++) {
+		final RawDataFile dataFile = dataFiles[i];
+		final XICExtractor extractor = extractors[i];
+		fileTasks.add(pool.submit(() -> extractor.extract(dataFile,
+			dataFile.getScanNumbers(msLevel), task)));
+	    }
+
+	    boolean finished = true;
+	    for (ForkJoinTask<Boolean> fileTask : fileTasks)
+		finished &= fileTask.join();
+	    return finished ? chromatograms : null;
+
+	}
+
+	/**
+	 * @return Average progress of all raw data files
+	 */
+	public double getFinishedPercentage() {
+	    if (extractors.length == 0)
+		return 0.0;
+	    double sum = 0.0;
+	    for (XICExtractor extractor : extractors)
+		sum += extractor.getFinishedPercentage();
+	    return sum / extractors.length;
+	}
+
+    }
+
+}
@@ -52,6 +52,13 @@ public class PeakXICComponent extends JComponent {
     private Range<Double> rtRange;
     private double maxIntensity;
 
+    // Retention time and intensity of each data point, read on first paint
+    private double retentionTimes[], intensities[];
+
+    // Pixel coordinates of the data points for the last painted size
+    private Dimension pathSize;
+    private GeneralPath path;
+
     /**
      * @param peak
      *            Picked peak to plot
@@ -94,44 +101,54 @@ public class PeakXICComponent extends JComponent {
         // get canvas size
         Dimension size = getSize();
 
-        // get scan numbers, one data point per each scan
-        RawDataFile dataFile = peak.getDataFile();
-        int scanNumbers[] = peak.getScanNumbers();
-
         // If we have no data, just return
-        if (scanNumbers.length == 0)
+        if (peak.getScanNumbers().length == 0)
             return;
 
-        // for each datapoint, find [X:Y] coordinates of its point in painted
-        // image
-        int xValues[] = new int[scanNumbers.length];
-        int yValues[] = new int[scanNumbers.length];
-
-        // find one datapoint with maximum intensity in each scan
-        for (int i = 0; i < scanNumbers.length; i++) {
+        // create a path for a peak polygon, unless the size did not change
+        if (!size.equals(pathSize)) {
+            path = createPath(size);
+            pathSize = size;
+        }
 
-            double dataPointIntensity = 0;
-            DataPoint dataPoint = peak.getDataPoint(scanNumbers[i]);
+        // fill the peak area
+        g2.setColor(XICColor);
+        g2.fill(path);
 
-            if (dataPoint != null)
-                dataPointIntensity = dataPoint.getIntensity();
+    }
 
-            // get retention time (X value)
-            double retentionTime = dataFile.getScan(scanNumbers[i])
-                    .getRetentionTime();
+    private GeneralPath createPath(Dimension size) {
+
+        // read the data points once, one data point per each scan
+        if (retentionTimes == null) {
+            RawDataFile dataFile = peak.getDataFile();
+            int scanNumbers[] = peak.getScanNumbers();
+            retentionTimes = new double[scanNumbers.length];
+            intensities = new double[scanNumbers.length];
+
+            // find one datapoint with maximum intensity in each scan
+            for (int i = 0; i < scanNumbers.length; i++) {
+                DataPoint dataPoint = peak.getDataPoint(scanNumbers[i]);
+                if (dataPoint != null)
+                    intensities[i] = dataPoint.getIntensity();
+                retentionTimes[i] = dataFile.getScan(scanNumbers[i])
+                        .getRetentionTime();
+            }
+        }
 
-            // calculate [X:Y] coordinates
-            final double rtLen = rtRange.upperEndpoint()
-                    - rtRange.lowerEndpoint();
+        // for each datapoint, find [X:Y] coordinates of its point in painted
+        // image
+        int xValues[] = new int[retentionTimes.length];
+        int yValues[] = new int[retentionTimes.length];
+        final double rtLen = rtRange.upperEndpoint() - rtRange.lowerEndpoint();
+        for (int i = 0; i < retentionTimes.length; i++) {
             xValues[i] = (int) Math
-                    .floor((retentionTime - rtRange.lowerEndpoint()) / rtLen
-                            * (size.width - 1));
+                    .floor((retentionTimes[i] - rtRange.lowerEndpoint())
+                            / rtLen * (size.width - 1));
             yValues[i] = size.height - (int) Math.floor(
-                    dataPointIntensity / maxIntensity * (size.height - 1));
-
+                    intensities[i] / maxIntensity * (size.height - 1));
         }
 
-        // create a path for a peak polygon
         GeneralPath path = new GeneralPath(GeneralPath.WIND_EVEN_ODD);
         path.moveTo(xValues[0], size.height - 1);
 
@@ -144,9 +161,7 @@ public class PeakXICComponent extends JComponent {
         // close the path to form a polygon
         path.closePath();
 
-        // fill the peak area
-        g2.setColor(XICColor);
-        g2.fill(path);
+        return path;
 
     }
 
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.datamodel.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+public class PeakListIndexTest {
+
+    private static final Range<Double> ALL = Range.all();
+
+    /**
+     * Rows on the endpoints of closed, open and half-open m/z and RT ranges.
+     * The rows are added in a different order than their m/z, and the results
+     * keep the order of the peak list.
+     */
+    @Test
+    public void testRangeBoundaries() throws Exception {
+
+        RawDataFile dataFile = new RawDataFileImpl("test");
+        List<PeakListRow> rows = new ArrayList<PeakListRow>();
+        SimplePeakListRow row300 = createRow(1, dataFile, 300, 4);
+        SimplePeakListRow row100 = createRow(2, dataFile, 100, 1);
+        SimplePeakListRow row200a = createRow(3, dataFile, 200, 2);
+        SimplePeakListRow row200b = createRow(4, dataFile, 200, 3);
+        rows.add(row300);
+        rows.add(row100);
+        rows.add(row200a);
+        rows.add(row200b);
+        PeakListIndex index = new PeakListIndex(rows);
+
+        assertRows(index, ALL, ALL, row300, row100, row200a, row200b);
+        assertRows(index, ALL, Range.closed(100.0, 200.0), row100, row200a,
+                row200b);
+        assertRows(index, ALL, Range.open(100.0, 200.0));
+        assertRows(index, ALL, Range.closedOpen(200.0, 300.0), row200a,
+                row200b);
+        assertRows(index, ALL, Range.openClosed(200.0, 300.0), row300);
+        assertRows(index, ALL, Range.singleton(200.0), row200a, row200b);
+        assertRows(index, ALL, Range.atLeast(300.0), row300);
+        assertRows(index, ALL, Range.greaterThan(300.0));
+        assertRows(index, ALL, Range.lessThan(100.0));
+        assertRows(index, ALL, Range.atMost(100.0), row100);
+
+        assertRows(index, Range.closed(2.0, 3.0), ALL, row200a, row200b);
+        assertRows(index, Range.openClosed(2.0, 4.0), ALL, row300, row200b);
+        assertRows(index, Range.closedOpen(1.0, 2.0), Range.closed(100.0,
+                300.0), row100);
+
+        assertPeaks(index, dataFile, ALL, Range.closed(100.0, 200.0), row100,
+                row200a, row200b);
+        assertPeaks(index, dataFile, ALL, Range.open(100.0, 200.0));
+        assertPeaks(index, dataFile, ALL, Range.closedOpen(200.0, 300.0),
+                row200a, row200b);
+        assertPeaks(index, dataFile, ALL, Range.openClosed(200.0, 300.0),
+                row300);
+        assertPeaks(index, dataFile, Range.closed(2.0, 3.0), ALL, row200a,
+                row200b);
+
+        // Peaks of another raw data file
+        RawDataFile otherFile = new RawDataFileImpl("other");
+        assertPeaks(index, otherFile, ALL, ALL);
+    }
+
+    /**
+     * Rows added to and removed from the peak list after the index was built
+     */
+    @Test
+    public void testAddRemoveRows() throws Exception {
+
+        RawDataFile dataFile = new RawDataFileImpl("test");
+        List<PeakListRow> rows = new ArrayList<PeakListRow>();
+        SimplePeakListRow row1 = createRow(1, dataFile, 100, 1);
+        SimplePeakListRow row2 = createRow(2, dataFile, 200, 2);
+        rows.add(row1);
+        rows.add(row2);
+        PeakListIndex index = new PeakListIndex(rows);
+
+        // Build the peak index before the changes
+        assertPeaks(index, dataFile, ALL, ALL, row1, row2);
+
+        SimplePeakListRow row3 = createRow(3, dataFile, 150, 3);
+        rows.add(row3);
+        index.rowAdded(row3);
+        assertRows(index, ALL, ALL, row1, row2, row3);
+        assertRows(index, ALL, Range.closed(150.0, 200.0), row2, row3);
+        assertPeaks(index, dataFile, ALL, Range.closed(150.0, 200.0), row2,
+                row3);
+
+        // A row is indexed only once
+        index.rowAdded(row3);
+        assertRows(index, ALL, Range.singleton(150.0), row3);
+
+        rows.remove(row2);
+        index.rowRemoved(row2);
+        assertRows(index, ALL, ALL, row1, row3);
+        assertRows(index, ALL, Range.singleton(200.0));
+        assertPeaks(index, dataFile, ALL, ALL, row1, row3);
+
+        // A removed row does not come back when it changes
+        ((SimpleFeature) row2.getPeak(dataFile)).setMZ(120);
+        row2.update();
+        assertRows(index, ALL, ALL, row1, row3);
+
+        // Removing it again has no effect
+        index.rowRemoved(row2);
+        assertRows(index, ALL, ALL, row1, row3);
+    }
+
+    /**
+     * The m/z of a peak changed in place is seen after
+     * SimplePeakListRow.update(), also when a peak is added to a row
+     */
+    @Test
+    public void testRowChanged() throws Exception {
+
+        RawDataFile dataFile = new RawDataFileImpl("test");
+        List<PeakListRow> rows = new ArrayList<PeakListRow>();
+        SimplePeakListRow row1 = createRow(1, dataFile, 100, 1);
+        SimplePeakListRow row2 = createRow(2, dataFile, 200, 2);
+        rows.add(row1);
+        rows.add(row2);
+        PeakListIndex index = new PeakListIndex(rows);
+        assertPeaks(index, dataFile, ALL, Range.closed(100.0, 100.0), row1);
+
+        SimpleFeature peak = (SimpleFeature) row1.getPeak(dataFile);
+        peak.setMZ(250);
+        peak.setRT(5);
+        row1.update();
+
+        assertRows(index, ALL, Range.singleton(100.0));
+        assertRows(index, ALL, Range.closed(200.0, 250.0), row1, row2);
+        assertRows(index, Range.singleton(5.0), Range.singleton(250.0), row1);
+        assertPeaks(index, dataFile, ALL, Range.singleton(100.0));
+        assertPeaks(index, dataFile, ALL, Range.openClosed(200.0, 250.0),
+                row1);
+
+        // Second peak of the row, the average m/z is (250 + 350) / 2
+        RawDataFile otherFile = new RawDataFileImpl("other");
+        row1.addPeak(otherFile, createPeak(otherFile, 350, 5));
+        assertRows(index, ALL, Range.singleton(250.0));
+        assertRows(index, ALL, Range.singleton(300.0), row1);
+        assertPeaks(index, otherFile, ALL, Range.singleton(350.0), row1);
+    }
+
+    private static SimplePeakListRow createRow(int id, RawDataFile dataFile,
+            double mz, double rt) {
+        SimplePeakListRow row = new SimplePeakListRow(id);
+        row.addPeak(dataFile, createPeak(dataFile, mz, rt));
+        return row;
+    }
+
+    private static SimpleFeature createPeak(RawDataFile dataFile, double mz,
+            double rt) {
+        DataPoint dataPoints[] = { new SimpleDataPoint(mz, 100) };
+        return new SimpleFeature(dataFile, mz, rt, 100, 100, new int[] { 1 },
+                dataPoints, FeatureStatus.DETECTED, 1, -1,
+                Range.singleton(rt), Range.singleton(mz),
+                Range.singleton(100.0));
+    }
+
+    private static void assertRows(PeakListIndex index, Range<Double> rtRange,
+            Range<Double> mzRange, PeakListRow... expected) {
+        Assert.assertArrayEquals("Rows in RT " + rtRange + ", m/z " + mzRange,
+                expected, index.getRows(rtRange, mzRange));
+    }
+
+    private static void assertPeaks(PeakListIndex index, RawDataFile dataFile,
+            Range<Double> rtRange, Range<Double> mzRange,
+            PeakListRow... expectedRows) {
+        Feature expected[] = new Feature[expectedRows.length];
+        for (int i = 0; i < expectedRows.length; i++)
+            expected[i] = expectedRows[i].getPeak(dataFile);
+        Assert.assertArrayEquals("Peaks in RT " + rtRange + ", m/z " + mzRange,
+                expected, index.getPeaks(dataFile, rtRange, mzRange));
+    }
+
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzMLReadTask;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.project.impl.MZmineProjectImpl;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.DataPointSorter;
+import net.sf.mzmine.util.DataPointsBuffer;
+import net.sf.mzmine.util.MZStripes;
+import net.sf.mzmine.util.PeakSorter;
+import net.sf.mzmine.util.SortingDirection;
+import net.sf.mzmine.util.SortingProperty;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+public class HighestDataPointConnectorTest {
+
+    private final Logger logger = Logger.getLogger(this.getClass().getName());
+
+    private static final String TEST_FILES[] = { "centroided1.mzML",
+            "centroided5.mzML", "centroided7.mzML" };
+
+    private static final MZTolerance TEST_TOLERANCES[] = {
+            new MZTolerance(0.001, 5), new MZTolerance(0.005, 10),
+            new MZTolerance(0.05, 50) };
+
+    private static final double MINIMUM_TIME_SPAN = 0.05;
+    private static final double MINIMUM_HEIGHT = 0;
+
+    /**
+     * Compare the chromatograms of HighestDataPointConnector with the
+     * chromatograms of the original connector, which tested each m/z peak
+     * against all building chromatograms. Both connectors are timed, so the
+     * log also shows the speed-up.
+     */
+    @Test
+    public void testSameChromatogramsAsReference() throws Exception {
+
+        for (String fileName : TEST_FILES) {
+
+            RawDataFile dataFile = readFile(fileName);
+            int scanNumbers[] = dataFile.getScanNumbers(1);
+            Assert.assertNotEquals(0, scanNumbers.length);
+
+            for (MZTolerance mzTolerance : TEST_TOLERANCES) {
+
+                long startTime = System.nanoTime();
+                ReferenceConnector reference = new ReferenceConnector(
+                        dataFile, scanNumbers, MINIMUM_TIME_SPAN,
+                        MINIMUM_HEIGHT, mzTolerance);
+                for (int scanNumber : scanNumbers) {
+                    Scan scan = dataFile.getScan(scanNumber);
+                    reference.addScan(scanNumber, scan.getDataPoints());
+                }
+                Chromatogram expected[] = reference.finishChromatograms();
+                long referenceTime = System.nanoTime() - startTime;
+
+                startTime = System.nanoTime();
+                HighestDataPointConnector connector = new HighestDataPointConnector(
+                        dataFile, scanNumbers, MINIMUM_TIME_SPAN,
+                        MINIMUM_HEIGHT, mzTolerance);
+                DataPointsBuffer buffer = new DataPointsBuffer();
+                for (int scanNumber : scanNumbers) {
+                    Scan scan = dataFile.getScan(scanNumber);
+                    final int numOfDataPoints = buffer.readScan(scan);
+                    connector.addScan(scanNumber, buffer.getMzValues(),
+                            buffer.getIntensityValues(), numOfDataPoints);
+                }
+                Chromatogram actual[] = connector.finishChromatograms();
+                long connectorTime = System.nanoTime() - startTime;
+
+                logger.info("Connected " + expected.length
+                        + " chromatograms of " + fileName + " with "
+                        + mzTolerance + ": reference "
+                        + (referenceTime / 1000000) + " ms, connector "
+                        + (connectorTime / 1000000) + " ms");
+
+                assertSameChromatograms(fileName + " " + mzTolerance,
+                        expected, actual);
+            }
+        }
+    }
+
+    /**
+     * Compare the chromatograms connected in m/z stripes (see MZStripes and
+     * ChromatogramBuilderTask.buildChromatogramsInStripes()) with the
+     * chromatograms of a single connector over the whole m/z range. The
+     * stripes are concatenated and sorted by m/z, as in the task.
+     */
+    @Test
+    public void testStripesSameAsSingleConnector() throws Exception {
+
+        int splitCases = 0;
+
+        for (String fileName : TEST_FILES) {
+
+            RawDataFile dataFile = readFile(fileName);
+            int scanNumbers[] = dataFile.getScanNumbers(1);
+            DataPointsBuffer scanBuffers[] = new DataPointsBuffer[scanNumbers.length];
+            for (int i = 0; i < scanNumbers.length; i++) {
+                scanBuffers[i] = new DataPointsBuffer();
+                scanBuffers[i].readScan(dataFile.getScan(scanNumbers[i]));
+            }
+
+            for (MZTolerance mzTolerance : TEST_TOLERANCES) {
+
+                HighestDataPointConnector connector = new HighestDataPointConnector(
+                        dataFile, scanNumbers, MINIMUM_TIME_SPAN,
+                        MINIMUM_HEIGHT, mzTolerance);
+                MZStripes mzStripes = new MZStripes(dataFile.getDataMZRange(),
+                        mzTolerance);
+                for (int i = 0; i < scanNumbers.length; i++) {
+                    connector.addScan(scanNumbers[i],
+                            scanBuffers[i].getMzValues(),
+                            scanBuffers[i].getIntensityValues(),
+                            scanBuffers[i].getSize());
+                    mzStripes.addDataPoints(scanBuffers[i].getMzValues(),
+                            scanBuffers[i].getSize());
+                }
+                Chromatogram expected[] = connector.finishChromatograms();
+
+                for (int maxStripes : new int[] { 2, 4, 16 }) {
+
+                    double boundaries[] = mzStripes.getBoundaries(maxStripes);
+                    Assert.assertTrue(boundaries.length < maxStripes);
+                    if (boundaries.length > 0)
+                        splitCases++;
+
+                    Chromatogram actual[] = connectInStripes(dataFile,
+                            scanNumbers, scanBuffers, mzTolerance, boundaries);
+
+                    assertSameChromatograms(fileName + " " + mzTolerance
+                            + " in " + (boundaries.length + 1) + " stripes",
+                            sortByMz(expected), actual);
+                }
+            }
+        }
+
+        // Make sure the stripes were actually tested
+        Assert.assertTrue(splitCases > 0);
+    }
+
+    /**
+     * Synthetic groups of m/z peaks separated by gaps just above and just
+     * below twice the m/z tolerance, with a tolerance given in ppm. No stripe
+     * boundary may be placed into a gap narrower than twice the tolerance at
+     * its upper side, and the chromatograms connected in stripes must be the
+     * same as from a single connector.
+     */
+    @Test
+    public void testStripesAtToleranceGaps() throws Exception {
+
+        // The ppm part of the tolerance applies above 100 m/z
+        final MZTolerance mzTolerance = new MZTolerance(0.001, 10);
+
+        // Gaps between the groups, as multiples of twice the tolerance
+        final double gapFactors[] = { 1.001, 0.999, 5, 1.001, 0.999, 0.5, 5,
+                1.25, 0.999 };
+
+        // Lower and upper edge of each group of m/z peaks
+        final int numOfGroups = gapFactors.length + 1;
+        double groupStart[] = new double[numOfGroups],
+                groupEnd[] = new double[numOfGroups];
+        groupStart[0] = 500;
+        for (int g = 0; g < numOfGroups; g++) {
+            if (g > 0) {
+                // The gap is relative to the tolerance at its upper side
+                groupStart[g] = groupEnd[g - 1]
+                        / (1 - 2 * gapFactors[g - 1] * 10 / 1000000);
+                Assert.assertEquals(2 * gapFactors[g - 1]
+                        * mzTolerance.getMzToleranceForMass(groupStart[g]),
+                        groupStart[g] - groupEnd[g - 1], 1e-9);
+            }
+            groupEnd[g] = groupStart[g]
+                    + 3 * mzTolerance.getMzToleranceForMass(groupStart[g]);
+        }
+
+        RawDataFile dataFile = readFile(TEST_FILES[0]);
+        int scanNumbers[] = dataFile.getScanNumbers(1);
+        DataPointsBuffer scanBuffers[] = new DataPointsBuffer[scanNumbers.length];
+        MZStripes mzStripes = new MZStripes(
+                Range.closed(groupStart[0], groupEnd[numOfGroups - 1]),
+                mzTolerance);
+        Random random = new Random(8);
+        for (int i = 0; i < scanNumbers.length; i++) {
+
+            // The edges of each group are present in all scans, so the gaps
+            // have exactly the given width. Other peaks are random.
+            List<DataPoint> dataPoints = new ArrayList<DataPoint>();
+            for (int g = 0; g < numOfGroups; g++) {
+                dataPoints.add(new SimpleDataPoint(groupStart[g],
+                        random.nextDouble() * 1000));
+                for (int n = 0; n < 4; n++) {
+                    double mz = groupStart[g] + random.nextDouble()
+                            * (groupEnd[g] - groupStart[g]);
+                    dataPoints.add(
+                            new SimpleDataPoint(mz, random.nextDouble() * 1000));
+                }
+                dataPoints.add(new SimpleDataPoint(groupEnd[g],
+                        random.nextDouble() * 1000));
+            }
+            Collections.sort(dataPoints, new DataPointSorter(
+                    SortingProperty.MZ, SortingDirection.Ascending));
+
+            SimpleScan scan = new SimpleScan(dataFile.getScan(scanNumbers[i]));
+            scan.setDataPoints(dataPoints.toArray(new DataPoint[0]));
+            scanBuffers[i] = new DataPointsBuffer();
+            scanBuffers[i].readScan(scan);
+            mzStripes.addDataPoints(scanBuffers[i].getMzValues(),
+                    scanBuffers[i].getSize());
+        }
+
+        HighestDataPointConnector connector = new HighestDataPointConnector(
+                dataFile, scanNumbers, MINIMUM_TIME_SPAN, MINIMUM_HEIGHT,
+                mzTolerance);
+        for (int i = 0; i < scanNumbers.length; i++) {
+            connector.addScan(scanNumbers[i], scanBuffers[i].getMzValues(),
+                    scanBuffers[i].getIntensityValues(),
+                    scanBuffers[i].getSize());
+        }
+        Chromatogram expected[] = sortByMz(connector.finishChromatograms());
+
+        for (int maxStripes : new int[] { 2, 4, 16 }) {
+
+            double boundaries[] = mzStripes.getBoundaries(maxStripes);
+            Assert.assertTrue(boundaries.length > 0);
+
+            // Each boundary lies in a gap between two groups, which is wider
+            // than twice the tolerance
+            for (double boundary : boundaries) {
+                int g = 1;
+                while ((g < numOfGroups) && (groupStart[g] <= boundary))
+                    g++;
+                Assert.assertTrue("Boundary " + boundary + " inside a group",
+                        (g < numOfGroups) && (groupEnd[g - 1] < boundary));
+                Assert.assertTrue("Boundary " + boundary + " in a narrow gap",
+                        gapFactors[g - 1] > 1);
+            }
+
+            Chromatogram actual[] = connectInStripes(dataFile, scanNumbers,
+                    scanBuffers, mzTolerance, boundaries);
+            assertSameChromatograms(
+                    mzTolerance + " in " + (boundaries.length + 1) + " stripes",
+                    expected, actual);
+        }
+    }
+
+    /**
+     * Connects the data points in the stripes between given boundaries, like
+     * ChromatogramBuilderTask.buildChromatogramsInStripes()
+     *
+     * @return Chromatograms of all stripes, sorted by m/z
+     */
+    private static Chromatogram[] connectInStripes(RawDataFile dataFile,
+            int scanNumbers[], DataPointsBuffer scanBuffers[],
+            MZTolerance mzTolerance, double boundaries[]) {
+        List<Chromatogram> striped = new ArrayList<Chromatogram>();
+        for (int s = 0; s <= boundaries.length; s++) {
+            double lowerBound = (s == 0) ? Double.NEGATIVE_INFINITY
+                    : boundaries[s - 1];
+            double upperBound = (s == boundaries.length)
+                    ? Double.POSITIVE_INFINITY : boundaries[s];
+            ChromatogramBuilderTask.MzStripe stripe = new ChromatogramBuilderTask.MzStripe(
+                    lowerBound, upperBound,
+                    new HighestDataPointConnector(dataFile, scanNumbers,
+                            MINIMUM_TIME_SPAN, MINIMUM_HEIGHT, mzTolerance));
+            stripe.addScans(scanNumbers, scanBuffers, scanNumbers.length);
+            striped.addAll(
+                    Arrays.asList(stripe.connector.finishChromatograms()));
+        }
+        return sortByMz(striped.toArray(new Chromatogram[0]));
+    }
+
+    private static Chromatogram[] sortByMz(Chromatogram chromatograms[]) {
+        Chromatogram sorted[] = chromatograms.clone();
+        Arrays.sort(sorted,
+                new PeakSorter(SortingProperty.MZ, SortingDirection.Ascending));
+        return sorted;
+    }
+
+    static RawDataFile readFile(String fileName) throws Exception {
+        File inputFile = new File("src/test/resources", fileName);
+        MZmineProject project = new MZmineProjectImpl();
+        RawDataFileImpl dataFile = new RawDataFileImpl(fileName);
+        MzMLReadTask readTask = new MzMLReadTask(project, inputFile, dataFile);
+        readTask.run();
+        Assert.assertEquals(TaskStatus.FINISHED, readTask.getStatus());
+        Assert.assertEquals(1, project.getDataFiles().length);
+        return project.getDataFiles()[0];
+    }
+
+    /**
+     * Checks that both arrays contain the same chromatograms (scan numbers,
+     * m/z and intensity of all data points) in the same order
+     */
+    static void assertSameChromatograms(String message, Chromatogram expected[],
+            Chromatogram actual[]) {
+
+        Assert.assertEquals(message + ": number of chromatograms",
+                expected.length, actual.length);
+
+        for (int i = 0; i < expected.length; i++) {
+            String chromMessage = message + ": chromatogram #" + i;
+            int expectedScans[] = expected[i].getScanNumbers();
+            int actualScans[] = actual[i].getScanNumbers();
+            Assert.assertArrayEquals(chromMessage + " scan numbers",
+                    expectedScans, actualScans);
+
+            for (int scanNumber : expectedScans) {
+                DataPoint expectedDataPoint = expected[i]
+                        .getDataPoint(scanNumber);
+                DataPoint actualDataPoint = actual[i].getDataPoint(scanNumber);
+                if (expectedDataPoint == null) {
+                    Assert.assertNull(chromMessage + " scan " + scanNumber,
+                            actualDataPoint);
+                    continue;
+                }
+                Assert.assertNotNull(chromMessage + " scan " + scanNumber,
+                        actualDataPoint);
+                Assert.assertEquals(chromMessage + " scan " + scanNumber,
+                        expectedDataPoint.getMZ(), actualDataPoint.getMZ(), 0);
+                Assert.assertEquals(chromMessage + " scan " + scanNumber,
+                        expectedDataPoint.getIntensity(),
+                        actualDataPoint.getIntensity(), 0);
+            }
+
+            Assert.assertEquals(chromMessage + " m/z", expected[i].getMZ(),
+                    actual[i].getMZ(), 0);
+            Assert.assertEquals(chromMessage + " height",
+                    expected[i].getHeight(), actual[i].getHeight(), 0);
+            Assert.assertEquals(chromMessage + " area", expected[i].getArea(),
+                    actual[i].getArea(), 0);
+        }
+    }
+
+    /**
+     * The original connector, which compares each m/z peak with all building
+     * chromatograms. Kept as a reference for the results of
+     * HighestDataPointConnector.
+     */
+    private static class ReferenceConnector {
+
+        private final MZTolerance mzTolerance;
+        private final double minimumTimeSpan, minimumHeight;
+        private final RawDataFile dataFile;
+        private final int allScanNumbers[];
+
+        private Set<Chromatogram> buildingChromatograms = new LinkedHashSet<Chromatogram>();
+
+        ReferenceConnector(RawDataFile dataFile, int allScanNumbers[],
+                double minimumTimeSpan, double minimumHeight,
+                MZTolerance mzTolerance) {
+            this.mzTolerance = mzTolerance;
+            this.minimumHeight = minimumHeight;
+            this.minimumTimeSpan = minimumTimeSpan;
+            this.dataFile = dataFile;
+            this.allScanNumbers = allScanNumbers;
+        }
+
+        void addScan(int scanNumber, DataPoint mzValues[]) {
+
+            Arrays.sort(mzValues, new DataPointSorter(
+                    SortingProperty.Intensity, SortingDirection.Descending));
+
+            Set<Chromatogram> connectedChromatograms = new LinkedHashSet<Chromatogram>();
+
+            for (DataPoint mzPeak : mzValues) {
+
+                Chromatogram bestChromatogram = null;
+                for (Chromatogram testChrom : buildingChromatograms) {
+                    DataPoint lastMzPeak = testChrom.getLastMzPeak();
+                    Range<Double> toleranceRange = mzTolerance
+                            .getToleranceRange(lastMzPeak.getMZ());
+                    if (toleranceRange.contains(mzPeak.getMZ())) {
+                        if ((bestChromatogram == null) || (testChrom
+                                .getLastMzPeak()
+                                .getIntensity() > bestChromatogram
+                                        .getLastMzPeak().getIntensity())) {
+                            bestChromatogram = testChrom;
+                        }
+                    }
+                }
+
+                if (bestChromatogram != null) {
+                    if (connectedChromatograms.contains(bestChromatogram))
+                        continue;
+                } else {
+                    bestChromatogram = new Chromatogram(dataFile,
+                            allScanNumbers);
+                }
+
+                bestChromatogram.addMzPeak(scanNumber, mzPeak);
+                connectedChromatograms.add(bestChromatogram);
+            }
+
+            for (Chromatogram testChrom : buildingChromatograms) {
+                if (connectedChromatograms.contains(testChrom))
+                    continue;
+                if (testChrom.getBuildingSegmentLength() >= minimumTimeSpan) {
+                    testChrom.commitBuildingSegment();
+                    connectedChromatograms.add(testChrom);
+                    continue;
+                }
+                if (testChrom.getNumberOfCommittedSegments() > 0) {
+                    testChrom.removeBuildingSegment();
+                    connectedChromatograms.add(testChrom);
+                    continue;
+                }
+            }
+
+            buildingChromatograms = connectedChromatograms;
+        }
+
+        Chromatogram[] finishChromatograms() {
+            Iterator<Chromatogram> chromIterator = buildingChromatograms
+                    .iterator();
+            while (chromIterator.hasNext()) {
+                Chromatogram chromatogram = chromIterator.next();
+                if (chromatogram.getBuildingSegmentLength() >= minimumTimeSpan) {
+                    chromatogram.commitBuildingSegment();
+                    chromatogram.finishChromatogram();
+                } else {
+                    if (chromatogram.getNumberOfCommittedSegments() == 0) {
+                        chromIterator.remove();
+                        continue;
+                    } else {
+                        chromatogram.removeBuildingSegment();
+                        chromatogram.finishChromatogram();
+                    }
+                }
+                if (chromatogram.getHeight() < minimumHeight)
+                    chromIterator.remove();
+            }
+            return buildingChromatograms.toArray(new Chromatogram[0]);
+        }
+
+    }
+
+}
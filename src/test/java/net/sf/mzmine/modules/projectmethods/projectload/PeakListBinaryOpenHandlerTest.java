@@ -0,0 +1,315 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectload;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Hashtable;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.IsotopePattern;
+import net.sf.mzmine.datamodel.IsotopePattern.IsotopePatternStatus;
+import net.sf.mzmine.datamodel.PeakIdentity;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleFeature;
+import net.sf.mzmine.datamodel.impl.SimpleIsotopePattern;
+import net.sf.mzmine.datamodel.impl.SimplePeakIdentity;
+import net.sf.mzmine.datamodel.impl.SimplePeakInformation;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.modules.projectmethods.projectsave.PeakListBinarySaveHandler;
+import net.sf.mzmine.project.impl.MappedDataPointsFile;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+public class PeakListBinaryOpenHandlerTest {
+
+    /**
+     * Saves a peak list by PeakListBinarySaveHandler, opens it again and
+     * compares all saved values
+     */
+    @Test
+    public void testSaveAndOpen() throws Exception {
+
+        RawDataFile dataFiles[] = { new RawDataFileImpl("file1.mzML"),
+                new RawDataFileImpl("file2.mzML") };
+        PeakList peakList = createPeakList(dataFiles);
+
+        File chromatogramsTempFile = File.createTempFile("mzmine", ".test");
+        try {
+            PeakList openedPeakList = saveAndOpen(peakList, dataFiles,
+                    chromatogramsTempFile);
+            assertSamePeakList(peakList, openedPeakList);
+            PeakListBinaryOpenHandler.closeUnusedChromatograms(
+                    openedPeakList, new PeakList[0]);
+        } finally {
+            chromatogramsTempFile.delete();
+        }
+    }
+
+    /**
+     * The chromatograms file stays open while another peak list uses the
+     * features, and is closed and deleted with the last one
+     */
+    @Test
+    public void testCloseUnusedChromatograms() throws Exception {
+
+        RawDataFile dataFiles[] = { new RawDataFileImpl("file1.mzML"),
+                new RawDataFileImpl("file2.mzML") };
+        PeakList peakList = createPeakList(dataFiles);
+
+        File chromatogramsTempFile = File.createTempFile("mzmine", ".test");
+        try {
+            PeakList openedPeakList = saveAndOpen(peakList, dataFiles,
+                    chromatogramsTempFile);
+
+            // Another peak list sharing a feature of the opened one
+            Feature sharedFeature = openedPeakList.getRow(0).getPeaks()[0];
+            SimplePeakList otherPeakList = new SimplePeakList("other",
+                    dataFiles);
+            SimplePeakListRow otherRow = new SimplePeakListRow(1);
+            otherRow.addPeak(sharedFeature.getDataFile(), sharedFeature);
+            otherPeakList.addRow(otherRow);
+
+            PeakListBinaryOpenHandler.closeUnusedChromatograms(
+                    openedPeakList, new PeakList[] { otherPeakList });
+            Assert.assertTrue(chromatogramsTempFile.exists());
+            StoredChromatograms chromatograms = ((StoredFeature) sharedFeature)
+                    .getStoredChromatograms();
+            Assert.assertEquals(12, chromatograms.read(0, 12).remaining());
+
+            PeakListBinaryOpenHandler.closeUnusedChromatograms(otherPeakList,
+                    new PeakList[0]);
+            Assert.assertFalse(chromatogramsTempFile.exists());
+            try {
+                chromatograms.read(0, 12);
+                Assert.fail("Read from a closed chromatograms file");
+            } catch (java.io.IOException e) {
+                // Expected
+            }
+        } finally {
+            chromatogramsTempFile.delete();
+        }
+    }
+
+    private PeakList createPeakList(RawDataFile dataFiles[]) {
+
+        SimplePeakList peakList = new SimplePeakList("test peak list",
+                dataFiles);
+
+        for (int i = 0; i < 3; i++) {
+            SimplePeakListRow row = new SimplePeakListRow(10 + i);
+            if (i == 1)
+                row.setComment("comment äöü");
+            if (i != 2) {
+                row.addPeakIdentity(new SimplePeakIdentity("identity " + i),
+                        false);
+                row.addPeakIdentity(new SimplePeakIdentity("preferred " + i,
+                        "C6H12O6", "test", "id" + i, null), true);
+            }
+            if (i == 0)
+                row.setPeakInformation(new SimplePeakInformation("key",
+                        "value"));
+
+            for (int f = 0; f < dataFiles.length; f++) {
+                if ((i == 2) && (f == 1))
+                    continue;
+                final double mz = 100 + 50 * i + 0.001 * f;
+                int scanNumbers[] = { 3, 4, 5, 6 };
+                DataPoint dataPoints[] = {
+                        new SimpleDataPoint(mz - 0.0005, 100),
+                        new SimpleDataPoint(mz, 1000 + i),
+                        // Missing data point
+                        null, new SimpleDataPoint(mz + 0.0005, 50) };
+                SimpleFeature feature = new SimpleFeature(dataFiles[f], mz,
+                        1.5 + i, 1000 + i, 2000.5 + i, scanNumbers,
+                        dataPoints, FeatureStatus.DETECTED, 4, -1,
+                        Range.closed(1.4 + i, 1.7 + i),
+                        Range.closed(mz - 0.0005, mz + 0.0005),
+                        Range.closed(50.0, 1000.0 + i));
+                feature.setCharge(i);
+                if (f == 0)
+                    feature.setFWHM(0.05 * (i + 1));
+                if (i == 0) {
+                    feature.setIsotopePattern(new SimpleIsotopePattern(
+                            new DataPoint[] { new SimpleDataPoint(mz, 1000),
+                                    new SimpleDataPoint(mz + 1.00335, 100) },
+                            IsotopePatternStatus.DETECTED, "pattern"));
+                }
+                row.addPeak(dataFiles[f], feature);
+            }
+            peakList.addRow(row);
+        }
+
+        return peakList;
+    }
+
+    private PeakList saveAndOpen(PeakList peakList, RawDataFile dataFiles[],
+            File chromatogramsTempFile) throws Exception {
+
+        Hashtable<RawDataFile, String> saveIDs = new Hashtable<RawDataFile, String>();
+        Hashtable<String, RawDataFile> openIDs = new Hashtable<String, RawDataFile>();
+        for (int i = 0; i < dataFiles.length; i++) {
+            saveIDs.put(dataFiles[i], String.valueOf(i + 1));
+            openIDs.put(String.valueOf(i + 1), dataFiles[i]);
+        }
+
+        ByteArrayOutputStream chromatogramsStream = new ByteArrayOutputStream();
+        ByteArrayOutputStream peaksStream = new ByteArrayOutputStream();
+        new PeakListBinarySaveHandler(saveIDs).savePeakList(peakList,
+                chromatogramsStream, peaksStream);
+
+        FileOutputStream out = new FileOutputStream(chromatogramsTempFile);
+        chromatogramsStream.writeTo(out);
+        out.close();
+
+        PeakList openedPeakList = new PeakListBinaryOpenHandler(openIDs)
+                .readPeakList(
+                        new ByteArrayInputStream(peaksStream.toByteArray()),
+                        new MappedDataPointsFile(chromatogramsTempFile));
+        Assert.assertNotNull(openedPeakList);
+        return openedPeakList;
+    }
+
+    private void assertSamePeakList(PeakList expected, PeakList actual) {
+
+        Assert.assertEquals(expected.getName(), actual.getName());
+        Assert.assertArrayEquals(expected.getRawDataFiles(),
+                actual.getRawDataFiles());
+        Assert.assertEquals(expected.getNumberOfRows(),
+                actual.getNumberOfRows());
+
+        for (int i = 0; i < expected.getNumberOfRows(); i++) {
+            PeakListRow expectedRow = expected.getRow(i);
+            PeakListRow actualRow = actual.getRow(i);
+            Assert.assertEquals(expectedRow.getID(), actualRow.getID());
+            Assert.assertEquals(expectedRow.getComment(),
+                    actualRow.getComment());
+
+            PeakIdentity expectedIdentities[] = expectedRow
+                    .getPeakIdentities();
+            PeakIdentity actualIdentities[] = actualRow.getPeakIdentities();
+            Assert.assertEquals(expectedIdentities.length,
+                    actualIdentities.length);
+            for (int j = 0; j < expectedIdentities.length; j++) {
+                Assert.assertEquals(expectedIdentities[j].getAllProperties(),
+                        actualIdentities[j].getAllProperties());
+            }
+            if (expectedRow.getPreferredPeakIdentity() != null) {
+                Assert.assertEquals(
+                        expectedRow.getPreferredPeakIdentity().getName(),
+                        actualRow.getPreferredPeakIdentity().getName());
+            }
+
+            if (expectedRow.getPeakInformation() == null) {
+                Assert.assertNull(actualRow.getPeakInformation());
+            } else {
+                Assert.assertEquals(
+                        expectedRow.getPeakInformation().getAllProperties(),
+                        actualRow.getPeakInformation().getAllProperties());
+            }
+
+            Assert.assertEquals(expectedRow.getNumberOfPeaks(),
+                    actualRow.getNumberOfPeaks());
+            for (RawDataFile dataFile : expectedRow.getRawDataFiles())
+                assertSameFeature(expectedRow.getPeak(dataFile),
+                        actualRow.getPeak(dataFile));
+        }
+    }
+
+    private void assertSameFeature(Feature expected, Feature actual) {
+
+        Assert.assertNotNull(actual);
+        Assert.assertSame(expected.getDataFile(), actual.getDataFile());
+        Assert.assertEquals(expected.getMZ(), actual.getMZ(), 0);
+        Assert.assertEquals(expected.getRT(), actual.getRT(), 0);
+        Assert.assertEquals(expected.getHeight(), actual.getHeight(), 0);
+        Assert.assertEquals(expected.getArea(), actual.getArea(), 0);
+        Assert.assertEquals(expected.getFeatureStatus(),
+                actual.getFeatureStatus());
+        Assert.assertEquals(expected.getCharge(), actual.getCharge());
+        Assert.assertEquals(expected.getRepresentativeScanNumber(),
+                actual.getRepresentativeScanNumber());
+        Assert.assertEquals(expected.getMostIntenseFragmentScanNumber(),
+                actual.getMostIntenseFragmentScanNumber());
+        Assert.assertEquals(expected.getRawDataPointsRTRange(),
+                actual.getRawDataPointsRTRange());
+        Assert.assertEquals(expected.getRawDataPointsMZRange(),
+                actual.getRawDataPointsMZRange());
+        Assert.assertEquals(expected.getRawDataPointsIntensityRange(),
+                actual.getRawDataPointsIntensityRange());
+        Assert.assertEquals(expected.getFWHM(), actual.getFWHM());
+        Assert.assertEquals(expected.getTailingFactor(),
+                actual.getTailingFactor());
+        Assert.assertEquals(expected.getAsymmetryFactor(),
+                actual.getAsymmetryFactor());
+
+        IsotopePattern expectedPattern = expected.getIsotopePattern();
+        IsotopePattern actualPattern = actual.getIsotopePattern();
+        if (expectedPattern == null) {
+            Assert.assertNull(actualPattern);
+        } else {
+            Assert.assertNotNull(actualPattern);
+            Assert.assertEquals(expectedPattern.getStatus(),
+                    actualPattern.getStatus());
+            Assert.assertEquals(expectedPattern.getDescription(),
+                    actualPattern.getDescription());
+            assertSameDataPoints(expectedPattern.getDataPoints(),
+                    actualPattern.getDataPoints());
+        }
+
+        // Data points are stored as floats
+        int scanNumbers[] = expected.getScanNumbers();
+        Assert.assertArrayEquals(scanNumbers, actual.getScanNumbers());
+        for (int scanNumber : scanNumbers) {
+            DataPoint expectedDataPoint = expected.getDataPoint(scanNumber);
+            DataPoint actualDataPoint = actual.getDataPoint(scanNumber);
+            if (expectedDataPoint == null) {
+                Assert.assertNull(actualDataPoint);
+                continue;
+            }
+            Assert.assertEquals((float) expectedDataPoint.getMZ(),
+                    actualDataPoint.getMZ(), 0);
+            Assert.assertEquals((float) expectedDataPoint.getIntensity(),
+                    actualDataPoint.getIntensity(), 0);
+        }
+    }
+
+    private void assertSameDataPoints(DataPoint expected[], DataPoint actual[]) {
+        Assert.assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(expected[i].getMZ(), actual[i].getMZ(), 0);
+            Assert.assertEquals(expected[i].getIntensity(),
+                    actual[i].getIntensity(), 0);
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectload;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import net.sf.mzmine.project.impl.MappedDataPointsFile;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StoredChromatogramsTest {
+
+    /**
+     * Chromatograms read in place from a region of a project file are copied
+     * to a temporary file, so the project file can be deleted and the
+     * chromatograms can still be read at the same offsets
+     */
+    @Test
+    public void testReleaseProjectFile() throws Exception {
+
+        final int headerLength = 1000;
+        byte content[] = new byte[100000];
+        new Random(1).nextBytes(content);
+
+        File projectFile = File.createTempFile("mzmine", ".test");
+        try {
+            FileOutputStream out = new FileOutputStream(projectFile);
+            try {
+                out.write(new byte[headerLength]);
+                out.write(content);
+                out.write(new byte[10]);
+            } finally {
+                out.close();
+            }
+
+            StoredChromatograms chromatograms = new StoredChromatograms(
+                    new MappedDataPointsFile(projectFile, headerLength,
+                            content.length));
+
+            // Another file is not affected
+            File otherFile = File.createTempFile("mzmine", ".test");
+            try {
+                chromatograms.releaseProjectFile(otherFile);
+            } finally {
+                otherFile.delete();
+            }
+            assertContent(content, chromatograms);
+
+            chromatograms.releaseProjectFile(projectFile);
+            Assert.assertTrue(projectFile.delete());
+            assertContent(content, chromatograms);
+
+            chromatograms.close();
+        } finally {
+            projectFile.delete();
+        }
+    }
+
+    private static void assertContent(byte content[],
+            StoredChromatograms chromatograms) throws Exception {
+        ByteBuffer all = chromatograms.read(0, content.length);
+        byte actual[] = new byte[all.remaining()];
+        all.get(actual);
+        Assert.assertArrayEquals(content, actual);
+
+        ByteBuffer part = chromatograms.read(12345, 3);
+        Assert.assertEquals(content[12345], part.get());
+        Assert.assertEquals(content[12346], part.get());
+        Assert.assertEquals(content[12347], part.get());
+    }
+
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectsave;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import net.sf.mzmine.modules.projectmethods.projectload.StoredZipEntries;
+import net.sf.mzmine.project.impl.MappedDataPointsFile;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class ProjectZipWriterTest {
+
+    // Larger than the 4 GB limit of the original ZIP format
+    private static final long LARGE_ENTRY_SIZE = 0x100000000L + 12345;
+
+    // The tests of entries larger than 4 GB run only if this system property
+    // is true, because they need a file system with sparse files
+    private static final String LARGE_FILES_PROPERTY = "mzmine.test.largeFiles";
+
+    // Lowered size limit of the original ZIP format, so the ZIP64 records
+    // are tested with small entries
+    private static final long TEST_ZIP64_THRESHOLD = 1000;
+
+    /**
+     * Compressed and stored prepared entries and an entry written directly,
+     * read back by java.util.zip
+     */
+    @Test
+    public void testEntries() throws Exception {
+
+        byte xml[] = "<?xml version=\"1.0\"?><test>äöü</test>"
+                .getBytes(StandardCharsets.UTF_8);
+        byte binary[] = new byte[100000];
+        new Random(1).nextBytes(binary);
+
+        File zipFile = File.createTempFile("mzmine", ".zip");
+        try {
+            ProjectZipWriter writer = new ProjectZipWriter(zipFile);
+
+            PreparedZipEntry compressedEntry = new PreparedZipEntry(
+                    "config.xml", true, null);
+            compressedEntry.write(xml);
+            writer.addEntry(compressedEntry);
+            Assert.assertFalse(compressedEntry.getFile().exists());
+
+            PreparedZipEntry storedEntry = new PreparedZipEntry(
+                    "Peak list #1 test.chromatograms", false, null);
+            storedEntry.write(binary);
+            writer.addEntry(storedEntry);
+
+            writeStoredEntry(writer, "Raw data file #1 test.scans", binary);
+            writeStoredEntry(writer, "empty", new byte[0]);
+            writer.close();
+
+            try (ZipFile zip = new ZipFile(zipFile)) {
+                Assert.assertEquals(4, zip.size());
+                assertEntry(zip, "config.xml", ZipEntry.DEFLATED, xml);
+                assertEntry(zip, "Peak list #1 test.chromatograms",
+                        ZipEntry.STORED, binary);
+                assertEntry(zip, "Raw data file #1 test.scans",
+                        ZipEntry.STORED, binary);
+                assertEntry(zip, "empty", ZipEntry.STORED, new byte[0]);
+            }
+        } finally {
+            zipFile.delete();
+        }
+    }
+
+    /**
+     * More entries than fit into the end of central directory record
+     */
+    @Test
+    public void testManyEntries() throws Exception {
+
+        final int numOfEntries = 0x10000 + 100;
+
+        File zipFile = File.createTempFile("mzmine", ".zip");
+        try {
+            ProjectZipWriter writer = new ProjectZipWriter(zipFile);
+            for (int i = 0; i < numOfEntries; i++)
+                writeStoredEntry(writer, "entry" + i, entryContent(i));
+            writer.close();
+
+            try (ZipFile zip = new ZipFile(zipFile)) {
+                Assert.assertEquals(numOfEntries, zip.size());
+                for (int i = 0; i < numOfEntries; i += 1000)
+                    assertEntry(zip, "entry" + i, ZipEntry.STORED,
+                            entryContent(i));
+                assertEntry(zip, "entry" + (numOfEntries - 1),
+                        ZipEntry.STORED, entryContent(numOfEntries - 1));
+            }
+        } finally {
+            zipFile.delete();
+        }
+    }
+
+    /**
+     * Entries larger than the lowered ZIP64 threshold, and an entry whose
+     * offset needs ZIP64, too
+     */
+    @Test
+    public void testZip64Entries() throws Exception {
+
+        byte large[] = new byte[12345];
+        new Random(3).nextBytes(large);
+
+        File zipFile = File.createTempFile("mzmine", ".zip");
+        try {
+            writeZip64TestFile(zipFile, large);
+
+            try (ZipFile zip = new ZipFile(zipFile)) {
+                Assert.assertEquals(4, zip.size());
+                assertEntry(zip, "first", ZipEntry.STORED, entryContent(1));
+                assertEntry(zip, "large.scans", ZipEntry.STORED, large);
+                assertEntry(zip, "large.xml", ZipEntry.DEFLATED, large);
+                assertEntry(zip, "last", ZipEntry.STORED, entryContent(2));
+            }
+        } finally {
+            zipFile.delete();
+        }
+    }
+
+    /**
+     * Entries larger than the lowered ZIP64 threshold and an entry after
+     * them, read in place using the ZIP64 sizes and offsets
+     */
+    @Test
+    public void testStoredZipEntriesZip64() throws Exception {
+
+        byte large[] = new byte[12345];
+        new Random(4).nextBytes(large);
+
+        File zipFile = File.createTempFile("mzmine", ".zip");
+        try {
+            writeZip64TestFile(zipFile, large);
+
+            StoredZipEntries entries = new StoredZipEntries(zipFile);
+            assertStoredEntry(entries, "first", entryContent(1));
+            assertStoredEntry(entries, "large.scans", large);
+            Assert.assertNull(entries.openEntry("large.xml"));
+            assertStoredEntry(entries, "last", entryContent(2));
+        } finally {
+            zipFile.delete();
+        }
+    }
+
+    /**
+     * An entry larger than 4 GB, followed by an entry whose offset needs ZIP64,
+     * too. The large entry is written as a sparse file, with data only at its
+     * start and end. Runs only if the LARGE_FILES_PROPERTY is set.
+     */
+    @Test
+    public void testLargeEntry() throws Exception {
+
+        Assume.assumeTrue(Boolean.getBoolean(LARGE_FILES_PROPERTY));
+
+        File zipFile = File.createTempFile("mzmine", ".zip");
+        try {
+            ProjectZipWriter writer = new ProjectZipWriter(zipFile);
+            writeStoredEntry(writer, "first", entryContent(1));
+            final long crc = writeLargeEntry(writer, "large.scans");
+            writeStoredEntry(writer, "last", entryContent(2));
+            writer.close();
+
+            try (ZipFile zip = new ZipFile(zipFile)) {
+                Assert.assertEquals(3, zip.size());
+                assertEntry(zip, "first", ZipEntry.STORED, entryContent(1));
+                assertEntry(zip, "last", ZipEntry.STORED, entryContent(2));
+
+                ZipEntry large = zip.getEntry("large.scans");
+                Assert.assertNotNull(large);
+                Assert.assertEquals(LARGE_ENTRY_SIZE, large.getSize());
+                Assert.assertEquals(LARGE_ENTRY_SIZE,
+                        large.getCompressedSize());
+                Assert.assertEquals(crc, large.getCrc());
+                byte head[] = largeEntryMarker("head");
+                try (InputStream in = zip.getInputStream(large)) {
+                    Assert.assertArrayEquals(head,
+                            readFully(in, head.length));
+                }
+            }
+        } finally {
+            zipFile.delete();
+        }
+    }
+
+    /**
+     * Stored entries read in place by StoredZipEntries, compressed entries are
+     * not available
+     */
+    @Test
+    public void testStoredZipEntries() throws Exception {
+
+        byte binary[] = new byte[100000];
+        new Random(2).nextBytes(binary);
+
+        File zipFile = File.createTempFile("mzmine", ".zip");
+        try {
+            ProjectZipWriter writer = new ProjectZipWriter(zipFile);
+            PreparedZipEntry compressedEntry = new PreparedZipEntry(
+                    "config.xml", true, null);
+            compressedEntry.write(entryContent(0));
+            writer.addEntry(compressedEntry);
+            writeStoredEntry(writer, "Raw data file #1 test.scans", binary);
+            writeStoredEntry(writer, "empty", new byte[0]);
+            writeStoredEntry(writer, "Peak list #1 test.chromatograms",
+                    entryContent(1));
+            writer.close();
+
+            StoredZipEntries entries = new StoredZipEntries(zipFile);
+            Assert.assertNull(entries.openEntry("config.xml"));
+            Assert.assertNull(entries.openEntry("missing"));
+            assertStoredEntry(entries, "Raw data file #1 test.scans", binary);
+            assertStoredEntry(entries, "empty", new byte[0]);
+            assertStoredEntry(entries, "Peak list #1 test.chromatograms",
+                    entryContent(1));
+        } finally {
+            zipFile.delete();
+        }
+    }
+
+    /**
+     * An entry larger than 4 GB and an entry after it, read in place using
+     * the ZIP64 sizes and offsets. Runs only if the LARGE_FILES_PROPERTY is
+     * set.
+     */
+    @Test
+    public void testStoredZipEntriesLarge() throws Exception {
+
+        Assume.assumeTrue(Boolean.getBoolean(LARGE_FILES_PROPERTY));
+
+        File zipFile = File.createTempFile("mzmine", ".zip");
+        try {
+            ProjectZipWriter writer = new ProjectZipWriter(zipFile);
+            writeStoredEntry(writer, "first", entryContent(1));
+            writeLargeEntry(writer, "large.scans");
+            writeStoredEntry(writer, "last", entryContent(2));
+            writer.close();
+
+            StoredZipEntries entries = new StoredZipEntries(zipFile);
+            assertStoredEntry(entries, "first", entryContent(1));
+            assertStoredEntry(entries, "last", entryContent(2));
+
+            MappedDataPointsFile large = entries.openEntry("large.scans");
+            try {
+                Assert.assertEquals(LARGE_ENTRY_SIZE, large.length());
+                byte head[] = largeEntryMarker("head");
+                byte tail[] = largeEntryMarker("tail");
+                Assert.assertArrayEquals(head,
+                        toArray(large.read(0, head.length)));
+                Assert.assertArrayEquals(tail, toArray(large.read(
+                        LARGE_ENTRY_SIZE - tail.length, tail.length)));
+            } finally {
+                large.close();
+            }
+        } finally {
+            zipFile.delete();
+        }
+    }
+
+    /**
+     * Writes a ZIP file with the lowered ZIP64 threshold, which contains the
+     * given content as a stored and as a compressed entry, between two small
+     * entries
+     */
+    private static void writeZip64TestFile(File zipFile, byte large[])
+            throws IOException {
+        ProjectZipWriter writer = new ProjectZipWriter(zipFile,
+                TEST_ZIP64_THRESHOLD);
+        writeStoredEntry(writer, "first", entryContent(1));
+        writeStoredEntry(writer, "large.scans", large);
+        PreparedZipEntry compressedEntry = new PreparedZipEntry("large.xml",
+                true, null);
+        compressedEntry.write(large);
+        writer.addEntry(compressedEntry);
+        writeStoredEntry(writer, "last", entryContent(2));
+        writer.close();
+    }
+
+    /**
+     * Writes a stored entry of LARGE_ENTRY_SIZE bytes, with markers at its
+     * start and end and unwritten (zero) bytes between them
+     *
+     * @return CRC-32 of the entry
+     */
+    static long writeLargeEntry(ProjectZipWriter writer, String name)
+            throws IOException {
+
+        final byte head[] = largeEntryMarker("head");
+        final byte tail[] = largeEntryMarker("tail");
+
+        FileChannel channel = writer.startStoredEntry(name);
+        final long start = channel.position();
+        channel.write(ByteBuffer.wrap(head));
+        channel.position(start + LARGE_ENTRY_SIZE - tail.length);
+        channel.write(ByteBuffer.wrap(tail));
+
+        CRC32 crc = new CRC32();
+        crc.update(head);
+        byte zeros[] = new byte[1 << 20];
+        long remaining = LARGE_ENTRY_SIZE - head.length - tail.length;
+        while (remaining > 0) {
+            final int length = (int) Math.min(zeros.length, remaining);
+            crc.update(zeros, 0, length);
+            remaining -= length;
+        }
+        crc.update(tail);
+
+        writer.finishStoredEntry(crc.getValue());
+        return crc.getValue();
+    }
+
+    static byte[] largeEntryMarker(String marker) {
+        return ("large entry " + marker).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static void writeStoredEntry(ProjectZipWriter writer, String name,
+            byte content[]) throws IOException {
+        FileChannel channel = writer.startStoredEntry(name);
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        writer.finishStoredEntry(crc.getValue());
+    }
+
+    static byte[] entryContent(int i) {
+        return ("content of entry " + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void assertEntry(ZipFile zip, String name, int method,
+            byte content[]) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        Assert.assertNotNull(name, entry);
+        Assert.assertEquals(name, method, entry.getMethod());
+        Assert.assertEquals(name, content.length, entry.getSize());
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        Assert.assertEquals(name, crc.getValue(), entry.getCrc());
+        try (InputStream in = zip.getInputStream(entry)) {
+            Assert.assertArrayEquals(name, content,
+                    readFully(in, content.length));
+            Assert.assertEquals(name, -1, in.read());
+        }
+    }
+
+    private static void assertStoredEntry(StoredZipEntries entries,
+            String name, byte content[]) throws IOException {
+        MappedDataPointsFile entry = entries.openEntry(name);
+        Assert.assertNotNull(name, entry);
+        try {
+            Assert.assertTrue(name, entry.isRegion());
+            Assert.assertEquals(name, content.length, entry.length());
+            Assert.assertArrayEquals(name, content,
+                    toArray(entry.read(0, content.length)));
+        } finally {
+            entry.close();
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte array[] = new byte[buffer.remaining()];
+        buffer.get(array);
+        return array;
+    }
+
+    private static byte[] readFully(InputStream in, int length)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte buffer[] = new byte[8192];
+        while (out.size() < length) {
+            int read = in.read(buffer, 0,
+                    Math.min(buffer.length, length - out.size()));
+            if (read < 0)
+                break;
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DataPointsCodecTest {
+
+    /**
+     * Profile-like scan: ascending m/z, runs of zero intensities
+     */
+    @Test
+    public void testProfileScan() {
+        final int size = 5000;
+        double mzValues[] = new double[size];
+        double intensityValues[] = new double[size];
+        for (int i = 0; i < size; i++) {
+            mzValues[i] = 100 + i * 0.01;
+            intensityValues[i] = (i % 50 < 40) ? 0 : 1000 * Math.sin(i);
+        }
+        assertRoundTrip(mzValues, intensityValues);
+    }
+
+    /**
+     * Random values, including negative differences between consecutive m/z
+     * values and intensities of all magnitudes
+     */
+    @Test
+    public void testRandomValues() {
+        Random random = new Random(12345);
+        for (int size : new int[] { 0, 1, 2, 17, 1000 }) {
+            double mzValues[] = new double[size];
+            double intensityValues[] = new double[size];
+            for (int i = 0; i < size; i++) {
+                mzValues[i] = random.nextDouble() * 2000;
+                intensityValues[i] = Math.pow(10, random.nextInt(20) - 5)
+                        * random.nextDouble();
+            }
+            assertRoundTrip(mzValues, intensityValues);
+        }
+    }
+
+    /**
+     * Special float values, whose bit patterns are far apart
+     */
+    @Test
+    public void testSpecialValues() {
+        double values[] = { 0, -0.0, Float.MIN_VALUE, -Float.MIN_VALUE,
+                Float.MAX_VALUE, -Float.MAX_VALUE, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Float.MIN_NORMAL, 1, -1, 0 };
+        double reversed[] = new double[values.length];
+        for (int i = 0; i < values.length; i++)
+            reversed[i] = values[values.length - 1 - i];
+        assertRoundTrip(values, reversed);
+    }
+
+    /**
+     * Only the intensities of data points with a shared m/z axis
+     */
+    @Test
+    public void testIntensitiesOnly() {
+        Random random = new Random(54321);
+        final int size = 1000;
+        double intensityValues[] = new double[size];
+        for (int i = 0; i < size; i++)
+            intensityValues[i] = (i % 3 == 0) ? 0 : random.nextFloat() * 1e6;
+
+        ByteBuffer buffer = ByteBuffer
+                .allocate(DataPointsCodec.getMaxEncodedLength(size));
+        DataPointsCodec.encodeIntensities(intensityValues, size, buffer);
+        buffer.flip();
+
+        float values[] = new float[2 * size];
+        DataPointsCodec.decodeIntensities(buffer, size, values);
+        Assert.assertEquals(0, buffer.remaining());
+        for (int i = 0; i < size; i++) {
+            Assert.assertEquals(0f, values[2 * i], 0);
+            Assert.assertEquals((float) intensityValues[i], values[2 * i + 1],
+                    0);
+        }
+    }
+
+    /**
+     * Encodes the values with both encode() methods, checks that they write
+     * the same bytes within the maximum length, and that decode() restores
+     * the float values
+     */
+    private void assertRoundTrip(double mzValues[], double intensityValues[]) {
+
+        final int size = mzValues.length;
+        final int maxLength = DataPointsCodec.getMaxEncodedLength(size);
+
+        DataPoint dataPoints[] = new DataPoint[size];
+        for (int i = 0; i < size; i++)
+            dataPoints[i] = new SimpleDataPoint(mzValues[i],
+                    intensityValues[i]);
+        ByteBuffer pointsBuffer = ByteBuffer.allocate(maxLength);
+        DataPointsCodec.encode(dataPoints, pointsBuffer);
+        pointsBuffer.flip();
+
+        // Longer arrays, only the first size values are encoded
+        double longMzValues[] = new double[size + 3];
+        double longIntensityValues[] = new double[size + 3];
+        System.arraycopy(mzValues, 0, longMzValues, 0, size);
+        System.arraycopy(intensityValues, 0, longIntensityValues, 0, size);
+        ByteBuffer arraysBuffer = ByteBuffer.allocate(maxLength);
+        DataPointsCodec.encode(longMzValues, longIntensityValues, size,
+                arraysBuffer);
+        arraysBuffer.flip();
+
+        Assert.assertEquals(pointsBuffer, arraysBuffer);
+
+        float values[] = new float[2 * size];
+        DataPointsCodec.decode(pointsBuffer, size, values);
+        Assert.assertEquals(0, pointsBuffer.remaining());
+        for (int i = 0; i < size; i++) {
+            Assert.assertEquals(Float.floatToRawIntBits((float) mzValues[i]),
+                    Float.floatToRawIntBits(values[2 * i]));
+            Assert.assertEquals(
+                    Float.floatToRawIntBits((float) intensityValues[i]),
+                    Float.floatToRawIntBits(values[2 * i + 1]));
+        }
+    }
+
+}